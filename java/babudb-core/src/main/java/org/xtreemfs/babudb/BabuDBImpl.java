@@ -19,6 +19,7 @@ import static org.xtreemfs.babudb.log.LogEntry.PAYLOAD_TYPE_TRANSACTION;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,16 +36,20 @@ import org.xtreemfs.babudb.api.dev.ResponseManagerInternal;
 import org.xtreemfs.babudb.api.dev.SnapshotManagerInternal;
 import org.xtreemfs.babudb.api.dev.transaction.InMemoryProcessing;
 import org.xtreemfs.babudb.api.dev.transaction.OperationInternal;
+import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.dev.transaction.TransactionManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.conversion.AutoConverter;
+import org.xtreemfs.babudb.index.OverlayMemoryBudget;
+import org.xtreemfs.babudb.index.reader.BlockCache;
 import org.xtreemfs.babudb.log.DiskLogIterator;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.babudb.log.LogEntry;
 import org.xtreemfs.babudb.lsmdb.CheckpointerImpl;
+import org.xtreemfs.babudb.lsmdb.Compactor;
 import org.xtreemfs.babudb.lsmdb.DBConfig;
 import org.xtreemfs.babudb.lsmdb.DatabaseManagerImpl;
 import org.xtreemfs.babudb.lsmdb.LSMDBWorker;
@@ -85,6 +90,12 @@ public class BabuDBImpl implements BabuDBInternal {
      */
     private final CheckpointerInternal    dbCheckptr;
     
+    /**
+     * Compaction thread for merging on-disk index runs; <code>null</code>, if
+     * compaction is disabled
+     */
+    private volatile Compactor            compactor;
+    
     /**
      * the component that manages database snapshots
      */
@@ -154,6 +165,9 @@ public class BabuDBImpl implements BabuDBInternal {
         this.dbConfigFile = new DBConfig(this);
         this.snapshotManager = new SnapshotManagerImpl(this);
         this.dbCheckptr = new CheckpointerImpl(this);
+        
+        BlockCache.getInstance().setCapacity(configuration.getBlockCacheSize() * 1024L * 1024L);
+        OverlayMemoryBudget.getInstance().setCapacity(configuration.getOverlayMemoryBudget() * 1024L * 1024L);
     }
     
     /*
@@ -203,7 +217,7 @@ public class BabuDBImpl implements BabuDBInternal {
             try {
                 logger = new DiskLogger(configuration.getDbLogDir(), nextLSN, configuration.getSyncMode(),
                     configuration.getPseudoSyncWait(), configuration.getMaxQueueLength()
-                        * Math.max(1, configuration.getNumThreads()));
+                        * Math.max(1, configuration.getNumThreads()), configuration.getGroupCommitLatencyTarget());
                 logger.setLifeCycleListener(this);
                 logger.start();
                 logger.waitForStartup();
@@ -233,6 +247,7 @@ public class BabuDBImpl implements BabuDBInternal {
             // the instantiation because the instance has to be there when the log
             // is replayed
             this.dbCheckptr.init(logger, configuration.getCheckInterval(), configuration.getMaxLogfileSize());
+            startCompactor();
             
             final LSN firstLSN = new LSN(1, 1L);
             if (staticInit != null && nextLSN.equals(firstLSN)) {
@@ -246,6 +261,7 @@ public class BabuDBImpl implements BabuDBInternal {
             }
             
             this.stopped.set(false);
+            startIndexPreOpener();
             
             Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                     "BabuDB for Java is running " + "(version "
@@ -281,6 +297,7 @@ public class BabuDBImpl implements BabuDBInternal {
                     w.shutdown();
             
             try {
+                stopCompactor();
                 dbCheckptr.suspendCheckpointing();
                 logger.shutdown();
                 logger.waitForShutdown();
@@ -348,7 +365,7 @@ public class BabuDBImpl implements BabuDBInternal {
             try {
                 logger = new DiskLogger(configuration.getDbLogDir(), nextLSN, configuration.getSyncMode(),
                     configuration.getPseudoSyncWait(), configuration.getMaxQueueLength()
-                        * configuration.getNumThreads());
+                        * configuration.getNumThreads(), configuration.getGroupCommitLatencyTarget());
                 logger.setLifeCycleListener(this);
                 logger.start();
                 logger.waitForStartup();
@@ -375,11 +392,13 @@ public class BabuDBImpl implements BabuDBInternal {
             
             // restart the checkpointer
             this.dbCheckptr.init(logger, configuration.getCheckInterval(), configuration.getMaxLogfileSize());
+            startCompactor();
             
             Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                     "BabuDB for Java is " + "running (version " + BABUDB_VERSION + ")");
             
             this.stopped.set(false);
+            startIndexPreOpener();
             return new LSN(nextLSN.getViewId(), nextLSN.getSequenceNo() - 1L);
         }
     }
@@ -426,6 +445,7 @@ public class BabuDBImpl implements BabuDBInternal {
         
         // complete checkpoint before shutdown
         try {
+            stopCompactor();
             dbCheckptr.shutdown();
             dbCheckptr.waitForShutdown();
         } catch (Exception e) {
@@ -465,6 +485,72 @@ public class BabuDBImpl implements BabuDBInternal {
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "BabuDB shutdown complete.");
     }
     
+    /**
+     * Starts the thread that merges on-disk index runs, if compaction is
+     * enabled.
+     */
+    private void startCompactor() {
+        
+        if (!configuration.getCompaction())
+            return;
+        
+        compactor = new Compactor(this, configuration.getCompactionInterval(), configuration
+                .getCompactionFanout());
+        compactor.start();
+    }
+    
+    /**
+     * Starts a thread that loads all lazily opened on-disk indices in the
+     * background, so that the first accesses to the databases do not have to
+     * wait for their indices to be loaded. The thread terminates when all
+     * indices have been loaded or BabuDB is stopped.
+     */
+    private void startIndexPreOpener() {
+        
+        if (!configuration.getLazyOpenIndices() || !configuration.getPreOpenIndices())
+            return;
+        
+        final Collection<DatabaseInternal> dbs = databaseManager.getDatabaseList();
+        Thread preOpener = new Thread("IndexPreOpener") {
+            public void run() {
+                for (DatabaseInternal db : dbs) {
+                    
+                    if (stopped.get())
+                        return;
+                    
+                    LSMDatabase lsmDB = db.getLSMDB();
+                    if (lsmDB.isDeleted())
+                        continue;
+                    
+                    try {
+                        lsmDB.preOpen();
+                    } catch (Exception exc) {
+                        Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                            "could not pre-open indices of database '%s': %s", lsmDB.getDatabaseName(), exc);
+                    }
+                }
+                Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "pre-opened %d databases",
+                    dbs.size());
+            }
+        };
+        preOpener.setDaemon(true);
+        preOpener.start();
+    }
+    
+    /**
+     * Stops the thread that merges on-disk index runs and waits until a
+     * compaction that is in progress has been completed.
+     */
+    private void stopCompactor() throws Exception {
+        
+        if (compactor == null)
+            return;
+        
+        compactor.shutdown();
+        compactor.waitForShutdown();
+        compactor = null;
+    }
+    
     /**
      * NEVER USE THIS EXCEPT FOR UNIT TESTS! Kills the database.
      */
@@ -475,6 +561,8 @@ public class BabuDBImpl implements BabuDBInternal {
             if (worker != null)
                 for (LSMDBWorker w : worker)
                     w.stop();
+            if (compactor != null)
+                compactor.shutdown();
             this.dbCheckptr.shutdown();
             this.databaseManager.shutdown();
             this.snapshotManager.shutdown();
@@ -554,6 +642,17 @@ public class BabuDBImpl implements BabuDBInternal {
 
         if (property.startsWith("diskLogger"))
             return logger.getRuntimeState(property);
+        
+        if (property.startsWith("blockCache"))
+            return BlockCache.getInstance().getRuntimeState(property);
+        
+        if (property.startsWith("overlayBudget"))
+            return OverlayMemoryBudget.getInstance().getRuntimeState(property);
+        
+        if (property.startsWith("compactor")) {
+            Compactor c = compactor;
+            return c == null ? null : c.getRuntimeState(property);
+        }
 
         return null;
     }
@@ -570,6 +669,11 @@ public class BabuDBImpl implements BabuDBInternal {
         info.putAll(dbCheckptr.getRuntimeState());
         info.putAll(databaseManager.getRuntimeState());
         info.putAll(logger.getRuntimeState());
+        info.putAll(BlockCache.getInstance().getRuntimeState());
+        info.putAll(OverlayMemoryBudget.getInstance().getRuntimeState());
+        Compactor c = compactor;
+        if (c != null)
+            info.putAll(c.getRuntimeState());
         
         return info;
     }
@@ -623,10 +727,33 @@ public class BabuDBImpl implements BabuDBInternal {
      */
     @Override
     public LSMDBWorker getWorker(int dbId) {
+        return getWorker(dbId, 0);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.BabuDBInternal#getWorker(int, int)
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int shard) {
         if (worker == null) {
             return null;
         }
-        return worker[dbId % worker.length];
+        return worker[(dbId + shard) % worker.length];
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.BabuDBInternal#getShardCount()
+     */
+    @Override
+    public int getShardCount() {
+        if (worker == null) {
+            return 1;
+        }
+        return Math.max(1, Math.min(configuration.getShards(), worker.length));
     }
     
     /**
@@ -652,82 +779,103 @@ public class BabuDBImpl implements BabuDBInternal {
             DiskLogIterator it = new DiskLogIterator(logFiles, from);
             LSN nextLSN = null;
             
-            // apply log entries to databases ...
-            while (it.hasNext()) {
-                LogEntry le = null;
-                try {
-                    le = it.next();
-                    byte type = le.getPayloadType();
-                    
-                    Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
-                        "Reading entry LSN(%s) of type (%d) with %d bytes payload from log.", le.getLSN()
-                                .toString(), (int) type, le.getPayload().remaining());
-                    
-                    // in normal there are only transactions to be replayed
-                    if (type == PAYLOAD_TYPE_TRANSACTION) {
-                        txnMan.replayTransaction(le);
-                        
-                        // create, copy and delete are not replayed (this block
-                        // is for backward
-                        // compatibility)
-                    } else if (type != PAYLOAD_TYPE_CREATE && type != PAYLOAD_TYPE_COPY
-                        && type != PAYLOAD_TYPE_DELETE) {
-                        
-                        // get the processing logic for the dedicated logEntry
-                        // type
-                        InMemoryProcessing processingLogic = txnMan.getProcessingLogic().get(type);
+            // if enabled, transactions are decoded by this thread and applied
+            // by a set of workers
+            ParallelReplay replay = null;
+            if (configuration.getReplayThreads() > 1)
+                replay = new ParallelReplay(txnMan, databaseManager, configuration.getReplayThreads());
+            
+            try {
+                // apply log entries to databases ...
+                while (it.hasNext()) {
+                    LogEntry le = null;
+                    try {
+                        le = it.next();
+                        byte type = le.getPayloadType();
                         
-                        // deserialize the arguments retrieved from the logEntry
-                        OperationInternal operation = processingLogic.convertToOperation(processingLogic
-                                .deserializeRequest(le.getPayload()));
+                        Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
+                            "Reading entry LSN(%s) of type (%d) with %d bytes payload from log.", le.getLSN()
+                                    .toString(), (int) type, le.getPayload().remaining());
                         
-                        // execute the in-memory logic
-                        try {
-                            processingLogic.process(operation);
-                        } catch (BabuDBException be) {
+                        // in normal there are only transactions to be replayed
+                        if (type == PAYLOAD_TYPE_TRANSACTION) {
+                            if (replay != null)
+                                replay.replay(TransactionInternal.deserialize(le.getPayload()));
+                            else
+                                txnMan.replayTransaction(le);
                             
-                            // there might be false positives if a snapshot to
-                            // delete has already been deleted, a snapshot to
-                            // create has already been created, or an insertion
-                            // has been applied to a database that has already
-                            // been deleted
+                            // create, copy and delete are not replayed (this block
+                            // is for backward
+                            // compatibility)
+                        } else if (type != PAYLOAD_TYPE_CREATE && type != PAYLOAD_TYPE_COPY
+                            && type != PAYLOAD_TYPE_DELETE) {
                             
-                            // FIXME: A clean solution needs to be provided that
-                            // is capable of distinguishing between a corrupted
-                            // database and a "false positive". False positives
-                            // may occur because management operations are
-                            // immediately applied to the persistent database
-                            // state rather than being applied when the log is
-                            // replayed.
-                            // A clean solution would involve a single immutable
-                            // configuration file per database/snapshot, which
-                            // resides in the database directory and is written
-                            // when the first checkpoint is created. When a
-                            // database/snapshot gets deleted, an additional
-                            // (empty) file is created that indicates the
-                            // deletion. When old log files are removed in
-                            // response to a checkpoint, the system disposes of
-                            // all directories of databases and snapshots that
-                            // were deleted in these log files.
-                            if (!(type == PAYLOAD_TYPE_SNAP && (be.getErrorCode() == ErrorCode.SNAP_EXISTS || be
-                                    .getErrorCode() == ErrorCode.NO_SUCH_DB))
-                                && !(type == PAYLOAD_TYPE_SNAP_DELETE && be.getErrorCode() == ErrorCode.NO_SUCH_SNAPSHOT)
-                                && !(type == PAYLOAD_TYPE_INSERT && be.getErrorCode().equals(
-                                    ErrorCode.NO_SUCH_DB))) {
+                            // apply all pending transactions first
+                            if (replay != null)
+                                replay.awaitCompletion();
+                            
+                            // get the processing logic for the dedicated logEntry
+                            // type
+                            InMemoryProcessing processingLogic = txnMan.getProcessingLogic().get(type);
+                            
+                            // deserialize the arguments retrieved from the logEntry
+                            OperationInternal operation = processingLogic.convertToOperation(processingLogic
+                                    .deserializeRequest(le.getPayload()));
+                            
+                            // execute the in-memory logic
+                            try {
+                                processingLogic.process(operation);
+                            } catch (BabuDBException be) {
+                                
+                                // there might be false positives if a snapshot to
+                                // delete has already been deleted, a snapshot to
+                                // create has already been created, or an insertion
+                                // has been applied to a database that has already
+                                // been deleted
                                 
-                                throw be;
+                                // FIXME: A clean solution needs to be provided that
+                                // is capable of distinguishing between a corrupted
+                                // database and a "false positive". False positives
+                                // may occur because management operations are
+                                // immediately applied to the persistent database
+                                // state rather than being applied when the log is
+                                // replayed.
+                                // A clean solution would involve a single immutable
+                                // configuration file per database/snapshot, which
+                                // resides in the database directory and is written
+                                // when the first checkpoint is created. When a
+                                // database/snapshot gets deleted, an additional
+                                // (empty) file is created that indicates the
+                                // deletion. When old log files are removed in
+                                // response to a checkpoint, the system disposes of
+                                // all directories of databases and snapshots that
+                                // were deleted in these log files.
+                                if (!(type == PAYLOAD_TYPE_SNAP && (be.getErrorCode() == ErrorCode.SNAP_EXISTS || be
+                                        .getErrorCode() == ErrorCode.NO_SUCH_DB))
+                                    && !(type == PAYLOAD_TYPE_SNAP_DELETE && be.getErrorCode() == ErrorCode.NO_SUCH_SNAPSHOT)
+                                    && !(type == PAYLOAD_TYPE_INSERT && be.getErrorCode().equals(
+                                        ErrorCode.NO_SUCH_DB))) {
+                                    
+                                    throw be;
+                                }
                             }
                         }
+                        
+                        // set LSN
+                        nextLSN = new LSN(le.getViewId(), le.getLogSequenceNo() + 1L);
+                    } finally {
+                        if (le != null) {
+                            le.free();
+                        }
                     }
                     
-                    // set LSN
-                    nextLSN = new LSN(le.getViewId(), le.getLogSequenceNo() + 1L);
-                } finally {
-                    if (le != null) {
-                        le.free();
-                    }
                 }
                 
+                if (replay != null)
+                    replay.awaitCompletion();
+            } finally {
+                if (replay != null)
+                    replay.shutdown();
             }
             
             it.destroy();
@@ -0,0 +1,225 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
+import org.xtreemfs.babudb.api.dev.transaction.OperationInternal;
+import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
+import org.xtreemfs.babudb.api.dev.transaction.TransactionManagerInternal;
+import org.xtreemfs.babudb.api.exception.BabuDBException;
+import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.api.transaction.Operation;
+import org.xtreemfs.babudb.lsmdb.BabuDBTransaction;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup;
+
+/**
+ * Replays transactions from the database log by means of multiple worker
+ * threads.
+ * <p>
+ * Insertions are partitioned by database ID, so that all insertions into a
+ * database are applied by the same worker, in the order in which they appear
+ * in the log. Transactions with any other operations (e.g. creating,
+ * copying or deleting databases and snapshots) act as barriers: they are only
+ * replayed on the calling thread once all previous insertions have been
+ * applied.
+ * </p>
+ */
+class ParallelReplay {
+    
+    /**
+     * the max. number of transactions queued per worker
+     */
+    private static final int                 QUEUE_SIZE = 1024;
+    
+    /**
+     * tells a worker to terminate
+     */
+    private static final TransactionInternal STOP       = new BabuDBTransaction();
+    
+    private final TransactionManagerInternal txnMan;
+    
+    private final DatabaseManagerInternal    dbMan;
+    
+    private final Worker[]                   workers;
+    
+    /**
+     * the number of transactions that have been queued but not yet replayed
+     */
+    private int                              pending;
+    
+    /**
+     * the first error that occurred in a worker
+     */
+    private Exception                        error;
+    
+    /**
+     * Creates and starts the given number of replay workers.
+     *
+     * @param txnMan
+     *            the transaction manager that replays the transactions
+     * @param dbMan
+     *            the database manager
+     * @param numThreads
+     *            the number of worker threads
+     */
+    ParallelReplay(TransactionManagerInternal txnMan, DatabaseManagerInternal dbMan, int numThreads) {
+        
+        this.txnMan = txnMan;
+        this.dbMan = dbMan;
+        this.workers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+    
+    /**
+     * Replays the given transaction. Insertions are handed over to the
+     * workers, whereas any other transaction is replayed by the calling thread
+     * after all pending insertions have been applied.
+     *
+     * @param txn
+     *            the transaction
+     * @throws BabuDBException
+     *             if a previous transaction could not be replayed, or if the
+     *             given transaction could not be replayed
+     * @throws InterruptedException
+     *             if the calling thread was interrupted
+     */
+    void replay(TransactionInternal txn) throws BabuDBException, InterruptedException {
+        
+        checkError();
+        
+        for (OperationInternal operation : txn) {
+            if (!isInsert(operation)) {
+                awaitCompletion();
+                txnMan.replayTransaction(txn);
+                return;
+            }
+        }
+        
+        for (OperationInternal operation : txn) {
+            
+            // determine the database ID; insertions into databases that no
+            // longer exist are ignored, as in case of a sequential replay
+            InsertRecordGroup irg = (InsertRecordGroup) operation.getParams()[0];
+            if (irg.getDatabaseId() == InsertRecordGroup.DB_ID_UNKNOWN) {
+                try {
+                    irg.setDatabaseId(dbMan.getDatabase(operation.getDatabaseName()).getLSMDB()
+                            .getDatabaseId());
+                } catch (BabuDBException exc) {
+                    if (exc.getErrorCode() != ErrorCode.NO_SUCH_DB)
+                        throw exc;
+                    continue;
+                }
+            }
+            
+            BabuDBTransaction part = new BabuDBTransaction();
+            part.addOperation(operation);
+            
+            synchronized (this) {
+                pending++;
+            }
+            workers[irg.getDatabaseId() % workers.length].queue.put(part);
+        }
+    }
+    
+    /**
+     * Waits until all transactions handed over to the workers have been
+     * replayed.
+     *
+     * @throws BabuDBException
+     *             if a transaction could not be replayed
+     * @throws InterruptedException
+     *             if the calling thread was interrupted
+     */
+    synchronized void awaitCompletion() throws BabuDBException, InterruptedException {
+        
+        while (pending > 0 && error == null)
+            wait();
+        
+        checkError();
+    }
+    
+    /**
+     * Terminates all workers. Transactions that have not yet been replayed
+     * are discarded.
+     */
+    void shutdown() {
+        for (Worker worker : workers) {
+            worker.queue.clear();
+            worker.queue.offer(STOP);
+        }
+    }
+    
+    private static boolean isInsert(OperationInternal operation) {
+        Object[] params = operation.getParams();
+        return operation.getType() == Operation.TYPE_GROUP_INSERT && params != null && params.length > 0
+            && params[0] instanceof InsertRecordGroup;
+    }
+    
+    private synchronized void checkError() throws BabuDBException {
+        
+        if (error instanceof BabuDBException)
+            throw (BabuDBException) error;
+        else if (error != null)
+            throw new BabuDBException(ErrorCode.IO_ERROR, "could not replay log entry", error);
+    }
+    
+    private synchronized void replayed(Exception exc) {
+        
+        if (exc != null && error == null)
+            error = exc;
+        
+        if (--pending == 0 || error != null)
+            notifyAll();
+    }
+    
+    private class Worker extends Thread {
+        
+        private final BlockingQueue<TransactionInternal> queue;
+        
+        Worker(int id) {
+            super("ReplayWorker#" + id);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<TransactionInternal>(QUEUE_SIZE);
+        }
+        
+        public void run() {
+            
+            for (;;) {
+                
+                TransactionInternal txn;
+                try {
+                    txn = queue.take();
+                } catch (InterruptedException exc) {
+                    return;
+                }
+                
+                if (txn == STOP)
+                    return;
+                
+                Exception exc = null;
+                try {
+                    // skip all remaining transactions after an error
+                    synchronized (ParallelReplay.this) {
+                        if (error != null)
+                            txn = null;
+                    }
+                    if (txn != null)
+                        txnMan.replayTransaction(txn);
+                } catch (Exception e) {
+                    exc = e;
+                }
+                
+                replayed(exc);
+            }
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.transaction.Operation;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
+import org.xtreemfs.babudb.index.OverlayMemoryBudget;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.log.LogEntry;
 import org.xtreemfs.babudb.log.SyncListener;
@@ -93,6 +94,18 @@ class TransactionManagerImpl extends TransactionManagerInternal {
                 txn.toString());
         
         try {
+            
+            // stall insertions as long as the in-memory overlays exceed the
+            // memory budget
+            if (OverlayMemoryBudget.getInstance().isEnabled() && containsInsertions(txn)) {
+                try {
+                    OverlayMemoryBudget.getInstance().awaitCapacity();
+                } catch (InterruptedException ie) {
+                    BufferPool.free(payload);
+                    throw new BabuDBException(ErrorCode.INTERRUPTED, "Operation was interrupted while waiting "
+                            + "for overlay memory to become available.", ie);
+                }
+            }
                     
             Object[] result = inMemory(txn, payload);
             LogEntry entry = generateLogEntry(txn, payload, future, result);
@@ -206,6 +219,22 @@ class TransactionManagerImpl extends TransactionManagerInternal {
         } 
     }
     
+    /**
+     * Checks whether the given transaction inserts records into a database.
+     * 
+     * @param txn
+     * @return true, if the transaction contains an insert group.
+     */
+    private static boolean containsInsertions(TransactionInternal txn) {
+        
+        for (int i = 0; i < txn.size(); i++) {
+            if (txn.get(i).getType() == Operation.TYPE_GROUP_INSERT) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     /**
      * Internal method to process the in-memory changes on BabuDB for a given transaction.
      * 
@@ -95,6 +95,21 @@ public interface BabuDBInternal extends BabuDB, LifeCycleListener {
      */
     public LSMDBWorker getWorker(int dbId);
     
+    /**
+     * @param dbId
+     * @param shard
+     * @return a worker Thread, responsible for the given shard of the DB given by its ID.
+     */
+    public LSMDBWorker getWorker(int dbId, int shard);
+    
+    /**
+     * Returns the number of shards across which the keys of each database are partitioned.
+     * Requests for different shards of a database are processed by different worker threads.
+     * 
+     * @return the number of shards per database; 1, if databases are not partitioned.
+     */
+    public int getShardCount();
+    
     /**
      * Returns the number of worker threads.
      * 
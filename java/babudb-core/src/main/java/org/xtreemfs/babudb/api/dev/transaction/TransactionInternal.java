@@ -10,6 +10,7 @@ package org.xtreemfs.babudb.api.dev.transaction;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,7 +38,7 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
         implements Transaction, Iterable<OperationInternal> {
     private static final long serialVersionUID = 1383031301195486005L;
     
-    private Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap = null;
+    private Map<String, List<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap = null;
     
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.transaction.Transaction#createSnapshot(java.lang.String, 
@@ -138,19 +139,20 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
     }
     
     /**
-     * Mapping of databases to lock futures for the worker threads being responsible for them.
+     * Mapping of databases to lock futures for the worker threads being responsible for them. If a
+     * database is partitioned across multiple worker threads, there is one lock future per worker.
      * 
      * @param databaseLockFutureMap - a map of lock futures for database workers affected by this 
      *                           transaction.
      */
     public final synchronized void updateWorkerLocks(
-            Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap) {
+            Map<String, List<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap) {
         
         this.databaseLockFutureMap = databaseLockFutureMap;
     }
     
     /**
-     * Method to lock the worker responsible for database with databaseName.
+     * Method to lock the workers responsible for database with databaseName.
      * 
      * @param databaseName
      * @throws BabuDBException if the lock could not have been acquired.
@@ -159,22 +161,29 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
             throws BabuDBException {
         
         if (databaseLockFutureMap != null) {
-            DatabaseRequestResult<AtomicBoolean> lockFuture = 
+            List<DatabaseRequestResult<AtomicBoolean>> lockFutures = 
                 databaseLockFutureMap.get(databaseName);
             
-            if (lockFuture != null) {
-                lockFuture.get();
+            if (lockFutures != null) {
+                for (DatabaseRequestResult<AtomicBoolean> lockFuture : lockFutures) {
+                    lockFuture.get();
+                }
             }
         }
     }
     
     /**
-     * Method to unlock the worker threads that have been locked during this transaction.
+     * Method to unlock the worker threads that have been locked during this transaction. Repeated
+     * invocations have no effect, so that a worker that has been locked by another requester in
+     * the meantime is not released.
      */
     public final synchronized void unlockWorkers() {
         if (databaseLockFutureMap != null) {
             Set<DatabaseRequestResult<AtomicBoolean>> lockFutures = 
-                new HashSet<DatabaseRequestResult<AtomicBoolean>>(databaseLockFutureMap.values());
+                new HashSet<DatabaseRequestResult<AtomicBoolean>>();
+            for (List<DatabaseRequestResult<AtomicBoolean>> futures : databaseLockFutureMap.values()) {
+                lockFutures.addAll(futures);
+            }
             for (DatabaseRequestResult<AtomicBoolean> lockFuture : lockFutures) {
                 
                 try {
@@ -188,6 +197,7 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
                             "The worker lock could not have been acquired for unlock.");
                 }
             }
+            databaseLockFutureMap = null;
         }
     }
     
@@ -62,6 +62,22 @@ public class BabuDBConfig extends Config {
      */
     protected int      numThreads;
     
+    /**
+     * If set to <code>true</code>, lookups are performed in the context of the
+     * invoking thread, even if worker threads are used for insertions. Thus,
+     * concurrent lookups on a single database are not serialized by a worker
+     * thread. Lookups only reflect insertions that have completed, however.
+     * User-defined lookups are still processed by the worker threads.
+     */
+    protected boolean  directReads              = false;
+    
+    /**
+     * The number of worker threads across which the keys of each database are
+     * partitioned by their hash values. If set to 1, all requests for a
+     * database are processed by a single worker thread.
+     */
+    protected int      shards                   = 1;
+    
     /**
      * MaxLogfileSize a checkpoint is generated ,if maxLogfileSize is exceeded.
      */
@@ -93,9 +109,10 @@ public class BabuDBConfig extends Config {
     
     /**
      * Defines the maximum size of the block file. If the size is exceeded by an
-     * index, another block file will be created.
+     * index, another block file will be created. Block files may be larger
+     * than 2 GB.
      */
-    protected int      maxBlockFileSize;
+    protected long     maxBlockFileSize;
     
     /**
      * Specifies whether <code>mmap</code> is used in order to read database
@@ -109,6 +126,96 @@ public class BabuDBConfig extends Config {
      */
     protected int      mmapLimit;
     
+    /**
+     * Specifies whether checkpoints only write the changes since the last
+     * checkpoint as new on-disk runs of an index, which are merged by a
+     * background compaction thread. If disabled, each checkpoint rewrites the
+     * complete index.
+     */
+    protected boolean  compaction               = false;
+    
+    /**
+     * The number of on-disk runs of similar size after which the runs are
+     * merged into a single run.
+     */
+    protected int      compactionFanout         = 4;
+    
+    /**
+     * The interval between two compaction checks in seconds.
+     */
+    protected int      compactionInterval       = 10;
+    
+    /**
+     * The size of the block cache in MB, which caches blocks of on-disk indices
+     * that are not memory-mapped. The cache is shared by all BabuDB instances
+     * in the VM and resides outside of the Java heap. 0 disables the cache.
+     */
+    protected int      blockCacheSize           = 0;
+    
+    /**
+     * The latency target in ms for group commits. If set to a value > 0, the
+     * disk logger waits for further log entries before writing and syncing a
+     * block. The length of the wait is adapted to the load, so that entries
+     * are not delayed by more than the target. 0 disables group commits.
+     */
+    protected int      groupCommitLatencyTarget = 0;
+    
+    /**
+     * If enabled, the in-memory overlays of all indices keep their keys and
+     * values in arenas outside of the Java heap, which reduces the heap size
+     * and garbage collection overhead for large overlays.
+     */
+    protected boolean  offHeapOverlays          = false;
+    
+    /**
+     * The max. size in MB of all in-memory overlays of all BabuDB instances in
+     * the VM. When half of the budget is in use, checkpoints are triggered to
+     * write the overlays to disk; when the budget is exceeded, insertions are
+     * stalled until enough memory has been released. 0 disables the budget.
+     */
+    protected int      overlayMemoryBudget      = 0;
+    
+    /**
+     * The number of threads that write the index snapshots of a checkpoint in
+     * parallel. 1 writes all indices one after another on the checkpointing
+     * thread.
+     */
+    protected int      checkpointThreads        = 1;
+    
+    /**
+     * If enabled, each file of an on-disk index is forced to the storage
+     * device before it is closed, so that checkpoints and compactions survive
+     * a crash of the operating system.
+     */
+    protected boolean  syncIndexFiles           = false;
+    
+    /**
+     * The number of threads that apply insertions from the log when the
+     * database is started. Insertions are partitioned by database; 1 replays
+     * the log sequentially.
+     */
+    protected int      replayThreads            = 1;
+    
+    /**
+     * If enabled, the on-disk indices of a database are not loaded on startup
+     * but when they are accessed for the first time, which reduces the startup
+     * time and memory footprint of instances with many databases.
+     */
+    protected boolean  lazyOpenIndices          = false;
+    
+    /**
+     * If enabled together with lazy opening, all on-disk indices that have not
+     * been accessed yet are loaded by a background thread after startup.
+     */
+    protected boolean  preOpenIndices           = false;
+    
+    /**
+     * If enabled, a hash table is appended to each uncompressed data block of
+     * a written on-disk index, so that point lookups in the block do not
+     * require a binary search.
+     */
+    protected boolean  blockHashIndex           = false;
+    
     /**
      * Paths to plugins initialized on startup of BabuDB.
      */
@@ -163,7 +270,7 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
         
         checkArgs(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
             compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
@@ -241,13 +348,43 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize) {
         
         this(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
             compression, maxNumRecordsPerBlock, maxBlockFileSize, !"x86_64".equals(System
                     .getProperty("os.arch")), -1, Logging.LEVEL_WARN);
     }
     
+    /**
+     * Creates a new BabuDB configuration.
+     * 
+     * @deprecated use
+     *             {@link #BabuDBConfig(String, String, int, long, int, SyncMode, int, int, boolean, int, long, boolean, int, int)}
+     *             instead, which accepts block file sizes of more than 2 GB
+     */
+    @Deprecated
+    public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
+        int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
+        int maxNumRecordsPerBlock, int maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
+        this(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
+            compression, maxNumRecordsPerBlock, (long) maxBlockFileSize, disableMMap, mmapLimit, debugLevel);
+    }
+    
+    /**
+     * Creates a new BabuDB configuration.
+     * 
+     * @deprecated use
+     *             {@link #BabuDBConfig(String, String, int, long, int, SyncMode, int, int, boolean, int, long)}
+     *             instead, which accepts block file sizes of more than 2 GB
+     */
+    @Deprecated
+    public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
+        int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
+        int maxNumRecordsPerBlock, int maxBlockFileSize) {
+        this(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
+            compression, maxNumRecordsPerBlock, (long) maxBlockFileSize);
+    }
+    
     public BabuDBConfig(Properties prop) throws IOException {
         super(prop);
         read();
@@ -308,6 +445,10 @@ public class BabuDBConfig extends Config {
         
         this.numThreads = this.readOptionalInt("babudb.worker.numThreads", 1);
         
+        this.directReads = this.readOptionalBoolean("babudb.worker.directReads", false);
+        
+        this.shards = this.readOptionalInt("babudb.worker.shards", 1);
+        
         this.maxQueueLength = this.readOptionalInt("babudb.worker.maxQueueLength", 0);
         
         this.maxLogfileSize = this.readOptionalInt("babudb.maxLogfileSize", 1);
@@ -320,13 +461,41 @@ public class BabuDBConfig extends Config {
         
         this.maxNumRecordsPerBlock = this.readOptionalInt("babudb.maxNumRecordsPerBlock", 64);
         
-        this.maxBlockFileSize = this.readOptionalInt("babudb.maxBlockFileSize", 1024 * 1024 * 512);
+        // block files may exceed 2 GB, so the size is parsed as a long
+        this.maxBlockFileSize = Long.parseLong(this.readOptionalString("babudb.maxBlockFileSize",
+            Integer.toString(1024 * 1024 * 512)).trim());
         
         this.disableMMap = this.readOptionalBoolean("babudb.disableMmap",
             System.getProperty("os.arch") != null && !System.getProperty("os.arch").endsWith("64"));
         
         this.mmapLimit = this.readOptionalInt("babudb.mmapLimit", -1);
         
+        this.compaction = this.readOptionalBoolean("babudb.compaction", false);
+        
+        this.compactionFanout = this.readOptionalInt("babudb.compaction.fanout", 4);
+        
+        this.compactionInterval = this.readOptionalInt("babudb.compaction.interval", 10);
+        
+        this.blockCacheSize = this.readOptionalInt("babudb.blockCacheSize", 0);
+        
+        this.groupCommitLatencyTarget = this.readOptionalInt("babudb.groupCommit.latencyTarget", 0);
+        
+        this.offHeapOverlays = this.readOptionalBoolean("babudb.overlay.offHeap", false);
+        
+        this.overlayMemoryBudget = this.readOptionalInt("babudb.overlay.memoryBudget", 0);
+        
+        this.checkpointThreads = this.readOptionalInt("babudb.checkpoint.numThreads", 1);
+        
+        this.syncIndexFiles = this.readOptionalBoolean("babudb.index.sync", false);
+        
+        this.replayThreads = this.readOptionalInt("babudb.replay.numThreads", 1);
+        
+        this.lazyOpenIndices = this.readOptionalBoolean("babudb.index.lazyOpen", false);
+        
+        this.preOpenIndices = this.readOptionalBoolean("babudb.index.preOpen", false);
+        
+        this.blockHashIndex = this.readOptionalBoolean("babudb.index.blockHashIndex", false);
+        
         int count = 0;
         String pluginConfigPath = null;
         while ((pluginConfigPath = readOptionalString("babudb.plugin." + count, null)) != null) {
@@ -337,6 +506,30 @@ public class BabuDBConfig extends Config {
         checkArgs(this.baseDir, this.dbLogDir, numThreads, maxLogfileSize, 
                 checkInterval, syncMode, pseudoSyncWait, maxQueueLength, 
                 compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
+        
+        if (shards < 1)
+            throw new IllegalArgumentException("number of shards must be >= 1!");
+        
+        if (compactionFanout < 2)
+            throw new IllegalArgumentException("compaction fan-out must be >= 2!");
+        
+        if (compactionInterval <= 0)
+            throw new IllegalArgumentException("compaction interval must be > 0!");
+        
+        if (blockCacheSize < 0)
+            throw new IllegalArgumentException("block cache size must be >= 0!");
+        
+        if (groupCommitLatencyTarget < 0)
+            throw new IllegalArgumentException("group commit latency target must be >= 0!");
+        
+        if (overlayMemoryBudget < 0)
+            throw new IllegalArgumentException("overlay memory budget must be >= 0!");
+        
+        if (checkpointThreads < 1)
+            throw new IllegalArgumentException("number of checkpoint threads must be >= 1!");
+        
+        if (replayThreads < 1)
+            throw new IllegalArgumentException("number of replay threads must be >= 1!");
     }
     
     public int getDebugLevel() {
@@ -371,6 +564,14 @@ public class BabuDBConfig extends Config {
         return numThreads;
     }
     
+    public boolean getDirectReads() {
+        return directReads;
+    }
+    
+    public int getShards() {
+        return shards;
+    }
+    
     public long getMaxLogfileSize() {
         return maxLogfileSize;
     }
@@ -391,7 +592,17 @@ public class BabuDBConfig extends Config {
         return maxNumRecordsPerBlock;
     }
     
+    /**
+     * @deprecated use {@link #getMaxBlockFileSizeLong()} instead, as block
+     *             files may be larger than 2 GB; larger sizes are returned as
+     *             <code>Integer.MAX_VALUE</code>
+     */
+    @Deprecated
     public int getMaxBlockFileSize() {
+        return (int) Math.min(maxBlockFileSize, Integer.MAX_VALUE);
+    }
+    
+    public long getMaxBlockFileSizeLong() {
         return maxBlockFileSize;
     }
     
@@ -403,6 +614,58 @@ public class BabuDBConfig extends Config {
         return this.mmapLimit;
     }
     
+    public boolean getCompaction() {
+        return compaction;
+    }
+    
+    public int getCompactionFanout() {
+        return compactionFanout;
+    }
+    
+    public int getCompactionInterval() {
+        return compactionInterval;
+    }
+    
+    public int getBlockCacheSize() {
+        return blockCacheSize;
+    }
+    
+    public int getGroupCommitLatencyTarget() {
+        return groupCommitLatencyTarget;
+    }
+    
+    public boolean getOffHeapOverlays() {
+        return offHeapOverlays;
+    }
+    
+    public int getOverlayMemoryBudget() {
+        return overlayMemoryBudget;
+    }
+    
+    public int getCheckpointThreads() {
+        return checkpointThreads;
+    }
+    
+    public boolean getSyncIndexFiles() {
+        return syncIndexFiles;
+    }
+    
+    public int getReplayThreads() {
+        return replayThreads;
+    }
+    
+    public boolean getLazyOpenIndices() {
+        return lazyOpenIndices;
+    }
+    
+    public boolean getPreOpenIndices() {
+        return preOpenIndices;
+    }
+    
+    public boolean getBlockHashIndex() {
+        return blockHashIndex;
+    }
+    
     public List<String> getPlugins() {
         return plugins;
     }
@@ -417,6 +680,10 @@ public class BabuDBConfig extends Config {
             buf.append("#     pseudo sync interval: " + pseudoSyncWait + "\n");
         buf.append("#        max. queue length: " + maxQueueLength + "\n");
         buf.append("#             num. threads: " + numThreads + "\n");
+        if (numThreads > 0) {
+            buf.append("#             direct reads: " + directReads + "\n");
+            buf.append("#       num. shards per DB: " + shards + "\n");
+        }
         buf.append("#   checkpointing interval: " + checkInterval + "\n");
         buf.append("#       max. log file size: " + maxLogfileSize + "\n");
         buf.append("#   num. records per block: " + maxNumRecordsPerBlock + "\n");
@@ -425,6 +692,22 @@ public class BabuDBConfig extends Config {
         buf.append("#            mmap disabled: " + disableMMap + "\n");
         if (!disableMMap)
             buf.append("#               mmap limit: " + mmapLimit + "\n");
+        buf.append("#       compaction enabled: " + compaction + "\n");
+        if (compaction) {
+            buf.append("#       compaction fan-out: " + compactionFanout + "\n");
+            buf.append("#      compaction interval: " + compactionInterval + "\n");
+        }
+        buf.append("#         block cache size: " + blockCacheSize + "\n");
+        if (syncMode != SyncMode.ASYNC)
+            buf.append("# group commit lat. target: " + groupCommitLatencyTarget + "\n");
+        buf.append("#        off-heap overlays: " + offHeapOverlays + "\n");
+        buf.append("#    overlay memory budget: " + overlayMemoryBudget + "\n");
+        buf.append("#       checkpoint threads: " + checkpointThreads + "\n");
+        buf.append("#         sync index files: " + syncIndexFiles + "\n");
+        buf.append("#           replay threads: " + replayThreads + "\n");
+        buf.append("#        lazy open indices: " + lazyOpenIndices + "\n");
+        buf.append("#         pre-open indices: " + preOpenIndices + "\n");
+        buf.append("#         block hash index: " + blockHashIndex + "\n");
         for (int i = 0; i < plugins.size(); i++) {
             buf.append("#               plugin-" + i + ": " + plugins.get(i) + "\n");
         }
@@ -433,7 +716,7 @@ public class BabuDBConfig extends Config {
     
     private static void checkArgs(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, int mmapLimit) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize, int mmapLimit) {
         
         if (dbDir == null)
             throw new IllegalArgumentException("database directory needs to be specified!");
@@ -95,6 +95,34 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Enables or disables direct reads. If enabled, lookups are performed in
+     * the context of the invoking thread instead of a worker thread.
+     * 
+     * @param directReads
+     *            if <code>true</code>, direct reads will be enabled
+     * @return a reference to this object
+     */
+    public ConfigBuilder setDirectReads(boolean directReads) {
+        
+        changes.put("babudb.worker.directReads", directReads + "");
+        return this;
+    }
+    
+    /**
+     * Partitions the keys of each database across multiple worker threads.
+     * 
+     * @param shards
+     *            the number of worker threads per database; must not exceed
+     *            the number of worker threads
+     * @return a reference to this object
+     */
+    public ConfigBuilder setShards(int shards) {
+        
+        changes.put("babudb.worker.shards", shards + "");
+        return this;
+    }
+    
     /**
      * Enables or disables compression of database contents.
      * 
@@ -122,6 +150,151 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Enables or disables incremental checkpoints with background compaction
+     * of on-disk index runs.
+     * 
+     * @param compaction
+     *            if <code>true</code>, compaction will be enabled; otherwise,
+     *            each checkpoint will rewrite all indices
+     * @return a reference to this object
+     */
+    public ConfigBuilder setCompaction(boolean compaction) {
+        
+        changes.put("babudb.compaction", compaction + "");
+        return this;
+    }
+    
+    /**
+     * Sets the size of the block cache for on-disk indices that are not
+     * memory-mapped.
+     * 
+     * @param blockCacheSize
+     *            the size of the block cache in MB; 0 disables the cache
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockCacheSize(int blockCacheSize) {
+        
+        changes.put("babudb.blockCacheSize", blockCacheSize + "");
+        return this;
+    }
+    
+    /**
+     * Sets the latency target for group commits of log entries.
+     * 
+     * @param latencyTarget
+     *            the max. time in ms that log entries may be delayed in order
+     *            to write and sync them together; 0 disables group commits
+     * @return a reference to this object
+     */
+    public ConfigBuilder setGroupCommitLatencyTarget(int latencyTarget) {
+        
+        changes.put("babudb.groupCommit.latencyTarget", latencyTarget + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether the in-memory overlays of indices keep their keys and
+     * values outside of the Java heap.
+     * 
+     * @param offHeap
+     *            <code>true</code>, if overlays should be stored off-heap
+     * @return a reference to this object
+     */
+    public ConfigBuilder setOffHeapOverlays(boolean offHeap) {
+        
+        changes.put("babudb.overlay.offHeap", offHeap + "");
+        return this;
+    }
+    
+    /**
+     * Sets the max. size of all in-memory overlays in the VM.
+     * 
+     * @param budget
+     *            the budget in MB; 0 disables the budget
+     * @return a reference to this object
+     */
+    public ConfigBuilder setOverlayMemoryBudget(int budget) {
+        
+        changes.put("babudb.overlay.memoryBudget", budget + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that write index snapshots in parallel when
+     * a checkpoint is created.
+     * 
+     * @param numThreads
+     *            the number of threads; 1 writes all indices sequentially
+     * @return a reference to this object
+     */
+    public ConfigBuilder setCheckpointThreads(int numThreads) {
+        
+        changes.put("babudb.checkpoint.numThreads", numThreads + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether the files of on-disk indices are synchronously written
+     * to the storage device.
+     * 
+     * @param sync
+     *            <code>true</code>, if each index file should be forced to
+     *            disk before it is closed
+     * @return a reference to this object
+     */
+    public ConfigBuilder setSyncIndexFiles(boolean sync) {
+        
+        changes.put("babudb.index.sync", sync + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that apply insertions when the log is
+     * replayed on startup.
+     * 
+     * @param numThreads
+     *            the number of threads; 1 replays the log sequentially
+     * @return a reference to this object
+     */
+    public ConfigBuilder setReplayThreads(int numThreads) {
+        
+        changes.put("babudb.replay.numThreads", numThreads + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether on-disk indices are loaded when they are accessed for
+     * the first time rather than on startup.
+     * 
+     * @param lazy
+     *            <code>true</code>, if indices should be opened lazily
+     * @param preOpen
+     *            <code>true</code>, if indices that have not been accessed
+     *            yet should be opened by a background thread after startup
+     * @return a reference to this object
+     */
+    public ConfigBuilder setLazyOpenIndices(boolean lazy, boolean preOpen) {
+        
+        changes.put("babudb.index.lazyOpen", lazy + "");
+        changes.put("babudb.index.preOpen", preOpen + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether a hash table for point lookups is appended to each
+     * uncompressed data block of a written on-disk index.
+     * 
+     * @param hashIndex
+     *            <code>true</code>, if blocks should contain hash tables
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockHashIndex(boolean hashIndex) {
+        
+        changes.put("babudb.index.blockHashIndex", hashIndex + "");
+        return this;
+    }
+    
     /**
      * Builds a BabuDB configuration instance.
      * 
@@ -0,0 +1,317 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Bloom filter over the keys of an on-disk index. The filter is written
+ * together with the index and allows point lookups of keys that are not
+ * contained in the index to be answered without reading any block.
+ *
+ * Keys are hashed to a single 64-bit value, from which all probe positions are
+ * derived by means of double hashing. Since the number of keys is generally
+ * not known before an index has been written, the filter consists of a
+ * sequence of slices. Keys are added to the last slice; once it has reached
+ * its capacity, a new slice with a larger capacity and a lower false positive
+ * rate is appended, so that the false positive rate of the whole filter
+ * remains bounded. A key may be contained if it may be contained in any of the
+ * slices.
+ *
+ * The filter is persisted as a sequence of slices, each of which consists of
+ * an int containing the number of hash functions, an int containing the
+ * number of 64-bit words, and the words themselves.
+ */
+public class BloomFilter {
+    
+    /**
+     * the name of the file containing the Bloom filter of an on-disk index
+     */
+    public static final String FILENAME         = "bloomfilter.idx";
+    
+    /**
+     * the number of keys that fit in the first slice of a filter
+     */
+    public static final int    INITIAL_CAPACITY = 1024;
+    
+    /**
+     * the factor by which the capacity of each slice exceeds the capacity of
+     * its predecessor
+     */
+    public static final int    GROWTH_FACTOR    = 4;
+    
+    /**
+     * the number of hash functions of the first slice; each subsequent slice
+     * uses one more hash function, together with a proportionally larger
+     * number of filter bits per key. This results in a false positive rate of
+     * approx. 0.4% for the first slice, which is halved with each subsequent
+     * slice, and a false positive rate of less than 1% for the whole filter.
+     */
+    private static final int   NUM_HASHES       = 8;
+    
+    private static final long  FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    
+    private static final long  FNV_PRIME        = 0x100000001b3L;
+    
+    private final List<Slice>  slices;
+    
+    /**
+     * Creates a new, empty Bloom filter.
+     */
+    public BloomFilter() {
+        this.slices = new ArrayList<Slice>();
+        slices.add(new Slice(NUM_HASHES, INITIAL_CAPACITY));
+    }
+    
+    private BloomFilter(List<Slice> slices) {
+        this.slices = slices;
+    }
+    
+    /**
+     * Reads a Bloom filter from the given file.
+     *
+     * @param path
+     *            the path to the file
+     * @return the Bloom filter
+     * @throws IOException
+     *             if an I/O error occurs, or the file is corrupted
+     */
+    public static BloomFilter read(String path) throws IOException {
+        
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining())
+                if (channel.read(buf) == -1)
+                    break;
+            buf.flip();
+            
+            List<Slice> slices = new ArrayList<Slice>();
+            do {
+            
+                if (buf.remaining() < 2 * Integer.SIZE / 8)
+                    throw new IOException("corrupted Bloom filter: " + path);
+            
+                int numHashes = buf.getInt();
+                int numWords = buf.getInt();
+                if (numHashes <= 0 || numWords <= 0 || buf.remaining() < (long) numWords * Long.SIZE / 8)
+                    throw new IOException("corrupted Bloom filter: " + path);
+            
+                long[] words = new long[numWords];
+                buf.asLongBuffer().get(words);
+                buf.position(buf.position() + numWords * Long.SIZE / 8);
+                
+                slices.add(new Slice(numHashes, words));
+            
+            } while (buf.hasRemaining());
+            
+            return new BloomFilter(slices);
+        
+        } finally {
+            file.close();
+        }
+    }
+    
+    /**
+     * Writes the Bloom filter to the given file.
+     *
+     * @param path
+     *            the path to the file
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void write(String path) throws IOException {
+        write(path, false);
+    }
+    
+    /**
+     * Writes the Bloom filter to the given file.
+     *
+     * @param path
+     *            the path to the file
+     * @param sync
+     *            if <code>true</code>, the file content will be forced to the
+     *            storage device before the file is closed
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void write(String path, boolean sync) throws IOException {
+        
+        new File(path).createNewFile();
+        FileOutputStream out = new FileOutputStream(path, false);
+        try {
+            
+            for (Slice slice : slices) {
+                ByteBuffer buf = ByteBuffer.allocate(2 * Integer.SIZE / 8 + slice.words.length * Long.SIZE / 8);
+                buf.putInt(slice.numHashes);
+                buf.putInt(slice.words.length);
+                buf.asLongBuffer().put(slice.words);
+                out.write(buf.array());
+            }
+            
+            if (sync)
+                out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Adds a key to the Bloom filter.
+     *
+     * @param hash
+     *            the hash of the key, as returned by <code>hash()</code>
+     */
+    public void add(long hash) {
+        
+        Slice slice = slices.get(slices.size() - 1);
+        if (slice.numKeys >= slice.capacity) {
+            slice = new Slice(slice.numHashes + 1, slice.capacity * GROWTH_FACTOR);
+            slices.add(slice);
+        }
+        
+        slice.add(hash);
+    }
+    
+    /**
+     * Checks whether the given key may be contained in the index.
+     *
+     * @param key
+     *            the key
+     * @return <code>false</code>, if the key is definitely not contained,
+     *         <code>true</code>, if the key may be contained
+     */
+    public boolean mightContain(byte[] key) {
+        
+        long hash = hash(key);
+        for (Slice slice : slices)
+            if (slice.mightContain(hash))
+                return true;
+        
+        return false;
+    }
+    
+    /**
+     * Returns the hash of the given key, which may either be a byte array or a
+     * <code>ByteRange</code>.
+     *
+     * @param key
+     *            the key
+     * @return the hash
+     */
+    public static long hash(Object key) {
+        
+        long h = FNV_OFFSET_BASIS;
+        
+        if (key instanceof byte[]) {
+            byte[] bytes = (byte[]) key;
+            for (int i = 0; i < bytes.length; i++)
+                h = (h ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        
+        else {
+            ByteRange range = (ByteRange) key;
+            
+            byte[] prefix = range.getPrefix();
+            if (prefix != null)
+                for (int i = 0; i < prefix.length; i++)
+                    h = (h ^ (prefix[i] & 0xFF)) * FNV_PRIME;
+            
+            ByteBuffer buf = range.getBuf();
+            for (int i = range.getStartOffset(); i < range.getEndOffset(); i++)
+                h = (h ^ (buf.get(i) & 0xFF)) * FNV_PRIME;
+        }
+        
+        // apply a finalizer to spread the bits across the whole hash
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        
+        return h;
+    }
+    
+    /**
+     * A single slice of a Bloom filter.
+     */
+    private static class Slice {
+        
+        /**
+         * the max. number of 64-bit words of a slice; as probe positions are
+         * 32-bit values, larger slices would not be fully used
+         */
+        private static final long MAX_WORDS = (1L << Integer.SIZE) / Long.SIZE;
+        
+        private final int         numHashes;
+        
+        private final long[]      words;
+        
+        private final long        numBits;
+        
+        private final long        capacity;
+        
+        private long              numKeys;
+        
+        /**
+         * Creates a new, empty slice for the given number of keys. The number
+         * of bits per key is chosen such that the false positive rate is
+         * minimized for the given number of hash functions.
+         */
+        Slice(int numHashes, long capacity) {
+            
+            long bits = (long) Math.ceil(capacity * numHashes / Math.log(2));
+            long numWords = Math.min((bits + Long.SIZE - 1) / Long.SIZE, MAX_WORDS);
+            
+            this.numHashes = numHashes;
+            this.words = new long[(int) numWords];
+            this.numBits = numWords * Long.SIZE;
+            this.capacity = Math.min(capacity, (long) (numBits * Math.log(2) / numHashes));
+        }
+        
+        Slice(int numHashes, long[] words) {
+            this.numHashes = numHashes;
+            this.words = words;
+            this.numBits = (long) words.length * Long.SIZE;
+            this.capacity = 0;
+        }
+        
+        void add(long hash) {
+            
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            
+            for (int i = 1; i <= numHashes; i++) {
+                long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % numBits;
+                words[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            
+            numKeys++;
+        }
+        
+        boolean mightContain(long hash) {
+            
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            
+            for (int i = 1; i <= numHashes; i++) {
+                long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % numBits;
+                if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
+            }
+            
+            return true;
+        }
+    }
+
+}
@@ -64,6 +64,10 @@ public class ByteRange {
         this.prefix = prefix;
     }
     
+    public byte[] getPrefix() {
+        return prefix;
+    }
+    
     public byte[] toBuffer() {
         byte[] tmp;
         
@@ -8,11 +8,15 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.nio.ByteBuffer;
+
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
 
 
 public class DefaultByteRangeComparator implements ByteRangeComparator {
     
+    private static final int                  WORD_SIZE = Long.SIZE / 8;
+    
     private static DefaultByteRangeComparator instance;
     
     @Override
@@ -38,11 +42,23 @@ public class DefaultByteRangeComparator implements ByteRangeComparator {
     @Override
     public int compare(ByteRange rng, byte[] buf) {
         
-        int n = rng.getStartOffset() + Math.min(rng.getSize(), buf.length);
+        ByteBuffer rngBuf = rng.getBuf();
+        int n = Math.min(rng.getSize(), buf.length);
+        int i = rng.getStartOffset();
         int j = 0;
-        for (int i = rng.getStartOffset(); i < n; i++, j++) {
+        
+        // compare eight bytes at a time; as soon as a word differs, the
+        // differing byte is located by the byte-wise comparison below
+        if (n >= WORD_SIZE) {
+            ByteBuffer wrapped = ByteBuffer.wrap(buf).order(rngBuf.order());
+            for (; j <= n - WORD_SIZE; i += WORD_SIZE, j += WORD_SIZE)
+                if (rngBuf.getLong(i) != wrapped.getLong(j))
+                    break;
+        }
+        
+        for (; j < n; i++, j++) {
             assert (i < rng.getEndOffset()) : "i == " + i + ", endOffset == " + rng.getEndOffset();
-            byte v1 = rng.getBuf().get(i);
+            byte v1 = rngBuf.get(i);
             byte v2 = buf[j];
             if (v1 == v2)
                 continue;
@@ -58,9 +74,21 @@ public class DefaultByteRangeComparator implements ByteRangeComparator {
     public int compare(byte[] buf1, byte[] buf2) {
         
         int n = Math.min(buf1.length, buf2.length);
-        for (int i = 0, j = 0; i < n; i++, j++) {
+        int i = 0;
+        
+        // compare eight bytes at a time; as soon as a word differs, the
+        // differing byte is located by the byte-wise comparison below
+        if (n >= WORD_SIZE) {
+            ByteBuffer wrapped1 = ByteBuffer.wrap(buf1);
+            ByteBuffer wrapped2 = ByteBuffer.wrap(buf2);
+            for (; i <= n - WORD_SIZE; i += WORD_SIZE)
+                if (wrapped1.getLong(i) != wrapped2.getLong(i))
+                    break;
+        }
+        
+        for (; i < n; i++) {
             byte v1 = buf1[i];
-            byte v2 = buf2[j];
+            byte v2 = buf2[i];
             if (v1 == v2)
                 continue;
             if (v1 < v2)
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index;
+
+import org.xtreemfs.babudb.config.BabuDBConfig;
+
+/**
+ * Options that determine how the indices of a database are kept in memory and
+ * written to and read from disk. Options can either be taken from a
+ * {@link BabuDBConfig}, or set by chaining setter invocations, e.g.
+ *
+ * <pre>
+ * new IndexOptions().setCompression(true).setMaxEntriesPerBlock(16)
+ * </pre>
+ */
+public class IndexOptions {
+    
+    private boolean compression;
+    
+    private int     maxEntriesPerBlock = 64;
+    
+    private long    maxBlockFileSize   = 1024 * 1024 * 512;
+    
+    private boolean disableMMap;
+    
+    private int     mmapLimit          = -1;
+    
+    private boolean multiRun;
+    
+    private boolean offHeapOverlays;
+    
+    private boolean syncIndexFiles;
+    
+    private boolean lazyOpen;
+    
+    private boolean hashIndex;
+    
+    /**
+     * Creates a new set of index options with default values.
+     */
+    public IndexOptions() {
+    }
+    
+    /**
+     * Creates a new set of index options from the given configuration.
+     *
+     * @param config
+     *            the configuration
+     */
+    public IndexOptions(BabuDBConfig config) {
+        this.compression = config.getCompression();
+        this.maxEntriesPerBlock = config.getMaxNumRecordsPerBlock();
+        this.maxBlockFileSize = config.getMaxBlockFileSizeLong();
+        this.disableMMap = config.getDisableMMap();
+        this.mmapLimit = config.getMMapLimit();
+        this.multiRun = config.getCompaction();
+        this.offHeapOverlays = config.getOffHeapOverlays();
+        this.syncIndexFiles = config.getSyncIndexFiles();
+        this.lazyOpen = config.getLazyOpenIndices();
+        this.hashIndex = config.getBlockHashIndex();
+    }
+    
+    /**
+     * Specifies whether the blocks of on-disk indices are compressed.
+     */
+    public IndexOptions setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+    
+    /**
+     * Sets the max. number of entries per block of an on-disk index.
+     */
+    public IndexOptions setMaxEntriesPerBlock(int maxEntriesPerBlock) {
+        this.maxEntriesPerBlock = maxEntriesPerBlock;
+        return this;
+    }
+    
+    /**
+     * Sets the max. size of a block file of an on-disk index in bytes.
+     */
+    public IndexOptions setMaxBlockFileSize(long maxBlockFileSize) {
+        this.maxBlockFileSize = maxBlockFileSize;
+        return this;
+    }
+    
+    /**
+     * Specifies whether memory-mapping of block files is disabled.
+     */
+    public IndexOptions setDisableMMap(boolean disableMMap) {
+        this.disableMMap = disableMMap;
+        return this;
+    }
+    
+    /**
+     * Sets the max. size of all block files in MB up to which block files are
+     * memory-mapped; -1 means no limit.
+     */
+    public IndexOptions setMMapLimit(int mmapLimit) {
+        this.mmapLimit = mmapLimit;
+        return this;
+    }
+    
+    /**
+     * Specifies whether checkpoints only write the changes since the last
+     * checkpoint as new on-disk runs, which have to be compacted later on.
+     */
+    public IndexOptions setMultiRun(boolean multiRun) {
+        this.multiRun = multiRun;
+        return this;
+    }
+    
+    /**
+     * Specifies whether the in-memory overlays keep their keys and values
+     * outside of the Java heap.
+     */
+    public IndexOptions setOffHeapOverlays(boolean offHeapOverlays) {
+        this.offHeapOverlays = offHeapOverlays;
+        return this;
+    }
+    
+    /**
+     * Specifies whether each file of a written on-disk index is forced to the
+     * storage device before it is closed.
+     */
+    public IndexOptions setSyncIndexFiles(boolean syncIndexFiles) {
+        this.syncIndexFiles = syncIndexFiles;
+        return this;
+    }
+    
+    /**
+     * Specifies whether on-disk runs are only loaded when they are accessed
+     * for the first time.
+     */
+    public IndexOptions setLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+        return this;
+    }
+    
+    /**
+     * Specifies whether a hash table for point lookups is appended to each
+     * uncompressed block of a written on-disk index.
+     */
+    public IndexOptions setHashIndex(boolean hashIndex) {
+        this.hashIndex = hashIndex;
+        return this;
+    }
+    
+    public boolean getCompression() {
+        return compression;
+    }
+    
+    public int getMaxEntriesPerBlock() {
+        return maxEntriesPerBlock;
+    }
+    
+    public long getMaxBlockFileSize() {
+        return maxBlockFileSize;
+    }
+    
+    public boolean getDisableMMap() {
+        return disableMMap;
+    }
+    
+    public int getMMapLimit() {
+        return mmapLimit;
+    }
+    
+    public boolean getMultiRun() {
+        return multiRun;
+    }
+    
+    public boolean getOffHeapOverlays() {
+        return offHeapOverlays;
+    }
+    
+    public boolean getSyncIndexFiles() {
+        return syncIndexFiles;
+    }
+    
+    public boolean getLazyOpen() {
+        return lazyOpen;
+    }
+    
+    public boolean getHashIndex() {
+        return hashIndex;
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
+
+/**
+ * A single immutable on-disk run of an LSM tree. A run consists of an on-disk
+ * index containing all key-value pairs that were inserted into the run, and
+ * an optional second on-disk index containing the keys that were deleted in
+ * the run. The latter is only needed if older runs exist that may still
+ * contain the deleted keys.
+ * <p>
+ * A run may be opened lazily, in which case the on-disk indices are only
+ * loaded when the run is accessed for the first time. Until then, neither the
+ * block index nor the block files occupy any memory.
+ * </p>
+ */
+class IndexRun {
+    
+    private final String              name;
+    
+    private final File                dir;
+    
+    private final ByteRangeComparator comp;
+    
+    private final boolean             compressed;
+    
+    private final boolean             mmaped;
+    
+    private final boolean             hasDeletions;
+    
+    /**
+     * the size of all block files of the run
+     */
+    private final long                size;
+    
+    /**
+     * the index of key-value pairs; <code>null</code> until the run has been
+     * opened
+     */
+    private volatile DiskIndex        index;
+    
+    private volatile DiskIndex        deletions;
+    
+    private boolean                   destroyed;
+    
+    /**
+     * Opens an on-disk run.
+     *
+     * @param dir
+     *            the directory containing the run
+     * @param comp
+     *            the comparator for byte ranges
+     * @param compressed
+     *            specifies whether the run is compressed
+     * @param mmaped
+     *            specifies whether the run's block files are memory-mapped
+     * @param lazy
+     *            if <code>true</code>, the on-disk indices are not loaded
+     *            before the run is accessed for the first time
+     * @throws IOException
+     *             if an I/O error occurs when opening the run
+     */
+    IndexRun(File dir, ByteRangeComparator comp, boolean compressed, boolean mmaped, boolean lazy)
+        throws IOException {
+        
+        this.name = dir.getName();
+        this.dir = dir;
+        this.comp = comp;
+        this.compressed = compressed;
+        this.mmaped = mmaped;
+        
+        File delDir = new File(dir, LSMTree.DELETIONS_DIR);
+        this.hasDeletions = delDir.exists();
+        
+        if (lazy) {
+            if (!dir.exists())
+                throw new IOException("There is no index at " + dir.getAbsolutePath());
+            size = getBlockFileSize(dir) + (hasDeletions ? getBlockFileSize(delDir) : 0);
+        } else {
+            open();
+            size = index.getSize() + (deletions == null ? 0 : deletions.getSize());
+        }
+    }
+    
+    /**
+     * Loads the on-disk indices of the run, unless this has already happened
+     * or the run has been destroyed.
+     *
+     * @throws IOException
+     *             if an I/O error occurs when opening the run
+     */
+    synchronized void open() throws IOException {
+        
+        if (index != null || destroyed)
+            return;
+        
+        // the deletions are assigned first, so that they are visible as soon
+        // as the index is
+        if (hasDeletions)
+            deletions = new DiskIndex(new File(dir, LSMTree.DELETIONS_DIR).getAbsolutePath(), comp,
+                compressed, mmaped);
+        index = new DiskIndex(dir.getAbsolutePath(), comp, compressed, mmaped);
+    }
+    
+    /**
+     * Checks whether the run's on-disk indices have been loaded.
+     *
+     * @return <code>true</code>, if the run is open
+     */
+    boolean isOpen() {
+        return index != null;
+    }
+    
+    /**
+     * Returns the name of the run's directory.
+     *
+     * @return the directory name
+     */
+    String getName() {
+        return name;
+    }
+    
+    /**
+     * Checks whether the run records deletions.
+     *
+     * @return <code>true</code>, if deleted keys are recorded in the run
+     */
+    boolean hasDeletions() {
+        return hasDeletions;
+    }
+    
+    /**
+     * Returns the size of all block files of the run.
+     *
+     * @return the size in bytes
+     */
+    long getSize() {
+        return size;
+    }
+    
+    /**
+     * Pins the run's on-disk indices, so that their resources are not released
+     * while the run is being accessed. A run that has not been opened yet is
+     * opened.
+     *
+     * @return <code>true</code>, if the run has been pinned,
+     *         <code>false</code> if the run has already been destroyed
+     */
+    boolean acquire() {
+        
+        try {
+            open();
+        } catch (IOException exc) {
+            throw new RuntimeException("could not open index run at " + dir.getAbsolutePath(), exc);
+        }
+        
+        DiskIndex index = this.index;
+        if (index == null || !index.acquire())
+            return false;
+        
+        DiskIndex deletions = this.deletions;
+        if (deletions != null && !deletions.acquire()) {
+            index.release();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Releases the run's on-disk indices after they have been pinned via
+     * {@link #acquire()}.
+     */
+    void release() {
+        index.release();
+        if (deletions != null)
+            deletions.release();
+    }
+    
+    /**
+     * Looks up a key in the run. The run has to be pinned.
+     *
+     * @param key
+     *            the key
+     * @param nullValue
+     *            the value to return if the key was deleted in the run
+     * @return the value, <code>nullValue</code> if the key was deleted, or
+     *         <code>null</code> if the run does not contain the key
+     */
+    byte[] lookup(byte[] key, byte[] nullValue) {
+        
+        DiskIndex index = getIndex();
+        if (deletions != null && deletions.lookup(key) != null)
+            return nullValue;
+        
+        return index.lookup(key);
+    }
+    
+    /**
+     * Adds iterators for all entries in the given key range to the given list.
+     * Deleted keys are returned with <code>nullValue</code> as their value.
+     * The run has to be pinned while the iterators are created.
+     *
+     * @param list
+     *            the list to which the iterators are added
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param ascending
+     *            the iteration order
+     * @param nullValue
+     *            the value to assign to deleted keys
+     */
+    void addRangeIterators(List<Iterator<Entry<byte[], byte[]>>> list, byte[] from, byte[] to,
+        boolean ascending, final byte[] nullValue) {
+        
+        DiskIndex index = getIndex();
+        if (deletions != null) {
+            
+            final ResultSet<byte[], byte[]> it = deletions.rangeLookup(from, to, ascending);
+            list.add(new ResultSet<byte[], byte[]>() {
+                
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                
+                @Override
+                public Entry<byte[], byte[]> next() {
+                    
+                    final byte[] key = it.next().getKey();
+                    return new Entry<byte[], byte[]>() {
+                        
+                        @Override
+                        public byte[] getKey() {
+                            return key;
+                        }
+                        
+                        @Override
+                        public byte[] getValue() {
+                            return nullValue;
+                        }
+                        
+                        @Override
+                        public byte[] setValue(byte[] value) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+                
+                @Override
+                public void free() {
+                    it.free();
+                }
+            });
+        }
+        
+        list.add(index.rangeLookup(from, to, ascending));
+    }
+    
+    /**
+     * Returns the index containing the run's key-value pairs. The run is
+     * opened if necessary.
+     *
+     * @return the index
+     */
+    DiskIndex getIndex() {
+        
+        DiskIndex result = index;
+        if (result != null)
+            return result;
+        
+        try {
+            open();
+        } catch (IOException exc) {
+            throw new RuntimeException("could not open index run at " + dir.getAbsolutePath(), exc);
+        }
+        
+        result = index;
+        if (result == null)
+            throw new IllegalStateException("index run at " + dir.getAbsolutePath() + " has been destroyed");
+        
+        return result;
+    }
+    
+    /**
+     * Releases all resources attached to the run. Runs that have never been
+     * opened do not hold any resources.
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    synchronized void destroy() throws IOException {
+        
+        destroyed = true;
+        if (index == null)
+            return;
+        
+        index.destroy();
+        if (deletions != null)
+            deletions.destroy();
+    }
+
+    /**
+     * Sums up the sizes of all block files in an index directory, which is
+     * equivalent to the size reported by an opened {@link DiskIndex}.
+     */
+    private static long getBlockFileSize(File indexDir) {
+        
+        File[] blockFiles = indexDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith("blockfile_");
+            }
+        });
+        
+        long size = 0;
+        if (blockFiles != null)
+            for (File blockFile : blockFiles)
+                size += blockFile.length();
+        
+        return size;
+    }
+
+}
@@ -8,13 +8,24 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
@@ -29,15 +40,68 @@ import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 import org.xtreemfs.foundation.util.OutputUtils;
 
+/**
+ * An LSM tree consisting of a set of in-memory overlay trees and a list of
+ * immutable on-disk runs.
+ * <p>
+ * In the simplest case, an LSM tree has a single on-disk run, which is
+ * replaced with a new one each time a snapshot is materialized. Alternatively,
+ * the changes recorded in a snapshot may be written as a new run on top of the
+ * existing ones (see {@link #materializeRun(String, int)}). Adjacent runs can
+ * later be merged in the background (see {@link #mergeRuns(String, List)}),
+ * so that the cost of a checkpoint only depends on the amount of changes and
+ * not on the size of the index.
+ * </p>
+ * <p>
+ * A snapshot directory either contains a single run, or a manifest file
+ * listing the names of all runs of the snapshot, ordered from the newest to
+ * the oldest one. The runs themselves reside in the parent directory of the
+ * snapshot directory.
+ * </p>
+ */
 public class LSMTree {
     
-    private static long               totalOnDiskSize = 0;
+    /**
+     * name of the manifest file listing the runs of a snapshot
+     */
+    public static final String        RUN_MANIFEST    = "runs";
+    
+    /**
+     * name of the subdirectory of a run containing the keys deleted in the run
+     */
+    public static final String        DELETIONS_DIR   = "deleted";
+    
+    /**
+     * runs smaller than this size are assigned to the lowest level
+     */
+    public static final long          COMPACTION_BASE_SIZE = 4L * 1024 * 1024;
+    
+    private static final AtomicLong   totalOnDiskSize = new AtomicLong();
     
     private static final byte[]       NULL_ELEMENT    = new byte[0];
     
+    /**
+     * value assigned to deleted keys in the on-disk index of deletions
+     */
+    private static final byte[]       DELETION_MARKER = new byte[] { 0 };
+    
+    /**
+     * estimated memory overhead in bytes of an overlay entry in addition to
+     * its key and value
+     */
+    private static final int          ENTRY_OVERHEAD  = 64;
+    
     private MultiOverlayBufferTree    overlay;
     
-    private DiskIndex                 index;
+    /**
+     * the on-disk runs, ordered from the newest to the oldest one
+     */
+    private volatile IndexRun[]       runs;
+    
+    /**
+     * the snapshot directory the on-disk runs were loaded from
+     */
+    private String                    snapshotFile;
     
     private final ByteRangeComparator comp;
     
@@ -47,12 +111,49 @@ public class LSMTree {
     
     private final int                 maxEntriesPerBlock;
     
-    private final int                 maxBlockFileSize;
+    private final long                maxBlockFileSize;
     
     private final boolean             useMMap;
     
     private final int                 mmapLimitBytes;
     
+    /**
+     * specifies whether written index files are forced to disk
+     */
+    private final boolean             syncWrites;
+    
+    /**
+     * specifies whether on-disk runs are loaded on their first access
+     */
+    private final boolean             lazyOpen;
+    
+    /**
+     * specifies whether written data blocks contain hash tables for point
+     * lookups
+     */
+    private final boolean             hashIndex;
+    
+    /**
+     * the estimated size of the writable overlay in bytes
+     */
+    private long                      overlaySize;
+    
+    /**
+     * the estimated size of all read-only overlays in bytes
+     */
+    private long                      snapshotOverlaySize;
+    
+    /**
+     * indicates whether the writable overlay contains any changes
+     */
+    private boolean                   dirty;
+    
+    /**
+     * indicates whether the read-only overlays contain any changes, i.e.
+     * whether the tree differs from its on-disk snapshot
+     */
+    private boolean                   snapshotDirty;
+    
     /**
      * Creates a new LSM tree.
      * 
@@ -67,17 +168,39 @@ public class LSMTree {
      */
     public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
         int maxBlockFileSize, boolean useMMap, int mmapLimit) throws IOException {
+        this(indexFile, comp, new IndexOptions().setCompression(compressed).setMaxEntriesPerBlock(
+            maxEntriesPerBlock).setMaxBlockFileSize(maxBlockFileSize).setDisableMMap(!useMMap).setMMapLimit(
+            mmapLimit));
+    }
+    
+    /**
+     * Creates a new LSM tree.
+     * 
+     * @param indexFile
+     *            the on-disk index file - may be <code>null</code>
+     * @param comp
+     *            a comparator for byte ranges
+     * @param options
+     *            the options that determine how the tree is kept in memory
+     *            and on disk
+     * @throws IOException
+     *             if an I/O error occurs when accessing the on-disk index file
+     */
+    public LSMTree(String indexFile, ByteRangeComparator comp, IndexOptions options) throws IOException {
         
         this.comp = comp;
-        this.compressed = compressed;
-        this.maxEntriesPerBlock = maxEntriesPerBlock;
-        this.maxBlockFileSize = maxBlockFileSize;
-        this.useMMap = useMMap;
-        this.mmapLimitBytes = mmapLimit * 1024 * 1024;
-        
-        overlay = new MultiOverlayBufferTree(NULL_ELEMENT, comp);
-        totalOnDiskSize += indexFile == null ? 0 : getTotalDirSize(new File(indexFile));
-        index = indexFile == null ? null : new DiskIndex(indexFile, comp, compressed, useMmap());
+        this.compressed = options.getCompression();
+        this.maxEntriesPerBlock = options.getMaxEntriesPerBlock();
+        this.maxBlockFileSize = options.getMaxBlockFileSize();
+        this.useMMap = !options.getDisableMMap();
+        this.mmapLimitBytes = options.getMMapLimit() * 1024 * 1024;
+        this.syncWrites = options.getSyncIndexFiles();
+        this.lazyOpen = options.getLazyOpen();
+        this.hashIndex = options.getHashIndex();
+        
+        overlay = new MultiOverlayBufferTree(NULL_ELEMENT, comp, options.getOffHeapOverlays());
+        runs = indexFile == null ? new IndexRun[0] : openRuns(indexFile, new IndexRun[0]);
+        snapshotFile = indexFile;
         lock = new Object();
     }
     
@@ -98,7 +221,7 @@ public class LSMTree {
         if (result != null)
             return result;
         
-        return index == null ? null : index.lookup(key);
+        return lookupRuns(key);
     }
     
     /**
@@ -120,7 +243,7 @@ public class LSMTree {
         if (result != null)
             return result;
         
-        return index == null ? null : index.lookup(key);
+        return lookupRuns(key);
     }
     
     /**
@@ -205,12 +328,10 @@ public class LSMTree {
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.prefixLookup(prefix, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        addRunIterators(list, rng[0], rng[1], ascending);
         
         return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
     }
@@ -249,12 +370,10 @@ public class LSMTree {
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.prefixLookup(prefix, snapId, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        addRunIterators(list, rng[0], rng[1], ascending);
         
         return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
     }
@@ -298,10 +417,9 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.rangeLookup(from, to, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        addRunIterators(list, from, to, ascending);
         
         return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
     }
@@ -349,10 +467,9 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.rangeLookup(from, to, snapId, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        addRunIterators(list, from, to, ascending);
         
         return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
     }
@@ -368,6 +485,8 @@ public class LSMTree {
     public void insert(byte[] key, byte[] value) {
         synchronized (lock) {
             overlay.insert(key, value);
+            allocate(key.length + (value == null ? 0 : value.length));
+            dirty = true;
         }
     }
     
@@ -381,6 +500,8 @@ public class LSMTree {
     public void delete(byte[] key) {
         synchronized (lock) {
             overlay.insert(key, null);
+            allocate(key.length);
+            dirty = true;
         }
     }
     
@@ -390,7 +511,13 @@ public class LSMTree {
      * @return the snapshot ID
      */
     public int createSnapshot() {
-        return overlay.newOverlay();
+        synchronized (lock) {
+            snapshotOverlaySize += overlaySize;
+            overlaySize = 0;
+            snapshotDirty |= dirty;
+            dirty = false;
+            return overlay.newOverlay();
+        }
     }
     
     /**
@@ -406,11 +533,269 @@ public class LSMTree {
     public void materializeSnapshot(String targetFile, int snapId) throws IOException {
         
         DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+            maxBlockFileSize, syncWrites, DiskIndex.FORMAT_V2, hashIndex);
         
-        InternalMergeIterator it = internalPrefixLookup(null, snapId, true);
-        writer.writeIndex(it);
-        it.free();
+        ResultSet<Object, Object> it = internalPrefixLookup(null, snapId, true);
+        try {
+            writer.writeIndex(it);
+        } finally {
+            it.free();
+        }
+    }
+    
+    /**
+     * Writes the changes recorded in an in-memory snapshot as a new on-disk
+     * run. Unlike {@link #materializeSnapshot(String, int)}, the existing
+     * on-disk runs are not included in the new run. Keys deleted in the
+     * snapshot are recorded in the new run, unless there are no older runs
+     * that could contain them.
+     * 
+     * @param targetFile
+     *            the directory to which to write the run
+     * @param snapId
+     *            the snapshot ID
+     * @return <code>true</code>, if a run was written, <code>false</code> if
+     *         the snapshot did not contain any changes
+     * @throws IOException
+     *             if an I/O error occurs while writing the run
+     */
+    public boolean materializeRun(String targetFile, int snapId) throws IOException {
+        
+        ResultSet<byte[], byte[]> it = overlay.prefixLookup(null, snapId, true, true);
+        try {
+            if (!it.hasNext())
+                return false;
+            
+            writeRun(targetFile, it, runs.length > 0);
+            return true;
+            
+        } finally {
+            it.free();
+        }
+    }
+    
+    /**
+     * Merges a sequence of adjacent on-disk runs into a new run. The runs to
+     * merge remain in use until they are replaced with the new run by means of
+     * {@link #replaceRuns(List, String)}.
+     * 
+     * @param targetFile
+     *            the directory to which to write the merged run
+     * @param runNames
+     *            the names of the runs to merge, ordered from the newest to the
+     *            oldest one
+     * @throws IOException
+     *             if an I/O error occurs while merging the runs, or if the
+     *             given runs are not adjacent runs of the tree
+     */
+    public void mergeRuns(String targetFile, List<String> runNames) throws IOException {
+        
+        IndexRun[] current = runs;
+        int first = findRuns(current, runNames);
+        if (first == -1)
+            throw new IOException("runs " + runNames + " are not part of the index");
+        
+        // deleted keys only need to be retained if there are older runs
+        boolean bottom = first + runNames.size() == current.length;
+        
+        IndexRun[] merged = new IndexRun[runNames.size()];
+        System.arraycopy(current, first, merged, 0, merged.length);
+        if (!acquire(merged))
+            throw new IOException("runs " + runNames + " are no longer part of the index");
+        
+        try {
+            List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+            for (IndexRun run : merged)
+                run.addRangeIterators(list, null, null, true, NULL_ELEMENT);
+            
+            OverlayMergeIterator<byte[], byte[]> it = new OverlayMergeIterator<byte[], byte[]>(list, comp,
+                bottom ? NULL_ELEMENT : null, true);
+            try {
+                writeRun(targetFile, it, !bottom);
+            } finally {
+                it.free();
+            }
+        } finally {
+            release(merged);
+        }
+    }
+    
+    /**
+     * Replaces a sequence of adjacent on-disk runs with a single run that was
+     * created from them via {@link #mergeRuns(String, List)}. The manifest of
+     * the current snapshot directory is updated accordingly, and the replaced
+     * runs are closed.
+     * 
+     * @param runNames
+     *            the names of the replaced runs
+     * @param runFile
+     *            the directory containing the new run
+     * @return <code>true</code>, if the runs have been replaced,
+     *         <code>false</code> if the given runs are no longer part of the
+     *         tree
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public boolean replaceRuns(List<String> runNames, String runFile) throws IOException {
+        
+        synchronized (lock) {
+            
+            IndexRun[] current = runs;
+            int first = findRuns(current, runNames);
+            if (first == -1 || snapshotFile == null || !new File(snapshotFile, RUN_MANIFEST).exists())
+                return false;
+            
+            IndexRun newRun = openRun(new File(runFile));
+            
+            IndexRun[] newRuns = new IndexRun[current.length - runNames.size() + 1];
+            System.arraycopy(current, 0, newRuns, 0, first);
+            newRuns[first] = newRun;
+            System.arraycopy(current, first + runNames.size(), newRuns, first + 1, current.length - first
+                - runNames.size());
+            
+            writeRunManifest(snapshotFile, getRunNames(newRuns));
+            runs = newRuns;
+            
+            for (int i = first; i < first + runNames.size(); i++)
+                closeRun(current[i]);
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Determines the adjacent on-disk runs that should be merged next. Runs
+     * are assigned to levels according to their size, such that runs on each
+     * level are <code>fanout</code> times as large as runs on the level below.
+     * As soon as <code>fanout</code> adjacent runs reside on the same level,
+     * they are selected for being merged into a run on the next level.
+     * 
+     * @param fanout
+     *            the size ratio between two adjacent levels
+     * @return the names of the runs to merge, ordered from the newest to the
+     *         oldest one, or <code>null</code>, if no runs need to be merged
+     */
+    public List<String> getRunsToCompact(int fanout) {
+        
+        fanout = Math.max(2, fanout);
+        IndexRun[] current = runs;
+        
+        int start = 0;
+        while (start < current.length) {
+            
+            int level = getLevel(current[start].getSize(), fanout);
+            int end = start + 1;
+            while (end < current.length && getLevel(current[end].getSize(), fanout) == level)
+                end++;
+            
+            if (end - start >= fanout) {
+                List<String> result = new ArrayList<String>(end - start);
+                for (int i = start; i < end; i++)
+                    result.add(current[i].getName());
+                return result;
+            }
+            
+            start = end;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the names of all on-disk runs, ordered from the newest to the
+     * oldest one.
+     * 
+     * @return the names of all runs
+     */
+    public List<String> getRunNames() {
+        return getRunNames(runs);
+    }
+    
+    /**
+     * Loads all on-disk runs that have not been accessed yet. This is only
+     * needed if runs are opened lazily, in order to avoid the latency of
+     * opening a run upon the first lookup.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs when opening a run
+     */
+    public void preOpen() throws IOException {
+        for (IndexRun run : runs)
+            run.open();
+    }
+    
+    /**
+     * Writes a manifest file listing the given runs to a snapshot directory.
+     * An existing manifest file is atomically replaced.
+     * 
+     * @param snapshotFile
+     *            the snapshot directory
+     * @param runNames
+     *            the names of the runs, ordered from the newest to the oldest
+     *            one
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static void writeRunManifest(String snapshotFile, List<String> runNames) throws IOException {
+        
+        File dir = new File(snapshotFile);
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("could not create directory '" + snapshotFile + "'");
+        
+        File tmpFile = new File(dir, RUN_MANIFEST + ".in_progress");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            Writer out = new OutputStreamWriter(fos, "UTF-8");
+            out.write("# on-disk runs, newest first\n");
+            for (String name : runNames)
+                out.write(name + "\n");
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        
+        File manifest = new File(dir, RUN_MANIFEST);
+        if (!tmpFile.renameTo(manifest)) {
+            // on Windows machines, the target mustn't exist
+            manifest.delete();
+            if (!tmpFile.renameTo(manifest))
+                throw new IOException("could not rename '" + tmpFile + "' to " + manifest);
+        }
+    }
+    
+    /**
+     * Reads the names of all runs from the manifest file in a snapshot
+     * directory.
+     * 
+     * @param snapshotFile
+     *            the snapshot directory
+     * @return the names of the runs, ordered from the newest to the oldest one,
+     *         or <code>null</code>, if the snapshot directory does not contain
+     *         a manifest file
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static List<String> readRunManifest(String snapshotFile) throws IOException {
+        
+        File manifest = new File(snapshotFile, RUN_MANIFEST);
+        if (!manifest.exists())
+            return null;
+        
+        List<String> result = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#"))
+                    result.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        
+        return result;
     }
     
     /**
@@ -431,7 +816,7 @@ public class LSMTree {
         final SnapshotConfig snap) throws IOException {
         
         DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+            maxBlockFileSize, syncWrites, DiskIndex.FORMAT_V2, hashIndex);
         writer.writeIndex(new ResultSet<Object, Object>() {
             
             private ResultSet<Object, Object>[] iterators;
@@ -514,9 +899,9 @@ public class LSMTree {
     }
     
     /**
-     * Links the LSM tree to a new snapshot file. The on-disk index is replaced
-     * with the index stored in the given snapshot file, and all in-memory
-     * snapshots are discarded.
+     * Links the LSM tree to a new snapshot file. The on-disk runs are replaced
+     * with the runs stored in or referenced by the given snapshot file, and
+     * all in-memory snapshots are discarded.
      * 
      * @param snapshotFile
      *            the snapshot file
@@ -524,14 +909,59 @@ public class LSMTree {
      *             if an I/O error occurred while reading the snapshot file
      */
     public void linkToSnapshot(String snapshotFile) throws IOException {
-        final DiskIndex oldIndex = index;
         synchronized (lock) {
-            totalOnDiskSize -= index == null ? 0 : index.getSize();
-            index = new DiskIndex(snapshotFile, comp, this.compressed, useMmap());
-            totalOnDiskSize += index.getSize();
-            if (oldIndex != null)
-                oldIndex.destroy();
+            final IndexRun[] oldRuns = runs;
+            runs = openRuns(snapshotFile, oldRuns);
+            this.snapshotFile = snapshotFile;
+            
+            // close all runs that are no longer in use
+            for (IndexRun run : oldRuns)
+                if (!contains(runs, run))
+                    closeRun(run);
+            
             overlay.cleanup();
+            OverlayMemoryBudget.getInstance().release(snapshotOverlaySize);
+            snapshotOverlaySize = 0;
+            snapshotDirty = false;
+        }
+    }
+    
+    /**
+     * Checks whether the in-memory snapshots of the tree contain any changes
+     * that are not part of the on-disk snapshot the tree is linked to. If not,
+     * the on-disk snapshot is equivalent to a new one created from the latest
+     * in-memory snapshot.
+     * 
+     * @return <code>true</code>, if the in-memory snapshots contain changes
+     */
+    public boolean isSnapshotDirty() {
+        synchronized (lock) {
+            return snapshotDirty;
+        }
+    }
+    
+    /**
+     * Returns the on-disk snapshot the tree is linked to.
+     * 
+     * @return the path to the snapshot, or <code>null</code> if the tree is
+     *         not linked to any on-disk snapshot
+     */
+    public String getSnapshotFile() {
+        synchronized (lock) {
+            return snapshotFile;
+        }
+    }
+    
+    /**
+     * Returns the estimated amount of memory held by all in-memory overlays.
+     * Since entries that replace existing ones are accounted for separately,
+     * the estimate may exceed the actual size.
+     * 
+     * @return the size in bytes
+     */
+    public long getOverlaySize() {
+        synchronized (lock) {
+            return overlaySize + snapshotOverlaySize;
         }
     }
     
@@ -559,18 +989,39 @@ public class LSMTree {
     public void destroy() throws IOException {
         
         synchronized (lock) {
-            if (index != null) {
-                totalOnDiskSize -= index.getSize();
-                index.destroy();
-            }
+            // detach the runs before closing them, so that concurrent readers
+            // do not attempt to pin closed runs
+            IndexRun[] oldRuns = runs;
+            runs = new IndexRun[0];
+            for (IndexRun run : oldRuns)
+                closeRun(run);
             overlay.cleanup();
+            releaseOverlays();
+        }
+    }
+    
+    /**
+     * Returns the memory held by the in-memory overlays to the overlay memory
+     * budget. This method should be invoked when the tree is discarded without
+     * having been destroyed, e.g. when its database is deleted.
+     */
+    public void releaseOverlays() {
+        synchronized (lock) {
+            OverlayMemoryBudget.getInstance().release(overlaySize + snapshotOverlaySize);
+            overlaySize = 0;
+            snapshotOverlaySize = 0;
         }
     }
     
+    private void allocate(int entrySize) {
+        overlaySize += entrySize + ENTRY_OVERHEAD;
+        OverlayMemoryBudget.getInstance().allocate(entrySize + ENTRY_OVERHEAD);
+    }
+    
     private boolean useMmap() {
         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
-                "DB size: " + OutputUtils.formatBytes(totalOnDiskSize));
-        return useMMap && (mmapLimitBytes < 0 || totalOnDiskSize < mmapLimitBytes);
+                "DB size: " + OutputUtils.formatBytes(totalOnDiskSize.get()));
+        return useMMap && (mmapLimitBytes < 0 || totalOnDiskSize.get() < mmapLimitBytes);
     }
     
     /**
@@ -580,6 +1031,8 @@ public class LSMTree {
      * 
      * <b>WARNING:</b> This method should only be accessed internally, as it
      * provides access to internal index buffers that have to remain immutable.
+     * The returned iterator has to be freed explicitly, and the returned keys
+     * and values must not be accessed afterwards.
      * 
      * @param prefix
      *            the prefix
@@ -590,35 +1043,457 @@ public class LSMTree {
      *            order; otherwise, they will be returned in descending order
      * @return an iterator with references to internally used buffers
      */
-    protected InternalMergeIterator internalPrefixLookup(byte[] prefix, int snapId, boolean ascending) {
+    protected ResultSet<Object, Object> internalPrefixLookup(byte[] prefix, int snapId, boolean ascending) {
         
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        
+        // pin the current runs while creating the iterators; the iterators
+        // keep the underlying indices alive until they are freed
+        IndexRun[] current;
+        do
+            current = runs;
+        while (!acquire(current));
+        
+        try {
+            return internalPrefixLookup(current, prefix, rng, snapId, ascending);
+        } finally {
+            release(current);
+        }
+    }
+    
+    private ResultSet<Object, Object> internalPrefixLookup(IndexRun[] current, byte[] prefix, byte[][] rng,
+        int snapId, boolean ascending) {
+        
+        // if there are multiple runs, merge the copied entries of all runs
+        if (current.length > 1 || (current.length == 1 && current[0].hasDeletions())) {
+            
+            List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+            list.add(overlay.prefixLookup(prefix, snapId, true, ascending));
+            for (IndexRun run : current)
+                run.addRangeIterators(list, rng[0], rng[1], ascending, NULL_ELEMENT);
+            
+            final OverlayMergeIterator<byte[], byte[]> it = new OverlayMergeIterator<byte[], byte[]>(list,
+                comp, NULL_ELEMENT, ascending);
+            return new ResultSet<Object, Object>() {
+                
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                
+                @Override
+                public Entry<Object, Object> next() {
+                    return InternalBufferUtil.cast(it.next());
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+                
+                @Override
+                public void free() {
+                    it.free();
+                }
+            };
+        }
+        
         Iterator<Entry<byte[], byte[]>> overlayIterator = overlay.prefixLookup(prefix, snapId, true,
             ascending);
         InternalDiskIndexIterator diskIndexIterator = null;
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            diskIndexIterator = index.internalRangeLookup(rng[0], rng[1], ascending);
-        }
+        if (current.length == 1)
+            diskIndexIterator = current[0].getIndex().internalRangeLookup(rng[0], rng[1], ascending);
         
         return new InternalMergeIterator(overlayIterator, diskIndexIterator, comp, NULL_ELEMENT, ascending);
     }
     
-    private static long getTotalDirSize(File dir) {
+    private byte[] lookupRuns(byte[] key) {
         
-        if (!dir.exists())
-            return 0;
+        IndexRun[] current;
+        do
+            current = runs;
+        while (!acquire(current));
+            
+        try {
+            for (IndexRun run : current) {
+            
+                byte[] result = run.lookup(key, NULL_ELEMENT);
+                if (result == NULL_ELEMENT)
+                    return null;
+                
+                if (result != null)
+                    return result;
+            }
+            
+            return null;
         
-        long size = 0;
-        if (dir.isDirectory()) {
-            for (File child : dir.listFiles())
-                size += getTotalDirSize(child);
-        } else
-            size += dir.length();
+        } finally {
+            release(current);
+        }
+    }
+    
+    private void addRunIterators(List<Iterator<Entry<byte[], byte[]>>> list, byte[] from, byte[] to,
+        boolean ascending) {
+        
+        IndexRun[] current;
+        do
+            current = runs;
+        while (!acquire(current));
+        
+        try {
+            for (IndexRun run : current)
+                run.addRangeIterators(list, from, to, ascending, NULL_ELEMENT);
+        } finally {
+            release(current);
+        }
+    }
+    
+    /**
+     * Pins all given runs. If a run has already been destroyed because it was
+     * replaced in the meantime, all runs pinned so far are released again.
+     *
+     * @return <code>true</code>, if all runs have been pinned,
+     *         <code>false</code> otherwise
+     */
+    private static boolean acquire(IndexRun[] runs) {
+        
+        for (int i = 0; i < runs.length; i++) {
+            if (!runs[i].acquire()) {
+                for (int j = 0; j < i; j++)
+                    runs[j].release();
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static void release(IndexRun[] runs) {
+        for (IndexRun run : runs)
+            run.release();
+    }
+    
+    /**
+     * Writes a new on-disk run from a sorted stream of key-value pairs. Keys
+     * with <code>NULL_ELEMENT</code> values are recorded in the run's index of
+     * deletions if <code>keepDeletions</code> is set, and omitted otherwise.
+     * While the run is written, deleted keys are spilled to a temporary file
+     * in the run's directory, so that they do not have to be kept in memory.
+     */
+    private void writeRun(String targetFile, final Iterator<Entry<byte[], byte[]>> entries,
+        final boolean keepDeletions) throws IOException {
+        
+        DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
+            maxBlockFileSize, syncWrites, DiskIndex.FORMAT_V2, hashIndex);
+            
+        final KeySpill deletions = keepDeletions ? new KeySpill(new File(targetFile)) : null;
+        try {
+            writer.writeIndex(new ResultSet<Object, Object>() {
+            
+                private Entry<byte[], byte[]> next = getNextElement();
+            
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+                
+                @Override
+                public Entry<Object, Object> next() {
+        
+                    if (next == null)
+                        throw new NoSuchElementException();
         
-        return size;
+                    Entry<byte[], byte[]> tmp = next;
+                    next = getNextElement();
+                    return InternalBufferUtil.cast(tmp);
+                }
+            
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            
+                @Override
+                public void free() {
+                }
+            
+                private Entry<byte[], byte[]> getNextElement() {
+                
+                    while (entries.hasNext()) {
+                    
+                        Entry<byte[], byte[]> entry = entries.next();
+                        if (entry.getValue() != NULL_ELEMENT)
+                            return entry;
+                        
+                        if (keepDeletions)
+                            deletions.add(entry.getKey());
+                    }
+                    
+                    return null;
+                }
+            });
+                    
+            if (deletions == null || deletions.finish() == 0)
+                return;
+            
+            writer = new DiskIndexWriter(targetFile + File.separator + DELETIONS_DIR, maxEntriesPerBlock,
+                compressed, maxBlockFileSize, syncWrites, DiskIndex.FORMAT_V2, hashIndex);
+            writer.writeIndex(deletions.read());
+            deletions.checkError();
+            
+        } finally {
+            if (deletions != null)
+                deletions.delete();
+        }
     }
     
+    /**
+     * Opens all runs of a snapshot directory. Runs that are already open are
+     * reused.
+     */
+    private IndexRun[] openRuns(String snapshotFile, IndexRun[] openRuns) throws IOException {
+        
+        File snapDir = new File(snapshotFile);
+        List<String> names = readRunManifest(snapshotFile);
+        
+        // snapshot directories without a manifest contain a single run
+        if (names == null) {
+            IndexRun run = findRun(openRuns, snapDir.getName());
+            return new IndexRun[] { run != null ? run : openRun(snapDir) };
+        }
+        
+        IndexRun[] result = new IndexRun[names.size()];
+        try {
+            for (int i = 0; i < result.length; i++) {
+                IndexRun run = findRun(openRuns, names.get(i));
+                result[i] = run != null ? run : openRun(new File(snapDir.getParentFile(), names.get(i)));
+            }
+        } catch (IOException exc) {
+            for (IndexRun run : result)
+                if (run != null && !contains(openRuns, run))
+                    closeRun(run);
+            throw exc;
+        }
+        
+        return result;
+    }
+    
+    private IndexRun openRun(File dir) throws IOException {
+        IndexRun run = new IndexRun(dir, comp, compressed, useMmap(), lazyOpen);
+        totalOnDiskSize.addAndGet(run.getSize());
+        return run;
+    }
+    
+    private void closeRun(IndexRun run) throws IOException {
+        totalOnDiskSize.addAndGet(-run.getSize());
+        run.destroy();
+    }
+    
+    private static IndexRun findRun(IndexRun[] runs, String name) {
+        for (IndexRun run : runs)
+            if (run.getName().equals(name))
+                return run;
+        return null;
+    }
+    
+    private static boolean contains(IndexRun[] runs, IndexRun run) {
+        for (IndexRun r : runs)
+            if (r == run)
+                return true;
+        return false;
+    }
+    
+    /**
+     * Returns the position of the first of the given runs, or -1 if the given
+     * runs are not a sequence of adjacent runs.
+     */
+    private static int findRuns(IndexRun[] runs, List<String> names) {
+        
+        if (names.isEmpty())
+            return -1;
+        
+        for (int i = 0; i + names.size() <= runs.length; i++) {
+            if (!runs[i].getName().equals(names.get(0)))
+                continue;
+            for (int j = 1; j < names.size(); j++)
+                if (!runs[i + j].getName().equals(names.get(j)))
+                    return -1;
+            return i;
+        }
+        
+        return -1;
+    }
+    
+    private static List<String> getRunNames(IndexRun[] runs) {
+        List<String> result = new ArrayList<String>(runs.length);
+        for (IndexRun run : runs)
+            result.add(run.getName());
+        return result;
+    }
+    
+    private static int getLevel(long size, int fanout) {
+        int level = 0;
+        for (long limit = COMPACTION_BASE_SIZE; size >= limit && level < 32; limit *= fanout)
+            level++;
+        return level;
+    }
+    
+    
+    /**
+     * A sequence of keys that is spilled to a temporary file. I/O errors that
+     * occur while keys are added or read are recorded and rethrown by
+     * {@link #finish()} and {@link #checkError()}, respectively, so that the
+     * keys can be added and read from within iterators.
+     */
+    private static final class KeySpill {
+        
+        private final File       file;
+        
+        private DataOutputStream out;
+        
+        private DataInputStream  in;
+        
+        private long             numKeys;
+        
+        private IOException      error;
+        
+        KeySpill(File dir) throws IOException {
+            file = File.createTempFile("spill", ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        
+        void add(byte[] key) {
+            
+            if (error != null)
+                return;
+            
+            try {
+                out.writeInt(key.length);
+                out.write(key);
+                numKeys++;
+            } catch (IOException exc) {
+                error = exc;
+            }
+        }
+        
+        /**
+         * Completes the sequence.
+         * 
+         * @return the number of keys
+         * @throws IOException
+         *             if an I/O error occurred while adding keys
+         */
+        long finish() throws IOException {
+            
+            out.close();
+            out = null;
+            
+            checkError();
+            return numKeys;
+        }
+        
+        /**
+         * Returns the keys of the sequence with <code>DELETION_MARKER</code>
+         * values. The sequence can only be read once.
+         */
+        ResultSet<Object, Object> read() throws IOException {
+            
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return new ResultSet<Object, Object>() {
+                
+                private long   remaining = numKeys;
+                
+                private byte[] next      = readKey();
+                
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+                
+                @Override
+                public Entry<Object, Object> next() {
+                    
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    
+                    byte[] tmp = next;
+                    next = readKey();
+                    return next(tmp);
+                }
+                
+                private byte[] readKey() {
+                    
+                    if (remaining == 0 || error != null)
+                        return null;
+                    
+                    try {
+                        byte[] key = new byte[in.readInt()];
+                        in.readFully(key);
+                        remaining--;
+                        return key;
+                    } catch (IOException exc) {
+                        error = exc;
+                        return null;
+                    }
+                }
+                
+                private Entry<Object, Object> next(final byte[] key) {
+                    
+                    return new Entry<Object, Object>() {
+                        
+                        @Override
+                        public Object getKey() {
+                            return key;
+                        }
+                        
+                        @Override
+                        public Object getValue() {
+                            return DELETION_MARKER;
+                        }
+                        
+                        @Override
+                        public Object setValue(Object value) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+                
+                @Override
+                public void free() {
+                }
+            };
+        }
+        
+        void checkError() throws IOException {
+            if (error != null)
+                throw error;
+        }
+        
+        /**
+         * Closes all streams and deletes the temporary file.
+         */
+        void delete() {
+            
+            try {
+                if (out != null)
+                    out.close();
+                if (in != null)
+                    in.close();
+            } catch (IOException exc) {
+                Logging.logError(Logging.LEVEL_WARN, this, exc);
+            }
+            
+            if (!file.delete())
+                Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this, "could not delete %s", file);
+        }
+    }
+
 }
@@ -0,0 +1,240 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the memory held by the in-memory overlays of all
+ * <code>LSMTree</code> instances of the VM, and limits it to a configurable
+ * budget.
+ * <p>
+ * Each LSM tree reports the estimated size of the entries it inserts into its
+ * overlays, and the size of the overlays it discards. When the total size
+ * exceeds half of the budget, all registered flush listeners (i.e. the
+ * checkpointers of all BabuDB instances) are notified, so that they can write
+ * their overlays to disk. When the budget itself is exceeded, writers are
+ * stalled in {@link #awaitCapacity()} until enough memory has been released.
+ * </p>
+ * <p>
+ * Writers are only stalled as long as at least one flush listener is
+ * registered, since no memory would be released otherwise.
+ * </p>
+ */
+public class OverlayMemoryBudget {
+    
+    /**
+     * Listener that is notified when overlays should be written to disk.
+     */
+    public static interface FlushListener {
+        
+        /**
+         * Invoked when the overlays occupy more than half of the budget. This
+         * method must not block.
+         */
+        public void flushRequested();
+    }
+    
+    private static final String              RUNTIME_STATE_SIZE       = "overlayBudget.size";
+    
+    private static final String              RUNTIME_STATE_CAPACITY   = "overlayBudget.capacity";
+    
+    private static final String              RUNTIME_STATE_STALLCOUNT = "overlayBudget.stallCount";
+    
+    /**
+     * the max. time in ms between two checks of a stalled writer whether it
+     * may proceed
+     */
+    private static final long                STALL_CHECK_INTERVAL     = 1000;
+    
+    private static final OverlayMemoryBudget instance                 = new OverlayMemoryBudget();
+    
+    private final AtomicLong                 size;
+    
+    private final List<FlushListener>        listeners;
+    
+    private final AtomicLong                 _stallCount;
+    
+    private volatile long                    capacity;
+    
+    /**
+     * the number of stalled writers
+     */
+    private volatile int                     waiting;
+    
+    private OverlayMemoryBudget() {
+        this.size = new AtomicLong();
+        this.listeners = new CopyOnWriteArrayList<FlushListener>();
+        this._stallCount = new AtomicLong();
+    }
+    
+    /**
+     * Returns the overlay memory budget of the VM.
+     *
+     * @return the budget
+     */
+    public static OverlayMemoryBudget getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Sets the max. total size of all overlays. A capacity of 0 disables the
+     * budget.
+     *
+     * @param capacity
+     *            the capacity in bytes
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+        wakeUpWriters();
+    }
+    
+    /**
+     * Checks whether the budget is enabled.
+     *
+     * @return <code>true</code>, if the capacity is larger than 0
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+    
+    /**
+     * Checks whether the overlays should be written to disk, i.e. whether more
+     * than half of the budget is in use.
+     *
+     * @return <code>true</code>, if a flush is required
+     */
+    public boolean isFlushRequired() {
+        long c = capacity;
+        return c > 0 && size.get() > c / 2;
+    }
+    
+    /**
+     * Registers a listener that is notified when the overlays should be
+     * written to disk.
+     *
+     * @param listener
+     *            the listener
+     */
+    public void addFlushListener(FlushListener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Deregisters a flush listener. Stalled writers are released if no further
+     * listeners remain.
+     *
+     * @param listener
+     *            the listener
+     */
+    public void removeFlushListener(FlushListener listener) {
+        listeners.remove(listener);
+        wakeUpWriters();
+    }
+    
+    /**
+     * Records memory that has been allocated by an overlay.
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    public void allocate(long bytes) {
+        
+        long c = capacity;
+        long newSize = size.addAndGet(bytes);
+        
+        // notify the listeners when crossing the flush threshold
+        if (c > 0 && newSize > c / 2 && newSize - bytes <= c / 2)
+            requestFlush();
+    }
+    
+    /**
+     * Records memory that has been released by an overlay.
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    public void release(long bytes) {
+        
+        size.addAndGet(-bytes);
+        if (waiting > 0)
+            wakeUpWriters();
+    }
+    
+    /**
+     * Blocks the calling thread as long as the budget is exceeded. This method
+     * should be invoked by writers before inserting into an overlay, and must
+     * not be invoked by a thread that is needed to write overlays to disk.
+     *
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    public void awaitCapacity() throws InterruptedException {
+        
+        if (!isExceeded())
+            return;
+        
+        _stallCount.incrementAndGet();
+        requestFlush();
+        
+        synchronized (this) {
+            waiting++;
+            try {
+                while (isExceeded())
+                    wait(STALL_CHECK_INTERVAL);
+            } finally {
+                waiting--;
+            }
+        }
+    }
+    
+    /**
+     * Returns the total size of all overlays.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+    
+    public Object getRuntimeState(String property) {
+        
+        if (RUNTIME_STATE_SIZE.equals(property))
+            return size.get();
+        if (RUNTIME_STATE_CAPACITY.equals(property))
+            return capacity;
+        if (RUNTIME_STATE_STALLCOUNT.equals(property))
+            return _stallCount.get();
+        
+        return null;
+    }
+    
+    public Map<String, Object> getRuntimeState() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(RUNTIME_STATE_SIZE, size.get());
+        map.put(RUNTIME_STATE_CAPACITY, capacity);
+        map.put(RUNTIME_STATE_STALLCOUNT, _stallCount.get());
+        return map;
+    }
+    
+    private boolean isExceeded() {
+        long c = capacity;
+        return c > 0 && size.get() > c && !listeners.isEmpty();
+    }
+    
+    private void requestFlush() {
+        for (FlushListener listener : listeners)
+            listener.flushRequested();
+    }
+    
+    private synchronized void wakeUpWriters() {
+        notifyAll();
+    }
+
+}
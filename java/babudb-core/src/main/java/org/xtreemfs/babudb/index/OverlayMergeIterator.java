@@ -22,6 +22,11 @@ import org.xtreemfs.babudb.api.database.ResultSet;
  * priority, the one in the second tree the second highest priority, and so on.
  * The iterator will never return more than one value for each key.
  * 
+ * The iterators are merged by means of a binary heap containing the positions
+ * of all non-exhausted iterators, ordered by their next keys and, on equal
+ * keys, by their priority. Thus, each returned element requires O(log k)
+ * comparisons, where k is the number of merged iterators.
+ * 
  * @author stender
  * 
  * @param <K>
@@ -41,6 +46,16 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
      */
     private Entry<K, V>[]               nextElements;
     
+    /**
+     * a heap with the positions of all iterators that have a next element
+     */
+    private int[]                       heap;
+    
+    /**
+     * the number of valid positions in the heap
+     */
+    private int                         heapSize;
+    
     /**
      * a list of all iterators to merge
      */
@@ -61,8 +76,15 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
         this.ascending = ascending;
         
         nextElements = new Entry[itList.size()];
-        for (int i = 0; i < nextElements.length; i++)
+        heap = new int[itList.size()];
+        for (int i = 0; i < nextElements.length; i++) {
             nextElements[i] = itList.get(i).hasNext() ? itList.get(i).next() : null;
+            if (nextElements[i] != null)
+                heap[heapSize++] = i;
+        }
+        
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(i);
         
         nextElement = getNextElement();
     }
@@ -101,39 +123,79 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
     
     private Entry<K, V> getNextElement() {
         
-        // find the smallest element in the 'rightmost' tree
         for (;;) {
             
-            int smallest = 0;
-            for (int i = 1; i < nextElements.length; i++) {
-                
-                if (nextElements[i] == null)
-                    continue;
-                
-                // if a smaller element was found, next element is the
-                // smallest
-                if (nextElements[smallest] == null
-                    || (ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) < 0)
-                    || (!ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) > 0))
-                    smallest = i;
-                
-                // if the smallest element is equal to the current one, remove
-                // the current one
-                else if (comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) == 0) {
-                    Iterator<Entry<K, V>> it = itList.get(i);
-                    nextElements[i] = it.hasNext() ? it.next() : null;
-                }
-            }
+            if (heapSize == 0)
+                return null;
             
+            // the top of the heap is the smallest element; if multiple trees
+            // contain the element, it is the one from the 'leftmost' tree
+            int smallest = heap[0];
             Entry<K, V> entry = nextElements[smallest];
-            Iterator<Entry<K, V>> it = itList.get(smallest);
-            nextElements[smallest] = it.hasNext() ? it.next() : null;
+            advance();
             
-            if (entry == null)
-                return null;
+            // skip all elements with the same key from the remaining trees
+            while (heapSize > 0 && comp.compare(nextElements[heap[0]].getKey(), entry.getKey()) == 0)
+                advance();
             
             if (nullValue == null || entry.getValue() != nullValue)
                 return entry;
         }
     }
+    
+    /**
+     * Replaces the element at the top of the heap with the next element from
+     * the same iterator, or removes it if the iterator is exhausted.
+     */
+    private void advance() {
+        
+        int top = heap[0];
+        Iterator<Entry<K, V>> it = itList.get(top);
+        
+        if (it.hasNext())
+            nextElements[top] = it.next();
+        else {
+            nextElements[top] = null;
+            heap[0] = heap[--heapSize];
+        }
+        
+        if (heapSize > 0)
+            siftDown(0);
+    }
+    
+    private void siftDown(int pos) {
+        
+        int element = heap[pos];
+        for (;;) {
+            
+            int child = 2 * pos + 1;
+            if (child >= heapSize)
+                break;
+            
+            if (child + 1 < heapSize && isSmaller(heap[child + 1], heap[child]))
+                child++;
+            
+            if (!isSmaller(heap[child], element))
+                break;
+            
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        
+        heap[pos] = element;
+    }
+    
+    /**
+     * Checks whether the next element of the iterator at position
+     * <code>i</code> has to be returned before the one of the iterator at
+     * position <code>j</code>.
+     */
+    private boolean isSmaller(int i, int j) {
+        
+        int result = comp.compare(nextElements[i].getKey(), nextElements[j].getKey());
+        if (result == 0)
+            return i < j;
+        
+        return ascending ? result < 0 : result > 0;
+    }
 }
@@ -0,0 +1,461 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * An overlay for byte array keys and values that keeps its data outside of
+ * the Java heap.
+ * <p>
+ * Keys and values are copied to an arena of direct buffers, which grow from a
+ * few kilobytes up to a megabyte each. The nodes of the skip list that orders
+ * the keys are laid out in a few large arrays of longs, each of which contains
+ * the address of the key, the address of the value and the links to the
+ * following nodes. Thus, insertions do not create any objects on the heap that
+ * have to be traced by the garbage collector, and all memory of an overlay is
+ * released at once when it is discarded by {@link MultiOverlayTree#cleanup()}
+ * and no longer referenced by pending lookups.
+ * </p>
+ * <p>
+ * Lookups do not acquire any locks and may run concurrently with insertions.
+ * Insertions are serialized. An updated value does not replace the old one in
+ * the arena, so that it remains valid for concurrent lookups.
+ * </p>
+ */
+public class ArenaOverlay implements Overlay<byte[], byte[]> {
+    
+    /**
+     * max. height of the skip list
+     */
+    private static final int          MAX_HEIGHT         = 12;
+    
+    /**
+     * inverse probability that a node of height h also has height h + 1
+     */
+    private static final int          BRANCHING          = 4;
+    
+    /**
+     * number of longs in the first node segment; each further segment is
+     * twice as large as its predecessor
+     */
+    private static final int          FIRST_SEGMENT_SIZE = 256;
+    
+    /**
+     * size of the first arena chunk in bytes
+     */
+    private static final int          FIRST_CHUNK_SIZE   = 4 * 1024;
+    
+    /**
+     * max. size of an arena chunk in bytes, unless a single key or value is
+     * larger
+     */
+    private static final int          MAX_CHUNK_SIZE     = 1024 * 1024;
+    
+    /**
+     * value address that marks an entry as deleted
+     */
+    private static final long         TOMBSTONE          = -1;
+    
+    /**
+     * offsets of the key address, the value address and the first link in a
+     * node
+     */
+    private static final int          KEY                = 0;
+    
+    private static final int          VALUE              = 1;
+    
+    private static final int          NEXT               = 2;
+    
+    /**
+     * the head node, which precedes all nodes; as it is never linked by other
+     * nodes, its address also marks the end of a list
+     */
+    private static final long         HEAD               = 0;
+    
+    private final byte[]              nullValue;
+    
+    private final ByteRangeComparator comp;
+    
+    /**
+     * the arrays containing the nodes
+     */
+    private volatile AtomicLongArray[] segments;
+    
+    /**
+     * the arena chunks containing the keys and values
+     */
+    private volatile ByteBuffer[]     chunks;
+    
+    /**
+     * the current height of the skip list
+     */
+    private volatile int              height;
+    
+    /**
+     * the number of bytes allocated on and off the heap
+     */
+    private volatile long             size;
+    
+    /*
+     * the following fields are only accessed by inserting threads
+     */
+    
+    private ByteBuffer                writeChunk;
+    
+    private long                      nextNode;
+    
+    private long                      random;
+    
+    private final long[]              prev;
+    
+    /**
+     * Creates a new, empty overlay.
+     *
+     * @param nullValue
+     *            the value that marks an entry as deleted
+     * @param comp
+     *            the comparator for keys
+     */
+    public ArenaOverlay(byte[] nullValue, ByteRangeComparator comp) {
+        
+        this.nullValue = nullValue;
+        this.comp = comp;
+        
+        segments = new AtomicLongArray[] { new AtomicLongArray(FIRST_SEGMENT_SIZE) };
+        chunks = new ByteBuffer[0];
+        height = 1;
+        size = FIRST_SEGMENT_SIZE * 8L;
+        
+        nextNode = HEAD + NEXT + MAX_HEIGHT;
+        random = System.nanoTime() | 1;
+        prev = new long[MAX_HEIGHT];
+    }
+    
+    public synchronized void put(byte[] key, byte[] value) {
+        
+        long node = findGreaterOrEqual(key, prev);
+        long valueAddr = value == nullValue ? TOMBSTONE : allocate(value);
+        
+        // if the key exists, replace the value
+        if (node != HEAD && compare(node, key) == 0) {
+            write(node, VALUE, valueAddr);
+            return;
+        }
+        
+        int h = randomHeight();
+        if (h > height) {
+            for (int i = height; i < h; i++)
+                prev[i] = HEAD;
+            height = h;
+        }
+        
+        // initialize the new node before linking it, so that concurrent
+        // lookups will only see fully initialized nodes
+        node = allocateNode(h);
+        write(node, KEY, allocate(key));
+        write(node, VALUE, valueAddr);
+        for (int i = 0; i < h; i++)
+            write(node, NEXT + i, read(prev[i], NEXT + i));
+        for (int i = 0; i < h; i++)
+            write(prev[i], NEXT + i, node);
+    }
+    
+    public byte[] get(byte[] key) {
+        
+        long node = findGreaterOrEqual(key, null);
+        if (node == HEAD || compare(node, key) != 0)
+            return null;
+        
+        return getValue(node);
+    }
+    
+    public Iterator<Entry<byte[], byte[]>> iterator(byte[] from, byte[] to, boolean ascending) {
+        
+        long first;
+        if (ascending)
+            first = from == null ? read(HEAD, NEXT) : findGreaterOrEqual(from, null);
+        else
+            first = from == null ? findLast() : findLess(from, true);
+        
+        return new EntryIterator(first, to, ascending);
+    }
+    
+    public Overlay<byte[], byte[]> freeze() {
+        // the arena is already compact and should remain outside of the heap
+        return this;
+    }
+    
+    /**
+     * Returns the number of bytes allocated by the overlay.
+     *
+     * @return the size of the overlay in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+    
+    /**
+     * Finds the first node with a key that is greater than or equal to the
+     * given key.
+     *
+     * @param key
+     *            the key
+     * @param prev
+     *            if not <code>null</code>, the last node with a smaller key
+     *            on each level will be stored in this array
+     * @return the node, or <code>HEAD</code> if no such node exists
+     */
+    private long findGreaterOrEqual(byte[] key, long[] prev) {
+        
+        long node = HEAD;
+        int level = height - 1;
+        for (;;) {
+            long next = read(node, NEXT + level);
+            if (next != HEAD && compare(next, key) < 0)
+                node = next;
+            else {
+                if (prev != null)
+                    prev[level] = node;
+                if (level == 0)
+                    return next;
+                level--;
+            }
+        }
+    }
+    
+    /**
+     * Finds the last node with a key that is less than (or equal to) the given
+     * key.
+     *
+     * @param key
+     *            the key
+     * @param inclusive
+     *            if <code>true</code>, a node with the given key is returned
+     *            if it exists
+     * @return the node, or <code>HEAD</code> if no such node exists
+     */
+    private long findLess(byte[] key, boolean inclusive) {
+        
+        long node = HEAD;
+        int level = height - 1;
+        for (;;) {
+            long next = read(node, NEXT + level);
+            int c = next == HEAD ? 1 : compare(next, key);
+            if (c < 0 || (inclusive && c == 0))
+                node = next;
+            else if (level == 0)
+                return node;
+            else
+                level--;
+        }
+    }
+    
+    /**
+     * Finds the node with the greatest key.
+     *
+     * @return the node, or <code>HEAD</code> if the overlay is empty
+     */
+    private long findLast() {
+        
+        long node = HEAD;
+        int level = height - 1;
+        for (;;) {
+            long next = read(node, NEXT + level);
+            if (next != HEAD)
+                node = next;
+            else if (level == 0)
+                return node;
+            else
+                level--;
+        }
+    }
+    
+    private int compare(long node, byte[] key) {
+        
+        long addr = read(node, KEY);
+        ByteBuffer chunk = chunks[(int) (addr >>> 32)];
+        int offset = (int) addr + 4;
+        
+        return comp.compare(new ByteRange(chunk, offset, offset + chunk.getInt(offset - 4)), key);
+    }
+    
+    private byte[] getKey(long node) {
+        return copy(read(node, KEY));
+    }
+    
+    private byte[] getValue(long node) {
+        long addr = read(node, VALUE);
+        return addr == TOMBSTONE ? nullValue : copy(addr);
+    }
+    
+    private byte[] copy(long addr) {
+        
+        ByteBuffer chunk = chunks[(int) (addr >>> 32)].duplicate();
+        int offset = (int) addr;
+        
+        byte[] data = new byte[chunk.getInt(offset)];
+        chunk.position(offset + 4);
+        chunk.get(data);
+        
+        return data;
+    }
+    
+    private long read(long node, int field) {
+        long index = node + field;
+        int segment = segment(index);
+        return segments[segment].get((int) (index - segmentStart(segment)));
+    }
+    
+    private void write(long node, int field, long value) {
+        long index = node + field;
+        int segment = segment(index);
+        segments[segment].set((int) (index - segmentStart(segment)), value);
+    }
+    
+    /**
+     * Allocates a node. Nodes do not span multiple segments.
+     */
+    private long allocateNode(int h) {
+        
+        long node = nextNode;
+        long end = segmentStart(segment(node) + 1);
+        if (node + NEXT + h > end)
+            node = end;
+        
+        int segment = segment(node);
+        if (segment == segments.length) {
+            AtomicLongArray[] newSegments = Arrays.copyOf(segments, segment + 1);
+            newSegments[segment] = new AtomicLongArray(FIRST_SEGMENT_SIZE << segment);
+            segments = newSegments;
+            size += (FIRST_SEGMENT_SIZE << segment) * 8L;
+        }
+        
+        nextNode = node + NEXT + h;
+        return node;
+    }
+    
+    /**
+     * Copies the given data to the arena.
+     *
+     * @return the address of the data
+     */
+    private long allocate(byte[] data) {
+        
+        // leave at least one byte at the end of each chunk, since the end
+        // offset of a byte range has to be less than the buffer limit
+        int length = 4 + data.length;
+        if (writeChunk == null || writeChunk.remaining() <= length) {
+            
+            int chunkSize = writeChunk == null ? FIRST_CHUNK_SIZE : Math.min(2 * writeChunk.capacity(),
+                MAX_CHUNK_SIZE);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, length + 1));
+            
+            ByteBuffer[] newChunks = Arrays.copyOf(chunks, chunks.length + 1);
+            newChunks[chunks.length] = chunk;
+            chunks = newChunks;
+            
+            writeChunk = chunk.duplicate();
+            size += chunk.capacity();
+        }
+        
+        long addr = ((long) (chunks.length - 1) << 32) | writeChunk.position();
+        writeChunk.putInt(data.length);
+        writeChunk.put(data);
+        
+        return addr;
+    }
+    
+    private int randomHeight() {
+        
+        int h = 1;
+        while (h < MAX_HEIGHT) {
+            
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            
+            if ((random & Long.MAX_VALUE) % BRANCHING != 0)
+                break;
+            h++;
+        }
+        
+        return h;
+    }
+    
+    private static int segment(long index) {
+        return 63 - Long.numberOfLeadingZeros(index / FIRST_SEGMENT_SIZE + 1);
+    }
+    
+    private static long segmentStart(int segment) {
+        return FIRST_SEGMENT_SIZE * ((1L << segment) - 1);
+    }
+    
+    private class EntryIterator implements Iterator<Entry<byte[], byte[]>> {
+        
+        private final byte[]  to;
+        
+        private final boolean ascending;
+        
+        private long          node;
+        
+        EntryIterator(long first, byte[] to, boolean ascending) {
+            this.to = to;
+            this.ascending = ascending;
+            this.node = checkBound(first);
+        }
+        
+        public boolean hasNext() {
+            return node != HEAD;
+        }
+        
+        public Entry<byte[], byte[]> next() {
+            
+            if (node == HEAD)
+                throw new NoSuchElementException();
+            
+            final byte[] key = getKey(node);
+            final byte[] value = getValue(node);
+            node = checkBound(ascending ? read(node, NEXT) : findLess(key, false));
+            
+            return new Entry<byte[], byte[]>() {
+                
+                public byte[] getKey() {
+                    return key;
+                }
+                
+                public byte[] getValue() {
+                    return value;
+                }
+                
+                public byte[] setValue(byte[] value) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        private long checkBound(long node) {
+            
+            if (node == HEAD || to == null)
+                return node;
+            
+            int c = compare(node, to);
+            return (ascending ? c >= 0 : c <= 0) ? HEAD : node;
+        }
+    }
+
+}
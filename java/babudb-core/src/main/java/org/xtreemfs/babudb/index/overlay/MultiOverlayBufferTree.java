@@ -15,9 +15,36 @@ public class MultiOverlayBufferTree extends MultiOverlayTree<byte[], byte[]> {
     
     private ByteRangeComparator comp;
     
+    private final byte[]        markerElement;
+    
+    private final boolean       offHeap;
+    
     public MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp) {
-        super(markerElement, comp);
+        this(markerElement, comp, false);
+    }
+    
+    /**
+     * Creates a new multi-overlay tree.
+     * 
+     * @param markerElement
+     *            the value that marks entries as deleted
+     * @param comp
+     *            the comparator for keys
+     * @param offHeap
+     *            if <code>true</code>, keys and values will be stored outside
+     *            of the Java heap in {@link ArenaOverlay}s
+     */
+    public MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp, boolean offHeap) {
+        super(markerElement, comp, offHeap ? new ArenaOverlay(markerElement, comp)
+            : new SkipListOverlay<byte[], byte[]>(comp));
         this.comp = comp;
+        this.markerElement = markerElement;
+        this.offHeap = offHeap;
+    }
+    
+    @Override
+    protected Overlay<byte[], byte[]> createOverlay() {
+        return offHeap ? new ArenaOverlay(markerElement, comp) : super.createOverlay();
     }
     
     public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, boolean includeDeletedEntries,
@@ -15,12 +15,15 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.OverlayMergeIterator;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.logging.Logging.Category;
 
 /**
  * A layered in-memory tree structure.
@@ -32,16 +35,40 @@ public class MultiOverlayTree<K, V> {
     
     static class OverlayTreeList<K, V> {
         
-        public ConcurrentSkipListMap<K, V> tree;
+        /**
+         * the overlay; volatile, since read-only overlays are replaced with
+         * frozen ones in the background
+         */
+        public volatile Overlay<K, V>            tree;
 
-        public OverlayTreeList<K, V> next;
+        /**
+         * the next older overlay; volatile, so that lookups in other threads
+         * see discarded overlays only as long as the on-disk index does not
+         * contain their data yet
+         */
+        public volatile OverlayTreeList<K, V>    next;
         
-        public OverlayTreeList(ConcurrentSkipListMap<K, V> tree, OverlayTreeList<K, V> next) {
+        public OverlayTreeList(Overlay<K, V> tree, OverlayTreeList<K, V> next) {
             this.tree = tree;
             this.next = next;
         }
     }
     
+    /**
+     * background thread that freezes read-only overlays; shared by all trees
+     */
+    private static final Executor               freezer;
+    
+    static {
+        freezer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OverlayFreezer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
     /**
      * value that marks an entry as deleted
      */
@@ -63,9 +90,10 @@ public class MultiOverlayTree<K, V> {
     private Map<Integer, OverlayTreeList<K, V>> overlayMap;
     
     /**
-     * the list of overlay trees
+     * the list of overlay trees; volatile, since lookups may be performed
+     * concurrently with the creation of new overlays
      */
-    private OverlayTreeList<K, V>               treeList;
+    private volatile OverlayTreeList<K, V>      treeList;
     
     /**
      * Creates a new multi-overlay tree. This call is equivalent to
@@ -91,6 +119,25 @@ public class MultiOverlayTree<K, V> {
      *            defined.
      */
     public MultiOverlayTree(V nullValue, Comparator<K> comparator) {
+        this(nullValue, comparator, new SkipListOverlay<K, V>(comparator));
+    }
+    
+    /**
+     * Creates a new multi-overlay tree with the given initial overlay.
+     * Subclasses that provide different overlay implementations have to
+     * override {@link #createOverlay()} accordingly.
+     * 
+     * @param nullValue
+     *            A value that will never be inserted in the tree. This value
+     *            will be used to mark entries as deleted.
+     * @param comparator
+     *            The comparator for the keys. If a <code>null</code> comparator
+     *            is provided, the natural ordering of the keys will be used if
+     *            defined.
+     * @param initialOverlay
+     *            the initial overlay
+     */
+    protected MultiOverlayTree(V nullValue, Comparator<K> comparator, Overlay<K, V> initialOverlay) {
         
         if (comparator == null) {
             this.comparator = new Comparator<K>() {
@@ -102,23 +149,49 @@ public class MultiOverlayTree<K, V> {
         } else
             this.comparator = comparator;
         
-        treeList = new OverlayTreeList<K, V>(new ConcurrentSkipListMap<K, V>(comparator), null);
+        treeList = new OverlayTreeList<K, V>(initialOverlay, null);
         overlayMap = Collections.synchronizedMap(new HashMap<Integer, OverlayTreeList<K, V>>());
         
         this.nullValue = nullValue;
     }
     
     /**
-     * Adds a new overlay to the tree. The new overlay becomes writable.
+     * Adds a new overlay to the tree. The new overlay becomes writable, and the
+     * previous one is frozen in the background (see {@link Overlay#freeze()}).
+     * No insertions may be performed concurrently with this method.
      * 
      * @return the ID of the previous overlay
      */
     public int newOverlay() {
-        overlayMap.put(overlayId, treeList);
-        treeList = new OverlayTreeList<K, V>(new ConcurrentSkipListMap<K, V>(comparator), treeList);
+        
+        final OverlayTreeList<K, V> previous = treeList;
+        overlayMap.put(overlayId, previous);
+        treeList = new OverlayTreeList<K, V>(createOverlay(), previous);
+        
+        freezer.execute(new Runnable() {
+            public void run() {
+                try {
+                    previous.tree = previous.tree.freeze();
+                } catch (Throwable th) {
+                    // the overlay remains unfrozen
+                    Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this, "could not freeze overlay: %s",
+                        th.toString());
+                }
+            }
+        });
+        
         return overlayId++;
     }
     
+    /**
+     * Creates a new, empty overlay.
+     * 
+     * @return the overlay
+     */
+    protected Overlay<K, V> createOverlay() {
+        return new SkipListOverlay<K, V>(comparator);
+    }
+    
     /**
      * Destroys any read-only overlay trees, such that only the current
      * read-write tree remains.
@@ -244,33 +317,8 @@ public class MultiOverlayTree<K, V> {
         
         // initialize a final list w/ submap iterators of all overlays
         final List<Iterator<Entry<K, V>>> itList = new ArrayList<Iterator<Entry<K, V>>>();
-        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next) {
-            if (from != null && to != null) {
-                // both boundaries are provided
-                if (ascending)
-                    itList.add(list.tree.subMap(from, to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().subMap(from, to).entrySet().iterator());
-            } else if (from == null && to == null) {
-                // no boundary is provided
-                if (ascending)
-                    itList.add(list.tree.entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().entrySet().iterator());
-            } else if (from != null && to == null) {
-                // only 'from' obundary is provided
-                if (ascending)
-                    itList.add(list.tree.tailMap(from).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().tailMap(from).entrySet().iterator());
-            } else {
-                // only 'to' boundary is provided
-                if (ascending)
-                    itList.add(list.tree.headMap(to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().headMap(to).entrySet().iterator());
-            }
-        }
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            itList.add(list.tree.iterator(from, to, ascending));
         
         return new OverlayMergeIterator<K, V>(itList, comparator, includeDeletedEntries ? null : nullValue,
             ascending);
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A single sorted in-memory tree of a {@link MultiOverlayTree}. Overlays may be
+ * read concurrently with insertions.
+ */
+public interface Overlay<K, V> {
+    
+    /**
+     * Inserts a key-value pair. An existing value associated with the key is
+     * replaced.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     */
+    public void put(K key, V value);
+    
+    /**
+     * Retrieves the value associated with the given key.
+     *
+     * @param key
+     *            the key
+     * @return the value, or <code>null</code>, if the overlay does not contain
+     *         the key
+     */
+    public V get(K key);
+    
+    /**
+     * Returns an iterator over all key-value pairs between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively).
+     *
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the first
+     *            key in the overlay will be used
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the last key
+     *            in the overlay will be used (inclusively)
+     * @param ascending
+     *            If <code>true</code>, entries will be returned in ascending
+     *            order; otherwise, they will be returned in descending order,
+     *            and <code>from</code> has to be greater than <code>to</code>
+     * @return an iterator with key-value pairs
+     */
+    public Iterator<Entry<K, V>> iterator(K from, K to, boolean ascending);
+    
+    /**
+     * Returns an overlay with the same content that is optimized for lookups
+     * and no longer accepts insertions. This method is invoked once the
+     * overlay has become read-only.
+     *
+     * @return the read-only overlay; may be the overlay itself
+     */
+    public Overlay<K, V> freeze();
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An overlay that is backed by a {@link ConcurrentSkipListMap}.
+ */
+public class SkipListOverlay<K, V> implements Overlay<K, V> {
+    
+    private final ConcurrentSkipListMap<K, V> tree;
+    
+    private final Comparator<K>               comparator;
+    
+    public SkipListOverlay(Comparator<K> comparator) {
+        this.tree = new ConcurrentSkipListMap<K, V>(comparator);
+        this.comparator = comparator;
+    }
+    
+    public void put(K key, V value) {
+        tree.put(key, value);
+    }
+    
+    public V get(K key) {
+        return tree.get(key);
+    }
+    
+    public Iterator<Entry<K, V>> iterator(K from, K to, boolean ascending) {
+        
+        ConcurrentNavigableMap<K, V> map = ascending ? tree : tree.descendingMap();
+        
+        if (from != null && to != null)
+            // both boundaries are provided
+            return map.subMap(from, to).entrySet().iterator();
+        else if (from == null && to == null)
+            // no boundary is provided
+            return map.entrySet().iterator();
+        else if (from != null && to == null)
+            // only 'from' boundary is provided
+            return map.tailMap(from).entrySet().iterator();
+        else
+            // only 'to' boundary is provided
+            return map.headMap(to).entrySet().iterator();
+    }
+    
+    public Overlay<K, V> freeze() {
+        return new SortedArrayOverlay<K, V>(tree.entrySet().iterator(), comparator);
+    }
+
+}
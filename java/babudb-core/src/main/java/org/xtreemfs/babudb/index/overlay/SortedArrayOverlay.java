@@ -0,0 +1,186 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+/**
+ * An immutable overlay that keeps its keys and values in two sorted arrays.
+ * Lookups are performed by means of a binary search.
+ * <p>
+ * Read-only overlays are converted to sorted array overlays (see
+ * {@link Overlay#freeze()}), as arrays need far less memory than the nodes of
+ * a skip list, and can be searched faster.
+ * </p>
+ */
+public class SortedArrayOverlay<K, V> implements Overlay<K, V> {
+    
+    private final Object[]      keys;
+    
+    private final Object[]      values;
+    
+    private final Comparator<K> comparator;
+    
+    /**
+     * Creates a new overlay from a sorted sequence of entries.
+     *
+     * @param entries
+     *            an iterator over the entries in ascending key order, without
+     *            duplicate keys
+     * @param comparator
+     *            the comparator for keys; if <code>null</code>, the natural
+     *            ordering of the keys will be used
+     */
+    public SortedArrayOverlay(Iterator<Entry<K, V>> entries, Comparator<K> comparator) {
+        
+        List<Object> keyList = new ArrayList<Object>();
+        List<Object> valueList = new ArrayList<Object>();
+        while (entries.hasNext()) {
+            Entry<K, V> entry = entries.next();
+            keyList.add(entry.getKey());
+            valueList.add(entry.getValue());
+        }
+        
+        this.keys = keyList.toArray();
+        this.values = valueList.toArray();
+        this.comparator = comparator;
+    }
+    
+    public void put(K key, V value) {
+        throw new UnsupportedOperationException("overlay is read-only");
+    }
+    
+    public V get(K key) {
+        int index = search(key);
+        return index >= 0 ? value(index) : null;
+    }
+    
+    public Iterator<Entry<K, V>> iterator(K from, K to, boolean ascending) {
+        
+        if (ascending)
+            return new EntryIterator(from == null ? 0 : lowerBound(from), to == null ? keys.length
+                : lowerBound(to), 1);
+        else
+            return new EntryIterator(from == null ? keys.length - 1 : upperBound(from) - 1, to == null ? -1
+                : upperBound(to) - 1, -1);
+    }
+    
+    public Overlay<K, V> freeze() {
+        return this;
+    }
+    
+    /**
+     * Returns the number of entries in the overlay.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return keys.length;
+    }
+    
+    /**
+     * Searches for the given key.
+     *
+     * @return the index of the key, or <code>-1</code> if the overlay does
+     *         not contain the key
+     */
+    private int search(K key) {
+        int index = lowerBound(key);
+        return index < keys.length && compare(key(index), key) == 0 ? index : -1;
+    }
+    
+    /**
+     * Returns the index of the first key that is greater than or equal to the
+     * given key.
+     */
+    private int lowerBound(K key) {
+        
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(key(mid), key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Returns the index of the first key that is greater than the given key.
+     */
+    private int upperBound(K key) {
+        
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(key(mid), key) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        
+        return low;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private int compare(K k1, K k2) {
+        return comparator == null ? ((Comparable<K>) k1).compareTo(k2) : comparator.compare(k1, k2);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private K key(int index) {
+        return (K) keys[index];
+    }
+    
+    @SuppressWarnings("unchecked")
+    private V value(int index) {
+        return (V) values[index];
+    }
+    
+    private class EntryIterator implements Iterator<Entry<K, V>> {
+        
+        private final int end;
+        
+        private final int step;
+        
+        private int       next;
+        
+        EntryIterator(int first, int end, int step) {
+            this.next = first;
+            this.end = end;
+            this.step = step;
+        }
+        
+        public boolean hasNext() {
+            return step > 0 ? next < end : next > end;
+        }
+        
+        public Entry<K, V> next() {
+            
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(key(next), value(next));
+            next += step;
+            
+            return entry;
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
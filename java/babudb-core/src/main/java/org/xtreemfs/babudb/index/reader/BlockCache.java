@@ -0,0 +1,326 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache for blocks of on-disk indices that are not memory-mapped.
+ * The cache is shared by all <code>DiskIndex</code> instances of the VM. Blocks
+ * are identified by their index, block file and offset, and are kept in
+ * direct buffers outside of the Java heap.
+ *
+ * Lookups are lock-free. When a new block is inserted and the capacity is
+ * exceeded, blocks are evicted according to the CLOCK algorithm, i.e. each
+ * cached block has a reference bit which is set on access and cleared when
+ * the clock hand passes it; blocks are evicted when the hand passes them with
+ * a cleared reference bit.
+ *
+ * Cached buffers are never modified or released explicitly. Readers obtain
+ * duplicates of them, so that a block remains valid for as long as it is being
+ * read, even if it is evicted in the meantime.
+ *
+ * The cached blocks of each index are kept in a separate set, so that the
+ * blocks of a closed index can be removed without scanning the entire cache.
+ */
+public class BlockCache {
+    
+    private static final String        RUNTIME_STATE_HITCOUNT  = "blockCache.hitCount";
+    
+    private static final String        RUNTIME_STATE_MISSCOUNT = "blockCache.missCount";
+    
+    private static final String        RUNTIME_STATE_SIZE      = "blockCache.size";
+    
+    private static final String        RUNTIME_STATE_CAPACITY  = "blockCache.capacity";
+    
+    private static final BlockCache    instance                = new BlockCache();
+    
+    private final Map<Key, Node>       blocks;
+    
+    private final Map<Long, Set<Node>> indexBlocks;
+    
+    private final AtomicLong           nextIndexId;
+    
+    private final AtomicLong           _hitCount;
+    
+    private final AtomicLong           _missCount;
+    
+    private volatile long              capacity;
+    
+    private long                       size;
+    
+    private Node                       hand;
+    
+    private BlockCache() {
+        this.blocks = new ConcurrentHashMap<Key, Node>();
+        this.indexBlocks = new HashMap<Long, Set<Node>>();
+        this.nextIndexId = new AtomicLong();
+        this._hitCount = new AtomicLong();
+        this._missCount = new AtomicLong();
+    }
+    
+    /**
+     * Returns the block cache of the VM.
+     *
+     * @return the block cache
+     */
+    public static BlockCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Sets the maximum total size of all cached blocks. If the capacity is
+     * reduced, blocks are evicted accordingly. A capacity of 0 disables the
+     * cache.
+     *
+     * @param capacity
+     *            the capacity in bytes
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict(0);
+    }
+    
+    /**
+     * Checks whether the cache is enabled.
+     *
+     * @return <code>true</code>, if the capacity is larger than 0
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+    
+    /**
+     * Returns a new unique ID for an on-disk index, which is used to identify
+     * the index' blocks in the cache.
+     *
+     * @return the ID
+     */
+    public long nextIndexId() {
+        return nextIndexId.incrementAndGet();
+    }
+    
+    /**
+     * Looks up a block in the cache.
+     *
+     * @param indexId
+     *            the ID of the index
+     * @param fileId
+     *            the ID of the block file
+     * @param offset
+     *            the offset of the block in the block file
+     * @return a private duplicate of the cached block buffer, or
+     *         <code>null</code>, if the block is not cached
+     */
+    public ByteBuffer get(long indexId, int fileId, long offset) {
+        
+        Node node = blocks.get(new Key(indexId, fileId, offset));
+        if (node == null) {
+            _missCount.incrementAndGet();
+            return null;
+        }
+        
+        node.referenced = true;
+        _hitCount.incrementAndGet();
+        
+        return node.block.duplicate();
+    }
+    
+    /**
+     * Adds a block to the cache. The given buffer must not be modified
+     * afterwards. Blocks that are larger than the capacity are not cached.
+     *
+     * @param indexId
+     *            the ID of the index
+     * @param fileId
+     *            the ID of the block file
+     * @param offset
+     *            the offset of the block in the block file
+     * @param block
+     *            the buffer containing the block
+     */
+    public synchronized void put(long indexId, int fileId, long offset, ByteBuffer block) {
+        
+        int blockSize = block.capacity();
+        if (blockSize > capacity)
+            return;
+        
+        Key key = new Key(indexId, fileId, offset);
+        if (blocks.containsKey(key))
+            return;
+        
+        evict(blockSize);
+        
+        Node node = new Node(key, block);
+        if (hand == null) {
+            node.next = node;
+            node.prev = node;
+            hand = node;
+        } else {
+            // insert the new block right behind the hand, so that it is the
+            // last one to be passed
+            node.next = hand;
+            node.prev = hand.prev;
+            hand.prev.next = node;
+            hand.prev = node;
+        }
+        
+        blocks.put(key, node);
+        size += blockSize;
+        
+        Set<Node> nodes = indexBlocks.get(indexId);
+        if (nodes == null) {
+            nodes = new HashSet<Node>();
+            indexBlocks.put(indexId, nodes);
+        }
+        nodes.add(node);
+    }
+    
+    /**
+     * Removes all blocks of the given index from the cache. This method should
+     * be invoked when an index is destroyed. Only the blocks of the given
+     * index are visited, and lookups are not blocked in the meantime.
+     *
+     * @param indexId
+     *            the ID of the index
+     */
+    public synchronized void invalidate(long indexId) {
+        
+        Set<Node> nodes = indexBlocks.remove(indexId);
+        if (nodes == null)
+            return;
+        
+        for (Node node : nodes)
+            unlink(node);
+    }
+    
+    public Object getRuntimeState(String property) {
+        
+        if (RUNTIME_STATE_HITCOUNT.equals(property))
+            return _hitCount.get();
+        if (RUNTIME_STATE_MISSCOUNT.equals(property))
+            return _missCount.get();
+        if (RUNTIME_STATE_SIZE.equals(property))
+            return getSize();
+        if (RUNTIME_STATE_CAPACITY.equals(property))
+            return capacity;
+        
+        return null;
+    }
+    
+    public Map<String, Object> getRuntimeState() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(RUNTIME_STATE_HITCOUNT, _hitCount.get());
+        map.put(RUNTIME_STATE_MISSCOUNT, _missCount.get());
+        map.put(RUNTIME_STATE_SIZE, getSize());
+        map.put(RUNTIME_STATE_CAPACITY, capacity);
+        return map;
+    }
+    
+    private synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Evicts blocks until the given number of bytes can be added without
+     * exceeding the capacity.
+     *
+     * @param bytes
+     *            the number of bytes to add
+     */
+    private void evict(long bytes) {
+        
+        while (hand != null && size + bytes > capacity) {
+            
+            if (hand.referenced) {
+                hand.referenced = false;
+                hand = hand.next;
+            } else
+                remove(hand);
+        }
+    }
+    
+    private void remove(Node node) {
+        
+        Set<Node> nodes = indexBlocks.get(node.key.indexId);
+        nodes.remove(node);
+        if (nodes.isEmpty())
+            indexBlocks.remove(node.key.indexId);
+        
+        unlink(node);
+    }
+    
+    private void unlink(Node node) {
+        
+        blocks.remove(node.key);
+        size -= node.block.capacity();
+        
+        if (node.next == node)
+            hand = null;
+        else {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            if (hand == node)
+                hand = node.next;
+        }
+    }
+    
+    private static final class Key {
+        
+        private final long indexId;
+        
+        private final int  fileId;
+        
+        private final long offset;
+        
+        public Key(long indexId, int fileId, long offset) {
+            this.indexId = indexId;
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            
+            if (!(obj instanceof Key))
+                return false;
+            
+            Key other = (Key) obj;
+            return indexId == other.indexId && fileId == other.fileId && offset == other.offset;
+        }
+        
+        @Override
+        public int hashCode() {
+            long h = indexId * 31 + fileId;
+            h = h * 0x9e3779b97f4a7c15L + offset;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+    
+    private static final class Node {
+        
+        private final Key        key;
+        
+        private final ByteBuffer block;
+        
+        private volatile boolean referenced;
+        
+        private Node             prev;
+        
+        private Node             next;
+        
+        public Node(Key key, ByteBuffer block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+}
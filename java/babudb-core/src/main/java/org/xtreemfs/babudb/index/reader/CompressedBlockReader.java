@@ -22,6 +22,12 @@ public class CompressedBlockReader extends BlockReader {
     
     public static final int PREFIX_OFFSET = 5 * Integer.SIZE / 8;
     
+    /**
+     * key entry size in the block header, which indicates that keys are
+     * front-coded (see {@link FrontCodedMiniPage})
+     */
+    public static final int FRONT_CODED   = -2;
+    
     private byte[]          prefix;
     
     /**
@@ -63,8 +69,9 @@ public class CompressedBlockReader extends BlockReader {
             buf.position(position);
         }
         
-        keys = keyEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, keysOffset, valsOffset, comp)
-            : new FixedLenMiniPage(keyEntrySize, numEntries, buf, keysOffset, valsOffset, comp);
+        keys = keyEntrySize == FRONT_CODED ? new FrontCodedMiniPage(numEntries, buf, keysOffset, valsOffset, comp)
+            : keyEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, keysOffset, valsOffset, comp)
+                : new FixedLenMiniPage(keyEntrySize, numEntries, buf, keysOffset, valsOffset, comp);
         values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, limit, comp)
             : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, limit, comp);
     }
@@ -75,24 +82,25 @@ public class CompressedBlockReader extends BlockReader {
      * @param channel
      *            the channel to the block file
      * @param position
-     *            the position of the block
+     *            the position of the block in the block file
      * @param limit
-     *            the limit of the block
+     *            the limit of the block in the block file
      * @param comp
      *            the byte range comparator
      */
-    public CompressedBlockReader(FileChannel channel, int position, int limit, ByteRangeComparator comp)
+    public CompressedBlockReader(FileChannel channel, long position, long limit, ByteRangeComparator comp)
         throws IOException {
         
         super(false);
         
-        this.readBuffer = BufferPool.allocate(limit - position);
-        channel.read(readBuffer.getBuffer(), position);
-        
-        this.position = position;
-        this.limit = limit;
+        // positions refer to the read buffer, which holds the entire block
+        this.position = 0;
+        this.limit = (int) (limit - position);
         this.comp = comp;
         
+        this.readBuffer = BufferPool.allocate(this.limit);
+        channel.read(readBuffer.getBuffer(), position);
+        
         int valsOffset = readBuffer.getBuffer().getInt(0);
         int keysOffset = readBuffer.getBuffer().getInt(4);
         numEntries = readBuffer.getBuffer().getInt(8);
@@ -111,12 +119,13 @@ public class CompressedBlockReader extends BlockReader {
             readBuffer.getBuffer().position(0);
         }
         
-        keys = keyEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), keysOffset,
-            valsOffset, comp) : new FixedLenMiniPage(keyEntrySize, numEntries, readBuffer.getBuffer(),
-            keysOffset, valsOffset, comp);
+        keys = keyEntrySize == FRONT_CODED ? new FrontCodedMiniPage(numEntries, readBuffer.getBuffer(),
+            keysOffset, valsOffset, comp) : keyEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer
+                .getBuffer(), keysOffset, valsOffset, comp) : new FixedLenMiniPage(keyEntrySize, numEntries,
+            readBuffer.getBuffer(), keysOffset, valsOffset, comp);
         values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), valsOffset,
-            limit - position, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(),
-            valsOffset, limit - position, comp);
+            this.limit, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(),
+            valsOffset, this.limit, comp);
         
     }
     
@@ -171,16 +180,29 @@ public class CompressedBlockReader extends BlockReader {
         final int endIndex;
         
         {
+            // bounds that do not start with the prefix are either smaller or
+            // larger than all keys in the block
             byte[] suffixFrom = usableSuffix(from);
-            startIndex = ascending ? keys.getInclTopPosition(suffixFrom) : keys.getExclTopPosition(suffixFrom);
+            if (suffixFrom == null && from != null)
+                startIndex = comp.compare(from, prefix) < 0 ? 0 : numEntries;
+            else
+                startIndex = ascending ? keys.getInclTopPosition(suffixFrom) : keys
+                        .getExclTopPosition(suffixFrom);
             assert (startIndex >= -1) : "invalid block start offset: " + startIndex;
             
             byte[] suffixTo = usableSuffix(to);
-            endIndex = ascending ? keys.getExclBottomPosition(suffixTo) : keys
-                    .getInclBottomPosition(suffixTo);
+            if (suffixTo == null && to != null)
+                endIndex = comp.compare(to, prefix) < 0 ? -1 : numEntries - 1;
+            else
+                endIndex = ascending ? keys.getExclBottomPosition(suffixTo) : keys
+                        .getInclBottomPosition(suffixTo);
             assert (endIndex >= -1) : "invalid block end offset: " + endIndex;
         }
         
+        // decode front-coded keys in a single pass
+        final ByteRange[] decodedKeys = keys instanceof FrontCodedMiniPage && startIndex <= endIndex
+            ? ((FrontCodedMiniPage) keys).getEntries(startIndex, endIndex) : null;
+        
         return new ResultSet<ByteRange, ByteRange>() {
             
             int currentIndex = ascending ? startIndex : endIndex;
@@ -198,7 +220,8 @@ public class CompressedBlockReader extends BlockReader {
                 
                 Entry<ByteRange, ByteRange> entry = new Entry<ByteRange, ByteRange>() {
                     
-                    final ByteRange key   = keys.getEntry(currentIndex);
+                    final ByteRange key   = decodedKeys != null ? decodedKeys[currentIndex - startIndex] : keys
+                                                  .getEntry(currentIndex);
                     
                     final ByteRange value = values.getEntry(currentIndex);
                     
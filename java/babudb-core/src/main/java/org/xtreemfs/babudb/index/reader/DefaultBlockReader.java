@@ -15,12 +15,30 @@ import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.foundation.buffer.BufferPool;
 
 public class DefaultBlockReader extends BlockReader {
     
-    public static final int KEYS_OFFSET = 4 * Integer.SIZE / 8;
+    public static final int KEYS_OFFSET     = 4 * Integer.SIZE / 8;
+    
+    /**
+     * flag in the entry count of the block header, which indicates that a hash
+     * table is appended to the block
+     */
+    public static final int HASH_INDEX_FLAG = 0x80000000;
+    
+    /**
+     * the buffer containing the hash table; <code>null</code> if the block
+     * does not have a hash table, or if it cannot be used with the comparator
+     */
+    private ByteBuffer      hashTable;
+    
+    private int             hashTableOffset;
+    
+    private int             numSlots;
     
     /**
      * Creates a reader for a buffered block.
@@ -50,10 +68,11 @@ public class DefaultBlockReader extends BlockReader {
             numEntries = buf.getInt(position + 4);
             int keyEntrySize = buf.getInt(position + 8);
             int valEntrySize = buf.getInt(position + 12);
+            int valsLimit = readHashTable(buf, limit);
             keys = keyEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, keysOffset, valsOffset, comp)
                 : new FixedLenMiniPage(keyEntrySize, numEntries, buf, keysOffset, valsOffset, comp);
-            values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, limit, comp)
-                : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, limit, comp);
+            values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, valsLimit, comp)
+                : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, valsLimit, comp);
         } else {
             numEntries = 0;
             keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
@@ -68,37 +87,39 @@ public class DefaultBlockReader extends BlockReader {
      * @param channel
      *            the channel to the block file
      * @param position
-     *            the position of the block
+     *            the position of the block in the block file
      * @param limit
-     *            the limit of the block
+     *            the limit of the block in the block file
      * @param comp
      *            the byte range comparator
      */
-    public DefaultBlockReader(FileChannel channel, int position, int limit, ByteRangeComparator comp)
+    public DefaultBlockReader(FileChannel channel, long position, long limit, ByteRangeComparator comp)
         throws IOException {
         
         super(false);
         
-        this.position = position;
-        this.limit = limit;
+        // positions refer to the read buffer, which holds the entire block
+        this.position = 0;
+        this.limit = (int) (limit - position);
         this.comp = comp;
         
-        this.readBuffer = BufferPool.allocate(limit - position);
+        this.readBuffer = BufferPool.allocate(this.limit);
         channel.read(readBuffer.getBuffer(), position);
         
         // with limit <= 0 there are no entries in the buffer
-        if (limit > 0) {
+        if (this.limit > 0) {
             int keysOffset = KEYS_OFFSET;
             int valsOffset = readBuffer.getBuffer().getInt(0);
             numEntries = readBuffer.getBuffer().getInt(4);
             int keyEntrySize = readBuffer.getBuffer().getInt(8);
             int valEntrySize = readBuffer.getBuffer().getInt(12);
+            int valsLimit = readHashTable(readBuffer.getBuffer(), this.limit);
             keys = keyEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), keysOffset,
                 valsOffset, comp) : new FixedLenMiniPage(keyEntrySize, numEntries, readBuffer.getBuffer(),
                 keysOffset, valsOffset, comp);
             values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), valsOffset,
-                limit - position, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer
-                    .getBuffer(), valsOffset, limit - position, comp);
+                valsLimit, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(),
+                valsOffset, valsLimit, comp);
         } else {
             numEntries = 0;
             keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
@@ -114,7 +135,7 @@ public class DefaultBlockReader extends BlockReader {
      */
     public ByteRange lookup(byte[] key) {
         
-        int index = keys.getPosition(key);
+        int index = hashTable != null ? getHashPosition(key) : keys.getPosition(key);
         if (index == -1)
             return null;
         
@@ -205,4 +226,56 @@ public class DefaultBlockReader extends BlockReader {
         };
     }
     
+    /**
+     * Strips the hash index flag from the entry count and locates the hash
+     * table, if the block has one.
+     * 
+     * @param buf
+     *            the buffer containing the block
+     * @param limit
+     *            the limit of the block in the buffer
+     * @return the limit of the value page
+     */
+    private int readHashTable(ByteBuffer buf, int limit) {
+        
+        if ((numEntries & HASH_INDEX_FLAG) == 0)
+            return limit;
+        
+        numEntries &= ~HASH_INDEX_FLAG;
+        
+        // the table consists of 2-byte slots followed by the number of slots
+        numSlots = buf.getInt(limit - Integer.SIZE / 8);
+        hashTableOffset = limit - Integer.SIZE / 8 - numSlots * Character.SIZE / 8;
+        
+        // the table is based on hashes of the key bytes, which can only be
+        // used if keys are compared byte-wise
+        if (comp.getClass() == DefaultByteRangeComparator.class)
+            hashTable = buf;
+        
+        return hashTableOffset;
+    }
+    
+    /**
+     * Looks up the position of a key by means of the hash table.
+     * 
+     * @param key
+     *            the key
+     * @return the position, or -1 if the key is not contained in the block
+     */
+    private int getHashPosition(byte[] key) {
+        
+        int slot = (int) BloomFilter.hash(key) & (numSlots - 1);
+        for (;;) {
+            
+            int pos = hashTable.getChar(hashTableOffset + slot * Character.SIZE / 8);
+            if (pos == 0)
+                return -1;
+            
+            if (comp.compare(keys.getEntry(pos - 1), key) == 0)
+                return pos - 1;
+            
+            slot = (slot + 1) & (numSlots - 1);
+        }
+    }
+
 }
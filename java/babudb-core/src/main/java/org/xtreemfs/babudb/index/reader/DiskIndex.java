@@ -11,40 +11,187 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 
+/**
+ * An on-disk index, consisting of a block index that is kept in memory and a
+ * set of block files that are either memory-mapped or read on demand.
+ * <p>
+ * The lifetime of an index is controlled by reference counting. The creator
+ * of an index holds a reference that is given up by {@link #destroy()}.
+ * Readers that access the index concurrently pin it via {@link #acquire()}
+ * and {@link #release()}, and each iterator holds a reference until it has
+ * been freed or exhausted. The block files are only closed and unmapped
+ * when the last reference has been released, so that no reader can access
+ * a buffer that is no longer mapped. References held by iterators that are
+ * never freed are released once the iterators have been garbage-collected.
+ * </p>
+ * <p>
+ * Each entry of the block index maps the first key of a block to the block's
+ * offset in its block file, followed by the 2-byte ID of the block file. In
+ * format version 1, offsets are 4-byte integers, which limits block files to
+ * 2 GB. Format version 2 uses 8-byte offsets. The version of an index is
+ * derived from the size of its block index entries, so that indices of both
+ * versions can be read. Block files larger than the max. size of a single
+ * mapping are mapped in multiple segments, each of which holds a sequence of
+ * complete blocks.
+ * </p>
+ */
 public class DiskIndex {
     
+    /**
+     * index format version with 4-byte block offsets
+     */
+    public static final int                     FORMAT_V1        = 1;
+    
+    /**
+     * index format version with 8-byte block offsets
+     */
+    public static final int                     FORMAT_V2        = 2;
+    
+    /**
+     * the max. size of a memory-mapped segment of a block file
+     */
+    public static final int                     MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+    
+    /**
+     * receives the references to iterators that have been garbage-collected
+     * without having been freed
+     */
+    private static final ReferenceQueue<Object> leakedPins = new ReferenceQueue<Object>();
+    
+    /**
+     * the pins of all iterators that have not yet been freed; the set keeps
+     * the phantom references reachable until they are enqueued
+     */
+    private static final Set<Pin>               pins       = Collections.newSetFromMap(
+                                                                 new ConcurrentHashMap<Pin, Boolean>());
+    
+    /**
+     * unmaps a memory-mapped buffer; <code>null</code> if the running VM does
+     * not provide a way to do so
+     */
+    private static final Method                 unmapMethod;
+    
+    private static final Object                 unmapTarget;
+    
+    static {
+        Method method = null;
+        Object target = null;
+        try {
+            // Java 9 and later: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            target = field.get(null);
+        } catch (Throwable t) {
+            try {
+                // Java 6 to 8: sun.misc.Cleaner.clean() on the buffer's cleaner
+                method = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                target = null;
+            } catch (Throwable t2) {
+                method = null;
+            }
+        }
+        unmapMethod = method;
+        unmapTarget = target;
+    }
+    
     private ByteBuffer          blockIndexBuf;
     
     private BlockReader         blockIndex;
     
-    private MappedByteBuffer[]  dbFiles;
+    /**
+     * the memory-mapped segments of all block files
+     */
+    private MappedByteBuffer[][] dbFiles;
+    
+    /**
+     * the offsets of the memory-mapped segments in their block files
+     */
+    private long[][]            segmentOffsets;
     
     private FileChannel[]       dbFileChannels;
     
     private ByteRangeComparator comp;
     
+    private BloomFilter         bloomFilter;
+    
     private long                indexSize;
     
     private final boolean       compressed;
     
     private final boolean       mmaped;
     
+    private final long          cacheId;
+    
+    private final int           formatVersion;
+    
+    /**
+     * the size of a block offset in a block index entry
+     */
+    private final int           offsetSize;
+    
+    /**
+     * the number of references to the index, including the one held by its
+     * creator until the index is destroyed
+     */
+    private final AtomicInteger refCount  = new AtomicInteger(1);
+    
+    private final AtomicBoolean destroyed = new AtomicBoolean();
+    
     public DiskIndex(String path, ByteRangeComparator comp, boolean compressed, boolean mmaped)
         throws IOException {
+        this(path, comp, compressed, mmaped, MAX_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Opens an on-disk index.
+     * 
+     * @param path
+     *            the path to the index directory
+     * @param comp
+     *            the comparator for byte ranges
+     * @param compressed
+     *            specifies whether the index is compressed
+     * @param mmaped
+     *            specifies whether the block files are memory-mapped
+     * @param maxSegmentSize
+     *            the max. size of a memory-mapped segment of a block file;
+     *            block files are split into segments at block boundaries
+     * @throws IOException
+     *             if an I/O error occurs, or if the index has an unsupported
+     *             format
+     */
+    public DiskIndex(String path, ByteRangeComparator comp, boolean compressed, boolean mmaped,
+        int maxSegmentSize) throws IOException {
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
@@ -54,6 +201,7 @@ public class DiskIndex {
         this.comp = comp;
         this.compressed = compressed;
         this.mmaped = mmaped;
+        this.cacheId = BlockCache.getInstance().nextIndexId();
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "loading index ...");
         
         // First, read the block index into a buffer. For performance reasons,
@@ -68,6 +216,27 @@ public class DiskIndex {
         blockIndex = new DefaultBlockReader(blockIndexBuf, 0, blockIndexBuf.limit(), comp);
         channel.close();
         
+        // determine the format version from the size of the block index
+        // entries; empty indices can be read with any version
+        int entrySize = blockIndex.getValues() instanceof FixedLenMiniPage ? ((FixedLenMiniPage) blockIndex
+                .getValues()).getEntrySize() : -1;
+        if (blockIndex.getNumEntries() == 0 || entrySize == 8 + Short.SIZE / 8)
+            formatVersion = FORMAT_V2;
+        else if (entrySize == 4 + Short.SIZE / 8)
+            formatVersion = FORMAT_V1;
+        else
+            throw new IOException("unsupported index format at " + path + " (block index entry size: "
+                + entrySize + ")");
+        offsetSize = formatVersion == FORMAT_V1 ? 4 : 8;
+        
+        // Load the Bloom filter, if one exists. Since the filter is based on
+        // key hashes, it can only be used if keys are compared byte-wise;
+        // custom comparators may regard different byte sequences as equal.
+        // Indices written by older versions do not have a filter.
+        File bloomFilterFile = new File(path + BloomFilter.FILENAME);
+        if (bloomFilterFile.exists() && comp.getClass() == DefaultByteRangeComparator.class)
+            bloomFilter = BloomFilter.read(bloomFilterFile.getPath());
+        
         // Second, mmap each of the potentially large block list files
         FilenameFilter filter = new FilenameFilter() {
             public boolean accept(File dir, String filename) {
@@ -80,8 +249,10 @@ public class DiskIndex {
         
         dbFileChannels = new FileChannel[blockFilenames.length];
         
-        if (mmaped)
-            dbFiles = new MappedByteBuffer[blockFilenames.length];
+        if (mmaped) {
+            dbFiles = new MappedByteBuffer[blockFilenames.length][];
+            segmentOffsets = new long[blockFilenames.length][];
+        }
         
         for (String blockFilename : blockFilenames) {
             Matcher m = p.matcher(blockFilename);
@@ -95,10 +266,16 @@ public class DiskIndex {
                 // channels; otherwise, no maps will be created, and channels
                 // will be closed when the index is released
                 if (mmaped) {
-                    dbFiles[blockIndexId] = dbFileChannels[blockIndexId].map(MapMode.READ_ONLY, 0, blockFile
-                            .length());
+                    long[] offsets = getSegmentOffsets(blockIndexId, blockFile.length(), maxSegmentSize);
+                    segmentOffsets[blockIndexId] = offsets;
+                    dbFiles[blockIndexId] = new MappedByteBuffer[offsets.length];
+                    for (int i = 0; i < offsets.length; i++) {
+                        long end = i == offsets.length - 1 ? blockFile.length() : offsets[i + 1];
+                        dbFiles[blockIndexId][i] = dbFileChannels[blockIndexId].map(MapMode.READ_ONLY,
+                            offsets[i], end - offsets[i]);
+                    }
                     Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                            "block file index size: " + blockFile.length());
+                            "block file index size: " + blockFile.length() + ", segments: " + offsets.length);
                     dbFileChannels[blockIndexId].close();
                 }
                 
@@ -107,7 +284,19 @@ public class DiskIndex {
         
     }
     
+    /**
+     * Looks up a key. The caller has to hold a reference to the index.
+     * 
+     * @param key
+     *            the key
+     * @return the value, or <code>null</code> if the key is not contained
+     */
     public byte[] lookup(byte[] key) {
+        
+        // if the Bloom filter rules out the key, no block needs to be read
+        if (bloomFilter != null && !bloomFilter.mightContain(key))
+            return null;
+        
         // returns index position in the second block for "word"
         int indexPosition = getBlockIndexPosition(key, blockIndex);
         
@@ -116,31 +305,10 @@ public class DiskIndex {
         if (indexPosition == -1)
             return null;
         
-        int startBlockOffset = getBlockOffset(indexPosition, blockIndex);
-        int fileId = getBlockFileId(indexPosition, blockIndex);
-        
-        int endBlockOffset;
-        if (indexPosition == blockIndex.getNumEntries() - 1)
-            // the last block in the block index
-            endBlockOffset = -1;
-        else {
-            ByteRange indexPos = getBlockEntry(indexPosition + 1, blockIndex);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endBlockOffset = getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
-            
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the file
-            if (getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endBlockOffset = -1;
-            
-            // endBlockOffset = getBlockOffset(indexPosition + 1, blockIndex);
-        }
-        
         // create a view buffer on the target block
         BlockReader targetBlock = null;
         try {
-            targetBlock = mmaped ? getBlock(startBlockOffset, endBlockOffset, dbFiles[fileId]) : getBlock(
-                startBlockOffset, endBlockOffset, dbFileChannels[fileId]);
+            targetBlock = getBlock(indexPosition, blockIndex, dbFiles, dbFileChannels, true);
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
@@ -161,13 +329,9 @@ public class DiskIndex {
         if (numBlocks == 0)
             return 0;
         
-        int lastBlockStartOffset = getBlockOffset(numBlocks - 1, blockIndex);
-        int lastBlockEndOffset = -1;
         BlockReader lastBlock = null;
         try {
-            lastBlock = mmaped ? getBlock(lastBlockStartOffset, lastBlockEndOffset, dbFiles[getBlockFileId(
-                numBlocks - 1, blockIndex)]) : getBlock(lastBlockStartOffset, lastBlockEndOffset,
-                dbFileChannels[getBlockFileId(numBlocks - 1, blockIndex)]);
+            lastBlock = getBlock(numBlocks - 1, blockIndex, dbFiles, dbFileChannels, false);
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
@@ -177,18 +341,9 @@ public class DiskIndex {
         if (numBlocks == 1)
             return lastBlockEntryCount;
         
-        int firstBlockStartOffset = 0;
-        int firstBlockEndBlockOffset = getBlockOffset(1, blockIndex);
-        
-        // the 1 block is the last in the current block file
-        if (getBlockFileId(1, blockIndex) > getBlockFileId(0, blockIndex))
-            firstBlockEndBlockOffset = -1;
-        
         BlockReader firstBlock = null;
         try {
-            firstBlock = mmaped ? getBlock(firstBlockStartOffset, firstBlockEndBlockOffset,
-                dbFiles[getBlockFileId(0, blockIndex)]) : getBlock(firstBlockStartOffset,
-                firstBlockEndBlockOffset, dbFileChannels[getBlockFileId(0, blockIndex)]);
+            firstBlock = getBlock(0, blockIndex, dbFiles, dbFileChannels, false);
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
@@ -198,38 +353,53 @@ public class DiskIndex {
         return firstBlocksEntryCount + lastBlockEntryCount;
     }
     
+    /**
+     * Returns an iterator for a key range. The iterator holds a reference to
+     * the index until it has been freed or exhausted. The caller has to hold
+     * a reference to the index while the iterator is created.
+     * 
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param ascending
+     *            the iteration order
+     * @return the iterator
+     */
     public ResultSet<byte[], byte[]> rangeLookup(final byte[] from, final byte[] to,
         final boolean ascending) {
         
         // return iterator for mmap'ed indices
-        if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
-            }
-            
-            return new DiskIndexIterator(this, blockIndex, from, to, ascending, map);
-        }
+        if (mmaped)
+            return new DiskIndexIterator(this, blockIndex, from, to, ascending, duplicateMaps());
         
         // return iterator for non-mmap'ed indices
         else
             return new DiskIndexIterator(this, blockIndex, from, to, ascending, dbFileChannels);
     }
     
+    /**
+     * Returns an iterator for a key range that returns views on the index
+     * buffers. The iterator holds a reference to the index until it has been
+     * freed, so the returned entries must not be accessed afterwards. Unlike
+     * iterators returned by {@link #rangeLookup(byte[], byte[], boolean)},
+     * the iterator is not released when it is garbage-collected, as the
+     * returned entries may outlive it; hence, it has to be freed explicitly.
+     * 
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param ascending
+     *            the iteration order
+     * @return the iterator
+     */
     public InternalDiskIndexIterator internalRangeLookup(final byte[] from, final byte[] to,
         final boolean ascending) {
         
         // return iterator for mmap'ed indices
-        if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
-            }
-            
-            return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, map);
-        }
+        if (mmaped)
+            return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, duplicateMaps());
         
         // return iterator for non-mmap'ed indices
         else
@@ -244,42 +414,210 @@ public class DiskIndex {
         return indexSize;
     }
     
+    /**
+     * Adds a reference to the index, which prevents its resources from being
+     * released before {@link #release()} is invoked.
+     * 
+     * @return <code>true</code>, if the reference was added,
+     *         <code>false</code> if all references have already been released
+     */
+    public boolean acquire() {
+        
+        releaseLeakedPins();
+        
+        for (;;) {
+            int count = refCount.get();
+            if (count == 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Releases a reference to the index. Once the last reference has been
+     * released, the block files are closed and unmapped.
+     */
+    public void release() {
+        
+        if (refCount.decrementAndGet() > 0)
+            return;
+        
+        try {
+            close();
+        } catch (IOException exc) {
+            Logging.logError(Logging.LEVEL_ERROR, this, exc);
+        }
+    }
+    
+    /**
+     * Releases the reference held by the creator of the index. Resources are
+     * freed as soon as all readers have released their references. Invoking
+     * the method more than once has no effect.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs while closing the block files
+     */
     public void destroy() throws IOException {
+        
+        if (!destroyed.compareAndSet(false, true))
+            return;
+        
+        if (refCount.decrementAndGet() == 0)
+            close();
+    }
+    
+    /**
+     * Adds a reference to the index on behalf of an iterator. The reference
+     * is released when the returned pin is released, or, if
+     * <code>releaseWhenCollected</code> is set, when the iterator has been
+     * garbage-collected.
+     * 
+     * @param iterator
+     *            the iterator
+     * @param releaseWhenCollected
+     *            specifies whether the reference is released when the
+     *            iterator has been garbage-collected; must not be set if the
+     *            iterator hands out views on the block files, which may still
+     *            be accessed afterwards
+     * @return the pin
+     * @throws IllegalStateException
+     *             if all references to the index have already been released
+     */
+    Pin pin(Object iterator, boolean releaseWhenCollected) {
+        
+        if (!acquire())
+            throw new IllegalStateException("index has already been destroyed");
+        
+        // a phantom reference without a referent is never enqueued
+        Pin pin = new Pin(releaseWhenCollected ? iterator : null, this);
+        pins.add(pin);
+        return pin;
+    }
+    
+    private void close() throws IOException {
+        
+        BlockCache.getInstance().invalidate(cacheId);
         blockIndex.free();
         for (FileChannel c : dbFileChannels) {
             c.close();
         }
 
+        // since no reader holds a reference to the index anymore, the block
+        // files can safely be unmapped, rather than waiting for the buffers to
+        // be garbage-collected
         if (mmaped) {
-            // This is what should happen during GC of dbFiles, however there may be leaks (e.g. in iterators)
-            // that prevent the cleaner from running. Hence, upon destroy, run the cleaner ourselves.
-            // Any references will become invalid, and accessing them will result in undefined behavior.
-            try {
-                // private static void sun.nio.ch.FileChannelImpl.unmap(MappedByteBuffer bb)
-                Method unmapMethod = sun.nio.ch.FileChannelImpl.class.getDeclaredMethod("unmap",
-                        MappedByteBuffer.class);
-                unmapMethod.setAccessible(true);
-                for (MappedByteBuffer mbb : dbFiles) {
-                    unmapMethod.invoke(null, mbb);
-                }
-            } catch (Throwable t) {
-                Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
-                        "Could not free memory mapped files (%s). This may cause disk space leaks.",
-                        t.getMessage());
-            }
-
-            // this is what should be sufficient to trigger cleaning, however it may not always do so
+            for (MappedByteBuffer[] segments : dbFiles)
+                for (MappedByteBuffer mbb : segments)
+                    unmap(mbb);
             dbFiles = null;
         }
     }
     
-    public void finalize() throws Throwable {
+    private void unmap(MappedByteBuffer buf) {
+        
+        if (unmapMethod == null || buf == null)
+            return;
+        
         try {
-            destroy();
-        } catch (IOException exc) {
-            Logging.logError(Logging.LEVEL_ERROR, this, exc);
+            if (unmapTarget != null)
+                unmapMethod.invoke(unmapTarget, buf);
+            else {
+                Object cleaner = unmapMethod.invoke(buf);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable t) {
+            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                "could not unmap block file (%s), the mapping will be released by the garbage collector", t);
         }
-        super.finalize();
+    }
+    
+    /**
+     * Releases all references of iterators that have been garbage-collected
+     * without having been freed.
+     */
+    private static void releaseLeakedPins() {
+        
+        Reference<?> ref;
+        while ((ref = leakedPins.poll()) != null)
+            ((Pin) ref).release();
+    }
+    
+    /**
+     * A reference to an index held by an iterator.
+     */
+    static final class Pin extends PhantomReference<Object> {
+        
+        private final DiskIndex index;
+        
+        private Pin(Object iterator, DiskIndex index) {
+            super(iterator, leakedPins);
+            this.index = index;
+        }
+        
+        /**
+         * Releases the reference. Invoking the method more than once has no
+         * effect.
+         */
+        void release() {
+            if (pins.remove(this)) {
+                clear();
+                index.release();
+            }
+        }
+    }
+    
+    /**
+     * Returns a reader for the block at the given position of the block index.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @param index
+     *            the block index
+     * @param maps
+     *            the memory-mapped segments of all block files, or
+     *            <code>null</code> if the block files are not memory-mapped
+     * @param channels
+     *            the channels to all block files; only used if no maps are
+     *            given
+     * @param useCache
+     *            specifies whether blocks that are not memory-mapped may be
+     *            retrieved from the block cache
+     * @return the block reader
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    BlockReader getBlock(int indexPosition, BlockReader index, ByteBuffer[][] maps, FileChannel[] channels,
+        boolean useCache) throws IOException {
+        
+        long startBlockOffset = getBlockOffset(indexPosition, index);
+        int fileId = getBlockFileId(indexPosition, index);
+        
+        // the block ends where the next block starts, unless it is the last
+        // block of its block file
+        long endBlockOffset = -1;
+        if (indexPosition < index.getNumEntries() - 1 && getBlockFileId(indexPosition + 1, index) == fileId)
+            endBlockOffset = getBlockOffset(indexPosition + 1, index);
+        
+        if (maps != null) {
+            
+            // translate the offsets to the segment containing the block; a
+            // block never spans multiple segments
+            long[] offsets = segmentOffsets[fileId];
+            int segment = Arrays.binarySearch(offsets, startBlockOffset);
+            if (segment < 0)
+                segment = -segment - 2;
+            
+            long segmentOffset = offsets[segment];
+            return getBlock((int) (startBlockOffset - segmentOffset), endBlockOffset == -1 ? -1
+                : (int) (endBlockOffset - segmentOffset), maps[fileId][segment]);
+        }
+        
+        if (useCache && BlockCache.getInstance().isEnabled())
+            return getCachedBlock(startBlockOffset, endBlockOffset, fileId);
+        
+        return getBlock(startBlockOffset, endBlockOffset, channels[fileId]);
     }
     
     protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, ByteBuffer map) {
@@ -301,14 +639,14 @@ public class DiskIndex {
         return targetBlock;
     }
     
-    protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, FileChannel channel)
+    protected BlockReader getBlock(long startBlockOffset, long endBlockOffset, FileChannel channel)
         throws IOException {
         
         if (startBlockOffset > channel.size())
             return null;
         
         if (endBlockOffset == -1)
-            endBlockOffset = (int) channel.size();
+            endBlockOffset = channel.size();
         
         BlockReader targetBlock;
         
@@ -321,6 +659,50 @@ public class DiskIndex {
         return targetBlock;
     }
     
+    /**
+     * Returns a reader for a block from the shared block cache. If the block is
+     * not cached yet, it is read from the block file and added to the cache.
+     * 
+     * @param startBlockOffset
+     *            the offset of the block in the block file
+     * @param endBlockOffset
+     *            the end offset of the block, or -1 if the block is the last
+     *            one in the block file
+     * @param fileId
+     *            the ID of the block file
+     * @return the block reader
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    protected BlockReader getCachedBlock(long startBlockOffset, long endBlockOffset, int fileId)
+        throws IOException {
+        
+        BlockCache cache = BlockCache.getInstance();
+        
+        ByteBuffer block = cache.get(cacheId, fileId, startBlockOffset);
+        if (block == null) {
+            
+            FileChannel channel = dbFileChannels[fileId];
+            if (startBlockOffset > channel.size())
+                return null;
+            
+            if (endBlockOffset == -1)
+                endBlockOffset = channel.size();
+            
+            // read the block into a new direct buffer
+            block = ByteBuffer.allocateDirect((int) (endBlockOffset - startBlockOffset));
+            while (block.hasRemaining())
+                if (channel.read(block, startBlockOffset + block.position()) == -1)
+                    break;
+            block.clear();
+            
+            cache.put(cacheId, fileId, startBlockOffset, block);
+            block = block.duplicate();
+        }
+        
+        return getBlock(0, block.limit(), block);
+    }
+    
     /**
      * Returns the index of the block potentially contains the given key.
      * 
@@ -344,9 +726,10 @@ public class DiskIndex {
      *            the block index
      * @return the offset
      */
-    protected static int getBlockOffset(int indexPosition, BlockReader index) {
+    protected long getBlockOffset(int indexPosition, BlockReader index) {
         ByteRange range = index.getValues().getEntry(indexPosition);
-        return range.getBuf().getInt(range.getStartOffset());
+        return offsetSize == 4 ? range.getBuf().getInt(range.getStartOffset()) : range.getBuf().getLong(
+            range.getStartOffset());
     }
     
     /**
@@ -358,25 +741,73 @@ public class DiskIndex {
      *            the block index
      * @return the block file id
      */
-    protected static short getBlockFileId(int indexPosition, BlockReader index) {
+    protected short getBlockFileId(int indexPosition, BlockReader index) {
         ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range.getBuf().getShort(range.getStartOffset() + (Integer.SIZE / 8));
+        // block file index is after the offset in the index file
+        return range.getBuf().getShort(range.getStartOffset() + offsetSize);
     }
     
-    protected static ByteRange getBlockEntry(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range;
+    /**
+     * Returns the format version of the index.
+     * 
+     * @return the format version
+     */
+    public int getFormatVersion() {
+        return formatVersion;
     }
     
-    protected static int getBlockIndexOffset(ByteBuffer buf, int startOffset) {
-        return buf.getInt(startOffset);
+    /**
+     * Determines the offsets of the segments in which a block file is mapped.
+     * A new segment starts with the first block that would otherwise exceed
+     * the max. segment size.
+     */
+    private long[] getSegmentOffsets(int fileId, long fileSize, int maxSegmentSize) {
+        
+        if (fileSize <= maxSegmentSize)
+            return new long[] { 0 };
+        
+        List<Long> offsets = new ArrayList<Long>();
+        offsets.add(0L);
+        
+        long segmentStart = 0;
+        long blockStart = -1;
+        for (int i = 0; i <= blockIndex.getNumEntries(); i++) {
+            
+            // determine where the next block of the file starts
+            long blockEnd;
+            if (i == blockIndex.getNumEntries())
+                blockEnd = fileSize;
+            else if (getBlockFileId(i, blockIndex) == fileId)
+                blockEnd = getBlockOffset(i, blockIndex);
+            else
+                continue;
+            
+            // start a new segment with the previous block if it does not fit
+            // into the current segment
+            if (blockStart > segmentStart && blockEnd - segmentStart > maxSegmentSize) {
+                segmentStart = blockStart;
+                offsets.add(segmentStart);
+            }
+            
+            blockStart = blockEnd;
+        }
+        
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = offsets.get(i);
+        
+        return result;
     }
     
-    protected static short getBlockIndexFileId(ByteBuffer buf, int startOffset) {
-        return buf.getShort(startOffset + (Integer.SIZE / 8));
+    private ByteBuffer[][] duplicateMaps() {
+        
+        ByteBuffer[][] maps = new ByteBuffer[dbFiles.length][];
+        for (int i = 0; i < dbFiles.length; i++) {
+            maps[i] = new ByteBuffer[dbFiles[i].length];
+            for (int j = 0; j < dbFiles[i].length; j++)
+                maps[i][j] = dbFiles[i][j].duplicate();
+        }
+        
+        return maps;
     }
 }
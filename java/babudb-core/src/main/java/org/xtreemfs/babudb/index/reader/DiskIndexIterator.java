@@ -33,11 +33,11 @@ public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSe
      * @param ascending
      *            defines the iteration order
      * @param maps
-     *            an array of mmap'ed buffers
+     *            the mmap'ed segments of all block files
      */
     public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
-        super(index, blockIndexReader, from, to, ascending, maps, null);
+        boolean ascending, ByteBuffer[][] maps) {
+        super(index, blockIndexReader, from, to, ascending, maps, null, true);
     }
     
     /**
@@ -58,7 +58,19 @@ public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSe
      */
     public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
         boolean ascending, FileChannel[] dbFileChannels) {
-        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels);
+        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels, true);
+    }
+    
+    @Override
+    public boolean hasNext() {
+        
+        if (super.hasNext())
+            return true;
+        
+        // as all entries are copied, the reference to the index can be
+        // released as soon as the last entry has been returned
+        free();
+        return false;
     }
     
     @Override
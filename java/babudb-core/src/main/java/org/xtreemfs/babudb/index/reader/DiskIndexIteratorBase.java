@@ -18,17 +18,30 @@ import java.util.Map.Entry;
 import org.xtreemfs.babudb.index.ByteRange;
 import org.xtreemfs.foundation.logging.Logging;
 
+/**
+ * Base class for iterators over the entries of a {@link DiskIndex}. An
+ * iterator pins the index when it is created, so that the block files remain
+ * accessible until the iterator is freed. Iterators that only return copies of
+ * the entries may also be released by the garbage collector, whereas
+ * iterators that return views on the block files have to be freed explicitly.
+ */
 public abstract class DiskIndexIteratorBase {
     
     private final DiskIndex                         index;
     
+    /**
+     * the iterator's reference to the index; <code>null</code> once it has
+     * been released
+     */
+    private DiskIndex.Pin                           pin;
+    
     private final byte[]                            from;
     
     private final byte[]                            to;
     
     private final BlockReader                       blockIndexReader;
     
-    private final ByteBuffer[]                      maps;
+    private final ByteBuffer[][]                    maps;
     
     private final FileChannel[]                     dbFileChannels;
     
@@ -45,7 +58,7 @@ public abstract class DiskIndexIteratorBase {
     protected Iterator<Entry<ByteRange, ByteRange>> currentBlockIterator;
     
     protected DiskIndexIteratorBase(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps, FileChannel[] dbFileChannels) {
+        boolean ascending, ByteBuffer[][] maps, FileChannel[] dbFileChannels, boolean releaseWhenCollected) {
         
         this.maps = maps;
         this.dbFileChannels = dbFileChannels;
@@ -53,6 +66,7 @@ public abstract class DiskIndexIteratorBase {
         this.from = from;
         this.to = to;
         this.ascending = ascending;
+        this.pin = index.pin(this, releaseWhenCollected);
         
         this.blockIndexReader = blockIndexReader.clone();
         
@@ -103,11 +117,13 @@ public abstract class DiskIndexIteratorBase {
         if (currentBlock != null && currentBlock.readBuffer != null
             && currentBlock.readBuffer.getRefCount() > 0)
             currentBlock.free();
-    }
     
-    protected void finalize() throws Throwable {
-        free();
-        super.finalize();
+        // release the reference to the index, which may cause its block files
+        // to be unmapped
+        if (pin != null) {
+            pin.release();
+            pin = null;
+        }
     }
     
     private void getNextBlockData() {
@@ -129,33 +145,8 @@ public abstract class DiskIndexIteratorBase {
             return;
         }
         
-        int startOffset = DiskIndex.getBlockOffset(currentBlockIndex, blockIndexReader);
-        // when last block or a single block the offset should be the
-        // size of the block
-        
-        int fileId = DiskIndex.getBlockFileId(currentBlockIndex, blockIndexReader);
-        int endOffset;
-        if (currentBlockIndex == blockIndexReader.getNumEntries() - 1)
-            // the last block in the block index
-            endOffset = -1;
-        else {
-            ByteRange indexPos = DiskIndex.getBlockEntry(currentBlockIndex + 1, blockIndexReader);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endOffset = DiskIndex.getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
-            
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the
-            // file
-            if (DiskIndex.getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endOffset = -1;
-            
-            // endBlockOffset = getBlockOffset(indexPosition + 1,
-            // blockIndex);
-        }
-        
         try {
-            currentBlock = maps != null ? index.getBlock(startOffset, endOffset, maps[fileId]) : index
-                    .getBlock(startOffset, endOffset, dbFileChannels[fileId]);
+            currentBlock = index.getBlock(currentBlockIndex, blockIndexReader, maps, dbFileChannels, false);
         } catch (ClosedByInterruptException exc) {
             Logging.logError(Logging.LEVEL_DEBUG, this, exc);
         } catch (IOException exc) {
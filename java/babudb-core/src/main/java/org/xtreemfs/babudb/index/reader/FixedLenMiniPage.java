@@ -31,6 +31,10 @@ public class FixedLenMiniPage extends MiniPage {
         this.limit = limit;
     }
     
+    public int getEntrySize() {
+        return entrySize;
+    }
+    
     public ByteRange getEntry(int n) {
         assert (offset < buf.limit()) : "offset == " + offset + ", buf.limit == " + buf.limit()
             + ", entrySize == " + entrySize + ", n == " + n;
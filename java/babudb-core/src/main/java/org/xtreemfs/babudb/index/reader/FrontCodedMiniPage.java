@@ -0,0 +1,218 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * A mini page of front-coded entries. Each entry only stores the bytes that
+ * differ from its predecessor, preceded by the length of the prefix that it
+ * shares with its predecessor and the length of the remaining bytes, both
+ * encoded as variable-length integers. Every n-th entry is a restart point,
+ * which contains the complete entry. The page ends with the offsets of all
+ * restart points, followed by n.
+ * <p>
+ * Searches perform a binary search over the restart points, followed by a
+ * linear scan of the entries between two restart points.
+ * </p>
+ */
+public class FrontCodedMiniPage extends MiniPage {
+    
+    private final int restartInterval;
+    
+    private final int numRestarts;
+    
+    private final int restartListStart;
+    
+    public FrontCodedMiniPage(int numEntries, ByteBuffer buf, int offset, int limit, ByteRangeComparator comp) {
+        
+        super(numEntries, buf, offset, comp);
+        
+        restartInterval = buf.getInt(limit - Integer.SIZE / 8);
+        numRestarts = (numEntries + restartInterval - 1) / restartInterval;
+        restartListStart = limit - (numRestarts + 1) * Integer.SIZE / 8;
+    }
+    
+    public ByteRange getEntry(int n) {
+        return getEntries(n, n)[0];
+    }
+    
+    /**
+     * Returns all entries in a range of index positions. As entries are
+     * decoded sequentially, this is considerably cheaper than retrieving each
+     * entry individually.
+     *
+     * @param from
+     *            the first index position (inclusive)
+     * @param to
+     *            the last index position (inclusive)
+     * @return byte ranges representing the entries
+     */
+    public ByteRange[] getEntries(int from, int to) {
+        
+        assert (from >= 0 && from <= to && to < numEntries) : "invalid range: " + from + " - " + to;
+        
+        ByteRange[] entries = new ByteRange[to - from + 1];
+        
+        int pos = getRestartOffset(from / restartInterval);
+        byte[] entry = new byte[0];
+        for (int i = from - from % restartInterval; i <= to; i++) {
+            
+            int shared = readVarInt(pos);
+            pos += getVarIntSize(shared);
+            int unshared = readVarInt(pos);
+            pos += getVarIntSize(unshared);
+            
+            // copy the shared prefix of the previous entry and append the
+            // remaining bytes; the extra byte is needed because byte ranges
+            // have to end before the limit of their buffer
+            byte[] next = new byte[shared + unshared + 1];
+            System.arraycopy(entry, 0, next, 0, shared);
+            for (int j = 0; j < unshared; j++)
+                next[shared + j] = buf.get(pos + j);
+            pos += unshared;
+            
+            entry = next;
+            if (i >= from)
+                entries[i - from] = new ByteRange(ByteBuffer.wrap(entry), 0, shared + unshared);
+        }
+        
+        return entries;
+    }
+    
+    public int getPosition(byte[] entry) {
+        return search(entry, true, true);
+    }
+    
+    public int getExclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        return search(entry, false, false);
+    }
+    
+    public int getInclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        return search(entry, true, false);
+    }
+    
+    public int getExclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        return search(entry, true, false) - 1;
+    }
+    
+    public int getInclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        return search(entry, false, false) - 1;
+    }
+    
+    /**
+     * Searches the position of the first entry that is larger than the given
+     * entry, or larger or equal if <code>inclusive</code> is set.
+     *
+     * @param entry
+     *            the entry to search for
+     * @param inclusive
+     *            specifies whether an equal entry is a match
+     * @param exact
+     *            if <code>true</code>, -1 is returned unless the entry at the
+     *            resulting position is equal to the given entry
+     * @return the position of the entry, or the number of entries if all
+     *         entries are smaller
+     */
+    private int search(byte[] entry, boolean inclusive, boolean exact) {
+        
+        if (numEntries == 0)
+            return exact ? -1 : 0;
+        
+        // find the last restart point with an entry that precedes the
+        // position to search for
+        int low = 0;
+        int high = numRestarts - 1;
+        int restart = -1;
+        while (low <= high) {
+            
+            int mid = (low + high) >>> 1;
+            int cmp = comp.compare(getRestartEntry(mid), entry);
+            if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                restart = mid;
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        
+        if (restart == -1)
+            return exact && comp.compare(getRestartEntry(0), entry) != 0 ? -1 : 0;
+        
+        // scan the entries up to and including the next restart point, which
+        // is known to be located at or behind the position
+        int first = restart * restartInterval;
+        int last = Math.min(first + restartInterval, numEntries - 1);
+        ByteRange[] entries = getEntries(first, last);
+        for (int i = 0; i < entries.length; i++) {
+            int cmp = comp.compare(entries[i], entry);
+            if (cmp > 0 || (cmp == 0 && inclusive))
+                return exact && cmp != 0 ? -1 : first + i;
+        }
+        
+        return exact ? -1 : last + 1;
+    }
+    
+    private ByteRange getRestartEntry(int n) {
+        
+        // restart points do not share any bytes with their predecessors
+        int pos = getRestartOffset(n) + getVarIntSize(0);
+        int size = readVarInt(pos);
+        pos += getVarIntSize(size);
+        
+        return new ByteRange(buf, pos, pos + size);
+    }
+    
+    private int getRestartOffset(int n) {
+        return offset + buf.getInt(restartListStart + n * Integer.SIZE / 8);
+    }
+    
+    private int readVarInt(int pos) {
+        
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = buf.get(pos++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+    
+    /**
+     * Returns the number of bytes needed to encode the given non-negative
+     * integer as a variable-length integer.
+     *
+     * @param value
+     *            the integer
+     * @return the number of bytes
+     */
+    public static int getVarIntSize(int value) {
+        
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        
+        return size;
+    }
+
+}
@@ -16,6 +16,13 @@ import java.util.Map.Entry;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.ByteRange;
 
+/**
+ * An iterator over the entries of a {@link DiskIndex} that returns views on
+ * the underlying block buffers instead of copies. The views remain valid
+ * until {@link #free()} is invoked, which may unmap the block files. Since
+ * the views may outlive the iterator itself, the iterator is not released
+ * when it is garbage-collected, so it always has to be freed explicitly.
+ */
 public class InternalDiskIndexIterator extends DiskIndexIteratorBase implements
     ResultSet<ByteRange, ByteRange> {
     
@@ -33,11 +40,11 @@ public class InternalDiskIndexIterator extends DiskIndexIteratorBase implements
      * @param ascending
      *            defines the iteration order
      * @param maps
-     *            an array of mmap'ed buffers
+     *            the mmap'ed segments of all block files
      */
     public InternalDiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
-        super(index, blockIndexReader, from, to, ascending, maps, null);
+        boolean ascending, ByteBuffer[][] maps) {
+        super(index, blockIndexReader, from, to, ascending, maps, null, false);
     }
     
     /**
@@ -58,7 +65,7 @@ public class InternalDiskIndexIterator extends DiskIndexIteratorBase implements
      */
     public InternalDiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
         boolean ascending, FileChannel[] dbFileChannels) {
-        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels);
+        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels, false);
     }
     
     @Override
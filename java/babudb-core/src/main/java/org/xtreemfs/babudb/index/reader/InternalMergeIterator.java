@@ -24,7 +24,9 @@ import org.xtreemfs.foundation.buffer.BufferPool;
  * The iterator either returns a byte array or a <code>ByteRange</code> object,
  * depending on whether the current element is part of the overlay trees or the
  * on-disk index. The returned keys and values are direct references to the
- * internally used key-value pairs and should hence not be modified.
+ * internally used key-value pairs and should hence not be modified. Keys and
+ * values from the on-disk index must not be accessed after the iterator has
+ * been freed, and the iterator has to be freed explicitly.
  * 
  * @author stenjan
  * 
@@ -0,0 +1,331 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes a file sequentially in large chunks.
+ * <p>
+ * Data is collected in a chunk buffer by the calling thread. Full chunks are
+ * handed over to a background thread that writes them to the file channel, so
+ * that the caller can fill the next chunk while the previous one is being
+ * written. All chunks except for the last one have the same size, which means
+ * that each write starts at a multiple of the chunk size.
+ * </p>
+ */
+class ChunkedFileWriter {
+    
+    /**
+     * the size of a chunk in bytes
+     */
+    static final int                        CHUNK_SIZE = 1024 * 1024;
+    
+    /**
+     * the max. number of chunks per file that may exist at the same time
+     */
+    private static final int                MAX_CHUNKS = 4;
+    
+    /**
+     * marks the end of the file in the queue of full chunks
+     */
+    private static final ByteBuffer         EOF = ByteBuffer.allocate(0);
+    
+    /**
+     * the max. number of unused chunks that are kept for subsequent writers
+     */
+    private static final int                MAX_POOLED_CHUNKS = 16;
+    
+    /**
+     * unused chunks; shared by all writers
+     */
+    private static final Queue<ByteBuffer>  chunkPool = new ConcurrentLinkedQueue<ByteBuffer>();
+    
+    /**
+     * background threads that write chunks to disk; shared by all writers
+     */
+    private static final ExecutorService    chunkWriters;
+    
+    static {
+        chunkWriters = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IndexFileWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    private final FileOutputStream          out;
+    
+    private final FileChannel               channel;
+    
+    /**
+     * chunks that have been written and may be refilled
+     */
+    private final BlockingQueue<ByteBuffer> freeChunks;
+    
+    /**
+     * chunks that are waiting to be written
+     */
+    private final BlockingQueue<ByteBuffer> fullChunks;
+    
+    /**
+     * the chunk that is currently being filled
+     */
+    private ByteBuffer                      chunk;
+    
+    private int                             numChunks;
+    
+    private boolean                         writerStarted;
+    
+    private boolean                         closed;
+    
+    /**
+     * the first error that occurred in the background thread
+     */
+    private volatile IOException            error;
+    
+    /**
+     * Creates a new chunked writer. An existing file at the given path will be
+     * truncated.
+     *
+     * @param path
+     *            the path to the file
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public ChunkedFileWriter(String path) throws IOException {
+        this.out = new FileOutputStream(path, false);
+        this.channel = out.getChannel();
+        this.freeChunks = new ArrayBlockingQueue<ByteBuffer>(MAX_CHUNKS + 1);
+        this.fullChunks = new ArrayBlockingQueue<ByteBuffer>(MAX_CHUNKS + 1);
+    }
+    
+    /**
+     * Appends the given bytes to the file.
+     *
+     * @param bytes
+     *            the bytes
+     * @throws IOException
+     *             if an earlier chunk could not be written
+     */
+    public void write(byte[] bytes) throws IOException {
+        write(ByteBuffer.wrap(bytes));
+    }
+    
+    /**
+     * Appends the remaining bytes of the given buffer to the file. The
+     * buffer's position will be advanced to its limit. As the bytes are
+     * copied, the buffer may be reused as soon as the method returns.
+     *
+     * @param buf
+     *            the buffer
+     * @throws IOException
+     *             if an earlier chunk could not be written
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        
+        while (buf.hasRemaining()) {
+            
+            if (chunk == null)
+                chunk = nextChunk();
+            
+            if (buf.remaining() <= chunk.remaining())
+                chunk.put(buf);
+            
+            else {
+                ByteBuffer part = buf.slice();
+                part.limit(chunk.remaining());
+                chunk.put(part);
+                buf.position(buf.position() + part.limit());
+            }
+            
+            if (!chunk.hasRemaining())
+                flushChunk();
+        }
+    }
+    
+    /**
+     * Writes all pending chunks and closes the file.
+     *
+     * @param sync
+     *            if <code>true</code>, the file content will be forced to the
+     *            storage device before the file is closed
+     * @throws IOException
+     *             if the file could not be written
+     */
+    public void close(boolean sync) throws IOException {
+        
+        if (closed)
+            return;
+        
+        try {
+            if (chunk != null && chunk.position() > 0)
+                flushChunk();
+            
+            if (writerStarted) {
+                putChunk(EOF);
+                // wait until the background thread has written all chunks
+                for (;;) {
+                    ByteBuffer buf = takeChunk();
+                    if (buf == EOF)
+                        break;
+                    recycle(buf);
+                }
+            }
+            
+            if (error != null)
+                throw error;
+            
+            if (sync)
+                channel.force(true);
+        
+        } catch (IOException exc) {
+            abort();
+            throw exc;
+        }
+        
+        closed = true;
+        if (chunk != null) {
+            recycle(chunk);
+            chunk = null;
+        }
+        out.close();
+    }
+    
+    /**
+     * Discards all pending chunks and closes the file without waiting for the
+     * background thread. Has no effect if the file has already been closed.
+     */
+    public void abort() {
+        
+        if (closed)
+            return;
+        closed = true;
+        
+        // make the background thread skip all pending chunks; the queue can
+        // hold all chunks plus the end marker, so the offer cannot fail
+        error = new IOException("write aborted");
+        chunk = null;
+        if (writerStarted)
+            fullChunks.offer(EOF);
+        
+        try {
+            out.close();
+        } catch (IOException exc) {
+            // ignore
+        }
+    }
+    
+    private ByteBuffer nextChunk() throws IOException {
+        
+        // allocate further chunks until the limit is reached, so that small
+        // files only need a single chunk
+        ByteBuffer buf = freeChunks.poll();
+        if (buf == null && numChunks < MAX_CHUNKS) {
+            numChunks++;
+            buf = chunkPool.poll();
+            return buf != null ? buf : ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        
+        if (buf == null)
+            buf = takeChunk();
+        
+        if (error != null)
+            throw error;
+        
+        return buf;
+    }
+    
+    private void flushChunk() throws IOException {
+        
+        if (error != null)
+            throw error;
+        
+        if (!writerStarted) {
+            chunkWriters.execute(new Runnable() {
+                public void run() {
+                    writeChunks();
+                }
+            });
+            writerStarted = true;
+        }
+        
+        chunk.flip();
+        putChunk(chunk);
+        chunk = null;
+    }
+    
+    /**
+     * Main loop of the background thread.
+     */
+    private void writeChunks() {
+        
+        for (;;) {
+            
+            ByteBuffer buf;
+            try {
+                buf = fullChunks.take();
+            } catch (InterruptedException exc) {
+                error = new IOException("interrupted while waiting for chunks");
+                continue;
+            }
+            
+            if (buf == EOF) {
+                freeChunks.offer(EOF);
+                return;
+            }
+            
+            try {
+                // after an error, the remaining chunks are only recycled
+                if (error == null)
+                    while (buf.hasRemaining())
+                        channel.write(buf);
+            } catch (IOException exc) {
+                error = exc;
+            }
+            
+            buf.clear();
+            freeChunks.offer(buf);
+        }
+    }
+    
+    private void putChunk(ByteBuffer buf) throws IOException {
+        try {
+            fullChunks.put(buf);
+        } catch (InterruptedException exc) {
+            throw new IOException("interrupted while writing chunks");
+        }
+    }
+    
+    private ByteBuffer takeChunk() throws IOException {
+        try {
+            return freeChunks.take();
+        } catch (InterruptedException exc) {
+            throw new IOException("interrupted while writing chunks");
+        }
+    }
+    
+    private static void recycle(ByteBuffer buf) {
+        // the size check is not atomic, which may cause the pool to slightly
+        // exceed its limit
+        if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+            buf.clear();
+            chunkPool.offer(buf);
+        }
+    }
+
+}
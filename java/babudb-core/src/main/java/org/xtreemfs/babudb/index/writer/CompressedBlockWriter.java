@@ -13,14 +13,26 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
-import org.xtreemfs.babudb.index.ByteRange;
 import org.xtreemfs.babudb.index.reader.CompressedBlockReader;
+import org.xtreemfs.babudb.index.reader.FrontCodedMiniPage;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 
+/**
+ * Writes compressed blocks. The longest common prefix of all keys in a block
+ * is stored once in the block header. With variable-length keys, the
+ * remaining key bytes are front-coded, i.e. each key only stores the bytes
+ * that differ from its predecessor, with complete keys at regular restart
+ * points (see {@link FrontCodedMiniPage}).
+ */
 public class CompressedBlockWriter implements BlockWriter {
     
+    /**
+     * the number of keys from one restart point to the next
+     */
+    public static final int RESTART_INTERVAL = 16;
+    
     private List<Object> keys;
     
     private List<Object> values;
@@ -51,7 +63,7 @@ public class CompressedBlockWriter implements BlockWriter {
         
         List<byte[]> compressedKeys = compress(keys);
         
-        ReusableBuffer keyBuf = varLenKeys ? serializeVarLenPageBuf(compressedKeys)
+        ReusableBuffer keyBuf = varLenKeys ? serializeFrontCodedPage(compressedKeys)
             : serializeFixedLenPage(keys);
         ReusableBuffer valBuf = varLenVals ? serializeVarLenPage(values) : serializeFixedLenPage(values);
         
@@ -62,15 +74,16 @@ public class CompressedBlockWriter implements BlockWriter {
         ByteBuffer returnBuf = ByteBuffer.wrap(new byte[valsOffset + valBuf.limit()]);
         /*
          * the header consist of 4 : ptr to vals 4 : ptr to keys 4 : number of
-         * entries 4 : -1 => variable keys, or n => length of fixed size keys 4
-         * : -1 => variable values, or n => length of fixed size values k :
-         * prefix ... start of keys
+         * entries 4 : -2 => front-coded keys, or n => length of fixed size
+         * keys 4 : -1 => variable values, or n => length of fixed size values
+         * k : prefix ... start of keys
          */
 
         returnBuf.putInt(valsOffset);
         returnBuf.putInt(keysOffset);
         returnBuf.putInt(entries);
-        returnBuf.putInt(varLenKeys ? -1 : entries == 0 ? 0 : (keyBuf.limit() / entries));
+        returnBuf.putInt(varLenKeys ? CompressedBlockReader.FRONT_CODED : entries == 0 ? 0
+            : (keyBuf.limit() / entries));
         returnBuf.putInt(varLenVals ? -1 : entries == 0 ? 0 : (valBuf.limit() / entries));
         
         if (this.prefix.length > 0)
@@ -110,101 +123,116 @@ public class CompressedBlockWriter implements BlockWriter {
          * the prefix from each entry and write it out to the list
          */
 
-        List<byte[]> results = new LinkedList<byte[]>();
+        // byte ranges are converted to arrays first, as they may be prefixed
+        // with the common prefix of the block they originate from
+        List<byte[]> entries = new ArrayList<byte[]>(list.size());
+        for (Object entry : list)
+            entries.add(InternalBufferUtil.toBuffer(entry));
         
         /*
-         * special case when list has only one element this ensures that there
-         * will be no prefix
+         * special case when list has at most one element this ensures that
+         * there will be no prefix
          */
-        if (list.size() == 1) {
-            
+        if (entries.size() <= 1) {
             this.prefix = new byte[0];
-            List<byte[]> tmp = new ArrayList<byte[]>(1);
-            Object buf = list.get(0);
-            tmp.add(InternalBufferUtil.toBuffer(buf));
-            
-            return tmp;
+            return entries;
         }
         
-        Object prefix = list.get(0);
-        
         /* find the longest common prefix (lcp) */
-        // cant be longer than prefix
-        int longestPrefixLen = InternalBufferUtil.size(prefix);
-        
-        for (Object entry : list) {
-            int prefixLen = 0;
-            int prefixIndex = 0;
-            int entryIndex = 0;
-            int maxLen = Math.min(InternalBufferUtil.size(prefix), InternalBufferUtil.size(entry));
-            
-            while (prefixLen < maxLen
-                && InternalBufferUtil.byteAt(prefix, prefixIndex++) == InternalBufferUtil.byteAt(entry,
-                    entryIndex++)) {
-                prefixLen++;
-            }
-            
-            if (prefixLen < longestPrefixLen) {
-                longestPrefixLen = prefixLen;
-            }
-        }
+        byte[] first = entries.get(0);
+        int longestPrefixLen = first.length;
+        for (byte[] entry : entries)
+            longestPrefixLen = Math.min(longestPrefixLen, getSharedPrefixLength(first, entry));
         
         // Create the prefix
         byte[] LCP = new byte[longestPrefixLen];
-        System.arraycopy(InternalBufferUtil.toBuffer(prefix), 0, LCP, 0, longestPrefixLen);
+        System.arraycopy(first, 0, LCP, 0, longestPrefixLen);
         this.prefix = LCP;
         
+        if (longestPrefixLen == 0)
+            return entries;
+        
         // add the entries, removing the prefix
-        for (Object entry : list) {
-            if (longestPrefixLen <= 0) {
-                results.add(InternalBufferUtil.toBuffer(entry));
-            } else {
-                if (entry instanceof byte[]) {
-                    
-                    int newLen = ((byte[]) entry).length - longestPrefixLen;
-                    byte[] newEntry = new byte[newLen];
-                    
-                    System.arraycopy((byte[]) entry, longestPrefixLen, newEntry, 0, newLen);
-                    results.add(newEntry);
-                }
-
-                else {
-                    ((ByteRange) entry).addPrefix(LCP);
-                    results.add(((ByteRange) entry).toBuffer());
-                }
-                
-            }
+        List<byte[]> results = new ArrayList<byte[]>(entries.size());
+        for (byte[] entry : entries) {
+            int newLen = entry.length - longestPrefixLen;
+            byte[] newEntry = new byte[newLen];
+            System.arraycopy(entry, longestPrefixLen, newEntry, 0, newLen);
+            results.add(newEntry);
         }
         
         return results;
     }
     
-    private static ReusableBuffer serializeVarLenPageBuf(List<byte[]> list) {
+    /**
+     * Creates a front-coded page. For each entry, the page contains the length
+     * of the prefix shared with the previous entry and the length of the
+     * remaining bytes as variable-length integers, followed by the remaining
+     * bytes. Every {@link #RESTART_INTERVAL}-th entry is stored completely. The
+     * entries are followed by the offsets of all restart points and the
+     * restart interval.
+     */
+    private static ReusableBuffer serializeFrontCodedPage(List<byte[]> list) {
+        
+        int numRestarts = (list.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+        int[] shared = new int[list.size()];
         
-        int[] offsets = new int[list.size()];
-        // List<Integer> offsets = new LinkedList<Integer>();
         int size = 0;
-        int offsetPos = 0;
+        int pos = 0;
+        byte[] prev = null;
         for (byte[] buf : list) {
-            size += buf.length;
-            offsets[offsetPos] = size;
-            offsetPos++;
+            shared[pos] = pos % RESTART_INTERVAL == 0 ? 0 : getSharedPrefixLength(prev, buf);
+            int unshared = buf.length - shared[pos];
+            size += FrontCodedMiniPage.getVarIntSize(shared[pos]) + FrontCodedMiniPage.getVarIntSize(unshared)
+                + unshared;
+            prev = buf;
+            pos++;
         }
         
-        size += list.size() * Integer.SIZE / 8;
+        size += (numRestarts + 1) * Integer.SIZE / 8;
         
         ReusableBuffer newBuf = BufferPool.allocate(size);
-        for (byte[] buf : list)
-            newBuf.put(buf);
+        ByteBuffer tmp = newBuf.getBuffer();
         
-        for (int offs : offsets)
-            newBuf.putInt(offs);
+        int[] restarts = new int[numRestarts];
+        pos = 0;
+        for (byte[] buf : list) {
+            if (pos % RESTART_INTERVAL == 0)
+                restarts[pos / RESTART_INTERVAL] = tmp.position();
+            putVarInt(tmp, shared[pos]);
+            putVarInt(tmp, buf.length - shared[pos]);
+            tmp.put(buf, shared[pos], buf.length - shared[pos]);
+            pos++;
+        }
+        
+        for (int offs : restarts)
+            tmp.putInt(offs);
+        tmp.putInt(RESTART_INTERVAL);
         
         newBuf.position(0);
         
         return newBuf;
     }
     
+    private static void putVarInt(ByteBuffer buf, int value) {
+        
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+    
+    private static int getSharedPrefixLength(byte[] buf1, byte[] buf2) {
+        
+        int maxLen = Math.min(buf1.length, buf2.length);
+        int len = 0;
+        while (len < maxLen && buf1[len] == buf2[len])
+            len++;
+        
+        return len;
+    }
+    
     private static ReusableBuffer serializeVarLenPage(List<Object> list) {
         
         int[] offsets = new int[list.size()];
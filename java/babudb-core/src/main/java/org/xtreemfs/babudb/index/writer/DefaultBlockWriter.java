@@ -13,9 +13,18 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.reader.DefaultBlockReader;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
 
+/**
+ * Writes blocks that consist of a header, a page of keys and a page of
+ * values. Optionally, a hash table is appended to the block, which maps the
+ * hash of each key to the key's position in the block. It allows point
+ * lookups to be answered with a single key comparison rather than a binary
+ * search. Blocks with a hash table are marked by a flag in the header, so
+ * that readers can fall back to the binary search.
+ */
 public class DefaultBlockWriter implements BlockWriter {
     
     private List<Object> keys;
@@ -26,15 +35,33 @@ public class DefaultBlockWriter implements BlockWriter {
     
     private boolean      varLenVals;
     
+    private boolean      hashIndex;
+    
     private boolean      serialized;
     
     public DefaultBlockWriter(boolean varLenKeys, boolean varLenVals) {
+        this(varLenKeys, varLenVals, false);
+    }
+    
+    /**
+     * Creates a new block writer.
+     * 
+     * @param varLenKeys
+     *            specifies whether keys have variable lengths
+     * @param varLenVals
+     *            specifies whether values have variable lengths
+     * @param hashIndex
+     *            specifies whether a hash table for point lookups is appended
+     *            to the block
+     */
+    public DefaultBlockWriter(boolean varLenKeys, boolean varLenVals, boolean hashIndex) {
         
         keys = new LinkedList<Object>();
         values = new LinkedList<Object>();
         
         this.varLenKeys = varLenKeys;
         this.varLenVals = varLenVals;
+        this.hashIndex = hashIndex;
     }
     
     /*
@@ -69,10 +96,13 @@ public class DefaultBlockWriter implements BlockWriter {
         int entries = keys.size();
         int valsOffset = DefaultBlockReader.KEYS_OFFSET + keyPage.size;
         
+        // the slots of the hash table can address up to 2^16 - 1 entries
+        byte[] hashTable = hashIndex && entries > 0 && entries < 0xFFFF ? serializeHashTable(keys) : null;
+        
         // header: [offset of value page, #entries, entry size]
         ByteBuffer tmp = ByteBuffer.wrap(new byte[4 * Integer.SIZE / 8]);
         tmp.putInt(valsOffset);
-        tmp.putInt(entries);
+        tmp.putInt(hashTable == null ? entries : entries | DefaultBlockReader.HASH_INDEX_FLAG);
         tmp.putInt(varLenKeys ? -1 : entries == 0 ? 0 : (keyPage.size / entries));
         tmp.putInt(varLenVals ? -1 : entries == 0 ? 0 : (valPage.size / entries));
         
@@ -84,6 +114,12 @@ public class DefaultBlockWriter implements BlockWriter {
         result.addBuffers(keyPage.size, keyPage.entries);
         result.addBuffers(valPage.size, valPage.entries);
         
+        if (hashTable != null) {
+            List<Object> hashPage = new ArrayList<Object>(1);
+            hashPage.add(hashTable);
+            result.addBuffers(hashTable.length, hashPage);
+        }
+        
         return result;
     }
     
@@ -114,6 +150,33 @@ public class DefaultBlockWriter implements BlockWriter {
         return new SerializedPage(size, list, offsetList);
     }
     
+    /**
+     * Creates a hash table with open addressing and linear probing. Each slot
+     * contains the position of a key plus one, or 0 if the slot is empty. The
+     * number of slots is a power of two that is at least twice the number of
+     * keys, and is appended to the slots.
+     */
+    private static byte[] serializeHashTable(List<Object> list) {
+        
+        int numSlots = Integer.highestOneBit(list.size() * 2 - 1) << 1;
+        char[] slots = new char[numSlots];
+        
+        int pos = 0;
+        for (Object key : list) {
+            int slot = (int) BloomFilter.hash(key) & (numSlots - 1);
+            while (slots[slot] != 0)
+                slot = (slot + 1) & (numSlots - 1);
+            slots[slot] = (char) ++pos;
+        }
+        
+        ByteBuffer tmp = ByteBuffer.wrap(new byte[numSlots * Character.SIZE / 8 + Integer.SIZE / 8]);
+        for (char slot : slots)
+            tmp.putChar(slot);
+        tmp.putInt(numSlots);
+        
+        return tmp.array();
+    }
+    
     private static SerializedPage serializeFixedLenPage(List<Object> list) {
         
         int size = 0;
@@ -9,41 +9,60 @@
 package org.xtreemfs.babudb.index.writer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 
 /**
  * Writes an index to a set of files on disk. A file will not be larger than the
- * given max file size. Multiple files are necessary to handle databases larger
- * than 2 GB on 32-bit systems due to MMap limitations.
+ * given max file size plus the size of its last block. Block files larger
+ * than 2 GB are mapped in multiple segments when being read, so that the max.
+ * file size is only limited by the address space of the VM.
  * 
  * The index has two parts, a sorted list of blocks containing key/value-pairs
  * and a block index. The block index is a sparse index pointing to the sorted
- * blocks.
+ * blocks. In addition, a Bloom filter over all keys is written, which allows
+ * lookups of non-existing keys to be answered without reading a block.
+ * 
+ * By default, indices are written in format version 2, which records 8-byte
+ * block offsets in the block index (see {@link DiskIndex}). Format version 1
+ * with 4-byte offsets can still be written for block files of up to 2 GB, so
+ * that indices remain readable by older releases.
+ * 
+ * Blocks are built by the calling thread and copied to large chunks, which are
+ * written to disk by a background thread (see {@link ChunkedFileWriter}).
  * 
  * @author stender
  * @author hoegqvist
  */
 public class DiskIndexWriter {
     
-    private String  path;
+    private String      path;
+    
+    private int         maxBlockEntries;
+    
+    private boolean     compressed;
+    
+    private long        maxFileSize;
     
-    private int     maxBlockEntries;
+    private int         formatVersion;
     
-    private boolean compressed;
+    private boolean     sync;
     
-    private int     maxFileSize;
+    private boolean     hashIndex;
     
-    private short   blockFileId;
+    private short       blockFileId;
+    
+    private BloomFilter bloomFilter;
     
     /**
      * Creates a new DiskIndexWriter
@@ -60,14 +79,95 @@ public class DiskIndexWriter {
      *            system this should not be larger than 2GB.
      * @throws IOException
      */
-    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, int maxFileSize)
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize)
         throws IOException {
+        this(path, maxBlockEntries, compressed, maxFileSize, false);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes.
+     * @param sync
+     *            Indicates if the content of each index file should be forced
+     *            to the storage device before the file is closed.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize,
+        boolean sync) throws IOException {
+        this(path, maxBlockEntries, compressed, maxFileSize, sync, DiskIndex.FORMAT_V2);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. With format
+     *            version 1, this must not be larger than 2GB.
+     * @param sync
+     *            Indicates if the content of each index file should be forced
+     *            to the storage device before the file is closed.
+     * @param formatVersion
+     *            The format version of the index, either
+     *            {@link DiskIndex#FORMAT_V1} or {@link DiskIndex#FORMAT_V2}.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize,
+        boolean sync, int formatVersion) throws IOException {
+        this(path, maxBlockEntries, compressed, maxFileSize, sync, formatVersion, false);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. With format
+     *            version 1, this must not be larger than 2GB.
+     * @param sync
+     *            Indicates if the content of each index file should be forced
+     *            to the storage device before the file is closed.
+     * @param formatVersion
+     *            The format version of the index, either
+     *            {@link DiskIndex#FORMAT_V1} or {@link DiskIndex#FORMAT_V2}.
+     * @param hashIndex
+     *            Indicates if a hash table for point lookups should be
+     *            appended to each uncompressed data block.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize,
+        boolean sync, int formatVersion, boolean hashIndex) throws IOException {
         
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
-        // check that the file-size will be accepted by MMap
-        assert (maxFileSize <= Integer.MAX_VALUE);
+        if (formatVersion != DiskIndex.FORMAT_V1 && formatVersion != DiskIndex.FORMAT_V2)
+            throw new IllegalArgumentException("unsupported index format version: " + formatVersion);
+        
+        // block offsets of format version 1 are limited to 4 bytes
+        if (formatVersion == DiskIndex.FORMAT_V1 && maxFileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("max. file size must not exceed 2 GB with index format version 1");
         
         File diDir = new File(path);
         
@@ -83,6 +183,10 @@ public class DiskIndexWriter {
         this.path = path;
         this.maxBlockEntries = maxBlockEntries;
         this.maxFileSize = maxFileSize;
+        this.sync = sync;
+        this.formatVersion = formatVersion;
+        this.hashIndex = hashIndex;
+        this.bloomFilter = new BloomFilter();
     }
     
     /**
@@ -96,17 +200,28 @@ public class DiskIndexWriter {
     private void writeIndex(String path, BlockWriter blockIndex, Iterator<Entry<Object, Object>> iterator)
         throws IOException {
         
-        FileOutputStream out = new FileOutputStream(path);
+        ChunkedFileWriter out = new ChunkedFileWriter(path);
+        try {
+            writeBlocks(out, blockIndex, iterator);
+            out.close(sync);
+        } finally {
+            // discards the pending chunks if the index could not be written
+            out.abort();
+        }
+    }
+    
+    private void writeBlocks(ChunkedFileWriter out, BlockWriter blockIndex,
+        Iterator<Entry<Object, Object>> iterator) throws IOException {
         
         BlockWriter block;
         
         if (compressed)
             block = new CompressedBlockWriter(true, true);
         else
-            block = new DefaultBlockWriter(true, true);
+            block = new DefaultBlockWriter(true, true, hashIndex);
         
         int entryCount = 0;
-        int blockOffset = 0;
+        long blockOffset = 0;
         boolean newBlockFile = false;
         
         // write each block to disk
@@ -118,6 +233,10 @@ public class DiskIndexWriter {
             Entry<Object, Object> next = iterator.next();
             block.add(next.getKey(), next.getValue());
             
+            // add the key to the Bloom filter; this has to happen before the
+            // block is written, as the key buffer may be freed
+            bloomFilter.add(BloomFilter.hash(next.getKey()));
+            
             entryCount++;
             
             // if the block size limit has been reached, or there are no more
@@ -125,8 +244,14 @@ public class DiskIndexWriter {
             if (entryCount % maxBlockEntries == 0 || !iterator.hasNext()) {
                 
                 // serialize the offset of the block into a new buffer
-                ReusableBuffer buf = ReusableBuffer.wrap(new byte[(Integer.SIZE / 8) + (Short.SIZE / 8)]);
-                buf.putInt(blockOffset);
+                ReusableBuffer buf;
+                if (formatVersion == DiskIndex.FORMAT_V1) {
+                    buf = ReusableBuffer.wrap(new byte[(Integer.SIZE / 8) + (Short.SIZE / 8)]);
+                    buf.putInt((int) blockOffset);
+                } else {
+                    buf = ReusableBuffer.wrap(new byte[(Long.SIZE / 8) + (Short.SIZE / 8)]);
+                    buf.putLong(blockOffset);
+                }
                 buf.putShort(blockFileId);
                 
                 // add the key-offset mapping to the block index
@@ -141,23 +266,16 @@ public class DiskIndexWriter {
                 Iterator<Object> it = serializedBlock.iterator();
                 while (it.hasNext()) {
                     
-                    // for robustness: check if the file descriptor is still valid,
-                    // re-open the file if necessary
-                    if(!out.getFD().valid()) {
-                        out.close();
-                        out = new FileOutputStream(path, true);
-                    }
-                    
                     Object nextBuffer = it.next();
+                    writtenBytes += writeBuffer(out, nextBuffer);
                     
-                    // check if the entry is the last from the buffer; if so, free it
-                    if(nextBuffer instanceof ByteRange) {
+                    // check if the entry is the last from the buffer; if so,
+                    // free it (the data has been copied to the chunk)
+                    if (nextBuffer instanceof ByteRange) {
                         ByteRange rng = (ByteRange) nextBuffer;
-                        if(rng.getReusableBuf() != null)
+                        if (rng.getReusableBuf() != null)
                             BufferPool.free(rng.getReusableBuf());
                     }
-                    
-                    writtenBytes += writeBuffer(out, nextBuffer);
                 }
                 assert (writtenBytes == serializedBlock.size());
                 
@@ -168,13 +286,11 @@ public class DiskIndexWriter {
                         if (compressed)
                             block = new CompressedBlockWriter(true, true);
                         else
-                            block = new DefaultBlockWriter(true, true);
+                            block = new DefaultBlockWriter(true, true, hashIndex);
                 }
             }
             
         }
-        
-        out.close();
     }
     
     /**
@@ -191,33 +307,42 @@ public class DiskIndexWriter {
         
         BlockWriter blockIndex = new DefaultBlockWriter(true, false);
         
-        // write all index files
-        while (iterator.hasNext()) {
-            String indexPath = path + "blockfile_" + new Short(blockFileId).toString() + ".idx";
-            writeIndex(indexPath, blockIndex, iterator);
+        // write all index files; the iterator is freed in any case, as it may
+        // hold references to other indices
+        try {
+            while (iterator.hasNext()) {
+                String indexPath = path + "blockfile_" + new Short(blockFileId).toString() + ".idx";
+                writeIndex(indexPath, blockIndex, iterator);
             
-            blockFileId++;
+                blockFileId++;
+            }
+        } finally {
+            iterator.free();
         }
         
-        iterator.free();
-        
         // write the block index
-        new File(path + "blockindex.idx").createNewFile();
-        FileOutputStream out = new FileOutputStream(path + "blockindex.idx", false);
-        
-        SerializedBlock serializedBuf = blockIndex.serialize();
-        
-        int bytesWritten = 0;
-        Iterator<Object> it = serializedBuf.iterator();
-        while (it.hasNext())
-            bytesWritten += writeBuffer(out, it.next());
-                
-        assert (bytesWritten == serializedBuf.size());
+        ChunkedFileWriter out = new ChunkedFileWriter(path + "blockindex.idx");
+        try {
+            SerializedBlock serializedBuf = blockIndex.serialize();
+            
+            int bytesWritten = 0;
+            Iterator<Object> it = serializedBuf.iterator();
+            while (it.hasNext())
+                bytesWritten += writeBuffer(out, it.next());
+            
+            assert (bytesWritten == serializedBuf.size());
+            
+            out.close(sync);
+        } finally {
+            out.abort();
+        }
         
-        out.close();
+        // write the Bloom filter
+        bloomFilter.write(path + BloomFilter.FILENAME, sync);
+        bloomFilter = null;
     }
     
-    private int writeBuffer(FileOutputStream out, Object buf) throws IOException {
+    private int writeBuffer(ChunkedFileWriter out, Object buf) throws IOException {
         
         if (buf instanceof byte[]) {
             byte[] bytes = (byte[]) buf;
@@ -234,7 +359,8 @@ public class DiskIndexWriter {
             range.getBuf().position(range.getStartOffset());
             ByteBuffer slice = range.getBuf().slice();
             slice.limit(range.getSize());
-            return out.getChannel().write(slice);
+            out.write(slice);
+            return range.getSize();
         }
         
     }
@@ -75,6 +75,73 @@ public class DiskLogFile {
         return tmp;
     }
     
+    /**
+     * Skips log entries by means of the log file's index, such that the next
+     * entry returned is the last indexed entry with an LSN less than or equal
+     * to the given LSN. Has no effect if no matching index record exists, or
+     * if the indexed entry cannot be read; the remaining entries preceding the
+     * LSN have to be skipped by the caller.
+     * 
+     * @param lsn
+     *            the LSN of the entry to seek to
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void seek(LSN lsn) throws IOException {
+        
+        // no need to seek if the next entry is not located before the LSN
+        if (next == null || next.getLSN().compareTo(lsn) >= 0)
+            return;
+        
+        File indexFile = new File(file.getPath() + DiskLogger.LOG_INDEX_SUFFIX);
+        if (!indexFile.exists())
+            return;
+        
+        // find the last index record that does not exceed the LSN; records
+        // that point to entries behind the next entry are of no use
+        LSN indexedLSN = null;
+        long indexedOffset = -1;
+        
+        FileInputStream in = new FileInputStream(indexFile);
+        try {
+            FileChannel indexChannel = in.getChannel();
+            ByteBuffer records = ByteBuffer.allocate((int) Math.min(indexChannel.size(), Integer.MAX_VALUE));
+            while (records.hasRemaining() && indexChannel.read(records) >= 0)
+                ;
+            records.flip();
+            
+            while (records.remaining() >= DiskLogger.LOG_INDEX_RECORD_SIZE) {
+                LSN recordLSN = new LSN(records.getInt(), records.getLong());
+                long recordOffset = records.getLong();
+                if (recordLSN.compareTo(lsn) <= 0 && recordLSN.compareTo(next.getLSN()) > 0
+                    && (indexedLSN == null || recordLSN.compareTo(indexedLSN) > 0)) {
+                    indexedLSN = recordLSN;
+                    indexedOffset = recordOffset;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        
+        if (indexedLSN == null)
+            return;
+        
+        // the index is not synced together with the log file, so the record
+        // is only used if it actually points to the expected entry
+        LogEntry le = readEntry(indexedOffset);
+        if (le == null || !le.getLSN().equals(indexedLSN)) {
+            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                "outdated index for log file %s, entry %s not found at offset %d", file.getPath(), indexedLSN,
+                indexedOffset);
+            if (le != null)
+                le.free();
+            return;
+        }
+        
+        next.free();
+        next = le;
+    }
+    
     protected LogEntry getNext() throws LogEntryException {
         
         long offset = -1;
@@ -148,4 +215,43 @@ public class DiskLogFile {
         
     }
     
+    /**
+     * Reads the log entry at the given offset and positions the channel
+     * behind it. Unlike {@link #getNext()}, the file is neither modified nor
+     * repositioned if no valid entry exists at the offset.
+     * 
+     * @return the entry, or <code>null</code> if there is no valid entry
+     */
+    private LogEntry readEntry(long offset) throws IOException {
+        
+        if (offset < 0 || offset + Integer.SIZE / 8 > channel.size())
+            return null;
+        
+        ByteBuffer size = ByteBuffer.allocate(Integer.SIZE / 8);
+        while (size.hasRemaining() && channel.read(size, offset + size.position()) >= 0)
+            ;
+        size.flip();
+        int entrySize = size.getInt();
+        if (entrySize < LogEntry.headerLength || offset + entrySize > channel.size())
+            return null;
+        
+        ReusableBuffer item = BufferPool.allocate(entrySize);
+        try {
+            ByteBuffer buf = item.getBuffer();
+            while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) >= 0)
+                ;
+            item.flip();
+            
+            LogEntry e = LogEntry.deserialize(item, csumAlgo);
+            channel.position(offset + entrySize);
+            return e;
+        
+        } catch (LogEntryException exc) {
+            return null;
+        } finally {
+            csumAlgo.reset();
+            BufferPool.free(item);
+        }
+    }
+
 }
@@ -60,8 +60,10 @@ public class DiskLogIterator implements Iterator<LogEntry> {
             SortedSet<LSN> orderedLogList = new TreeSet<LSN>();
             Pattern p = Pattern.compile("(\\d+)\\.(\\d+)\\.dbl");
             for (File logFile : logFiles) {
+                // ignore other files, e.g. the index files of the logs
                 Matcher m = p.matcher(logFile.getName());
-                m.matches();
+                if (!m.matches())
+                    continue;
                 String tmp = m.group(1);
                 int viewId = Integer.valueOf(tmp);
                 tmp = m.group(2);
@@ -147,6 +149,10 @@ public class DiskLogIterator implements Iterator<LogEntry> {
             currentFile = new DiskLogFile(dbLogDir, currentLog);
         } while (!currentFile.hasNext() && logList.hasNext());
         
+        // skip most of the preceding entries by means of the log file index
+        if (from != null)
+            currentFile.seek(from);
+        
         while (currentFile.hasNext()) {
             LogEntry le = currentFile.next();
             if (from == null || le.getLSN().compareTo(from) >= 0) {
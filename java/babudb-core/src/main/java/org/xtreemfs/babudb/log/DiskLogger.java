@@ -10,8 +10,11 @@ package org.xtreemfs.babudb.log;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,6 +37,16 @@ import org.xtreemfs.foundation.logging.Logging.Category;
 
 /**
  * Writes entries to the on disc operations log and syncs after blocks of MAX_ENTRIES_PER_BLOCK.
+ * <p>
+ * All entries of a block are written with a single gathering write. In FSYNC and FDATASYNC mode, blocks are
+ * synced by a separate thread, so that the next block can be serialized and written while the previous one is
+ * being synced. Entries are acknowledged in the order of their LSNs once their block has been synced.
+ * </p>
+ * <p>
+ * If a group commit latency target is set, the logger may wait a short time for further entries before writing a
+ * block. The length of this window is adapted to the arrival rate of entries and the time needed for syncing, see
+ * {@link GroupCommitPolicy}. The fixed pseudoSyncWait is not applied in this case.
+ * </p>
  * 
  * @author bjko
  * @author flangner
@@ -69,8 +82,38 @@ public class DiskLogger extends LifeCycleThread {
      */
     public static final int            MAX_ENTRIES_PER_BLOCK             = 250;
 
+    /**
+     * Max number of written blocks waiting to be synced while another block is being synced.
+     */
+    private static final int           MAX_PENDING_BLOCKS                = 1;
+
+    /**
+     * Entries whose sequence numbers are multiples of this interval are recorded in the index file of their log
+     * file, so that readers can seek to an LSN without reading all preceding entries.
+     */
+    public static final int            LOG_INDEX_INTERVAL                = 256;
+
+    /**
+     * Suffix appended to the name of a log file to obtain the name of its index file.
+     */
+    public static final String         LOG_INDEX_SUFFIX                  = ".idx";
+
+    /**
+     * Size of an index record: view ID (int), sequence number (long) and file offset (long) of a log entry.
+     */
+    static final int                   LOG_INDEX_RECORD_SIZE             = 20;
+
+    /**
+     * Capacity of the entry queue if no max. queue length is configured.
+     */
+    private static final int           DEFAULT_QUEUE_CAPACITY            = 1 << 16;
+
     private static final String        RUNTIME_STATE_PROCESSEDLOGENTRIES = "diskLogger.processedLogEntryCount";
 
+    private static final String        RUNTIME_STATE_GROUPCOMMITWINDOW   = "diskLogger.groupCommitWindow";
+
+    private static final String        RUNTIME_STATE_AVGBATCHSIZE        = "diskLogger.averageBatchSize";
+
     /**
      * NIO FileChannel used to write ByteBuffers directly to file.
      */
@@ -86,10 +129,20 @@ public class DiskLogger extends LifeCycleThread {
      */
     private FileDescriptor             fdes;
 
+    /**
+     * Used to write the index file of the current log file; <code>null</code> if no index is written.
+     */
+    private FileChannel                indexChannel;
+
+    /**
+     * The offset in the current log file at which the next entry will be written.
+     */
+    private long                       logFileOffset;
+
     /**
      * The LogEntries to be written to disk.
      */
-    private final LinkedList<LogEntry> entries                           = new LinkedList<LogEntry>();
+    private final LogEntryQueue        entries;
 
     /**
      * If set to true the thread will shutdown.
@@ -130,10 +183,23 @@ public class DiskLogger extends LifeCycleThread {
 
     private final CRC32                csumAlgo                          = new CRC32();
 
-    private final int                  maxQ;
-
     private AtomicInteger              _processedLogEntries              = new AtomicInteger();
 
+    /**
+     * Syncs written blocks of log entries in FSYNC and FDATASYNC mode; <code>null</code> otherwise.
+     */
+    private final LogSyncer            syncer;
+
+    /**
+     * Determines how long to wait for further entries before writing a block.
+     */
+    private final GroupCommitPolicy    commitPolicy;
+
+    /**
+     * The latency target for group commits in ms; 0 if group commits are disabled.
+     */
+    private final int                  latencyTarget;
+
     /**
      * Creates a new instance of DiskLogger
      * 
@@ -151,6 +217,29 @@ public class DiskLogger extends LifeCycleThread {
      */
     public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, int maxQ)
             throws IOException {
+        this(logfileDir, initLSN, syncMode, pseudoSyncWait, maxQ, 0);
+    }
+
+    /**
+     * Creates a new instance of DiskLogger
+     * 
+     * @param logfile
+     *            Name and path of file to use for append log.
+     * @param initLSN
+     * @param syncMode
+     * @param pseudoSyncWait
+     * @param maxQ
+     * @param latencyTarget
+     *            the max. time in ms that entries should be delayed in order to write and sync them together with
+     *            further entries; 0 disables group commits
+     * 
+     * @throws java.io.FileNotFoundException
+     *             If that file cannot be created.
+     * @throws java.io.IOException
+     *             If that file cannot be created.
+     */
+    public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, int maxQ,
+            int latencyTarget) throws IOException {
 
         super("DiskLogger");
 
@@ -168,9 +257,17 @@ public class DiskLogger extends LifeCycleThread {
                     "When pseudoSyncWait is enabled (> 0) make sure that SyncMode is not ASYNC");
         }
 
+        if (pseudoSyncWait > 0 && latencyTarget > 0) {
+            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                    "pseudoSyncWait is ignored, since a group commit latency target is set");
+        }
+
         this.pseudoSyncWait = pseudoSyncWait;
         this.syncMode = syncMode;
-        this.maxQ = maxQ;
+        this.entries = new LogEntryQueue(maxQ > 0 ? maxQ : DEFAULT_QUEUE_CAPACITY);
+        this.latencyTarget = latencyTarget;
+        this.commitPolicy = new GroupCommitPolicy(latencyTarget, MAX_ENTRIES_PER_BLOCK - 1);
+        this.syncer = (syncMode == SyncMode.FSYNC || syncMode == SyncMode.FDATASYNC) ? new LogSyncer() : null;
 
         loadLogFile(initLSN);
     }
@@ -181,8 +278,19 @@ public class DiskLogger extends LifeCycleThread {
      * @throws IOException
      */
     public void dropLogFile() throws IOException {
+
+        // make sure that all entries written to the current log file have been synced
+        if (syncer != null) {
+            try {
+                syncer.waitForCompletion();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("interrupted while waiting for pending log entries to be synced");
+            }
+        }
+
         channel.close();
         fos.close();
+        closeLogIndex();
 
         // delete invalid (because empty) database log on switch
         if (currentLogFileName != null) {
@@ -190,6 +298,7 @@ public class DiskLogger extends LifeCycleThread {
             if (f.length() == 0L) {
                 boolean suc = f.delete();
                 assert (suc) : "An empty database log file could not have been deleted properly.";
+                new File(currentLogFileName + LOG_INDEX_SUFFIX).delete();
             }
         }
 
@@ -222,31 +331,27 @@ public class DiskLogger extends LifeCycleThread {
 
     /**
      * Appends an entry to the write queue. Is maxQ is set an reached this method blocks until queue space becomes
-     * available. The entry will be freed by the logger.
+     * available; if maxQ is not set, the queue is bounded by DEFAULT_QUEUE_CAPACITY. The entry will be freed by the
+     * logger.
+     * 
+     * The queue is lock-free, i.e. concurrent appends do not contend for the logger's monitor. Entries are written
+     * in the order in which they have been appended, and LSNs are assigned when they are written.
      * 
      * @param entry
      *            to write.
      * @throws InterruptedException
      *             if the entry could not be appended.
      */
-    public synchronized void append(LogEntry entry) throws InterruptedException, IllegalStateException {
+    public void append(LogEntry entry) throws InterruptedException, IllegalStateException {
 
         assert (entry != null);
 
-        // wait for queue space to become available
-        if (!quit && maxQ > 0 && entries.size() >= maxQ) {
-            wait();
-        }
-
-        if (!quit) {
-            assert (maxQ == 0 || entries.size() < maxQ);
-
-            entries.add(entry);
-            notifyAll();
-        } else {
+        if (quit) {
             throw new InterruptedException("Appending the LogEntry to the DiskLogger's "
                     + "queue was interrupted, due DiskLogger shutdown.");
         }
+
+        entries.put(entry);
     }
 
     public void lock() throws InterruptedException {
@@ -296,6 +401,8 @@ public class DiskLogger extends LifeCycleThread {
         assert (quit);
 
         quit = false;
+        if (syncer != null)
+            syncer.start();
         super.start();
     }
 
@@ -312,29 +419,31 @@ public class DiskLogger extends LifeCycleThread {
         while (!quit) {
             try {
 
+                // wait until the syncer is ready to accept another block
+                if (syncer != null)
+                    syncer.awaitCapacity();
+
                 // wait for an entry
-                synchronized (this) {
+                entries.awaitEntries();
 
-                    if (!quit && entries.isEmpty()) {
-                        wait();
+                // wait for further entries to write them together
+                if (latencyTarget > 0) {
+                    long window = commitPolicy.nextWindow();
+                    if (window > 0) {
+                        entries.awaitEntries(MAX_ENTRIES_PER_BLOCK - 1, window, commitPolicy.getIdleTimeout());
                     }
+                }
 
-                    if (quit) {
-                        break;
-
-                        // get some entries from the queue
-                    } else {
-
-                        LogEntry tmp = null;
-                        while (tmpE.size() < MAX_ENTRIES_PER_BLOCK - 1 && (tmp = entries.poll()) != null) {
+                if (quit) {
+                    break;
+                }
 
-                            tmpE.add(tmp);
-                        }
-                        notifyAll();
-                        lock();
-                    }
+                // get some entries from the queue
+                if (entries.drainTo(tmpE, MAX_ENTRIES_PER_BLOCK - 1) == 0) {
+                    continue;
                 }
 
+                lock();
                 processLogEntries(tmpE);
 
             } catch (IOException ex) {
@@ -368,7 +477,9 @@ public class DiskLogger extends LifeCycleThread {
             if (graceful) {
                 try {
                     lock();
-                    processLogEntries(entries);
+                    while (entries.drainTo(tmpE, MAX_ENTRIES_PER_BLOCK - 1) > 0) {
+                        processLogEntries(tmpE);
+                    }
                 } finally {
                     if (hasLock())
                         unlock();
@@ -403,7 +514,9 @@ public class DiskLogger extends LifeCycleThread {
         lock();
         this.graceful = graceful;
         quit = true;
-        notifyAll();
+
+        // reject further entries and wake up the logger thread
+        entries.close();
 
         // stop pseudoSyncWait, if shutdown is ungraceful
         if (!graceful && pseudoSyncWait > 0) {
@@ -419,12 +532,15 @@ public class DiskLogger extends LifeCycleThread {
      */
     @Deprecated
     public void destroy() {
+        if (syncer != null)
+            syncer.shutdown();
         stop();
         try {
             try {
                 fdes.sync();
             } finally {
                 fos.close();
+                closeLogIndex();
             }
         } catch (IOException e) {
             /* ignored */
@@ -445,12 +561,18 @@ public class DiskLogger extends LifeCycleThread {
     public Object getRuntimeState(String property) {
         if (RUNTIME_STATE_PROCESSEDLOGENTRIES.equals(property))
             return _processedLogEntries.get();
+        if (RUNTIME_STATE_GROUPCOMMITWINDOW.equals(property))
+            return commitPolicy.getWindow();
+        if (RUNTIME_STATE_AVGBATCHSIZE.equals(property))
+            return commitPolicy.getAverageBatchSize();
         return null;
     }
 
     public Map<String, Object> getRuntimeState() {
         Map<String, Object> map = new HashMap<String, Object>();
         map.put(RUNTIME_STATE_PROCESSEDLOGENTRIES, _processedLogEntries.get());
+        map.put(RUNTIME_STATE_GROUPCOMMITWINDOW, commitPolicy.getWindow());
+        map.put(RUNTIME_STATE_AVGBATCHSIZE, commitPolicy.getAverageBatchSize());
         return map;
     }
 
@@ -465,30 +587,43 @@ public class DiskLogger extends LifeCycleThread {
      */
     private void cleanUp() throws IOException {
 
+        // wait for all pending blocks to be synced
+        if (syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.join();
+            } catch (InterruptedException ex) {
+                Logging.logError(Logging.LEVEL_WARN, this, ex);
+            }
+        }
+
         try {
             fdes.sync();
         } finally {
             try {
                 fos.close();
+                closeLogIndex();
             } finally {
 
-                synchronized (this) {
-                    assert (graceful || entries.size() == 0);
+                entries.close();
 
-                    // clear pending requests, if available
-                    for (LogEntry le : entries) {
-                        le.free();
-                        le.getListener().failed(
-                                new BabuDBException(ErrorCode.INTERRUPTED, "DiskLogger was shut down, before the "
-                                        + "entry could be written to the log-file"));
-                    }
+                // clear pending requests, if available
+                List<LogEntry> pending = new ArrayList<LogEntry>();
+                entries.drainTo(pending, Integer.MAX_VALUE);
+                for (LogEntry le : pending) {
+                    le.free();
+                    le.getListener().failed(
+                            new BabuDBException(ErrorCode.INTERRUPTED, "DiskLogger was shut down, before the "
+                                    + "entry could be written to the log-file"));
                 }
             }
         }
     }
 
     /**
-     * Writes a list of log entries to the disk log.
+     * Writes a list of log entries to the disk log. In FSYNC and FDATASYNC mode, the entries are handed over to the
+     * syncer afterwards, which acknowledges them as soon as they have been synced; otherwise, the entries are
+     * acknowledged immediately.
      * 
      * @param entries
      * @throws IOException
@@ -498,52 +633,92 @@ public class DiskLogger extends LifeCycleThread {
 
         assert (hasLock());
 
-        for (LogEntry le : entries) {
-            assert (le != null) : "Entry must not be null";
-            int viewID = currentViewId.get();
-            long seqNo = nextLogSequenceNo.getAndIncrement();
+        if (entries.isEmpty())
+            return;
 
-            if (le.getLSN() != null && (le.getLSN().getSequenceNo() != seqNo || le.getLSN().getViewId() != viewID)) {
+        commitPolicy.recordBatch(entries.size());
 
-                throw new IOException("LogEntry (" + le.getPayloadType() + ") had unexpected LSN: " + le.getLSN()
-                        + "\n" + viewID + ":" + seqNo + " was expected instead.");
-            }
+        ReusableBuffer[] buffers = new ReusableBuffer[entries.size()];
+        ByteBuffer[] writeBuffers = new ByteBuffer[entries.size()];
+        ByteBuffer indexRecords = null;
+        try {
 
-            le.assignId(viewID, seqNo);
+            // serialize all entries
+            long size = 0;
+            int i = 0;
+            for (LogEntry le : entries) {
+                assert (le != null) : "Entry must not be null";
+                int viewID = currentViewId.get();
+                long seqNo = nextLogSequenceNo.getAndIncrement();
 
-            ReusableBuffer buffer = null;
-            try {
-                buffer = le.serialize(csumAlgo);
+                if (le.getLSN() != null
+                        && (le.getLSN().getSequenceNo() != seqNo || le.getLSN().getViewId() != viewID)) {
+
+                    throw new IOException("LogEntry (" + le.getPayloadType() + ") had unexpected LSN: "
+                            + le.getLSN() + "\n" + viewID + ":" + seqNo + " was expected instead.");
+                }
+
+                le.assignId(viewID, seqNo);
+
+                try {
+                    buffers[i] = le.serialize(csumAlgo);
+                } finally {
+                    csumAlgo.reset();
+                }
 
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
                         "Writing entry LSN(%d:%d) with %d bytes payload [%s] to log. " + "[serialized %d bytes]",
                         viewID, seqNo, le.getPayload().remaining(), new String(le.getPayload().array()),
-                        buffer.remaining());
+                        buffers[i].remaining());
 
-                // write the LogEntry to the local disk
-                channel.write(buffer.getBuffer());
+                writeBuffers[i] = buffers[i].getBuffer();
 
-            } finally {
-                csumAlgo.reset();
-                if (buffer != null)
-                    BufferPool.free(buffer);
+                // record the offset of every n-th entry in the index
+                if (seqNo % LOG_INDEX_INTERVAL == 0 && indexChannel != null) {
+                    if (indexRecords == null)
+                        indexRecords = ByteBuffer.allocate((entries.size() / LOG_INDEX_INTERVAL + 1)
+                                * LOG_INDEX_RECORD_SIZE);
+                    indexRecords.putInt(viewID).putLong(seqNo).putLong(logFileOffset + size);
+                }
+
+                size += writeBuffers[i].remaining();
+                i++;
             }
 
-            _processedLogEntries.incrementAndGet();
-        }
+            // write all LogEntries to the local disk at once
+            long t0 = System.nanoTime();
+            long written = 0;
+            while (written < size)
+                written += channel.write(writeBuffers);
+            logFileOffset += size;
+
+            // the index is not synced, as it is only used as a hint by readers
+            if (indexRecords != null)
+                writeLogIndex(indexRecords);
 
-        if (syncMode == SyncMode.FSYNC) {
-            channel.force(true);
-        } else if (this.syncMode == SyncMode.FDATASYNC) {
-            channel.force(false);
+            if (syncer == null)
+                commitPolicy.recordCommitLatency(System.nanoTime() - t0);
+
+        } finally {
+            for (ReusableBuffer buffer : buffers)
+                if (buffer != null)
+                    BufferPool.free(buffer);
         }
-        for (LogEntry le : entries) {
-            le.free();
-            le.getListener().synced(le.getLSN());
+
+        _processedLogEntries.addAndGet(entries.size());
+
+        if (syncer != null) {
+            // let the syncer acknowledge the entries, so that the next block can be written in the meantime
+            syncer.enqueue(new ArrayList<LogEntry>(entries), channel);
+        } else {
+            for (LogEntry le : entries) {
+                le.free();
+                le.getListener().synced(le.getLSN());
+            }
         }
         entries.clear();
 
-        if (pseudoSyncWait > 0) {
+        if (pseudoSyncWait > 0 && latencyTarget == 0) {
             synchronized (pseudoSyncWaitMonitor) {
                 pseudoSyncWaitMonitor.wait(pseudoSyncWait);
             }
@@ -613,5 +788,184 @@ public class DiskLogger extends LifeCycleThread {
         fos.setLength(0);
         channel = fos.getChannel();
         fdes = fos.getFD();
+        logFileOffset = 0;
+
+        // open the index file; the log can be written without an index
+        try {
+            indexChannel = new FileOutputStream(currentLogFileName + LOG_INDEX_SUFFIX).getChannel();
+        } catch (IOException exc) {
+            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                    "could not create index for log file %s: %s", currentLogFileName, exc);
+        }
+    }
+
+    /**
+     * Appends a set of records to the index file of the current log file. If the index cannot be written, no
+     * further records will be added, and readers will have to scan the log file instead.
+     * 
+     * @param records
+     */
+    private void writeLogIndex(ByteBuffer records) {
+
+        records.flip();
+        try {
+            while (records.hasRemaining())
+                indexChannel.write(records);
+        } catch (IOException exc) {
+            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                    "could not write index of log file %s: %s", currentLogFileName, exc);
+            closeLogIndex();
+        }
+    }
+
+    private void closeLogIndex() {
+
+        if (indexChannel == null)
+            return;
+
+        try {
+            indexChannel.close();
+        } catch (IOException exc) {
+            Logging.logError(Logging.LEVEL_WARN, this, exc);
+        }
+        indexChannel = null;
+    }
+
+    /**
+     * Syncs blocks of log entries that have been written to the log file and acknowledges the entries afterwards.
+     * All blocks that have been written while the previous sync was in progress are synced at once.
+     */
+    private final class LogSyncer extends Thread {
+
+        private final LinkedList<List<LogEntry>> blocks   = new LinkedList<List<LogEntry>>();
+
+        private final LinkedList<FileChannel>    channels = new LinkedList<FileChannel>();
+
+        private boolean                          syncing;
+
+        private boolean                          quit;
+
+        private LogSyncer() {
+            super("DiskLogger.Syncer");
+            setDaemon(true);
+        }
+
+        /**
+         * Waits while the maximum number of blocks is pending. Must be invoked without holding the logger lock, so
+         * that listeners notified by the syncer are able to acquire it.
+         */
+        private synchronized void awaitCapacity() throws InterruptedException {
+            while (!quit && blocks.size() >= MAX_PENDING_BLOCKS)
+                wait();
+        }
+
+        /**
+         * Enqueues a written block of log entries.
+         */
+        private synchronized void enqueue(List<LogEntry> block, FileChannel channel) {
+            blocks.add(block);
+            channels.add(channel);
+            notifyAll();
+        }
+
+        /**
+         * Waits until all pending blocks have been synced. If invoked by a listener notified by the syncer, the
+         * pending blocks are synced by the calling thread.
+         */
+        private void waitForCompletion() throws InterruptedException {
+
+            if (Thread.currentThread() == this) {
+                while (syncPendingBlocks(false))
+                    ;
+                return;
+            }
+
+            synchronized (this) {
+                while (syncing || !blocks.isEmpty())
+                    wait();
+            }
+        }
+
+        /**
+         * Shuts down the syncer after all pending blocks have been synced.
+         */
+        private synchronized void shutdown() {
+            quit = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (syncPendingBlocks(true))
+                ;
+        }
+
+        /**
+         * Syncs all pending blocks and acknowledges their entries.
+         * 
+         * @param wait
+         *            if <code>true</code>, waits for blocks to become available
+         * @return <code>false</code>, if there were no blocks to sync
+         */
+        private boolean syncPendingBlocks(boolean wait) {
+
+            List<List<LogEntry>> toSync;
+            List<FileChannel> toSyncChannels;
+
+            synchronized (this) {
+                while (wait && !quit && blocks.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        quit = true;
+                    }
+                }
+
+                if (blocks.isEmpty())
+                    return false;
+
+                toSync = new ArrayList<List<LogEntry>>(blocks);
+                toSyncChannels = new ArrayList<FileChannel>(channels);
+                blocks.clear();
+                channels.clear();
+                syncing = true;
+                notifyAll();
+            }
+
+            // sync each log file that has been written to
+            IOException error = null;
+            try {
+                long t0 = System.nanoTime();
+                FileChannel lastChannel = null;
+                for (FileChannel channel : toSyncChannels) {
+                    if (channel != lastChannel)
+                        channel.force(syncMode == SyncMode.FSYNC);
+                    lastChannel = channel;
+                }
+                commitPolicy.recordCommitLatency(System.nanoTime() - t0);
+            } catch (IOException ex) {
+                Logging.logError(Logging.LEVEL_ERROR, DiskLogger.this, ex);
+                error = ex;
+            }
+
+            try {
+                for (List<LogEntry> block : toSync) {
+                    for (LogEntry le : block) {
+                        le.free();
+                        if (error == null)
+                            le.getListener().synced(le.getLSN());
+                        else
+                            le.getListener().failed(error);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+                    notifyAll();
+                }
+            }
+
+            return true;
+        }
     }
 }
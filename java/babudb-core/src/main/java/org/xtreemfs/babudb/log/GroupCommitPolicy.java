@@ -0,0 +1,164 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.log;
+
+/**
+ * Determines how long the disk logger waits for further entries before writing a block, so that more entries can
+ * share a single write and sync.
+ * <p>
+ * The policy keeps moving averages of the rate at which entries arrive and the time needed to write and sync a
+ * block. The window is the part of the latency target that remains after the sync. It is limited to the time in
+ * which a full block is expected to arrive. If fewer than one further entry is expected during the window, the
+ * logger does not wait at all, so that entries are not delayed at low load. The logger also stops waiting once no
+ * entry has arrived for a multiple of the average inter-arrival time, e.g. because all clients are waiting for
+ * their entries to be synced.
+ * </p>
+ */
+class GroupCommitPolicy {
+
+    /**
+     * weight of a new sample in the moving averages
+     */
+    private static final double ALPHA       = 0.2;
+
+    /**
+     * the max. time to wait for the next entry, as a multiple of the average inter-arrival time
+     */
+    private static final double IDLE_FACTOR = 2;
+
+    /**
+     * the latency target in nanoseconds
+     */
+    private final long          latencyTarget;
+
+    /**
+     * the max. number of entries per block
+     */
+    private final int           maxBatchSize;
+
+    /**
+     * moving average of the number of entries per block
+     */
+    private volatile double     avgBatchSize;
+
+    /**
+     * moving average of the time between two blocks in nanoseconds
+     */
+    private volatile double     avgInterval;
+
+    /**
+     * moving average of the time needed to write and sync a block in nanoseconds
+     */
+    private volatile double     avgCommitLatency;
+
+    /**
+     * the most recently calculated window in nanoseconds
+     */
+    private volatile long       window;
+
+    /**
+     * the max. time to wait for the next entry within the current window in nanoseconds
+     */
+    private long                idleTimeout;
+
+    private long                lastBatch;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param latencyTarget
+     *            the max. time in ms that an entry should spend in the logger
+     * @param maxBatchSize
+     *            the max. number of entries per block
+     */
+    GroupCommitPolicy(int latencyTarget, int maxBatchSize) {
+        this.latencyTarget = latencyTarget * 1000000L;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Calculates the time to wait for further entries before the next block is written. May only be invoked by the
+     * logger thread.
+     *
+     * @return the window in nanoseconds; 0, if the block should be written immediately
+     */
+    long nextWindow() {
+
+        long w = 0;
+        idleTimeout = 0;
+
+        // only wait if the sync leaves some room within the latency target
+        // and further entries are expected to arrive in the meantime
+        double budget = latencyTarget - avgCommitLatency;
+        if (budget > 0 && avgInterval > 0) {
+
+            double rate = avgBatchSize / avgInterval;
+            if (rate * budget >= 1) {
+                w = (long) Math.min(budget, maxBatchSize / rate);
+                idleTimeout = (long) (IDLE_FACTOR / rate);
+            }
+        }
+
+        window = w;
+        return w;
+    }
+
+    /**
+     * Returns the max. time to wait for the next entry within the most recently calculated window. May only be
+     * invoked by the logger thread.
+     *
+     * @return the idle timeout in nanoseconds
+     */
+    long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Records a block that is about to be written. May only be invoked by the logger thread.
+     *
+     * @param batchSize
+     *            the number of entries in the block
+     */
+    void recordBatch(int batchSize) {
+
+        long now = System.nanoTime();
+        if (lastBatch != 0) {
+            avgBatchSize = avg(avgBatchSize, batchSize);
+            avgInterval = avg(avgInterval, now - lastBatch);
+        } else
+            avgBatchSize = batchSize;
+
+        lastBatch = now;
+    }
+
+    /**
+     * Records the time that was needed to write or sync a block.
+     *
+     * @param nanos
+     *            the time in nanoseconds
+     */
+    void recordCommitLatency(long nanos) {
+        avgCommitLatency = avg(avgCommitLatency, nanos);
+    }
+
+    /**
+     * @return the most recently calculated window in microseconds
+     */
+    long getWindow() {
+        return window / 1000;
+    }
+
+    /**
+     * @return the average number of entries per block
+     */
+    double getAverageBatchSize() {
+        return avgBatchSize;
+    }
+
+    private static double avg(double avg, double sample) {
+        return avg == 0 ? sample : avg + ALPHA * (sample - avg);
+    }
+
+}
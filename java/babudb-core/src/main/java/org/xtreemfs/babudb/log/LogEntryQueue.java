@@ -0,0 +1,312 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.log;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for log entries with multiple producers and a single consumer, the disk logger
+ * thread. The queue is implemented as a ring buffer in which each slot carries a sequence number that indicates
+ * whether the slot may be written by a producer or read by the consumer. Entries are dequeued in the order in which
+ * producers have claimed their slots.
+ * <p>
+ * Producers that find the queue full and a consumer that finds the queue empty are parked, and unparked as soon as
+ * the queue state has changed.
+ * </p>
+ */
+class LogEntryQueue {
+
+    private final int                            capacity;
+
+    private final AtomicReferenceArray<LogEntry> slots;
+
+    private final AtomicLongArray                sequences;
+
+    /**
+     * the position of the next slot to be claimed by a producer
+     */
+    private final AtomicLong                     tail             = new AtomicLong();
+
+    /**
+     * the position of the next slot to be read by the consumer; only modified by the consumer
+     */
+    private volatile long                        head;
+
+    /**
+     * the number of producers that are currently inserting an entry
+     */
+    private final AtomicInteger                  activeProducers  = new AtomicInteger();
+
+    /**
+     * producers waiting for free slots
+     */
+    private final ConcurrentLinkedQueue<Thread>  waitingProducers = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * the consumer, if it is waiting for entries; <code>null</code> otherwise
+     */
+    private volatile Thread                      waitingConsumer;
+
+    private volatile boolean                     closed;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity
+     *            the max. number of entries in the queue
+     */
+    LogEntryQueue(int capacity) {
+
+        assert (capacity > 0);
+
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<LogEntry>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Appends an entry to the queue. Blocks until a slot becomes available if the queue is full.
+     *
+     * @param entry
+     *            the entry
+     * @throws InterruptedException
+     *             if the queue has been closed, or the thread was interrupted while waiting for a free slot
+     */
+    void put(LogEntry entry) throws InterruptedException {
+
+        // announce the insertion before checking whether the queue has been closed, so that the consumer will not
+        // miss the entry when draining the queue after closing it
+        activeProducers.incrementAndGet();
+        try {
+
+            while (!offer(entry)) {
+
+                // register as waiting producer and retry, in case the consumer has freed slots in the meantime
+                Thread current = Thread.currentThread();
+                waitingProducers.add(current);
+                try {
+                    if (offer(entry))
+                        break;
+
+                    LockSupport.park(this);
+
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                } finally {
+                    waitingProducers.remove(current);
+                }
+            }
+
+            // wake up the consumer if necessary
+            Thread consumer = waitingConsumer;
+            if (consumer != null)
+                LockSupport.unpark(consumer);
+
+        } finally {
+            activeProducers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Removes up to <code>maxEntries</code> entries from the queue and adds them to the given list. May only be
+     * invoked by the consumer.
+     *
+     * @param list
+     *            the list
+     * @param maxEntries
+     *            the max. number of entries to remove
+     * @return the number of removed entries
+     */
+    int drainTo(List<LogEntry> list, int maxEntries) {
+
+        int count = 0;
+        long pos = head;
+        while (count < maxEntries) {
+
+            int index = (int) (pos % capacity);
+            if (sequences.get(index) != pos + 1)
+                break;
+
+            list.add(slots.get(index));
+            slots.set(index, null);
+
+            // release the slot for the producer that will claim it in the next round
+            sequences.set(index, pos + capacity);
+            pos++;
+            count++;
+        }
+        head = pos;
+
+        // wake up producers that are waiting for free slots
+        if (count > 0)
+            for (Thread producer : waitingProducers)
+                LockSupport.unpark(producer);
+
+        return count;
+    }
+
+    /**
+     * Waits until the queue contains at least one entry or has been closed. May only be invoked by the consumer.
+     *
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    void awaitEntries() throws InterruptedException {
+
+        Thread current = Thread.currentThread();
+        while (!closed && isEmpty()) {
+
+            // register as waiting consumer and check again, in case a producer has added an entry in the meantime
+            waitingConsumer = current;
+            try {
+                if (closed || !isEmpty())
+                    break;
+
+                LockSupport.park(this);
+
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            } finally {
+                waitingConsumer = null;
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue contains at least <code>count</code> entries, the timeout has expired, no further entry
+     * has arrived for <code>idleTimeout</code> nanoseconds, or the queue has been closed. May only be invoked by
+     * the consumer.
+     *
+     * @param count
+     *            the number of entries to wait for
+     * @param timeout
+     *            the max. time to wait in nanoseconds
+     * @param idleTimeout
+     *            the max. time to wait for the next entry in nanoseconds
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting
+     */
+    void awaitEntries(int count, long timeout, long idleTimeout) throws InterruptedException {
+
+        long now = System.nanoTime();
+        long deadline = now + timeout;
+        long idleDeadline = now + idleTimeout;
+        int size = size();
+
+        Thread current = Thread.currentThread();
+        while (!closed && size < count) {
+
+            long remaining = Math.min(deadline, idleDeadline) - System.nanoTime();
+            if (remaining <= 0)
+                break;
+
+            waitingConsumer = current;
+            try {
+                if (closed || size() >= count)
+                    break;
+
+                LockSupport.parkNanos(this, remaining);
+
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            } finally {
+                waitingConsumer = null;
+            }
+
+            // restart the idle timeout if new entries have arrived
+            int newSize = size();
+            if (newSize > size)
+                idleDeadline = System.nanoTime() + idleTimeout;
+            size = newSize;
+        }
+    }
+
+    /**
+     * Closes the queue. Subsequent insertions will fail, and all waiting producers and the consumer are woken up.
+     * When the method returns, all entries that have been successfully inserted are contained in the queue.
+     */
+    void close() {
+
+        closed = true;
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        for (Thread producer : waitingProducers)
+            LockSupport.unpark(producer);
+
+        // wait for pending insertions to complete or fail
+        while (activeProducers.get() > 0)
+            Thread.yield();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Checks whether the queue is empty. Only reliable if invoked by the consumer.
+     *
+     * @return <code>true</code>, if no entry can be removed from the queue
+     */
+    boolean isEmpty() {
+        long pos = head;
+        return sequences.get((int) (pos % capacity)) != pos + 1;
+    }
+
+    /**
+     * Returns the number of entries in the queue, including entries whose insertion is in progress. Only reliable
+     * if invoked by the consumer.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Tries to insert an entry without blocking.
+     *
+     * @throws InterruptedException
+     *             if the queue has been closed
+     */
+    private boolean offer(LogEntry entry) throws InterruptedException {
+
+        for (;;) {
+
+            if (closed)
+                throw new InterruptedException("Appending the LogEntry to the DiskLogger's "
+                    + "queue was interrupted, due DiskLogger shutdown.");
+
+            long pos = tail.get();
+            int index = (int) (pos % capacity);
+            long seq = sequences.get(index);
+
+            // the slot is free, try to claim it
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, entry);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            }
+
+            // the slot has not been released by the consumer yet, i.e. the queue is full
+            else if (seq < pos)
+                return false;
+
+            // otherwise, another producer has claimed the slot; retry
+        }
+    }
+
+}
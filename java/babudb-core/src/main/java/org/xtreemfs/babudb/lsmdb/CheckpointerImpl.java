@@ -12,12 +12,19 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -27,18 +34,23 @@ import java.util.regex.Pattern;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.CheckpointerInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
+import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
 import org.xtreemfs.babudb.api.dev.SnapshotManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.index.OverlayMemoryBudget;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
+import org.xtreemfs.foundation.util.FSUtils;
 import org.xtreemfs.foundation.util.OutputUtils;
 
 /**
  * This thread regularly checks the size of the database operations log and
- * initiates a checkpoint of all databases if necessary.
+ * initiates a checkpoint of all databases if necessary. A checkpoint is also
+ * initiated when the in-memory overlays of all databases in the VM occupy more
+ * than half of the overlay memory budget.
  * 
  * @author bjko
  */
@@ -64,6 +76,7 @@ public class CheckpointerImpl extends CheckpointerInternal {
     private static final String                RUNTIME_STATE_CPCOUNT        = "checkpointer.cpCount";
     private static final String                RUNTIME_STATE_LASTCP         = "checkpointer.lastCpTimestampMillis";
     private static final String                RUNTIME_STATE_LASTCPDURATION = "checkpointer.lastCpDurationMillis";
+    private static final String                RUNTIME_STATE_OVERLAYSIZE    = "checkpointer.overlaySize";
     
     private volatile boolean                   quit;
     
@@ -93,6 +106,23 @@ public class CheckpointerImpl extends CheckpointerInternal {
      */
     private boolean                            forceCheckpoint;
     
+    /**
+     * indicates whether a checkpoint has been requested because the in-memory
+     * overlays exceed half of the overlay memory budget
+     */
+    private volatile boolean                   flushRequested;
+    
+    /**
+     * indicates whether the checkpointing thread is waiting for the next check
+     */
+    private volatile boolean                   idle;
+    
+    /**
+     * wakes up the checkpointing thread when the overlay memory budget
+     * requires a flush
+     */
+    private final OverlayMemoryBudget.FlushListener flushListener;
+    
     /**
      * indicates when the current checkpoint is complete and is also a lock
      */
@@ -110,6 +140,12 @@ public class CheckpointerImpl extends CheckpointerInternal {
     
     private AtomicLong                         _lastCheckpointDuration      = new AtomicLong();
     
+    /**
+     * pool of threads that write index snapshots in parallel; <code>null</code>
+     * if snapshots are written by the checkpointing thread
+     */
+    private ExecutorService                    writers;
+    
     /**
      * Creates a new database checkpointer
      * 
@@ -119,6 +155,20 @@ public class CheckpointerImpl extends CheckpointerInternal {
     public CheckpointerImpl(BabuDBInternal master) {
         setLifeCycleListener(master);
         this.dbs = master;
+        this.flushListener = new OverlayMemoryBudget.FlushListener() {
+            
+            public void flushRequested() {
+                
+                // writers must not block while a checkpoint is in progress;
+                // the flag will be checked after the checkpoint instead
+                flushRequested = true;
+                if (idle) {
+                    synchronized (CheckpointerImpl.this) {
+                        CheckpointerImpl.this.notify();
+                    }
+                }
+            }
+        };
     }
     
     @Override
@@ -169,13 +219,12 @@ public class CheckpointerImpl extends CheckpointerInternal {
     @Override
     public LSN checkpoint(boolean incViewId) throws BabuDBException {
         
-        synchronized (checkpointComplete) {
-            checkpointComplete.set(false);
-        }
-        
         // notify the checkpointing thread to immediately process all requests
         // in the processing queue
         synchronized (this) {
+            synchronized (checkpointComplete) {
+                checkpointComplete.set(false);
+            }
             incrementViewId = incViewId;
             forceCheckpoint = true;
             notify();
@@ -208,6 +257,7 @@ public class CheckpointerImpl extends CheckpointerInternal {
      */
     private void materializeSnapshots() throws BabuDBException {
         
+        DatabaseManagerInternal dbMan = dbs.getDatabaseManager();
         for (;;) {
             MaterializationRequest rq = null;
             
@@ -225,14 +275,42 @@ public class CheckpointerImpl extends CheckpointerInternal {
                                 + rq.snap.getName() + "'");
             
             SnapshotManagerInternal snapMan = dbs.getSnapshotManager();
+            String snapDir = snapMan.getSnapshotDir(rq.dbName, rq.snap.getName());
+            
+            // skip the request if the database has been deleted in the
+            // meantime
+            DatabaseInternal db = dbMan.getDatabasesInternal().get(rq.dbName);
+            if (db == null)
+                continue;
             
-            // write the snapshot
-            dbs.getDatabaseManager().getDatabase(rq.dbName)
-                    .proceedWriteSnapshot(rq.snapIDs, snapMan.getSnapshotDir(rq.dbName, rq.snap.getName()), rq.snap);
+            // write the snapshot; the database may be deleted concurrently
+            try {
+                synchronized (this) {
+                    db.proceedWriteSnapshot(rq.snapIDs, snapDir, rq.snap);
+                }
+            } catch (BabuDBException exc) {
+                if (!db.getLSMDB().isDeleted())
+                    throw exc;
+            }
             
-            // notify the snapshot manager about the completion
-            // of the snapshot
-            snapMan.snapshotComplete(rq.dbName, rq.snap);
+            synchronized (dbMan.getDBModificationLock()) {
+                
+                // discard the snapshot if the database has been deleted
+                // while it was written
+                if (db.getLSMDB().isDeleted()) {
+                    File dir = new File(snapDir);
+                    if (dir.exists())
+                        FSUtils.delTree(dir);
+                    
+                    Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
+                            "snapshot materialization discarded, database '" + rq.dbName + "' has been deleted");
+                    continue;
+                }
+                
+                // notify the snapshot manager about the completion
+                // of the snapshot
+                snapMan.snapshotComplete(rq.dbName, rq.snap);
+            }
             
             Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "snapshot materialization complete");
         }
@@ -252,6 +330,14 @@ public class CheckpointerImpl extends CheckpointerInternal {
      * The first two steps need to be sync'ed with new insertions but should be
      * very fast. The following steps are performed in a fully asynchronous
      * manner.
+     * <p>
+     * The database modification lock is only held during the first two steps,
+     * so that databases can be created, copied and deleted while the index
+     * snapshots are written. Databases that are created in the meantime are
+     * not part of the checkpoint, as all their insertions are contained in the
+     * new log file. Databases that are deleted in the meantime discard their
+     * snapshots instead of linking them (see {@link LSMDatabase#delete()}).
+     * </p>
      * 
      * @throws BabuDBException
      * @throws InterruptedException
@@ -259,56 +345,71 @@ public class CheckpointerImpl extends CheckpointerInternal {
     private void createCheckpoint() throws BabuDBException, InterruptedException {
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "initiating database checkpoint...");
         
-        Collection<DatabaseInternal> databases = dbs.getDatabaseManager().getDatabaseList();
+        DatabaseManagerInternal dbMan = dbs.getDatabaseManager();
         
         try {
-            int[][] snapIds = new int[databases.size()][];
-            int i = 0;
+            Collection<DatabaseInternal> databases;
+            int[][] snapIds;
             
-            try {
-                // critical block...
-                logger.lock();
-                for (DatabaseInternal db : databases) {
-                    snapIds[i++] = db.proceedCreateSnapshot();
+            synchronized (dbMan.getDBModificationLock()) {
+                synchronized (this) {
+                    
+                    databases = dbMan.getDatabaseList();
+                    snapIds = new int[databases.size()][];
+                    int i = 0;
+                    
+                    try {
+                        // critical block...
+                        logger.lock();
+                        for (DatabaseInternal db : databases) {
+                            snapIds[i++] = db.proceedCreateSnapshot();
+                        }
+                        lastWrittenLSN = logger.switchLogFile(incrementViewId);
+                        incrementViewId = false;
+                    } finally {
+                        if (logger.hasLock())
+                            logger.unlock();
+                    }
                 }
-                lastWrittenLSN = logger.switchLogFile(incrementViewId);
-                incrementViewId = false;
-            } finally {
-                if (logger.hasLock())
-                    logger.unlock();
-            }
-            
-            i = 0;
-            for (DatabaseInternal db : databases) {
-                db.proceedWriteSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo(), snapIds[i++]);
-                db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
             }
             
-            // delete all logfile with LSN <= lastWrittenLSN
-            File f = new File(dbs.getConfig().getDbLogDir());
-            String[] logs = f.list(new FilenameFilter() {
+            // write and link the snapshots; merged runs must not be committed
+            // by the compactor in the meantime
+            synchronized (this) {
                 
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".dbl");
+                // all snapshots have to be written before they are linked
+                writeSnapshots(databases, snapIds);
+                for (DatabaseInternal db : databases) {
+                    db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
                 }
-            });
-            if (logs != null) {
-                Pattern p = Pattern.compile("(\\d+)\\.(\\d+)\\.dbl");
-                for (String log : logs) {
-                    Matcher m = p.matcher(log);
-                    m.matches();
-                    String tmp = m.group(1);
-                    int viewId = Integer.valueOf(tmp);
-                    tmp = m.group(2);
-                    int seqNo = Integer.valueOf(tmp);
-                    LSN logLSN = new LSN(viewId, seqNo);
-                    if (logLSN.compareTo(lastWrittenLSN) <= 0) {
-                        Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
-                                "deleting old db log file: " + log);
-                        f = new File(dbs.getConfig().getDbLogDir() + log);
-                        if (!f.delete())
-                            Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
-                                    "could not delete log file: %s", f.getAbsolutePath());
+                
+                // delete all logfile with LSN <= lastWrittenLSN
+                File f = new File(dbs.getConfig().getDbLogDir());
+                String[] logs = f.list(new FilenameFilter() {
+                    
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith(".dbl");
+                    }
+                });
+                if (logs != null) {
+                    Pattern p = Pattern.compile("(\\d+)\\.(\\d+)\\.dbl");
+                    for (String log : logs) {
+                        Matcher m = p.matcher(log);
+                        m.matches();
+                        String tmp = m.group(1);
+                        int viewId = Integer.valueOf(tmp);
+                        tmp = m.group(2);
+                        int seqNo = Integer.valueOf(tmp);
+                        LSN logLSN = new LSN(viewId, seqNo);
+                        if (logLSN.compareTo(lastWrittenLSN) <= 0) {
+                            Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
+                                    "deleting old db log file: " + log);
+                            f = new File(dbs.getConfig().getDbLogDir() + log);
+                            if (!f.delete())
+                                Logging.logMessage(Logging.LEVEL_WARN, Category.babudb, this,
+                                        "could not delete log file: %s", f.getAbsolutePath());
+                            new File(f.getPath() + DiskLogger.LOG_INDEX_SUFFIX).delete();
+                        }
                     }
                 }
             }
@@ -318,6 +419,75 @@ public class CheckpointerImpl extends CheckpointerInternal {
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "checkpoint complete");
     }
     
+    /**
+     * Writes the index snapshots of all databases to disk. If checkpoint
+     * writer threads have been configured, all indices of all databases are
+     * written in parallel; the method returns when all of them are complete.
+     * 
+     * @param databases
+     *            the databases
+     * @param snapIds
+     *            the snapshot IDs of the indices of each database
+     * @throws BabuDBException
+     *             if a snapshot cannot be written
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the
+     *             writers
+     */
+    private void writeSnapshots(Collection<DatabaseInternal> databases, int[][] snapIds) throws BabuDBException,
+        InterruptedException {
+        
+        final int viewId = lastWrittenLSN.getViewId();
+        final long sequenceNo = lastWrittenLSN.getSequenceNo();
+        
+        if (writers == null) {
+            int i = 0;
+            for (DatabaseInternal db : databases) {
+                db.proceedWriteSnapshot(viewId, sequenceNo, snapIds[i++]);
+            }
+            return;
+        }
+        
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        int i = 0;
+        for (DatabaseInternal db : databases) {
+            
+            final LSMDatabase lsmDB = db.getLSMDB();
+            final int[] ids = snapIds[i++];
+            for (int j = 0; j < ids.length; j++) {
+                
+                final int index = j;
+                results.add(writers.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        lsmDB.writeSnapshot(index, viewId, sequenceNo, ids[index]);
+                        return null;
+                    }
+                }));
+            }
+        }
+        
+        // wait for all writers, so that no index is still being written if
+        // the checkpoint fails
+        Throwable error = null;
+        try {
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException exc) {
+                    if (error == null)
+                        error = exc.getCause();
+                }
+            }
+        } catch (InterruptedException exc) {
+            for (Future<?> result : results)
+                result.cancel(true);
+            throw exc;
+        }
+        
+        if (error != null)
+            throw new BabuDBException(ErrorCode.IO_ERROR, "cannot write snapshot: " + error, error);
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -363,15 +533,32 @@ public class CheckpointerImpl extends CheckpointerInternal {
         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "operational");
         
         boolean manualCheckpoint = false;
+        OverlayMemoryBudget budget = OverlayMemoryBudget.getInstance();
+        
+        int numWriters = dbs.getConfig().getCheckpointThreads();
+        if (numWriters > 1) {
+            writers = Executors.newFixedThreadPool(numWriters, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CheckpointWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        budget.addFlushListener(flushListener);
         notifyStarted();
         while (!quit) {
             try {
                 synchronized (this) {
-                    if (!forceCheckpoint) {
+                    idle = true;
+                    if (!forceCheckpoint && !flushRequested) {
                         wait(checkInterval);
                     }
+                    idle = false;
                     manualCheckpoint = forceCheckpoint;
                     forceCheckpoint = false;
+                    flushRequested = false;
                 }
                 
                 // this block allows to suspend the Checkpointer from taking
@@ -379,38 +566,45 @@ public class CheckpointerImpl extends CheckpointerInternal {
                 synchronized (suspended) {
                     if (suspended.get()) {
                         
-                        // lock
+                        // lock; writers must not wait for the overlays to
+                        // be flushed in the meantime
+                        budget.removeFlushListener(flushListener);
                         suspended.notify();
-                        synchronized (suspensionLock) {
-                            suspensionLock.wait();
+                        try {
+                            synchronized (suspensionLock) {
+                                suspensionLock.wait();
+                            }
+                        } finally {
+                            budget.addFlushListener(flushListener);
                         }
                         continue;
                     }
                 }
                 
                 final long lfsize = logger.getLogFileSize();
-                if (manualCheckpoint || lfsize > maxLogLength) {
+                final boolean flush = budget.isFlushRequired() && getOverlaySize() > 0;
+                if (manualCheckpoint || lfsize > maxLogLength || flush) {
                     
-                    if (!manualCheckpoint) {
+                    if (manualCheckpoint) {
+                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "triggered manual checkpoint");
+                    } else if (lfsize > maxLogLength) {
                         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                                 "database operation log has exceeded threshold " + "size of " + maxLogLength + " ("
                                         + lfsize + ")");
                     } else {
-                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "triggered manual checkpoint");
+                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                                "in-memory overlays have exceeded half of the memory budget ("
+                                        + budget.getSize() + " bytes in use)");
                     }
                     
-                    synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
-                        synchronized (this) {
-                            long start = System.currentTimeMillis();
-                            materializeSnapshots();
-                            createCheckpoint();
-                            
-                            // update statistics
-                            _checkpointCount.incrementAndGet();
-                            _lastCheckpoint.set(System.currentTimeMillis());
-                            _lastCheckpointDuration.set(System.currentTimeMillis() - start);
-                        }
-                    }
+                    long start = System.currentTimeMillis();
+                    materializeSnapshots();
+                    createCheckpoint();
+                    
+                    // update statistics
+                    _checkpointCount.incrementAndGet();
+                    _lastCheckpoint.set(System.currentTimeMillis());
+                    _lastCheckpointDuration.set(System.currentTimeMillis() - start);
                 }
             } catch (InterruptedException ex) {
                 if (quit)
@@ -427,13 +621,29 @@ public class CheckpointerImpl extends CheckpointerInternal {
                     Logging.logMessage(Logging.LEVEL_ERROR, Category.babudb, this, OutputUtils.stackTraceToString(ex));
                 }
             } finally {
-                synchronized (checkpointComplete) {
-                    checkpointComplete.set(true);
-                    checkpointComplete.notify();
+                // if a checkpoint has been requested while an automatic
+                // checkpoint was being created, it is still pending
+                synchronized (this) {
+                    if (!forceCheckpoint) {
+                        synchronized (checkpointComplete) {
+                            checkpointComplete.set(true);
+                            checkpointComplete.notify();
+                        }
+                    }
                 }
             }
         }
         
+        synchronized (checkpointComplete) {
+            checkpointComplete.set(true);
+            checkpointComplete.notify();
+        }
+        
+        budget.removeFlushListener(flushListener);
+        
+        if (writers != null)
+            writers.shutdownNow();
+        
         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "checkpointer shut down " + "successfully");
         notifyStopped();
     }
@@ -462,6 +672,8 @@ public class CheckpointerImpl extends CheckpointerInternal {
             return _lastCheckpoint.get();
         if (RUNTIME_STATE_LASTCPDURATION.equals(property))
             return _lastCheckpointDuration.get();
+        if (RUNTIME_STATE_OVERLAYSIZE.equals(property))
+            return getOverlaySize();
         
         return null;
     }
@@ -472,7 +684,26 @@ public class CheckpointerImpl extends CheckpointerInternal {
         map.put(RUNTIME_STATE_CPCOUNT, _checkpointCount.get());
         map.put(RUNTIME_STATE_LASTCP, _lastCheckpoint.get());
         map.put(RUNTIME_STATE_LASTCPDURATION, _lastCheckpointDuration.get());
+        map.put(RUNTIME_STATE_OVERLAYSIZE, getOverlaySize());
         return map;
     }
     
+    /**
+     * Returns the estimated amount of memory held by the in-memory overlays of
+     * all databases.
+     * 
+     * @return the size in bytes
+     */
+    private long getOverlaySize() {
+        
+        long size = 0;
+        for (DatabaseInternal db : dbs.getDatabaseManager().getDatabaseList()) {
+            LSMDatabase lsmDB = db.getLSMDB();
+            for (int i = 0; i < lsmDB.getIndexCount(); i++)
+                size += lsmDB.getIndex(i).getOverlaySize();
+        }
+        
+        return size;
+    }
+    
 }
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.lsmdb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xtreemfs.babudb.api.dev.BabuDBInternal;
+import org.xtreemfs.babudb.api.dev.DatabaseInternal;
+import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
+import org.xtreemfs.foundation.LifeCycleThread;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.logging.Logging.Category;
+import org.xtreemfs.foundation.util.OutputUtils;
+
+/**
+ * This thread regularly checks the on-disk runs of all indices and merges
+ * runs of similar size, in order to limit the number of runs that have to be
+ * consulted by lookups. It is only used if checkpoints write on-disk runs
+ * instead of complete indices.
+ */
+public class Compactor extends LifeCycleThread {
+    
+    private static final String  RUNTIME_STATE_COMPACTIONCOUNT = "compactor.compactionCount";
+    private static final String  RUNTIME_STATE_LASTDURATION    = "compactor.lastCompactionDurationMillis";
+    
+    private final BabuDBInternal dbs;
+    
+    private final long           checkInterval;
+    
+    private final int            fanout;
+    
+    private boolean              quit;
+    
+    private final AtomicLong     _compactionCount              = new AtomicLong();
+    private final AtomicLong     _lastCompactionDuration       = new AtomicLong();
+    
+    /**
+     * Creates a new compaction thread.
+     *
+     * @param dbs
+     *            the database system
+     * @param checkInterval
+     *            the interval between two compaction checks in seconds
+     * @param fanout
+     *            the number of runs of similar size after which the runs are
+     *            merged
+     */
+    public Compactor(BabuDBInternal dbs, int checkInterval, int fanout) {
+        super("Compactor");
+        setDaemon(true);
+        
+        this.dbs = dbs;
+        this.checkInterval = 1000L * checkInterval;
+        this.fanout = fanout;
+    }
+    
+    /**
+     * Stops the thread. Since interrupting I/O operations would close the
+     * file channels of on-disk indices that are still in use, a compaction
+     * that is in progress will be completed first.
+     */
+    @Override
+    public synchronized void shutdown() {
+        quit = true;
+        notify();
+    }
+    
+    public void run() {
+        Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "operational");
+        
+        notifyStarted();
+        while (true) {
+            try {
+                synchronized (this) {
+                    if (!quit)
+                        wait(checkInterval);
+                    if (quit)
+                        break;
+                }
+                
+                DatabaseManagerInternal dbMan = dbs.getDatabaseManager();
+                for (DatabaseInternal db : dbMan.getDatabaseList()) {
+                    
+                    // compact each index until no more runs need to be
+                    // merged; if the database is deleted while its runs are
+                    // merged, the merged run will be discarded
+                    for (int i = 0; i < db.getLSMDB().getIndexCount(); i++) {
+                        for (;;) {
+                            
+                            synchronized (this) {
+                                if (quit)
+                                    break;
+                            }
+                            
+                            if (dbMan.getDatabasesInternal().get(db.getName()) != db)
+                                break;
+                            
+                            long start = System.currentTimeMillis();
+                            if (!db.getLSMDB().compact(i, fanout, dbs.getCheckpointer()))
+                                break;
+                            
+                            // update statistics
+                            _compactionCount.incrementAndGet();
+                            _lastCompactionDuration.set(System.currentTimeMillis() - start);
+                        }
+                    }
+                }
+            
+            } catch (InterruptedException ex) {
+                if (quit)
+                    break;
+            } catch (Throwable ex) {
+                Logging.logMessage(Logging.LEVEL_ERROR, Category.babudb, this, "INDEX COMPACTION FAILURE!");
+                Logging.logMessage(Logging.LEVEL_ERROR, Category.babudb, this, OutputUtils.stackTraceToString(ex));
+            }
+        }
+        
+        Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "compactor shut down successfully");
+        notifyStopped();
+    }
+    
+    public Object getRuntimeState(String property) {
+        
+        if (RUNTIME_STATE_COMPACTIONCOUNT.equals(property))
+            return _compactionCount.get();
+        if (RUNTIME_STATE_LASTDURATION.equals(property))
+            return _lastCompactionDuration.get();
+        
+        return null;
+    }
+    
+    public Map<String, Object> getRuntimeState() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(RUNTIME_STATE_COMPACTIONCOUNT, _compactionCount.get());
+        map.put(RUNTIME_STATE_LASTDURATION, _lastCompactionDuration.get());
+        return map;
+    }
+
+}
@@ -25,6 +25,7 @@ import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.IndexOptions;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 
@@ -103,19 +104,11 @@ public class DBConfig {
                         db = dbman.getDatabase(dbId);
                         db.setLSMDB(new LSMDatabase(dbName, dbId, dbs.getConfig().getBaseDir() 
                                 + dbName + File.separatorChar, numIndex, true, comps, 
-                                dbs.getConfig().getCompression(), 
-                                dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), 
-                                dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                new IndexOptions(dbs.getConfig())));
                     } catch (BabuDBException e) {
                         db = new DatabaseImpl(dbs, new LSMDatabase(dbName, dbId, 
                                 dbs.getConfig().getBaseDir() + dbName + File.separatorChar, 
-                                numIndex, true, comps, dbs.getConfig().getCompression(), 
-                                dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), 
-                                dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                numIndex, true, comps, new IndexOptions(dbs.getConfig())));
                         
                         dbman.putDatabase(db);
                     }
@@ -196,10 +189,8 @@ public class DBConfig {
                     if (!conversionRequired) {
                         DatabaseInternal db = new DatabaseImpl(this.dbs, 
                                 new LSMDatabase(dbName, dbId, this.dbs.getConfig().getBaseDir()
-                            + dbName + File.separatorChar, numIndex, true, comps, dbs.getConfig()
-                                .getCompression(), this.dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                            + dbName + File.separatorChar, numIndex, true, comps, new IndexOptions(
+                                dbs.getConfig())));
                         dbman.putDatabase(db);
                         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
                                 "loaded DB " + dbName + "(" + dbId + ") successfully.");
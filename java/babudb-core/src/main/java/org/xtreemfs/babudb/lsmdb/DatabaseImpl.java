@@ -10,6 +10,12 @@ package org.xtreemfs.babudb.lsmdb;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
@@ -22,6 +28,7 @@ import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup.InsertRecord;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
@@ -30,7 +37,7 @@ public class DatabaseImpl implements DatabaseInternal {
         
     private final BabuDBInternal        dbs;
     
-    private LSMDatabase                 lsmDB;
+    private volatile LSMDatabase        lsmDB;
     
 /*
  * constructors/destructors
@@ -104,11 +111,22 @@ public class DatabaseImpl implements DatabaseInternal {
         InsertRecordGroup ins = irg.getRecord();
         int dbId = ins.getDatabaseId();
         
-        LSMDBWorker w = dbs.getWorker(dbId);
-        if (w != null) {
+        if (dbs.getWorkerCount() > 0) {
+            
+            // determine the workers responsible for the inserted keys
+            Set<LSMDBWorker> workers = new LinkedHashSet<LSMDBWorker>();
+            for (InsertRecord record : ins.getInserts()) {
+                workers.add(dbs.getWorker(dbId, getShard(record.getKey())));
+            }
+            
+            if (workers.size() > 1) {
+                return crossShardInsert(irg, workers, context);
+            }
+            
+            LSMDBWorker w = workers.isEmpty() ? dbs.getWorker(dbId) : workers.iterator().next();
             if (Logging.isDebug()) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "insert request"
-                        + " is sent to worker #" + dbId % dbs.getWorkerCount());
+                        + " is sent to worker " + w.getName());
             }
             
             BabuDBRequestResultImpl<Object> result = 
@@ -126,6 +144,52 @@ public class DatabaseImpl implements DatabaseInternal {
         }
     }
     
+    /**
+     * Inserts a group of inserts that affects multiple shards of the database
+     * in the context of the invoking thread. In order to apply the inserts
+     * atomically, all workers responsible for the affected shards are locked
+     * until the inserts have been applied and appended to the log. Since the
+     * workers are locked after processing all pending requests, the order of
+     * insertions for each key is preserved.
+     * 
+     * @param irg - the group of inserts.
+     * @param workers - the workers responsible for the affected shards.
+     * @param context - the context object for this request.
+     * 
+     * @return the request future.
+     */
+    private DatabaseRequestResult<Object> crossShardInsert(BabuDBInsertGroup irg, 
+            Collection<LSMDBWorker> workers, Object context) {
+        
+        BabuDBRequestResultImpl<Object> result = 
+            new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
+        
+        List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = null;
+        try {
+            lockFutures = LSMDBWorker.lockWorkers(workers, dbs, context);
+            
+            // wait until all workers have processed their pending requests
+            for (BabuDBRequestResultImpl<AtomicBoolean> lockFuture : lockFutures) {
+                lockFuture.get();
+            }
+            
+            dbs.getTransactionManager().makePersistent(
+                    dbs.getDatabaseManager().createTransaction().insertRecordGroup(
+                            getName(), irg.getRecord(), getLSMDB()), result);
+        } catch (InterruptedException ex) {
+            result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                    "operation was interrupted", ex));
+        } catch (BabuDBException e) {
+            result.failed(e);
+        } finally {
+            if (lockFutures != null) {
+                LSMDBWorker.unlockWorkers(lockFutures);
+            }
+        }
+        
+        return result;
+    }
+    
     /**
      * Insert an group of inserts in the context of the invoking thread.
      * Proper insertion is not guaranteed, since the result of the attempt to
@@ -170,12 +234,11 @@ public class DatabaseImpl implements DatabaseInternal {
         
         BabuDBRequestResultImpl<byte[]> result = 
             new BabuDBRequestResultImpl<byte[]>(context, dbs.getResponseManager());
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = getReadWorker(key);
         if (w != null) {
             if (Logging.isDebug()) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
-                        + " is sent to worker #" 
-                        + lsmDB.getDatabaseId() % dbs.getWorkerCount());
+                        + " is sent to worker " + w.getName());
             }
             
             try {
@@ -244,9 +307,19 @@ public class DatabaseImpl implements DatabaseInternal {
                     dbs.getResponseManager());
         
         // if there are worker threads, delegate the prefix lookup to the
-        // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
-        if (w != null) {
+        // responsible worker thread; if the database is partitioned, perform
+        // it while the workers of all shards are locked
+        LSMDBWorker w = getReadWorker(null);
+        if (w != null && dbs.getShardCount() > 1) {
+            List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = lockShards(result);
+            if (lockFutures != null) {
+                try {
+                    directPrefixLookup(indexId, key, ascending, result);
+                } finally {
+                    LSMDBWorker.unlockWorkers(lockFutures);
+                }
+            }
+        } else if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
                         + " is sent to worker #"
@@ -263,19 +336,32 @@ public class DatabaseImpl implements DatabaseInternal {
         }
 
         // otherwise, perform a direct prefix lookup
-        else {
-            
-            if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
-                result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
-                        "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).prefixLookup(key, 
-                        ascending));
-        }
+        else
+            directPrefixLookup(indexId, key, ascending, result);
         
         return result;
     }
     
+    /**
+     * Performs a prefix lookup, without using a worker thread.
+     * 
+     * @param indexId
+     * @param key
+     * @param ascending
+     * @param listener
+     *            the result listener.
+     */
+    private void directPrefixLookup(int indexId, byte[] key, boolean ascending, 
+            BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> listener) {
+        
+        if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+            listener.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
+                    "index does not exist"));
+        else
+            listener.finished(lsmDB.getIndex(indexId).prefixLookup(key, 
+                    ascending));
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.DatabaseRO#rangeLookup(int, byte[], byte[], 
      *          java.lang.Object)
@@ -316,9 +402,19 @@ public class DatabaseImpl implements DatabaseInternal {
                     dbs.getResponseManager());
         
         // if there are worker threads, delegate the range lookup to the
-        // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
-        if (w != null) {
+        // responsible worker thread; if the database is partitioned, perform
+        // it while the workers of all shards are locked
+        LSMDBWorker w = getReadWorker(null);
+        if (w != null && dbs.getShardCount() > 1) {
+            List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = lockShards(result);
+            if (lockFutures != null) {
+                try {
+                    directRangeLookup(indexId, from, to, ascending, result);
+                } finally {
+                    LSMDBWorker.unlockWorkers(lockFutures);
+                }
+            }
+        } else if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
                         + " is sent to worker #"
@@ -335,19 +431,33 @@ public class DatabaseImpl implements DatabaseInternal {
         }
 
         // otherwise, perform a direct range lookup
-        else {
-            
-            if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
-                result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
-                        "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).rangeLookup(from, to, 
-                        ascending));
-        }
+        else
+            directRangeLookup(indexId, from, to, ascending, result);
         
         return result;
     }
     
+    /**
+     * Performs a range lookup, without using a worker thread.
+     * 
+     * @param indexId
+     * @param from
+     * @param to
+     * @param ascending
+     * @param listener
+     *            the result listener.
+     */
+    private void directRangeLookup(int indexId, byte[] from, byte[] to, boolean ascending, 
+            BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> listener) {
+        
+        if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+            listener.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
+                    "index does not exist"));
+        else
+            listener.finished(lsmDB.getIndex(indexId).rangeLookup(from, to, 
+                    ascending));
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -363,7 +473,16 @@ public class DatabaseImpl implements DatabaseInternal {
             new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
         
         LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
-        if (w != null) {
+        if (w != null && dbs.getShardCount() > 1) {
+            List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = lockShards(result);
+            if (lockFutures != null) {
+                try {
+                    directUserDefinedLookup(udl, result);
+                } finally {
+                    LSMDBWorker.unlockWorkers(lockFutures);
+                }
+            }
+        } else if (w != null) {
             if (Logging.isNotice()) {
                 Logging.logMessage(Logging.LEVEL_NOTICE, Category.babudb, this,
                         "udl request is sent to worker #" + lsmDB.getDatabaseId() % dbs.getWorkerCount());
@@ -381,6 +500,95 @@ public class DatabaseImpl implements DatabaseInternal {
         return result;
     }
     
+    /**
+     * Returns the worker thread responsible for lookups in the database.
+     * Lookups are processed by the worker thread that is responsible for
+     * insertions, unless direct reads are enabled. Since the in-memory
+     * overlay trees are concurrent and on-disk indices are read-only, direct
+     * lookups may safely run in the context of the invoking thread; in this
+     * case, they only reflect insertions that have completed.
+     * 
+     * If the database is partitioned across multiple workers, point lookups
+     * are processed by the worker responsible for the key. Lookups that span
+     * multiple keys are performed in the context of the invoking thread while
+     * the workers of all shards are locked (see {@link #lockShards}), so that
+     * they reflect all insertions that were issued before.
+     * 
+     * @param key
+     *            the key to look up, or <code>null</code>, if the lookup
+     *            spans multiple keys
+     * @return the worker thread, or <code>null</code>, if lookups should be
+     *         performed in the context of the invoking thread
+     */
+    private LSMDBWorker getReadWorker(byte[] key) {
+        
+        if (dbs.getConfig().getDirectReads())
+            return null;
+        
+        return dbs.getWorker(lsmDB.getDatabaseId(), key == null ? 0 : getShard(key));
+    }
+    
+    /**
+     * Locks the workers responsible for all shards of the database. Since each
+     * worker is locked after processing its pending requests, a lookup that is
+     * performed while the workers are locked reflects all insertions that were
+     * issued before, regardless of their shards.
+     * 
+     * @param result
+     *            the result of the lookup, which fails if the workers could not
+     *            be locked
+     * @return the lock futures, which have to be passed to
+     *         {@link LSMDBWorker#unlockWorkers(Collection)} after the lookup, or
+     *         <code>null</code>, if the workers could not be locked
+     */
+    private List<BabuDBRequestResultImpl<AtomicBoolean>> lockShards(BabuDBRequestResultImpl<?> result) {
+        
+        Set<LSMDBWorker> workers = new LinkedHashSet<LSMDBWorker>();
+        for (int shard = 0; shard < dbs.getShardCount(); shard++) {
+            workers.add(dbs.getWorker(lsmDB.getDatabaseId(), shard));
+        }
+        
+        List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = null;
+        try {
+            lockFutures = LSMDBWorker.lockWorkers(workers, dbs, null);
+            
+            // wait until all workers have processed their pending requests
+            for (BabuDBRequestResultImpl<AtomicBoolean> lockFuture : lockFutures) {
+                lockFuture.get();
+            }
+            
+            return lockFutures;
+        } catch (InterruptedException ex) {
+            result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                    "operation was interrupted", ex));
+        } catch (BabuDBException e) {
+            result.failed(e);
+        }
+        
+        if (lockFutures != null) {
+            LSMDBWorker.unlockWorkers(lockFutures);
+        }
+        return null;
+    }
+    
+    /**
+     * Determines the shard of the database that contains the given key.
+     * 
+     * @param key
+     *            the key
+     * @return the shard
+     */
+    private int getShard(byte[] key) {
+        
+        int shards = dbs.getShardCount();
+        if (shards <= 1)
+            return 0;
+        
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shards;
+    }
+    
     /**
      * Performs a user-defined lookup, without using a worker thread.
      * 
@@ -13,10 +13,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
 import org.xtreemfs.babudb.api.database.Database;
@@ -35,18 +42,23 @@ import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
 import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.IndexOptions;
 import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.lsmdb.InsertRecordGroup.InsertRecord;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
-import org.xtreemfs.foundation.util.FSUtils;
 
 public class DatabaseManagerImpl implements DatabaseManagerInternal {
     
     private static final String                    RUNTIME_STATE_DBCREATIONCOUNT = "databaseManager.dbCreationCount";
     private static final String                    RUNTIME_STATE_DBDELETIONCOUNT = "databaseManager.dbDeletionCount";
     
+    /**
+     * the number of locks for serializing transactions
+     */
+    private static final int                       NUM_TXN_LOCKS                 = 64;
+    
     private BabuDBInternal                         dbs;
     
     /**
@@ -74,6 +86,12 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
      */
     private final Object                           dbModificationLock;
     
+    /**
+     * locks for serializing transactions that affect the same databases;
+     * databases are mapped to locks by the hash codes of their names
+     */
+    private final ReentrantLock[]                  txnLocks;
+    
     private AtomicInteger                          _dbCreationCount              = new AtomicInteger();
     
     private AtomicInteger                          _dbDeletionCount              = new AtomicInteger();
@@ -91,6 +109,11 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         this.nextDbId = 1;
         this.dbModificationLock = new Object();
         
+        this.txnLocks = new ReentrantLock[NUM_TXN_LOCKS];
+        for (int i = 0; i < txnLocks.length; i++) {
+            txnLocks[i] = new ReentrantLock();
+        }
+        
         initializeTransactionManager();
     }
     
@@ -340,21 +363,17 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 
                 DatabaseImpl db = null;
                 synchronized (getDBModificationLock()) {
-                    synchronized (dbs.getCheckpointer()) {
-                        if (dbsByName.containsKey(operation.getDatabaseName())) {
-                            throw new BabuDBException(ErrorCode.DB_EXISTS, "database '" + operation.getDatabaseName()
-                                    + "' already exists");
-                        }
-                        final int dbId = nextDbId++;
-                        db = new DatabaseImpl(dbs, new LSMDatabase(operation.getDatabaseName(), dbId, dbs.getConfig()
-                                .getBaseDir() + operation.getDatabaseName() + File.separatorChar, numIndices, false,
-                                com, dbs.getConfig().getCompression(), dbs.getConfig().getMaxNumRecordsPerBlock(), dbs
-                                        .getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(), dbs
-                                        .getConfig().getMMapLimit()));
-                        dbsById.put(dbId, db);
-                        dbsByName.put(operation.getDatabaseName(), db);
-                        dbs.getDBConfigFile().save();
+                    if (dbsByName.containsKey(operation.getDatabaseName())) {
+                        throw new BabuDBException(ErrorCode.DB_EXISTS, "database '" + operation.getDatabaseName()
+                                + "' already exists");
                     }
+                    final int dbId = nextDbId++;
+                    db = new DatabaseImpl(dbs, new LSMDatabase(operation.getDatabaseName(), dbId, dbs.getConfig()
+                            .getBaseDir() + operation.getDatabaseName() + File.separatorChar, numIndices, false,
+                            com, new IndexOptions(dbs.getConfig())));
+                    dbsById.put(dbId, db);
+                    dbsByName.put(operation.getDatabaseName(), db);
+                    dbs.getDBConfigFile().save();
                 }
                 
                 return db;
@@ -384,25 +403,22 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 
                 int dbId = InsertRecordGroup.DB_ID_UNKNOWN;
                 synchronized (getDBModificationLock()) {
-                    synchronized (dbs.getCheckpointer()) {
-                        if (!dbsByName.containsKey(operation.getDatabaseName())) {
-                            throw new BabuDBException(ErrorCode.NO_SUCH_DB, "database '" + operation.getDatabaseName()
-                                    + "' does not exists");
-                        }
-                        final LSMDatabase db = getDatabase(operation.getDatabaseName()).getLSMDB();
-                        dbId = db.getDatabaseId();
-                        dbsByName.remove(operation.getDatabaseName());
-                        dbsById.remove(dbId);
-                        
-                        dbs.getSnapshotManager().deleteAllSnapshots(operation.getDatabaseName());
-                        
-                        dbs.getDBConfigFile().save();
-                        File dbDir = new File(dbs.getConfig().getBaseDir(), operation.getDatabaseName());
-                        
-                        if (dbDir.exists()) {
-                            FSUtils.delTree(dbDir);
-                        }
+                    if (!dbsByName.containsKey(operation.getDatabaseName())) {
+                        throw new BabuDBException(ErrorCode.NO_SUCH_DB, "database '" + operation.getDatabaseName()
+                                + "' does not exists");
                     }
+                    final LSMDatabase db = getDatabase(operation.getDatabaseName()).getLSMDB();
+                    dbId = db.getDatabaseId();
+                    dbsByName.remove(operation.getDatabaseName());
+                    dbsById.remove(dbId);
+                    
+                    dbs.getSnapshotManager().deleteAllSnapshots(operation.getDatabaseName());
+                    
+                    dbs.getDBConfigFile().save();
+                    
+                    // a checkpoint of the database that is currently being
+                    // written will be discarded
+                    db.delete();
                 }
                 
                 return null;
@@ -441,15 +457,13 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 
                 int dbId;
                 synchronized (getDBModificationLock()) {
-                    synchronized (dbs.getCheckpointer()) {
-                        if (dbsByName.containsKey(destDB)) {
-                            throw new BabuDBException(ErrorCode.DB_EXISTS, "database '" + destDB + "' already exists");
-                        }
-                        dbId = nextDbId++;
-                        // just "reserve" the name
-                        dbsByName.put(destDB, null);
-                        dbs.getDBConfigFile().save();
+                    if (dbsByName.containsKey(destDB)) {
+                        throw new BabuDBException(ErrorCode.DB_EXISTS, "database '" + destDB + "' already exists");
                     }
+                    dbId = nextDbId++;
+                    // just "reserve" the name
+                    dbsByName.put(destDB, null);
+                    dbs.getDBConfigFile().save();
                 }
                 // materializing the snapshot takes some time, we should not
                 // hold the
@@ -463,9 +477,7 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 // create new DB and load from snapshot
                 DatabaseInternal newDB = new DatabaseImpl(dbs, new LSMDatabase(destDB, dbId, dbs.getConfig()
                         .getBaseDir() + destDB + File.separatorChar, sDB.getLSMDB().getIndexCount(), true, sDB
-                        .getComparators(), dbs.getConfig().getCompression(),
-                        dbs.getConfig().getMaxNumRecordsPerBlock(), dbs.getConfig().getMaxBlockFileSize(), dbs
-                                .getConfig().getDisableMMap(), dbs.getConfig().getMMapLimit()));
+                        .getComparators(), new IndexOptions(dbs.getConfig())));
                 
                 // insert real database
                 synchronized (dbModificationLock) {
@@ -634,36 +646,67 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
      * org.xtreemfs.babudb.api.dev.TransactionInternal)
      */
     @Override
-    public synchronized void executeTransaction(TransactionInternal txn) throws BabuDBException {
+    public void executeTransaction(TransactionInternal txn) throws BabuDBException {
+        
+        // serialize the execution with other transactions that affect the
+        // same databases; locks are acquired in ascending order to prevent
+        // deadlocks, so that transactions on disjoint sets of databases may be
+        // executed concurrently
+        SortedSet<Integer> locks = new TreeSet<Integer>();
+        for (String dbName : txn.databasesAffected()) {
+            locks.add(getTxnLock(dbName));
+        }
+        
+        List<ReentrantLock> acquired = new ArrayList<ReentrantLock>(locks.size());
+        try {
+            for (int lock : locks) {
+                txnLocks[lock].lockInterruptibly();
+                acquired.add(txnLocks[lock]);
+            }
+            
+            executeTransactionLocked(txn);
+            
+        } catch (InterruptedException ie) {
+            throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
+        } finally {
+            for (ReentrantLock lock : acquired) {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Executes a transaction. The caller has to hold the transaction locks of
+     * all affected databases.
+     * 
+     * @param txn
+     *            the transaction
+     * @throws BabuDBException
+     *             if the transaction failed
+     */
+    private void executeTransactionLocked(TransactionInternal txn) throws BabuDBException {
         
         // acquire worker locks asynchronously if necessary
         if (dbs.getWorkerCount() > 0) {
             
-            // maps the lockFuture of the workers affected by this txn
-            Map<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>> workerLockFutureMap = new HashMap<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>>();
-            
-            // maps the lockFutures by the databases affected by this txn
-            Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap = new HashMap<String, DatabaseRequestResult<AtomicBoolean>>();
+            // maps the workers of all shards by the databases affected by
+            // this txn
+            Map<String, List<LSMDBWorker>> databaseWorkerMap = new HashMap<String, List<LSMDBWorker>>();
+            Set<LSMDBWorker> workers = new LinkedHashSet<LSMDBWorker>();
             
             for (String dbName : txn.databasesAffected()) {
                 try {
-                    // setup the lock-request if necessary
-                    if (!databaseLockFutureMap.containsKey(dbName)) {
-                        
-                        LSMDBWorker worker = dbs.getWorker(getDatabase(dbName).getLSMDB().getDatabaseId());
-                        
-                        // retrieve the lockFuture of the worker if already
-                        // available
-                        BabuDBRequestResultImpl<AtomicBoolean> lockFuture = workerLockFutureMap.get(worker);
+                    if (!databaseWorkerMap.containsKey(dbName)) {
                         
-                        // create a new lockFuture otherwise
-                        if (lockFuture == null) {
-                            lockFuture = new BabuDBRequestResultImpl<AtomicBoolean>(txn, dbs.getResponseManager());
-                            worker.addRequest(new LSMDBRequest<AtomicBoolean>(lockFuture));
-                            workerLockFutureMap.put(worker, lockFuture);
+                        int dbId = getDatabase(dbName).getLSMDB().getDatabaseId();
+                        List<LSMDBWorker> dbWorkers = new ArrayList<LSMDBWorker>();
+                        for (int shard = 0; shard < dbs.getShardCount(); shard++) {
+                            LSMDBWorker worker = dbs.getWorker(dbId, shard);
+                            dbWorkers.add(worker);
+                            workers.add(worker);
                         }
                         
-                        databaseLockFutureMap.put(dbName, lockFuture);
+                        databaseWorkerMap.put(dbName, dbWorkers);
                     }
                 } catch (BabuDBException be) {
                     assert (be.getErrorCode() == ErrorCode.NO_SUCH_DB);
@@ -672,20 +715,58 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                      * affected database does not exist yet; exception will be
                      * ignored
                      */
-                } catch (InterruptedException ie) {
-                    throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
                 }
             }
             
+            // setup the lock-requests, one per worker
+            Map<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>> workerLockFutureMap = new HashMap<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>>();
+            try {
+                Iterator<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = LSMDBWorker.lockWorkers(
+                        workers, dbs, txn).iterator();
+                for (LSMDBWorker worker : workers) {
+                    workerLockFutureMap.put(worker, lockFutures.next());
+                }
+            } catch (InterruptedException ie) {
+                throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
+            }
+            
+            // maps the lockFutures by the databases affected by this txn
+            Map<String, List<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap = new HashMap<String, List<DatabaseRequestResult<AtomicBoolean>>>();
+            for (Entry<String, List<LSMDBWorker>> entry : databaseWorkerMap.entrySet()) {
+                List<DatabaseRequestResult<AtomicBoolean>> lockFutures = new ArrayList<DatabaseRequestResult<AtomicBoolean>>();
+                for (LSMDBWorker worker : entry.getValue()) {
+                    lockFutures.add(workerLockFutureMap.get(worker));
+                }
+                databaseLockFutureMap.put(entry.getKey(), lockFutures);
+            }
+            
             txn.updateWorkerLocks(databaseLockFutureMap);
         }
         
-        // execute the transaction
+        // execute the transaction; the workers are unlocked by the
+        // transaction manager once the transaction has been applied, but
+        // they have to be unlocked here if it fails before, e.g. because the
+        // transaction cannot be serialized
         BabuDBRequestResultImpl<Object> result = new BabuDBRequestResultImpl<Object>(dbs.getResponseManager());
-        dbs.getTransactionManager().makePersistent(txn, result);
+        try {
+            dbs.getTransactionManager().makePersistent(txn, result);
+        } finally {
+            txn.unlockWorkers();
+        }
         result.get();
     }
     
+    /**
+     * Returns the index of the transaction lock for the given database.
+     * 
+     * @param dbName
+     *            the name of the database
+     * @return the index of the lock in <code>txnLocks</code>
+     */
+    private int getTxnLock(String dbName) {
+        return dbName == null ? 0 : (dbName.hashCode() & Integer.MAX_VALUE) % txnLocks.length;
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -721,7 +802,7 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
     
     @Override
     public Object getRuntimeState(String property) {
-                
+        
         if (RUNTIME_STATE_DBCREATIONCOUNT.equals(property))
             return _dbCreationCount.get();
         if (RUNTIME_STATE_DBDELETIONCOUNT.equals(property))
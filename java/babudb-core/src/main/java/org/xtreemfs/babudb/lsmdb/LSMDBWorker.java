@@ -8,8 +8,11 @@
 package org.xtreemfs.babudb.lsmdb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -50,6 +53,75 @@ public class LSMDBWorker extends LifeCycleThread {
         this.dbs = babuDB;
     }
     
+    /**
+     * Enqueues lock requests at the given worker threads. Each worker will
+     * block as soon as it has processed all requests that were enqueued before
+     * the lock request, and until it is unlocked via
+     * {@link #unlockWorkers(Collection)}.
+     * 
+     * Lock requests of concurrent invocations are enqueued at all workers in
+     * the same order, so that threads locking multiple workers cannot
+     * deadlock.
+     * 
+     * @param workers
+     *            the workers to lock
+     * @param dbs
+     *            the database system
+     * @param context
+     *            the context for the lock futures
+     * @return the lock futures, one for each worker
+     * @throws InterruptedException
+     *             if the thread was interrupted while enqueueing the lock
+     *             requests
+     */
+    public static List<BabuDBRequestResultImpl<AtomicBoolean>> lockWorkers(Collection<LSMDBWorker> workers,
+        BabuDBInternal dbs, Object context) throws InterruptedException {
+        
+        List<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures = new ArrayList<BabuDBRequestResultImpl<AtomicBoolean>>(
+            workers.size());
+        
+        synchronized (LSMDBWorker.class) {
+            try {
+                for (LSMDBWorker worker : workers) {
+                    BabuDBRequestResultImpl<AtomicBoolean> lockFuture = new BabuDBRequestResultImpl<AtomicBoolean>(
+                        context, dbs.getResponseManager());
+                    worker.addRequest(new LSMDBRequest<AtomicBoolean>(lockFuture));
+                    lockFutures.add(lockFuture);
+                }
+            } catch (InterruptedException ex) {
+                
+                // release all workers that have already been locked
+                unlockWorkers(lockFutures);
+                throw ex;
+            }
+        }
+        
+        return lockFutures;
+    }
+    
+    /**
+     * Unlocks worker threads that have been locked via
+     * {@link #lockWorkers(Collection, BabuDBInternal, Object)}.
+     * 
+     * @param lockFutures
+     *            the lock futures
+     */
+    public static void unlockWorkers(Collection<BabuDBRequestResultImpl<AtomicBoolean>> lockFutures) {
+        
+        for (BabuDBRequestResultImpl<AtomicBoolean> lockFuture : lockFutures) {
+            try {
+                final AtomicBoolean workerLock = lockFuture.get();
+                synchronized (workerLock) {
+                    workerLock.set(false);
+                    workerLock.notify();
+                }
+            } catch (BabuDBException be) {
+                Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, (Object) null,
+                    "The worker lock could not have been acquired for unlock.");
+            }
+        }
+    }
+    
     public synchronized void addRequest(LSMDBRequest<?> request) throws InterruptedException {
         
         assert (request != null);
@@ -60,7 +132,7 @@ public class LSMDBWorker extends LifeCycleThread {
         }
         
         if (!quit) {
-
+            
             assert (maxQ == 0 || requests.size() < maxQ);
             
             requests.add(request);
@@ -77,7 +149,7 @@ public class LSMDBWorker extends LifeCycleThread {
         quit = true;
         notifyAll();
     }
-        
+    
     @Override
     public void shutdown() {
         shutdown(true);
@@ -96,7 +168,7 @@ public class LSMDBWorker extends LifeCycleThread {
     public void run() {
         
         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "operational");
-
+        
         notifyStarted();
         
         while (!quit) {
@@ -111,14 +183,14 @@ public class LSMDBWorker extends LifeCycleThread {
                     
                     if (quit) {
                         break;
-                        
+                    
                     // get a request
                     } else {
                         r = requests.poll();
                         notify();
                     }
                 }
-                                
+                
                 processRequest(r);
             } catch (InterruptedException ex) {
                 if (!quit) {
@@ -147,7 +219,7 @@ public class LSMDBWorker extends LifeCycleThread {
      * @throws IOException
      */
     private synchronized void cleanUp() {    
-            
+        
         assert (graceful || requests.size() == 0);
         
         // clear pending requests, if available
@@ -198,7 +270,7 @@ public class LSMDBWorker extends LifeCycleThread {
     
     @SuppressWarnings("unchecked")
     private void doInsert(final LSMDBRequest<?> r) {
-
+        
         try {
             dbs.getTransactionManager().makePersistent(
                     dbs.getDatabaseManager().createTransaction().insertRecordGroup(
@@ -250,14 +322,18 @@ public class LSMDBWorker extends LifeCycleThread {
     }
     
     private void doLock(final LSMDBRequest<Object> r) {
-
+        
         synchronized (locked) {
+            
+            // block until the lock holder resets the flag
+            locked.set(true);
             r.getListener().finished(locked);
             try {
-                if (locked.get()) {
+                while (locked.get()) {
                     locked.wait();
                 }
             } catch (InterruptedException e) {
+                locked.set(false);
                 r.getListener().failed(
                         new BabuDBException(ErrorCode.INTERRUPTED, e.getMessage(), e));
             }
@@ -13,13 +13,17 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.IndexOptions;
 import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
@@ -42,6 +46,8 @@ public class LSMDatabase {
     
     private static final String         SNAPSHOT_FILENAME_REGEXP = "IX(\\d+)V(\\d+)SEQ(\\d+)\\.idx";
     
+    private static final String         RUN_FILENAME_REGEXP      = "IX(\\d+)R(\\d+)\\.run";
+    
     /**
      * The actual indices stores in LSMTrees.
      */
@@ -75,30 +81,22 @@ public class LSMDatabase {
     private final ByteRangeComparator[] comparators;
     
     /**
-     * enables compression of the on-disk index
-     */
-    private final boolean               compression;
-    
-    /**
-     * the maximum number of entries per block in an index
-     */
-    private final int                   maxEntriesPerBlock;
-    
-    /**
-     * the maximum size of an on-disk index file
+     * the options that determine how the indices are kept in memory and on
+     * disk
      */
-    private final int                   maxBlockFileSize;
+    private final IndexOptions          options;
     
     /**
-     * disables memory-mapping of block files
+     * the number of the next on-disk run to create
      */
-    private final boolean               disableMMap;
+    private final AtomicInteger         nextRunId                = new AtomicInteger();
     
     /**
-     * the maximum size of all block files maintained by BabuDB at which block
-     * files will be mmap'ed
+     * indicates whether the database has been deleted; on-disk files may only
+     * be committed to the database directory while holding the lock on the
+     * database instance, and as long as this flag has not been set
      */
-    private final int                   mmapLimit;
+    private boolean                     deleted;
     
     /**
      * Creates a new database and loads data from disk if requested.
@@ -133,6 +131,38 @@ public class LSMDatabase {
     public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
         boolean readFromDisk, ByteRangeComparator[] comparators, boolean compression, int maxEntriesPerBlock,
         int maxBlockFileSize, boolean disableMMap, int mmapLimit) throws BabuDBException {
+        this(databaseName, databaseId, databaseDir, numIndices, readFromDisk, comparators, new IndexOptions()
+            .setCompression(compression).setMaxEntriesPerBlock(maxEntriesPerBlock).setMaxBlockFileSize(
+                maxBlockFileSize).setDisableMMap(disableMMap).setMMapLimit(mmapLimit));
+    }
+    
+    /**
+     * Creates a new database and loads data from disk if requested.
+     * 
+     * @param databaseName
+     *            the name of the database
+     * @param databaseId
+     *            the numeric database ID
+     * @param databaseDir
+     *            the directory in which the DB stores the checkpoints
+     * @param numIndices
+     *            number of indices (cannot be changed)
+     * @param readFromDisk
+     *            true if data should be read from disk
+     * @param comparators
+     *            an array containing the comparators of all indices
+     * @param options
+     *            the options that determine how the indices are kept in
+     *            memory and on disk; if multi-run checkpoints are enabled,
+     *            checkpoints only write the changes since the last checkpoint
+     *            as new on-disk runs, which have to be merged by means of
+     *            {@link #compact(int, int, Object)}
+     * @throws BabuDBException
+     *             if on-disk data cannot be read or DB directory cannot be
+     *             created
+     */
+    public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
+        boolean readFromDisk, ByteRangeComparator[] comparators, IndexOptions options) throws BabuDBException {
         
         this.numIndices = numIndices;
         this.databaseId = databaseId;
@@ -144,11 +174,7 @@ public class LSMDatabase {
         this.databaseName = databaseName;
         this.trees = new ArrayList<LSMTree>(numIndices);
         this.comparators = comparators;
-        this.compression = compression;
-        this.maxEntriesPerBlock = maxEntriesPerBlock;
-        this.maxBlockFileSize = maxBlockFileSize;
-        this.disableMMap = disableMMap;
-        this.mmapLimit = mmapLimit;
+        this.options = options;
         
         if (readFromDisk) {
             loadFromDisk(numIndices);
@@ -156,8 +182,7 @@ public class LSMDatabase {
             try {
                 for (int i = 0; i < numIndices; i++) {
                     assert (comparators[i] != null);
-                    trees.add(new LSMTree(null, comparators[i], this.compression, maxEntriesPerBlock,
-                        maxBlockFileSize, !disableMMap, mmapLimit));
+                    trees.add(new LSMTree(null, comparators[i], options));
                 }
                 ondiskLSN = NO_DB_LSN;
             } catch (IOException ex) {
@@ -192,6 +217,22 @@ public class LSMDatabase {
         for (int index = 0; index < numIndices; index++) {
             trees.add(null);
         }
+        
+        // determine the number of the next on-disk run
+        String[] dirContents = new File(databaseDir).list();
+        if (dirContents != null) {
+            Pattern p = Pattern.compile(RUN_FILENAME_REGEXP);
+            for (String fname : dirContents) {
+                Matcher m = p.matcher(fname);
+                if (m.matches() && Integer.valueOf(m.group(2)) >= nextRunId.get())
+                    nextRunId.set(Integer.valueOf(m.group(2)) + 1);
+            }
+        }
+        
+        // the indices of a database may be checkpointed in parallel, so that
+        // a crash may leave them at different LSNs; log entries have to be
+        // replayed from the oldest one on
+        LSN minLSN = null;
         for (int index = 0; index < numIndices; index++) {
             final int idx = index;
             File f = new File(databaseDir);
@@ -210,7 +251,8 @@ public class LSMDatabase {
             Pattern p = Pattern.compile(SNAPSHOT_FILENAME_REGEXP);
             for (String fname : files) {
                 Matcher m = p.matcher(fname);
-                m.matches();
+                if (!m.matches())
+                    continue;
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "inspecting snapshot: " + fname);
                 
                 int view = Integer.valueOf(m.group(2));
@@ -231,22 +273,24 @@ public class LSMDatabase {
                                     + File.separator + "IX" + index + "V" + maxView + "SEQ" + maxSeq);
                     assert (comparators[index] != null);
                     trees.set(index, new LSMTree(databaseDir + File.separator
-                        + getSnapshotFilename(index, maxView, maxSeq), comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
-                    ondiskLSN = new LSN(maxView, maxSeq);
+                        + getSnapshotFilename(index, maxView, maxSeq), comparators[index], options));
+                    LSN lsn = new LSN(maxView, maxSeq);
+                    if (minLSN == null || lsn.compareTo(minLSN) < 0)
+                        minLSN = lsn;
                 } else {
-                    ondiskLSN = NO_DB_LSN;
+                    minLSN = NO_DB_LSN;
                     Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "no snapshot for database "
                         + this.databaseName);
                     assert (comparators[index] != null);
-                    trees.set(index, new LSMTree(null, comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
+                    trees.set(index, new LSMTree(null, comparators[index], options));
                 }
             } catch (IOException ex) {
                 Logging.logError(Logging.LEVEL_ERROR, this, ex);
                 throw new BabuDBException(ErrorCode.IO_ERROR, "cannot load index from disk", ex);
             }
         }
+        
+        ondiskLSN = minLSN == null ? NO_DB_LSN : minLSN;
     }
     
     /**
@@ -270,6 +314,43 @@ public class LSMDatabase {
         return trees.size();
     }
     
+    /**
+     * Loads all on-disk runs of all indices that have not been accessed yet.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs when opening a run
+     */
+    public void preOpen() throws IOException {
+        for (int i = 0; i < trees.size(); i++)
+            trees.get(i).preOpen();
+    }
+    
+    /**
+     * Deletes the database. Its in-memory overlays are discarded, and its
+     * directory is removed from disk. Checkpoints and compactions of the
+     * database that are still in progress will discard their results when
+     * they complete.
+     */
+    public synchronized void delete() {
+        
+        deleted = true;
+        for (LSMTree tree : trees)
+            tree.releaseOverlays();
+        
+        File dir = new File(databaseDir);
+        if (dir.exists())
+            FSUtils.delTree(dir);
+    }
+    
+    /**
+     * Checks whether the database has been deleted.
+     * 
+     * @return <code>true</code>, if {@link #delete()} has been invoked
+     */
+    public synchronized boolean isDeleted() {
+        return deleted;
+    }
+    
     /**
      * Get the LSN of the current on-disk snapshot (i.e. all writes with LSN <=
      * the on-disk LSN are in the snapshot on disk).
@@ -310,6 +391,11 @@ public class LSMDatabase {
     
     /**
      * Writes the snapshots to disk.
+     * <p>
+     * If the database is deleted while its snapshots are being written, all
+     * files that have been written so far are discarded, and the method
+     * returns without an error.
+     * </p>
      * 
      * @param viewId
      *            current viewId (i.e. of the last write)
@@ -324,39 +410,169 @@ public class LSMDatabase {
         
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                 "writing snapshot, database = " + databaseName + "...");
-        for (int index = 0; index < trees.size(); index++) {
-            
-            final LSMTree tree = trees.get(index);
-            
-            if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                        "snapshotting index " + index + "(dbName = " + databaseName + ")...");
+        
+        for (int index = 0; index < trees.size(); index++)
+            writeSnapshot(index, viewId, sequenceNo, snapIds[index]);
+        
+        if (isDeleted()) {
+            Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                    "database has been deleted, snapshot discarded, database = " + databaseName);
+            return;
+        }
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                    "snapshot written, database = " + databaseName);
+    }
+    
+    /**
+     * Writes the snapshot of a single index to disk. Each index is written to
+     * a temporary directory of its own, so that the snapshots of different
+     * indices may be written concurrently.
+     * <p>
+     * If the database is deleted while the snapshot is being written, all
+     * files that have been written so far are discarded, and the method
+     * returns without an error.
+     * </p>
+     * 
+     * @param index
+     *            the index
+     * @param viewId
+     *            current viewId (i.e. of the last write)
+     * @param sequenceNo
+     *            current sequenceNo (i.e. of the last write)
+     * @param snapId
+     *            the snapshot Id of the index (obtained via createSnapshot)
+     * @throws java.io.IOException
+     *             if the snapshot cannot be written to disk
+     */
+    public void writeSnapshot(int index, int viewId, long sequenceNo, int snapId) throws IOException {
+        
+        File tmpDir = new File(databaseDir, ".currentSnapshot" + index);
+        try {
+            writeIndexSnapshot(index, tmpDir, viewId, sequenceNo, snapId);
+        } catch (IOException exc) {
             
-            File tmpDir = new File(databaseDir, ".currentSnapshot");
-            File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
+            // writing the snapshot may fail if the database directory has
+            // been removed in the meantime
+            if (!isDeleted())
+                throw exc;
+        }
+        
+        // remove any files that have been re-created after the database
+        // directory was removed
+        if (isDeleted() && tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+    }
+    
+    private void writeIndexSnapshot(int index, File tmpDir, int viewId, long sequenceNo, int snapId)
+        throws IOException {
+        
+        final LSMTree tree = trees.get(index);
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                    "snapshotting index " + index + "(dbName = " + databaseName + ")...");
+        
+        File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
+        
+        if (targetDir.exists()) {
             
-            if (targetDir.exists()) {
+            // the LSN does not advance if an insertion has been applied in
+            // memory but not yet logged when the log file was switched; a
+            // checkpoint with the same name cannot be replaced, so the
+            // in-memory changes are kept until the next checkpoint (see
+            // cleanupSnapshot)
+            if (tree.isSnapshotDirty())
+                Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "keeping in-memory changes of index "
+                    + index + ", as a checkpoint with the same LSN (" + targetDir + ") exists already");
+            else
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
                         "skipping index'" + index + ", as a valid checkpoint (" + targetDir + ") exists already");
-                continue;
-            }
-            
-            // clean up incomplete old checkpoints if necessary
-            if (tmpDir.exists())
-                FSUtils.delTree(tmpDir);
+            return;
+        }
+        
+        // if the index has not changed since its on-disk snapshot was
+        // written, the snapshot can be carried forward to the new name
+        String snapshotFile = tree.getSnapshotFile();
+        if (!tree.isSnapshotDirty() && snapshotFile != null && new File(snapshotFile).exists()) {
             
-            tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapIds[index]);
+            // runs that have not been opened yet still refer to the old
+            // directory name, so they have to be opened before the directory
+            // is renamed
+            tree.preOpen();
             
-            if (!tmpDir.renameTo(targetDir))
-                throw new IOException("could not rename '" + tmpDir + "' to " + targetDir);
+            if (!commitFile(new File(snapshotFile), targetDir))
+                return;
             
             if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                        "... done (index = " + index + ", dbName = " + databaseName + ")");
+                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "... unchanged, carried "
+                    + "forward (index = " + index + ", dbName = " + databaseName + ")");
+            return;
         }
+        
+        // clean up incomplete old checkpoints if necessary
+        if (tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+        
+        if (options.getMultiRun()) {
+            
+            // write the changes as a new run, and list the new run along
+            // with all existing runs in the new checkpoint
+            List<String> runNames = new ArrayList<String>(tree.getRunNames());
+            
+            // if the index still consists of a checkpoint written in
+            // single-run mode, convert it to a run first
+            boolean convert = runNames.size() == 1 && isSnapshotFilename(runNames.get(0));
+            if (convert) {
+                tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapId);
+                runNames.clear();
+            }
+            
+            if (convert || tree.materializeRun(tmpDir.getAbsolutePath(), snapId)) {
+                
+                File runDir = new File(databaseDir, getRunFilename(index, nextRunId.getAndIncrement()));
+                if (!commitFile(tmpDir, runDir))
+                    return;
+                
+                runNames.add(0, runDir.getName());
+            }
+            
+            LSMTree.writeRunManifest(tmpDir.getAbsolutePath(), runNames);
+            
+        } else
+            tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapId);
+        
+        if (!commitFile(tmpDir, targetDir))
+            return;
+        
         if (Logging.isInfo())
             Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                    "snapshot written, database = " + databaseName);
+                    "... done (index = " + index + ", dbName = " + databaseName + ")");
+    }
+    
+    /**
+     * Renames a newly written file or directory in the database directory,
+     * unless the database has been deleted in the meantime.
+     * 
+     * @param source
+     *            the file to rename
+     * @param target
+     *            the new name
+     * @return <code>true</code>, if the file has been renamed,
+     *         <code>false</code>, if the database has been deleted
+     * @throws IOException
+     *             if the file cannot be renamed
+     */
+    private synchronized boolean commitFile(File source, File target) throws IOException {
+        
+        if (deleted)
+            return false;
+        
+        if (!source.renameTo(target))
+            throw new IOException("could not rename '" + source + "' to " + target);
+        
+        return true;
     }
     
     public void writeSnapshot(String directory, int[] snapIds, int viewId, long sequenceNumber)
@@ -397,16 +613,28 @@ public class LSMDatabase {
      * @throws java.io.IOException
      *             if snapshots cannot be cleaned up
      */
-    public void cleanupSnapshot(final int viewId, final long sequenceNo) throws IOException {
+    public synchronized void cleanupSnapshot(final int viewId, final long sequenceNo) throws IOException {
+        
+        // nothing to link if the database has been deleted in the meantime
+        if (deleted)
+            return;
         
         for (int index = 0; index < trees.size(); index++) {
             
             final LSMTree tree = trees.get(index);
+            final String snapshotFile = databaseDir + File.separator + getSnapshotFilename(index, viewId, sequenceNo);
+            
+            // an index that is already linked to the snapshot but has changed
+            // in the meantime was not written (see writeIndexSnapshot);
+            // re-linking it would discard the changes
+            if (tree.isSnapshotDirty() && snapshotFile.equals(tree.getSnapshotFile())) {
+                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "index " + index
+                    + " has changed since snapshot " + snapshotFile + " was written, dbName=" + databaseName);
+                continue;
+            }
             
             Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                    "linking to snapshot " + databaseDir + File.separator
-                            + getSnapshotFilename(index, viewId, sequenceNo) + ", dbName=" + databaseName + ", index="
-                            + index);
+                    "linking to snapshot " + snapshotFile + ", dbName=" + databaseName + ", index=" + index);
             
             // catch any I/O exception that may occur while re-linking the
             // snapshot; this is done to ensure that old checkpoints are
@@ -414,8 +642,7 @@ public class LSMDatabase {
             // state
             IOException exception = null;
             try {
-                tree.linkToSnapshot(databaseDir + File.separator
-                    + getSnapshotFilename(index, viewId, sequenceNo));
+                tree.linkToSnapshot(snapshotFile);
             } catch (ClosedByInterruptException exc) {
                 Logging.logError(Logging.LEVEL_DEBUG, this, exc);
             } catch (IOException exc) {
@@ -426,9 +653,13 @@ public class LSMDatabase {
             
             ondiskLSN = new LSN(viewId, sequenceNo);
             
+            // runs that are still in use must not be deleted
+            Set<String> runNames = new HashSet<String>(tree.getRunNames());
+            
             File f = new File(databaseDir);
             String[] files = f.list();
             Pattern p = Pattern.compile(SNAPSHOT_FILENAME_REGEXP);
+            Pattern r = Pattern.compile(RUN_FILENAME_REGEXP);
             for (String fname : files) {
                 Matcher m = p.matcher(fname);
                 if (m.matches()) {
@@ -436,7 +667,8 @@ public class LSMDatabase {
                     int fSeq = Integer.valueOf(m.group(3));
                     // delete snapshot if it is older (smaller LSN)
                     // than current
-                    if ((fView < viewId) || ((fView == viewId) && (fSeq < sequenceNo))) {
+                    if (Integer.valueOf(m.group(1)) == index && !runNames.contains(fname)
+                        && ((fView < viewId) || ((fView == viewId) && (fSeq < sequenceNo)))) {
                         File snap = new File(databaseDir + File.separator + fname);
                         if (snap.isDirectory())
                             FSUtils.delTree(snap);
@@ -445,6 +677,13 @@ public class LSMDatabase {
                     }
                     
                 }
+                
+                // delete runs that are no longer referenced, unless the
+                // index could not be linked to the new snapshot
+                m = r.matcher(fname);
+                if (exception == null && m.matches() && Integer.valueOf(m.group(1)) == index
+                    && !runNames.contains(fname))
+                    FSUtils.delTree(new File(databaseDir, fname));
             }
             
             // throw any I/O exception that has occurred before
@@ -466,6 +705,84 @@ public class LSMDatabase {
         return "IX" + indexId + "V" + viewId + "SEQ" + sequenceNo + ".idx";
     }
     
+    public static String getRunFilename(int indexId, int runId) {
+        return "IX" + indexId + "R" + runId + ".run";
+    }
+    
+    /**
+     * @param fileName
+     * @return true, if the given <code>fileName</code> matches the
+     *         run-filename-pattern, false otherwise.
+     */
+    public static boolean isRunFilename(String fileName) {
+        return new File(fileName).getName().matches(RUN_FILENAME_REGEXP);
+    }
+    
+    /**
+     * Merges on-disk runs of an index, if the number of runs on one level has
+     * reached the given fan-out. Merging takes place without blocking
+     * concurrent accesses to the index; only replacing the merged runs with
+     * the new run is synchronized with <code>commitLock</code>, which has to
+     * be the lock that is held while checkpoints are written. If the database
+     * is deleted while the runs are merged, the merged run is discarded.
+     * 
+     * @param index
+     *            the index
+     * @param fanout
+     *            the size ratio between two adjacent levels of runs
+     * @param commitLock
+     *            the lock that is held while checkpoints are written
+     * @return <code>true</code>, if runs have been merged, <code>false</code>
+     *         otherwise
+     * @throws IOException
+     *             if an I/O error occurs while merging the runs
+     */
+    public boolean compact(int index, int fanout, Object commitLock) throws IOException {
+        
+        final LSMTree tree = trees.get(index);
+        
+        List<String> runNames = tree.getRunsToCompact(fanout);
+        if (runNames == null)
+            return false;
+        
+        if (Logging.isDebug())
+            Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "merging runs " + runNames
+                + " (dbName = " + databaseName + ", index = " + index + ")");
+        
+        File tmpDir = new File(databaseDir, ".currentCompaction");
+        if (tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+        
+        try {
+            tree.mergeRuns(tmpDir.getAbsolutePath(), runNames);
+        } catch (IOException exc) {
+            if (!isDeleted())
+                throw exc;
+        }
+        
+        synchronized (commitLock) {
+            
+            // discard the merged run if the database has been deleted
+            File runDir = new File(databaseDir, getRunFilename(index, nextRunId.getAndIncrement()));
+            if (!commitFile(tmpDir, runDir)) {
+                if (tmpDir.exists())
+                    FSUtils.delTree(tmpDir);
+                return false;
+            }
+            
+            // the runs may have been replaced by a concurrent checkpoint
+            if (!tree.replaceRuns(runNames, runDir.getAbsolutePath())) {
+                FSUtils.delTree(runDir);
+                return false;
+            }
+            
+            for (String runName : runNames)
+                FSUtils.delTree(new File(databaseDir, runName));
+        }
+        
+        return true;
+    }
+    
     /**
      * 
      * @param fname
@@ -509,7 +826,8 @@ public class LSMDatabase {
             Pattern p = Pattern.compile(SNAPSHOT_FILENAME_REGEXP);
             for (String fname : files) {
                 Matcher m = p.matcher(fname);
-                m.matches();
+                if (!m.matches())
+                    continue;
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "inspecting snapshot: " + fname);
                 
                 int view = Integer.valueOf(m.group(2));
@@ -521,21 +839,31 @@ public class LSMDatabase {
                     if (seq > maxSeq)
                         maxSeq = seq;
                 }
+            }
+            
+            if (maxView > -1) {
+                String fName = getSnapshotFilename(index, maxView, maxSeq);
+                File snapshotDir = new File(databaseDir + File.separator + fName);
                 
-                if (maxView > -1) {
-                    String fName = getSnapshotFilename(index, maxView, maxSeq);
-                    File snapshotDir = new File(databaseDir + File.separator + fName);
+                if (snapshotDir.isDirectory()) {
+                    for (File file : snapshotDir.listFiles()) {
+                        result.add(new DBFileMetaData(databaseDir + File.separator + fName
+                            + File.separator + file.getName(), file.length()));
+                    }
                     
-                    if (snapshotDir.isDirectory()) {
-                        for (File file : snapshotDir.listFiles()) {
-                            result.add(new DBFileMetaData(databaseDir + File.separator + fName
-                                + File.separator + file.getName(), file.length()));
-                        }
-                    } else {
-                        // for compatibility with older versions of BabuDB
-                        result.add(new DBFileMetaData(databaseDir + File.separator + fName, snapshotDir
-                                .length()));
+                    // add the files of all runs listed in the manifest
+                    try {
+                        List<String> runNames = LSMTree.readRunManifest(snapshotDir.getAbsolutePath());
+                        if (runNames != null)
+                            for (String runName : runNames)
+                                addRunFiles(result, new File(databaseDir, runName));
+                    } catch (IOException exc) {
+                        Logging.logError(Logging.LEVEL_ERROR, this, exc);
                     }
+                } else {
+                    // for compatibility with older versions of BabuDB
+                    result.add(new DBFileMetaData(databaseDir + File.separator + fName, snapshotDir
+                            .length()));
                 }
             }
         }
@@ -543,6 +871,20 @@ public class LSMDatabase {
         return result;
     }
     
+    private static void addRunFiles(List<DBFileMetaData> result, File dir) {
+        
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        
+        for (File file : files) {
+            if (file.isDirectory())
+                addRunFiles(result, file);
+            else
+                result.add(new DBFileMetaData(file.getPath(), file.length()));
+        }
+    }
+    
     public int getDatabaseId() {
         return databaseId;
     }
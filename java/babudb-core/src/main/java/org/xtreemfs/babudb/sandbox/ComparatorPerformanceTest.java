@@ -0,0 +1,156 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+
+/**
+ * Measures the throughput of the default byte range comparator compared to a
+ * plain byte-by-byte comparison. Keys share a common prefix, like the path
+ * keys of a file system; by default, they are 40 bytes long and only differ in
+ * the last 8 bytes.
+ */
+public class ComparatorPerformanceTest {
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length > 3) {
+            System.out.println("usage: java " + ComparatorPerformanceTest.class.getCanonicalName()
+                + " [<key_length> [<prefix_length> [<num_comparisons>]]]");
+            System.exit(1);
+        }
+        
+        final int keyLength = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        final int prefixLength = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        final int numComparisons = args.length > 2 ? Integer.parseInt(args[2]) : 50000000;
+        
+        // create a set of keys with a common prefix
+        final int numKeys = 1024;
+        Random rnd = new Random(1);
+        byte[] prefix = new byte[prefixLength];
+        for (int i = 0; i < prefix.length; i++)
+            prefix[i] = (byte) ('a' + rnd.nextInt(26));
+        
+        byte[][] keys = new byte[numKeys][keyLength];
+        for (byte[] key : keys) {
+            System.arraycopy(prefix, 0, key, 0, Math.min(prefixLength, keyLength));
+            for (int i = prefixLength; i < keyLength; i++)
+                key[i] = (byte) rnd.nextInt();
+        }
+        
+        // store the keys in a heap buffer and in a direct buffer, like blocks
+        // that are read from files and memory-mapped blocks
+        ByteRange[] heapRanges = toRanges(keys, ByteBuffer.allocate(numKeys * keyLength + 1));
+        ByteRange[] directRanges = toRanges(keys, ByteBuffer.allocateDirect(numKeys * keyLength + 1));
+        
+        DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        // make sure that both comparisons produce the same order
+        for (int i = 0; i < numKeys; i++)
+            for (int j = 0; j < numKeys; j++)
+                if (Integer.signum(comp.compare(heapRanges[i], keys[j])) != Integer.signum(compareBytewise(
+                    heapRanges[i], keys[j]))
+                    || Integer.signum(comp.compare(keys[i], keys[j])) != Integer.signum(compareBytewise(
+                        keys[i], keys[j])))
+                    throw new AssertionError("inconsistent order of keys " + i + " and " + j);
+        
+        System.out.println("key length: " + keyLength + ", common prefix length: " + prefixLength
+            + ", comparisons: " + numComparisons);
+        
+        // run each benchmark twice, so that the first run warms up the VM
+        for (int run = 0; run < 2; run++) {
+            
+            String suffix = run == 0 ? " (warm-up)" : "";
+            
+            long t0 = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += compareBytewise(heapRanges[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("byte-wise, heap buffer" + suffix, t0, numComparisons, sum);
+            
+            t0 = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += comp.compare(heapRanges[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("comparator, heap buffer" + suffix, t0, numComparisons, sum);
+            
+            t0 = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += compareBytewise(directRanges[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("byte-wise, direct buffer" + suffix, t0, numComparisons, sum);
+            
+            t0 = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += comp.compare(directRanges[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("comparator, direct buffer" + suffix, t0, numComparisons, sum);
+            
+            t0 = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += compareBytewise(keys[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("byte-wise, byte arrays" + suffix, t0, numComparisons, sum);
+            
+            t0 = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < numComparisons; i++)
+                sum += comp.compare(keys[i & (numKeys - 1)], keys[(i * 7) & (numKeys - 1)]);
+            report("comparator, byte arrays" + suffix, t0, numComparisons, sum);
+        }
+    }
+    
+    private static ByteRange[] toRanges(byte[][] keys, ByteBuffer buf) {
+        
+        ByteRange[] ranges = new ByteRange[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int offset = buf.position();
+            buf.put(keys[i]);
+            ranges[i] = new ByteRange(buf, offset, buf.position());
+        }
+        
+        return ranges;
+    }
+    
+    private static void report(String name, long t0, int numComparisons, long checksum) {
+        long time = System.nanoTime() - t0;
+        System.out.println(name + ": " + (time / 1000000) + " ms, "
+            + String.format("%.2f", (double) time / numComparisons) + " ns/comparison (checksum " + checksum
+            + ")");
+    }
+    
+    private static int compareBytewise(ByteRange rng, byte[] buf) {
+        
+        int n = rng.getStartOffset() + Math.min(rng.getSize(), buf.length);
+        for (int i = rng.getStartOffset(), j = 0; i < n; i++, j++) {
+            byte v1 = rng.getBuf().get(i);
+            byte v2 = buf[j];
+            if (v1 == v2)
+                continue;
+            return v1 < v2 ? -1 : 1;
+        }
+        
+        return rng.getSize() - buf.length;
+    }
+    
+    private static int compareBytewise(byte[] buf1, byte[] buf2) {
+        
+        int n = Math.min(buf1.length, buf2.length);
+        for (int i = 0; i < n; i++) {
+            byte v1 = buf1[i];
+            byte v2 = buf2[i];
+            if (v1 == v2)
+                continue;
+            return v1 < v2 ? -1 : 1;
+        }
+        
+        return buf1.length - buf2.length;
+    }
+
+}
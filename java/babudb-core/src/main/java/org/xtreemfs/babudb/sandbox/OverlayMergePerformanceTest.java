@@ -0,0 +1,102 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.OverlayMergeIterator;
+
+/**
+ * Measures the throughput of range scans across multiple overlays, i.e. of
+ * merging k sorted iterators with an <code>OverlayMergeIterator</code>, for
+ * k = 2, 8 and 32. Each overlay contains a random set of keys; on average, 10%
+ * of all entries are tombstones.
+ */
+public class OverlayMergePerformanceTest {
+    
+    private static final byte[] NULL_VALUE = new byte[0];
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length > 2) {
+            System.out.println("usage: java " + OverlayMergePerformanceTest.class.getCanonicalName()
+                + " [<entries_per_overlay> [<num_scans>]]");
+            System.exit(1);
+        }
+        
+        final int numEntries = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int numScans = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        
+        final int[] overlayCounts = { 2, 8, 32 };
+        
+        for (int k : overlayCounts) {
+            
+            // create k overlays with random keys
+            Random rnd = new Random(k);
+            List<TreeMap<byte[], byte[]>> overlays = new ArrayList<TreeMap<byte[], byte[]>>(k);
+            for (int i = 0; i < k; i++) {
+                TreeMap<byte[], byte[]> overlay = new TreeMap<byte[], byte[]>(DefaultByteRangeComparator
+                        .getInstance());
+                while (overlay.size() < numEntries) {
+                    byte[] key = new byte[24];
+                    for (int j = 0; j < key.length; j++)
+                        key[j] = (byte) ('a' + rnd.nextInt(26));
+                    overlay.put(key, rnd.nextInt(10) == 0 ? NULL_VALUE : key);
+                }
+                overlays.add(overlay);
+            }
+            
+            CountingComparator comp = new CountingComparator();
+            
+            // run each scan twice, so that the first run warms up the VM
+            for (int run = 0; run < 2; run++) {
+                
+                long rows = 0;
+                comp.count = 0;
+                long t0 = System.nanoTime();
+                
+                for (int i = 0; i < numScans; i++) {
+                    
+                    List<Iterator<Entry<byte[], byte[]>>> itList = new ArrayList<Iterator<Entry<byte[], byte[]>>>(
+                        k);
+                    for (TreeMap<byte[], byte[]> overlay : overlays)
+                        itList.add(overlay.entrySet().iterator());
+                    
+                    OverlayMergeIterator<byte[], byte[]> it = new OverlayMergeIterator<byte[], byte[]>(itList,
+                        comp, NULL_VALUE, true);
+                    while (it.hasNext()) {
+                        it.next();
+                        rows++;
+                    }
+                    it.free();
+                }
+                
+                long time = System.nanoTime() - t0;
+                System.out.println("k = " + k + (run == 0 ? " (warm-up)" : "") + ": " + rows + " rows, "
+                    + (time / 1000000) + " ms, " + String.format("%.1f", (double) time / rows) + " ns/row, "
+                    + String.format("%.2f", (double) comp.count / rows) + " comparisons/row");
+            }
+        }
+    }
+    
+    private static class CountingComparator implements Comparator<byte[]> {
+        
+        private long count;
+        
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            count++;
+            return DefaultByteRangeComparator.getInstance().compare(o1, o2);
+        }
+    }
+
+}
@@ -11,6 +11,7 @@ package org.xtreemfs.babudb;
 import java.io.File;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
@@ -25,9 +26,15 @@ import org.xtreemfs.babudb.api.StaticInitialization;
 import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.dev.BabuDBInternal;
+import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.config.BabuDBConfig;
+import org.xtreemfs.babudb.config.ConfigBuilder;
+import org.xtreemfs.babudb.index.OverlayMemoryBudget;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.LSMDatabase;
+import org.xtreemfs.babudb.lsmdb.LSN;
 import org.xtreemfs.babudb.lsmdb.LSMLookupInterface;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.logging.Logging;
@@ -562,6 +569,579 @@ public class BabuDBTest extends TestCase {
         database.shutdown();
     }
     
+    @Test
+    public void testCheckpointRunsAndCompaction() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).setCompaction(true).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        // each checkpoint adds a new on-disk run
+        for (int i = 0; i < 4; i++) {
+            db.singleInsert(0, ("key" + i).getBytes(), ("val" + i).getBytes(), null).get();
+            db.singleInsert(0, "key0".getBytes(), ("new" + i).getBytes(), null).get();
+            if (i > 0)
+                db.singleInsert(0, ("key" + (i - 1)).getBytes(), null, null).get();
+            database.getCheckpointer().checkpoint();
+        }
+        
+        assertEquals(4, ((DatabaseInternal) db).getLSMDB().getIndex(0).getRunNames().size());
+        assertTrue(((DatabaseInternal) db).getLSMDB().compact(0, 4, database.getCheckpointer()));
+        assertEquals(1, ((DatabaseInternal) db).getLSMDB().getIndex(0).getRunNames().size());
+        
+        assertEquals("new3", new String(db.lookup(0, "key0".getBytes(), null).get()));
+        assertNull(db.lookup(0, "key1".getBytes(), null).get());
+        assertNull(db.lookup(0, "key2".getBytes(), null).get());
+        assertEquals("val3", new String(db.lookup(0, "key3".getBytes(), null).get()));
+        
+        database.shutdown();
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).setCompaction(true).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        
+        Iterator<Entry<byte[], byte[]>> it = db.prefixLookup(0, new byte[0], null).get();
+        assertEquals("key0", new String(it.next().getKey()));
+        assertEquals("key3", new String(it.next().getKey()));
+        assertFalse(it.hasNext());
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testDirectReads() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setMultiThreaded(2).setDirectReads(true).build());
+        final Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        final int numKeys = 20;
+        final int numUpdates = 50;
+        final Throwable[] error = new Throwable[1];
+        final AtomicBoolean done = new AtomicBoolean();
+        
+        for (int k = 0; k < numKeys; k++)
+            db.singleInsert(0, ("key" + k).getBytes(), "0".getBytes(), null).get();
+        
+        // look up keys concurrently while they are updated and checkpointed;
+        // the values of the keys must never decrease
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        int[] last = new int[numKeys];
+                        while (!done.get()) {
+                            for (int k = 0; k < numKeys; k++) {
+                                byte[] value = db.lookup(0, ("key" + k).getBytes(), null).get();
+                                assertNotNull(value);
+                                int v = Integer.parseInt(new String(value));
+                                assertTrue(v >= last[k]);
+                                last[k] = v;
+                            }
+                        }
+                    } catch (Throwable th) {
+                        error[0] = th;
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        
+        for (int i = 1; i <= numUpdates; i++) {
+            for (int k = 0; k < numKeys; k++)
+                db.singleInsert(0, ("key" + k).getBytes(), ("" + i).getBytes(), null).get();
+            if (i % 10 == 0)
+                database.getCheckpointer().checkpoint();
+        }
+        
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        
+        assertNull(error[0]);
+        for (int k = 0; k < numKeys; k++)
+            assertEquals("" + numUpdates, new String(db.lookup(0, ("key" + k).getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testSharding() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setMultiThreaded(4).setShards(4).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        final int numKeys = 50;
+        final int numUpdates = 20;
+        final Throwable[] error = new Throwable[1];
+        
+        // each thread updates its own keys, partly with single inserts and
+        // partly with group inserts that span multiple shards
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        Database db = database.getDatabaseManager().getDatabase("test");
+                        for (int i = 1; i <= numUpdates; i++) {
+                            if (i % 2 == 0) {
+                                DatabaseInsertGroup ig = db.createInsertGroup();
+                                for (int k = 0; k < numKeys; k++)
+                                    ig.addInsert(0, ("key" + id + "." + k).getBytes(), ("" + i).getBytes());
+                                db.insert(ig, null).get();
+                            } else {
+                                for (int k = 0; k < numKeys; k++)
+                                    db.singleInsert(0, ("key" + id + "." + k).getBytes(), ("" + i).getBytes(),
+                                        null).get();
+                            }
+                        }
+                    } catch (Throwable th) {
+                        error[0] = th;
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        
+        for (Thread writer : writers)
+            writer.join();
+        assertNull(error[0]);
+        
+        for (int run = 0; run < 2; run++) {
+            
+            for (int t = 0; t < writers.length; t++) {
+                for (int k = 0; k < numKeys; k++)
+                    assertEquals("" + numUpdates, new String(db.lookup(0, ("key" + t + "." + k).getBytes(), null)
+                            .get()));
+                
+                Iterator<Entry<byte[], byte[]>> it = db.prefixLookup(0, ("key" + t + ".").getBytes(), null).get();
+                int count = 0;
+                while (it.hasNext()) {
+                    assertEquals("" + numUpdates, new String(it.next().getValue()));
+                    count++;
+                }
+                assertEquals(numKeys, count);
+            }
+            
+            // restart the database and replay the log
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+                SyncMode.ASYNC).setMultiThreaded(4).setShards(4).build());
+            db = database.getDatabaseManager().getDatabase("test");
+        }
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testShardedLookupsSeePrecedingInserts() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setMultiThreaded(4).setShards(4).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        final int numKeys = 50;
+        
+        // prefix and range lookups that are issued right after asynchronous
+        // inserts have to reflect the inserts, regardless of their shards
+        for (int round = 0; round < 20; round++) {
+            
+            for (int k = 0; k < numKeys; k++)
+                db.singleInsert(0, ("p" + round + "." + k).getBytes(), "v".getBytes(), null);
+            
+            Iterator<Entry<byte[], byte[]>> it = db.prefixLookup(0, ("p" + round + ".").getBytes(), null).get();
+            int count = 0;
+            for (; it.hasNext(); it.next())
+                count++;
+            assertEquals(numKeys, count);
+            
+            for (int k = 0; k < numKeys; k++)
+                db.singleInsert(0, ("r" + round + "." + k).getBytes(), "v".getBytes(), null);
+            
+            it = db.rangeLookup(0, ("r" + round + ".").getBytes(), ("r" + round + "/").getBytes(), null).get();
+            count = 0;
+            for (; it.hasNext(); it.next())
+                count++;
+            assertEquals(numKeys, count);
+        }
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testOverlayMemoryBudget() throws Exception {
+        
+        final int budget = 1024 * 1024;
+        final int numKeys = 100;
+        final int valueSize = 64 * 1024;
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setOverlayMemoryBudget(1).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        // the overlays must never exceed the budget by more than the last
+        // insertion
+        for (int i = 0; i < numKeys; i++) {
+            byte[] value = new byte[valueSize];
+            value[0] = (byte) i;
+            db.singleInsert(0, ("key" + i).getBytes(), value, null).get();
+            assertTrue(OverlayMemoryBudget.getInstance().getSize() <= budget + 2 * valueSize);
+        }
+        
+        // checkpoints must have been triggered by the budget
+        assertTrue((Integer) database.getRuntimeState("checkpointer.cpCount") > 0);
+        
+        // wait for pending checkpoints
+        database.getCheckpointer().checkpoint();
+        assertEquals(0L, database.getRuntimeState("checkpointer.overlaySize"));
+        
+        for (int run = 0; run < 2; run++) {
+            
+            for (int i = 0; i < numKeys; i++) {
+                byte[] result = db.lookup(0, ("key" + i).getBytes(), null).get();
+                assertEquals(valueSize, result.length);
+                assertEquals((byte) i, result[0]);
+            }
+            
+            // restart the database and replay the log
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+                SyncMode.ASYNC).setOverlayMemoryBudget(1).build());
+            db = database.getDatabaseManager().getDatabase("test");
+        }
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testIncrementalCheckpoint() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        ig.addInsert(0, "Yagga".getBytes(), "Brabbel".getBytes());
+        ig.addInsert(1, "Brabbel".getBytes(), "Blupp".getBytes());
+        db.insert(ig, null).get();
+        database.getCheckpointer().checkpoint();
+        
+        // mark the on-disk snapshots of both indices
+        LSMDatabase lsmDB = ((DatabaseInternal) db).getLSMDB();
+        for (int i = 0; i < 2; i++)
+            assertTrue(new File(lsmDB.getIndex(i).getSnapshotFile(), "marker").createNewFile());
+        
+        // only modify the first index
+        db.singleInsert(0, "Yagga".getBytes(), "Blahh".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        
+        // the snapshot of the first index must have been rewritten, unless
+        // the insertion had not been logged yet and the checkpoint has the
+        // same LSN as the previous one, whereas the snapshot of the second
+        // index must have been carried forward
+        assertTrue(!new File(lsmDB.getIndex(0).getSnapshotFile(), "marker").exists()
+            || lsmDB.getIndex(0).isSnapshotDirty());
+        assertTrue(new File(lsmDB.getIndex(1).getSnapshotFile(), "marker").exists());
+        assertEquals(lsmDB.getOndiskLSN(), LSMDatabase.getSnapshotLSNbyFilename(lsmDB.getIndex(1)
+                .getSnapshotFile()));
+        assertEquals("Blahh", new String(db.lookup(0, "Yagga".getBytes(), null).get()));
+        
+        // restart the database and check its content
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        assertEquals("Blahh", new String(db.lookup(0, "Yagga".getBytes(), null).get()));
+        assertEquals("Blupp", new String(db.lookup(1, "Brabbel".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testCheckpointAfterAsyncInsert() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        // insertions that are still queued for the log when the checkpoint
+        // is created must neither be lost in memory nor on disk
+        for (int i = 0; i < 50; i++) {
+            db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+            database.getCheckpointer().checkpoint();
+            for (int j = 0; j <= i; j++)
+                assertEquals("value" + j, new String(db.lookup(0, ("key" + j).getBytes(), null).get()));
+        }
+        
+        // restart the database and check its content
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        for (int i = 0; i < 50; i++)
+            assertEquals("value" + i, new String(db.lookup(0, ("key" + i).getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testCrashBetweenIndexCommits() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 3);
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        for (int i = 0; i < 3; i++)
+            ig.addInsert(i, "Yagga".getBytes(), "Brabbel".getBytes());
+        db.insert(ig, null).get();
+        database.getCheckpointer().checkpoint();
+        
+        ig = db.createInsertGroup();
+        for (int i = 0; i < 3; i++)
+            ig.addInsert(i, "Yagga".getBytes(), "Blahh".getBytes());
+        db.insert(ig, null).get();
+        
+        // simulate a crash during a parallel checkpoint, after the snapshots
+        // of the last two indices but not of the first one were committed
+        LSMDatabase lsmDB = ((DatabaseInternal) db).getLSMDB();
+        LSN lsn = ((BabuDBInternal) database).getTransactionManager().getLatestOnDiskLSN();
+        int[] snapIds = lsmDB.createSnapshot();
+        for (int i = 1; i < 3; i++)
+            lsmDB.writeSnapshot(i, lsn.getViewId(), lsn.getSequenceNo(), snapIds[i]);
+        
+        ((BabuDBImpl) database).__test_killDB_dangerous();
+        Thread.sleep(500);
+        
+        // the log has to be replayed from the LSN of the first index on
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        for (int i = 0; i < 3; i++)
+            assertEquals("Blahh", new String(db.lookup(i, "Yagga".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    public void testModifyDatabasesDuringCheckpoint() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        final DatabaseManager dbMan = database.getDatabaseManager();
+        Database db = dbMan.createDatabase("test", 1);
+        db.singleInsert(0, "Yagga".getBytes(), "Brabbel".getBytes(), null).get();
+        Database deleted = dbMan.createDatabase("deleted", 1);
+        deleted.singleInsert(0, "Blupp".getBytes(), "Blahh".getBytes(), null).get();
+        
+        // databases must be created and deleted while the checkpointer is
+        // busy writing index snapshots
+        final Exception[] error = new Exception[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    dbMan.deleteDatabase("test2");
+                } catch (Exception exc) {
+                    error[0] = exc;
+                }
+            }
+        };
+        dbMan.createDatabase("test2", 1);
+        synchronized (database.getCheckpointer()) {
+            t.start();
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertNull(error[0]);
+        
+        // delete a database after its snapshot has been created; writing
+        // and linking the snapshot must not fail, and no files must remain
+        LSMDatabase lsmDB = ((DatabaseInternal) deleted).getLSMDB();
+        int[] snapIds = lsmDB.createSnapshot();
+        dbMan.deleteDatabase("deleted");
+        lsmDB.writeSnapshot(1, 100, snapIds);
+        lsmDB.cleanupSnapshot(1, 100);
+        assertFalse(new File(baseDir, "deleted/" + LSMDatabase.getSnapshotFilename(0, 1, 100)).exists());
+        assertFalse(new File(baseDir, "deleted/.currentSnapshot0").exists());
+        
+        // re-create the database under the same name and restart
+        Database created = dbMan.createDatabase("deleted", 1);
+        created.singleInsert(0, "Yagga".getBytes(), "Blupp".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        assertEquals("Brabbel", new String(db.lookup(0, "Yagga".getBytes(), null).get()));
+        created = database.getDatabaseManager().getDatabase("deleted");
+        assertEquals("Blupp", new String(created.lookup(0, "Yagga".getBytes(), null).get()));
+        assertNull(created.lookup(0, "Blupp".getBytes(), null).get());
+        
+        database.shutdown();
+    }
+    
+    public void testParallelCheckpoint() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setCheckpointThreads(4).build());
+        for (int i = 0; i < 3; i++)
+            database.getDatabaseManager().createDatabase("test" + i, 3);
+        
+        // write two checkpoints, the second one only containing changes of
+        // some of the indices
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 3; i++) {
+                Database db = database.getDatabaseManager().getDatabase("test" + i);
+                DatabaseInsertGroup ig = db.createInsertGroup();
+                for (int j = round; j < 3; j++)
+                    for (int k = 0; k < 100; k++)
+                        ig.addInsert(j, ("key" + k).getBytes(), ("val" + i + j + k + round).getBytes());
+                db.insert(ig, null).get();
+            }
+            database.getCheckpointer().checkpoint();
+        }
+        
+        // restart the database and check its content
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.ASYNC).setCheckpointThreads(4).build());
+        LSN lsn = null;
+        for (int i = 0; i < 3; i++) {
+            Database db = database.getDatabaseManager().getDatabase("test" + i);
+            LSMDatabase lsmDB = ((DatabaseInternal) db).getLSMDB();
+            if (lsn == null)
+                lsn = lsmDB.getOndiskLSN();
+            assertEquals(lsn, lsmDB.getOndiskLSN());
+            for (int j = 0; j < 3; j++) {
+                assertFalse(new File(baseDir, "test" + i + "/.currentSnapshot" + j).exists());
+                for (int k = 0; k < 100; k++)
+                    assertEquals("val" + i + j + k + (j == 0 ? 0 : 1), new String(db.lookup(j,
+                        ("key" + k).getBytes(), null).get()));
+            }
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testParallelReplay() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        for (int i = 0; i < 4; i++)
+            database.getDatabaseManager().createDatabase("test" + i, 2);
+        
+        // insert into all databases in an interleaved fashion; recreate one of
+        // the databases in between, which has to act as a barrier
+        for (int round = 0; round < 2; round++) {
+            if (round == 1) {
+                database.getDatabaseManager().deleteDatabase("test1");
+                database.getDatabaseManager().createDatabase("test1", 2);
+            }
+            for (int k = 0; k < 100; k++) {
+                for (int i = 0; i < 4; i++) {
+                    Database db = database.getDatabaseManager().getDatabase("test" + i);
+                    DatabaseInsertGroup ig = db.createInsertGroup();
+                    ig.addInsert(0, ("key" + k).getBytes(), ("val" + i + k + round).getBytes());
+                    ig.addInsert(1, ("key" + k + "-" + round).getBytes(), ("val" + i + k).getBytes());
+                    if (k % 2 == 1)
+                        ig.addDelete(1, ("key" + (k - 1) + "-" + round).getBytes());
+                    db.insert(ig, null).get();
+                }
+            }
+        }
+        LSN lsn = ((BabuDBInternal) database).getTransactionManager().getLatestOnDiskLSN();
+        
+        // replay the log w/ multiple threads
+        ((BabuDBImpl) database).__test_killDB_dangerous();
+        Thread.sleep(500);
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).setReplayThreads(4).build());
+        assertEquals(lsn, ((BabuDBInternal) database).getTransactionManager().getLatestOnDiskLSN());
+        
+        for (int i = 0; i < 4; i++) {
+            Database db = database.getDatabaseManager().getDatabase("test" + i);
+            for (int k = 0; k < 100; k++) {
+                assertEquals("val" + i + k + 1, new String(db.lookup(0, ("key" + k).getBytes(), null).get()));
+                
+                // insertions into the deleted database must not have been
+                // applied to the new one
+                for (int round = 0; round < 2; round++) {
+                    byte[] value = db.lookup(1, ("key" + k + "-" + round).getBytes(), null).get();
+                    if (k % 2 == 0 || (i == 1 && round == 0))
+                        assertNull(value);
+                    else
+                        assertEquals("val" + i + k, new String(value));
+                }
+            }
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testLazyOpen() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        for (int i = 0; i < 10; i++) {
+            Database db = database.getDatabaseManager().createDatabase("test" + i, 2);
+            for (int k = 0; k < 20; k++)
+                db.singleInsert(k % 2, ("key" + k).getBytes(), ("val" + i + k).getBytes(), null).get();
+        }
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        
+        // open the indices on demand, with and w/o pre-opening them
+        for (boolean preOpen : new boolean[] { false, true }) {
+            
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir)
+                    .setLogAppendSyncMode(SyncMode.SYNC_WRITE).setLazyOpenIndices(true, preOpen).build());
+            for (int i = 0; i < 10; i++) {
+                Database db = database.getDatabaseManager().getDatabase("test" + i);
+                for (int k = 0; k < 20; k++)
+                    assertEquals("val" + i + k, new String(db.lookup(k % 2, ("key" + k).getBytes(), null)
+                            .get()));
+                
+                Iterator<Entry<byte[], byte[]>> it = db.prefixLookup(1, new byte[0], null).get();
+                int count = 0;
+                for (; it.hasNext(); it.next())
+                    count++;
+                assertEquals(10, count);
+            }
+            database.shutdown();
+        }
+    }
+    
+    public void testCarryForwardUnopenedIndex() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        for (int k = 0; k < 20; k++)
+            db.singleInsert(k % 2, ("key" + k).getBytes(), ("val" + k).getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).setLazyOpenIndices(true, false).build());
+        db = database.getDatabaseManager().getDatabase("test");
+        db.singleInsert(0, "key0".getBytes(), "newVal".getBytes(), null).get();
+        
+        // carry the unchanged, unopened second index forward to a new
+        // snapshot name without linking the tree to the new snapshot yet
+        LSMDatabase lsmDB = ((DatabaseInternal) db).getLSMDB();
+        LSN lsn = ((BabuDBInternal) database).getTransactionManager().getLatestOnDiskLSN();
+        int[] snapIds = lsmDB.createSnapshot();
+        lsmDB.writeSnapshot(1, lsn.getViewId(), lsn.getSequenceNo(), snapIds[1]);
+        
+        // the index must remain accessible
+        for (int k = 1; k < 20; k += 2)
+            assertEquals("val" + k, new String(db.lookup(1, ("key" + k).getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(BabuDBTest.class);
     }
@@ -20,9 +20,12 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.xtreemfs.babudb.api.BabuDB;
+import org.xtreemfs.babudb.api.DatabaseManager;
 import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
+import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.config.BabuDBConfig;
+import org.xtreemfs.babudb.config.ConfigBuilder;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.logging.Logging;
@@ -182,6 +185,67 @@ public class ConcurrencyTest extends TestCase {
         database.shutdown();
     }
 
+    @Test
+    public void testConcurrentTransactions() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.FSYNC).setMultiThreaded(4).build());
+        
+        final int numThreads = 8;
+        final int numTxns = 200;
+        for (int i = 0; i < numThreads; i++)
+            database.getDatabaseManager().createDatabase("test" + i, 1);
+        
+        // execute transactions on disjoint databases, first with a single
+        // thread, then with multiple threads concurrently
+        for (int threads : new int[] { 1, numThreads }) {
+            
+            final Throwable[] error = new Throwable[1];
+            final String prefix = "run" + threads + ".";
+            
+            Thread[] clients = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final String dbName = "test" + t;
+                clients[t] = new Thread() {
+                    public void run() {
+                        try {
+                            DatabaseManager dbMan = database.getDatabaseManager();
+                            for (int i = 0; i < numTxns; i++) {
+                                Transaction txn = dbMan.createTransaction();
+                                txn.insertRecord(dbName, 0, (prefix + i + ".a").getBytes(), "a".getBytes());
+                                txn.insertRecord(dbName, 0, (prefix + i + ".b").getBytes(), "b".getBytes());
+                                dbMan.executeTransaction(txn);
+                            }
+                        } catch (Throwable th) {
+                            error[0] = th;
+                        }
+                    }
+                };
+            }
+            
+            long t0 = System.nanoTime();
+            for (Thread client : clients)
+                client.start();
+            for (Thread client : clients)
+                client.join();
+            long time = System.nanoTime() - t0;
+            
+            assertNull(error[0]);
+            System.out.println(threads + " thread(s): " + (threads * numTxns) + " transactions, "
+                + (time / 1000000) + " ms, " + (long) (threads * numTxns * 1e9 / time) + " transactions/s");
+            
+            for (int t = 0; t < threads; t++) {
+                Database db = database.getDatabaseManager().getDatabase("test" + t);
+                for (int i = 0; i < numTxns; i++) {
+                    assertEquals("a", new String(db.lookup(0, (prefix + i + ".a").getBytes(), null).get()));
+                    assertEquals("b", new String(db.lookup(0, (prefix + i + ".b").getBytes(), null).get()));
+                }
+            }
+        }
+        
+        database.shutdown();
+    }
+    
     private void assertEquals(byte[] b1, byte[] b2) {
         assertEquals(b1.length, b2.length);
         for (int i = 0; i < b1.length; i++)
@@ -458,6 +458,41 @@ public class TransactionTest extends TestCase {
         }
     }
     
+    @Test
+    public void testWorkersUnlockedAfterFailedTransaction() throws Exception {
+        
+        DatabaseManager dbMan = database.getDatabaseManager();
+        final Database db = dbMan.createDatabase("test", 1);
+        
+        // execute a transaction that cannot be serialized
+        Transaction txn = dbMan.createTransaction();
+        txn.insertRecord("test", 0, null, "value".getBytes());
+        try {
+            dbMan.executeTransaction(txn);
+            fail();
+        } catch (Exception exc) {
+            // expected
+        }
+        
+        // the worker responsible for the database must not remain locked
+        final Throwable[] error = new Throwable[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    db.singleInsert(0, "key".getBytes(), "value".getBytes(), null).get();
+                } catch (Throwable th) {
+                    error[0] = th;
+                }
+            }
+        };
+        writer.start();
+        writer.join(10000);
+        
+        assertFalse(writer.isAlive());
+        assertNull(error[0]);
+        assertEquals("value", new String(db.lookup(0, "key".getBytes(), null).get()));
+    }
+    
     private static String intToString(int num, int numDigits) {
         
         String pattern = "";
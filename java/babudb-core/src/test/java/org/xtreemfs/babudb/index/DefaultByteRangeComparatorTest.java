@@ -0,0 +1,202 @@
+/*
+ * Licensed under the BSD License, see LICENSE file for details.
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+public class DefaultByteRangeComparatorTest extends TestCase {
+    
+    private static final byte[]        VALUES = { Byte.MIN_VALUE, -1, 0, 1, Byte.MAX_VALUE };
+    
+    private DefaultByteRangeComparator comp;
+    
+    public void setUp() throws Exception {
+        comp = DefaultByteRangeComparator.getInstance();
+    }
+    
+    public void testNegativeBytesInsideWord() {
+        
+        byte[] key1 = new byte[16];
+        byte[] key2 = new byte[16];
+        
+        // bytes are compared as signed values
+        key1[3] = Byte.MIN_VALUE;
+        key2[3] = Byte.MAX_VALUE;
+        assertOrder(key1, key2);
+        
+        key1[3] = -1;
+        key2[3] = 1;
+        assertOrder(key1, key2);
+        
+        key1[3] = -2;
+        key2[3] = -1;
+        assertOrder(key1, key2);
+        
+        key1[3] = 0;
+        key2[3] = 0;
+        key1[13] = -1;
+        assertOrder(key1, key2);
+    }
+    
+    public void testFirstAndLastByteOfWord() {
+        
+        // a difference in byte 0 takes precedence over one in byte 7
+        byte[] key1 = { 0, 0, 0, 0, 0, 0, 0, Byte.MAX_VALUE };
+        byte[] key2 = { 1, 0, 0, 0, 0, 0, 0, Byte.MIN_VALUE };
+        assertOrder(key1, key2);
+        
+        key1 = new byte[] { -1, 0, 0, 0, 0, 0, 0, 1 };
+        key2 = new byte[] { 0, 0, 0, 0, 0, 0, 0, -1 };
+        assertOrder(key1, key2);
+        
+        key1 = new byte[] { 5, 0, 0, 0, 0, 0, 0, -1, 0 };
+        key2 = new byte[] { 5, 0, 0, 0, 0, 0, 0, 0, 0 };
+        assertOrder(key1, key2);
+    }
+    
+    public void testDifferenceAfterWordBoundary() {
+        
+        byte[] key1 = { 1, 2, 3, 4, 5, 6, 7, 8, -1 };
+        byte[] key2 = { 1, 2, 3, 4, 5, 6, 7, 8, 0 };
+        assertOrder(key1, key2);
+        
+        key1 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 0, 0, 0, 0, 0, 0, 0 };
+        key2 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 10, 0, 0, 0, 0, 0, 0, 0 };
+        assertOrder(key1, key2);
+        
+        key1 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, Byte.MIN_VALUE };
+        key2 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, Byte.MAX_VALUE };
+        assertOrder(key1, key2);
+    }
+    
+    public void testLengthOnly() {
+        
+        assertOrder(new byte[0], new byte[] { Byte.MIN_VALUE });
+        assertOrder(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 3, 0 });
+        assertOrder(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, Byte.MIN_VALUE });
+        assertOrder(new byte[] { 1, 2, 3, 4, 5, 6, 7 }, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13,
+            14, 15, 16 });
+        
+        byte[] key = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        assertEqual(key, key.clone());
+        assertEqual(new byte[0], new byte[0]);
+    }
+    
+    public void testRandomKeys() {
+        
+        Random rnd = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            
+            byte[] key1 = randomKey(rnd);
+            byte[] key2 = randomKey(rnd);
+            
+            // derive the second key from the first one in most cases, so
+            // that the keys share a prefix
+            if (rnd.nextInt(4) != 0 && key1.length > 0) {
+                key2 = new byte[key1.length + rnd.nextInt(3) - 1];
+                System.arraycopy(key1, 0, key2, 0, Math.min(key1.length, key2.length));
+                if (key2.length > 0 && rnd.nextBoolean())
+                    key2[rnd.nextInt(key2.length)] = VALUES[rnd.nextInt(VALUES.length)];
+            }
+            
+            int expected = referenceCompare(key1, key2);
+            if (expected < 0)
+                assertOrder(key1, key2);
+            else if (expected > 0)
+                assertOrder(key2, key1);
+            else
+                assertEqual(key1, key2);
+        }
+    }
+    
+    private byte[] randomKey(Random rnd) {
+        byte[] key = new byte[rnd.nextInt(20)];
+        for (int i = 0; i < key.length; i++)
+            key[i] = VALUES[rnd.nextInt(VALUES.length)];
+        return key;
+    }
+    
+    /**
+     * Checks that <code>key1</code> sorts before <code>key2</code> with both
+     * comparison methods, and for byte ranges at all offsets within a word
+     * of heap and direct buffers.
+     */
+    private void assertOrder(byte[] key1, byte[] key2) {
+        
+        assertTrue(referenceCompare(key1, key2) < 0);
+        
+        assertTrue(comp.compare(key1, key2) < 0);
+        assertTrue(comp.compare(key2, key1) > 0);
+        
+        for (ByteRange rng : toRanges(key1))
+            assertTrue(describe(rng), comp.compare(rng, key2) < 0);
+        for (ByteRange rng : toRanges(key2))
+            assertTrue(describe(rng), comp.compare(rng, key1) > 0);
+    }
+    
+    private void assertEqual(byte[] key1, byte[] key2) {
+        
+        assertEquals(0, comp.compare(key1, key2));
+        assertEquals(0, comp.compare(key2, key1));
+        
+        for (ByteRange rng : toRanges(key1))
+            assertEquals(describe(rng), 0, comp.compare(rng, key2));
+    }
+    
+    /**
+     * Creates byte ranges holding the given key at unaligned offsets in heap
+     * and direct buffers of either byte order. The bytes around the key are
+     * filled with garbage.
+     */
+    private static ByteRange[] toRanges(byte[] key) {
+        
+        ByteOrder[] orders = { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN };
+        ByteRange[] ranges = new ByteRange[8 * 2 * orders.length];
+        
+        int n = 0;
+        for (int offset = 0; offset < 8; offset++) {
+            for (ByteOrder order : orders) {
+                for (int direct = 0; direct < 2; direct++) {
+                    
+                    int size = offset + key.length + 9;
+                    ByteBuffer buf = direct == 0 ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+                    buf.order(order);
+                    
+                    for (int i = 0; i < size; i++)
+                        buf.put(i, (byte) 0x5A);
+                    for (int i = 0; i < key.length; i++)
+                        buf.put(offset + i, key[i]);
+                    
+                    ranges[n++] = new ByteRange(buf, offset, offset + key.length);
+                }
+            }
+        }
+        
+        return ranges;
+    }
+    
+    private static String describe(ByteRange rng) {
+        return rng.getBuf() + " " + rng.getBuf().order() + ", offset " + rng.getStartOffset();
+    }
+    
+    private static int referenceCompare(byte[] key1, byte[] key2) {
+        
+        for (int i = 0; i < Math.min(key1.length, key2.length); i++)
+            if (key1[i] != key2[i])
+                return key1[i] < key2[i] ? -1 : 1;
+        
+        return key1.length - key2.length;
+    }
+    
+    public static void main(String[] args) {
+        TestRunner.run(DefaultByteRangeComparatorTest.class);
+    }
+
+}
@@ -13,6 +13,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
@@ -25,7 +26,9 @@ import junit.textui.TestRunner;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.reader.BlockCache;
 import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.babudb.index.reader.InternalDiskIndexIterator;
 import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -175,11 +178,432 @@ public class DiskIndexTest extends TestCase {
         // System.out.println(time + " ms");
         // System.out.println(count * 1000 / time + " lookups/s");
         
+        diskIndex.destroy();
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testLargeBlockFiles() throws Exception {
+        
+        // initialize a map that is large enough to span multiple chunks of
+        // the writer in each block file
+        SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            byte[] value = new byte[100 + rnd.nextInt(100)];
+            rnd.nextBytes(value);
+            map.put(("key" + i).getBytes(), value);
+        }
+        
+        FSUtils.delTree(new File(PATH1));
+        
+        // write the map to a disk index w/ synchronous writes
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, 3 * 1024 * 1024, true);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        File[] blockFiles = new File(PATH1).listFiles();
+        int numBlockFiles = 0;
+        for (File file : blockFiles)
+            if (file.getName().startsWith("blockfile_"))
+                numBlockFiles++;
+        assertTrue(numBlockFiles > 1);
+        
+        // look up each element
+        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+            MMAPED);
+        for (Entry<byte[], byte[]> next : map.entrySet()) {
+            byte[] result = diskIndex.lookup(next.getKey());
+            assertEquals(0, COMP.compare(result, next.getValue()));
+        }
+        
+        diskIndex.destroy();
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testFormatVersions() throws Exception {
+        
+        SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // write the map in both format versions
+        FSUtils.delTree(new File(PATH1));
+        FSUtils.delTree(new File(PATH2));
+        new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE, false, DiskIndex.FORMAT_V1)
+                .writeIndex(getBufferIterator(map.entrySet().iterator()));
+        new DiskIndexWriter(PATH2, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE)
+                .writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        // both indices have to contain the same entries
+        for (String path : new String[] { PATH1, PATH2 }) {
+            
+            DiskIndex diskIndex = new DiskIndex(path, new DefaultByteRangeComparator(), COMPRESSED, MMAPED);
+            assertEquals(path == PATH1 ? DiskIndex.FORMAT_V1 : DiskIndex.FORMAT_V2, diskIndex
+                    .getFormatVersion());
+            
+            for (Entry<byte[], byte[]> next : map.entrySet())
+                assertEquals(0, COMP.compare(next.getValue(), diskIndex.lookup(next.getKey())));
+            assertEquals(map.size(), diskIndex.numKeys());
+            
+            ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, true);
+            for (Entry<byte[], byte[]> next : map.entrySet())
+                assertEquals(0, COMP.compare(next.getKey(), it.next().getKey()));
+            assertFalse(it.hasNext());
+            
+            diskIndex.destroy();
+        }
+        
+        // format version 1 does not support block files larger than 2 GB
+        try {
+            new DiskIndexWriter(PATH1 + "x", MAX_BLOCK_ENTRIES, COMPRESSED, 3L * 1024 * 1024 * 1024, false,
+                DiskIndex.FORMAT_V1);
+            fail();
+        } catch (IllegalArgumentException exc) {
+            // ignore
+        }
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testBlockHashIndex() throws Exception {
+        
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // write the map with hash tables in all blocks
+        FSUtils.delTree(new File(PATH1));
+        new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE, false, DiskIndex.FORMAT_V2,
+            true).writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        for (boolean mmaped : new boolean[] { false, true }) {
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, new DefaultByteRangeComparator(), COMPRESSED, mmaped);
+            
+            // look up all existing keys
+            for (Entry<byte[], byte[]> next : map.entrySet())
+                assertEquals(0, COMP.compare(next.getValue(), diskIndex.lookup(next.getKey())));
+            assertEquals(map.size(), diskIndex.numKeys());
+            
+            // look up some non-existing keys
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = createRandomString(1, 15).getBytes();
+                if (!map.containsKey(key))
+                    assertNull(diskIndex.lookup(key));
+            }
+            assertNull(diskIndex.lookup(new byte[0]));
+            
+            // range lookups must not be affected by the hash tables
+            ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, true);
+            for (Entry<byte[], byte[]> next : map.entrySet()) {
+                Entry<byte[], byte[]> entry = it.next();
+                assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+            }
+            assertFalse(it.hasNext());
+            
+            it = diskIndex.rangeLookup(null, null, false);
+            for (Entry<byte[], byte[]> next : map.descendingMap().entrySet())
+                assertEquals(0, COMP.compare(next.getKey(), it.next().getKey()));
+            assertFalse(it.hasNext());
+            
+            diskIndex.destroy();
+        }
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testFrontCodedBlocks() throws Exception {
+        
+        // create hierarchical path keys, which share long prefixes with their
+        // predecessors but not with all other keys in the same block
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++)
+            map.put(("/volume" + rnd.nextInt(4) + "/dir" + rnd.nextInt(20) + "/file" + rnd.nextInt(1000))
+                    .getBytes(), createRandomString(1, 15).getBytes());
+        
+        // write the map with and without compression
+        FSUtils.delTree(new File(PATH1));
+        FSUtils.delTree(new File(PATH2));
+        new DiskIndexWriter(PATH1, 64, true, MAX_BLOCK_FILE_SIZE).writeIndex(getBufferIterator(map.entrySet()
+                .iterator()));
+        new DiskIndexWriter(PATH2, 64, false, MAX_BLOCK_FILE_SIZE).writeIndex(getBufferIterator(map.entrySet()
+                .iterator()));
+        
+        long compressedSize = 0;
+        for (File file : new File(PATH1).listFiles())
+            compressedSize += file.length();
+        long uncompressedSize = 0;
+        for (File file : new File(PATH2).listFiles())
+            uncompressedSize += file.length();
+        assertTrue(compressedSize < uncompressedSize);
+        
+        for (boolean mmaped : new boolean[] { false, true }) {
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, new DefaultByteRangeComparator(), true, mmaped);
+            
+            // look up all existing keys and some non-existing keys
+            for (Entry<byte[], byte[]> next : map.entrySet())
+                assertEquals(0, COMP.compare(next.getValue(), diskIndex.lookup(next.getKey())));
+            assertNull(diskIndex.lookup("/volume0/dir0/file".getBytes()));
+            assertNull(diskIndex.lookup("/volume0/dir0/file99999".getBytes()));
+            assertNull(diskIndex.lookup("/volume9".getBytes()));
+            assertNull(diskIndex.lookup(new byte[0]));
+            
+            // iterate over all entries in both directions
+            ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, true);
+            for (Entry<byte[], byte[]> next : map.entrySet()) {
+                Entry<byte[], byte[]> entry = it.next();
+                assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+            }
+            assertFalse(it.hasNext());
+            
+            it = diskIndex.rangeLookup(null, null, false);
+            for (Entry<byte[], byte[]> next : map.descendingMap().entrySet())
+                assertEquals(0, COMP.compare(next.getKey(), it.next().getKey()));
+            assertFalse(it.hasNext());
+            
+            // perform range lookups with bounds that are not contained
+            byte[] from = "/volume1/dir1".getBytes();
+            byte[] to = "/volume2/dir15/file5".getBytes();
+            it = diskIndex.rangeLookup(from, to, true);
+            for (byte[] key : map.subMap(from, to).keySet())
+                assertEquals(0, COMP.compare(key, it.next().getKey()));
+            assertFalse(it.hasNext());
+            
+            // descending lookups exclude the first and include the last key
+            it = diskIndex.rangeLookup(from, to, false);
+            for (byte[] key : map.subMap(from, false, to, true).descendingKeySet())
+                assertEquals(0, COMP.compare(key, it.next().getKey()));
+            assertFalse(it.hasNext());
+            
+            diskIndex.destroy();
+        }
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testSegmentedBlockFiles() throws Exception {
+        
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 5; i++) {
+            byte[] value = new byte[10 + rnd.nextInt(100)];
+            rnd.nextBytes(value);
+            map.put(("key" + i).getBytes(), value);
+        }
+        
+        // write the map to a single block file
+        FSUtils.delTree(new File(PATH1));
+        new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, Long.MAX_VALUE).writeIndex(getBufferIterator(map
+                .entrySet().iterator()));
+        
+        // map the block file in segments that are much smaller than the file
+        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED, true,
+            64 * 1024);
+        assertTrue(diskIndex.getSize() > 10 * 64 * 1024);
+        
+        for (Entry<byte[], byte[]> next : map.entrySet())
+            assertEquals(0, COMP.compare(next.getValue(), diskIndex.lookup(next.getKey())));
+        assertEquals(map.size(), diskIndex.numKeys());
+        
+        // iterate over all entries in both directions
+        ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, true);
+        for (Entry<byte[], byte[]> next : map.entrySet()) {
+            Entry<byte[], byte[]> entry = it.next();
+            assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+            assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+        }
+        assertFalse(it.hasNext());
+        
+        it = diskIndex.rangeLookup(null, null, false);
+        for (Entry<byte[], byte[]> next : map.descendingMap().entrySet())
+            assertEquals(0, COMP.compare(next.getKey(), it.next().getKey()));
+        assertFalse(it.hasNext());
+        
         diskIndex.destroy();
 
         assertNoBlockfiles();
     }
     
+    public void testBloomFilter() throws Exception {
+        
+        // create a disk index from a set of random keys
+        byte[][] entries = createRandomByteArrays(NUM_ENTRIES);
+        populateDiskIndex(entries);
+        assertTrue(new File(PATH2, BloomFilter.FILENAME).exists());
+        
+        // look up each contained key
+        DiskIndex diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, MMAPED);
+        for (byte[] entry : entries)
+            assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+        
+        // look up keys that are not contained
+        HashSet<ByteBuffer> keys = new HashSet<ByteBuffer>();
+        for (byte[] entry : entries)
+            keys.add(ByteBuffer.wrap(entry));
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = createRandomString(1, 128).getBytes();
+            if (!keys.contains(ByteBuffer.wrap(key)))
+                assertNull(diskIndex.lookup(key));
+        }
+        diskIndex.destroy();
+        
+        // make sure that indices without Bloom filters can still be read
+        assertTrue(new File(PATH2, BloomFilter.FILENAME).delete());
+        diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, MMAPED);
+        for (byte[] entry : entries)
+            assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+        assertNull(diskIndex.lookup(new byte[0]));
+        diskIndex.destroy();
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testBloomFilterGrowth() throws Exception {
+        
+        // add enough keys to the filter to make it grow multiple times
+        final int numKeys = BloomFilter.INITIAL_CAPACITY * BloomFilter.GROWTH_FACTOR * BloomFilter.GROWTH_FACTOR
+            * BloomFilter.GROWTH_FACTOR;
+        BloomFilter filter = new BloomFilter();
+        for (int i = 0; i < numKeys; i++)
+            filter.add(BloomFilter.hash(("key" + i).getBytes()));
+        
+        // write the filter and read it again
+        new File(PATH1).mkdirs();
+        String path = PATH1 + "/" + BloomFilter.FILENAME;
+        filter.write(path);
+        filter = BloomFilter.read(path);
+        
+        // make sure that there are no false negatives
+        for (int i = 0; i < numKeys; i++)
+            assertTrue(filter.mightContain(("key" + i).getBytes()));
+        
+        // make sure that the false positive rate remains low
+        int falsePositives = 0;
+        for (int i = 0; i < numKeys; i++)
+            if (filter.mightContain(("other" + i).getBytes()))
+                falsePositives++;
+        assertTrue("false positives: " + falsePositives, falsePositives < numKeys / 50);
+    }
+    
+    public void testBlockCache() throws Exception {
+        
+        BlockCache cache = BlockCache.getInstance();
+        cache.setCapacity(1024 * 1024);
+        try {
+            
+            // create a disk index that is not mmap'ed
+            byte[][] entries = createRandomByteArrays(NUM_ENTRIES / 10);
+            populateDiskIndex(entries);
+            DiskIndex diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, false);
+            
+            // look up each key twice; the second lookup has to be served
+            // from the cache
+            for (byte[] entry : entries)
+                assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+            long hits = (Long) cache.getRuntimeState("blockCache.hitCount");
+            for (byte[] entry : entries)
+                assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+            assertTrue((Long) cache.getRuntimeState("blockCache.hitCount") - hits >= entries.length);
+            assertTrue((Long) cache.getRuntimeState("blockCache.size") <= 1024 * 1024);
+            
+            // make sure that destroying an index only evicts its own blocks
+            DiskIndex diskIndex2 = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, false);
+            assertEquals(0, COMP.compare(entries[0], diskIndex2.lookup(entries[0])));
+            long size = (Long) cache.getRuntimeState("blockCache.size");
+            diskIndex.destroy();
+            long size2 = (Long) cache.getRuntimeState("blockCache.size");
+            assertTrue(size2 > 0 && size2 < size);
+            hits = (Long) cache.getRuntimeState("blockCache.hitCount");
+            assertEquals(0, COMP.compare(entries[0], diskIndex2.lookup(entries[0])));
+            assertTrue((Long) cache.getRuntimeState("blockCache.hitCount") > hits);
+            
+            // make sure that the blocks are evicted when the index is
+            // destroyed
+            diskIndex2.destroy();
+            assertEquals(0L, cache.getRuntimeState("blockCache.size"));
+            
+            // make sure that lookups are correct if the cache is too small to
+            // hold all blocks
+            cache.setCapacity(4096);
+            diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, false);
+            for (int i = 0; i < 2; i++)
+                for (byte[] entry : entries)
+                    assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+            assertTrue((Long) cache.getRuntimeState("blockCache.size") <= 4096);
+            diskIndex.destroy();
+            
+        } finally {
+            cache.setCapacity(0);
+        }
+        
+        assertNoBlockfiles();
+    }
+    
+    public void testDestroyWhileIterating() throws Exception {
+        
+        // create a disk index that is mmap'ed
+        byte[][] entries = createRandomByteArrays(NUM_ENTRIES / 10);
+        populateDiskIndex(entries);
+        DiskIndex diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, true);
+        
+        // destroy the index while an iterator is open; the iterator has to
+        // remain valid until it is exhausted
+        ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, true);
+        assertTrue(it.hasNext());
+        it.next();
+        diskIndex.destroy();
+        
+        int count = 1;
+        for (; it.hasNext(); count++)
+            assertNotNull(it.next().getValue());
+        assertEquals(entries.length, count);
+        
+        // the iterator has released the last reference to the index
+        assertFalse(diskIndex.acquire());
+        assertNoBlockfiles();
+        
+        // make sure that the reference held by an iterator that is not freed
+        // is released once the iterator has been garbage-collected
+        diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, true);
+        it = diskIndex.rangeLookup(null, null, true);
+        it.next();
+        it = null;
+        diskIndex.destroy();
+        
+        for (int i = 0; i < 50 && diskIndex.acquire(); i++) {
+            diskIndex.release();
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertFalse(diskIndex.acquire());
+        
+        // make sure that an iterator returning views on the block files is
+        // not released when it is garbage-collected, as the views may still
+        // be accessed afterwards
+        diskIndex = new DiskIndex(PATH2, new DefaultByteRangeComparator(), COMPRESSED, true);
+        InternalDiskIndexIterator internalIt = diskIndex.internalRangeLookup(null, null, true);
+        ByteRange key = internalIt.next().getKey();
+        byte[] keyCopy = key.toBuffer();
+        internalIt = null;
+        diskIndex.destroy();
+        
+        for (int i = 0; i < 10; i++) {
+            assertTrue(diskIndex.acquire());
+            diskIndex.release();
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, COMP.compare(keyCopy, key.toBuffer()));
+        
+        // release the reference of the leaked iterator
+        diskIndex.release();
+        assertFalse(diskIndex.acquire());
+        
+        assertNoBlockfiles();
+    }
+    
     public void testPrefixLookup() throws Exception {
         
         final String[] keys = { "bla", "brabbel", "foo", "kfdkdkdf", "ouuou", "yagga", "yyy", "z" };
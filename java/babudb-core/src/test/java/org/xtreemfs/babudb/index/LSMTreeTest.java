@@ -9,7 +9,10 @@
 package org.xtreemfs.babudb.index;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
@@ -17,6 +20,7 @@ import junit.framework.TestCase;
 import junit.textui.TestRunner;
 
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.IndexOptions;
 import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.snapshots.DefaultSnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
@@ -36,6 +40,8 @@ public class LSMTreeTest extends TestCase {
     
     private static final String SNAP_FILE4 = "/tmp/snap4.bin";
     
+    private static final String RUN_DIR    = "/tmp/lsmruns";
+    
     static {
         //ReusableBuffer.enableAutoFree(true);
         //BufferPool.enableStacktraceRecording(false);
@@ -50,6 +56,7 @@ public class LSMTreeTest extends TestCase {
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(RUN_DIR));
     }
     
     public void tearDown() throws Exception {
@@ -57,6 +64,7 @@ public class LSMTreeTest extends TestCase {
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(RUN_DIR));
     }
     
     public void testSnapshots() throws Exception {
@@ -482,6 +490,132 @@ public class LSMTreeTest extends TestCase {
         assertEquals(4, i);
     }
     
+    public void testRuns() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+        for (String k : new String[] { "a", "b", "c", "d", "e" })
+            tree.insert(k.getBytes(), k.getBytes());
+        
+        // write the first run
+        int snapId = tree.createSnapshot();
+        assertTrue(tree.materializeRun(RUN_DIR + "/r0", snapId));
+        LSMTree.writeRunManifest(RUN_DIR + "/snap0", Arrays.asList("r0"));
+        tree.linkToSnapshot(RUN_DIR + "/snap0");
+        
+        // write a second run containing an update, an insertion and a
+        // deletion
+        tree.insert("a".getBytes(), "x".getBytes());
+        tree.insert("f".getBytes(), "f".getBytes());
+        tree.delete("b".getBytes());
+        snapId = tree.createSnapshot();
+        assertTrue(tree.materializeRun(RUN_DIR + "/r1", snapId));
+        assertTrue(new File(RUN_DIR + "/r1/" + LSMTree.DELETIONS_DIR).exists());
+        for (String name : new File(RUN_DIR + "/r1").list())
+            assertFalse("temporary file left behind: " + name, name.endsWith(".tmp"));
+        LSMTree.writeRunManifest(RUN_DIR + "/snap1", Arrays.asList("r1", "r0"));
+        tree.linkToSnapshot(RUN_DIR + "/snap1");
+        
+        // an unchanged tree does not produce a new run
+        assertFalse(tree.materializeRun(RUN_DIR + "/r2", tree.createSnapshot()));
+        
+        assertRunContents(tree);
+        
+        // merge both runs
+        List<String> runs = tree.getRunsToCompact(2);
+        assertEquals(Arrays.asList("r1", "r0"), runs);
+        tree.mergeRuns(RUN_DIR + "/r2", runs);
+        assertTrue(tree.replaceRuns(runs, RUN_DIR + "/r2"));
+        assertFalse(tree.replaceRuns(runs, RUN_DIR + "/r2"));
+        
+        // deleted keys do not need to be retained in the bottom run
+        assertFalse(new File(RUN_DIR + "/r2/" + LSMTree.DELETIONS_DIR).exists());
+        assertEquals(Arrays.asList("r2"), tree.getRunNames());
+        assertEquals(Arrays.asList("r2"), LSMTree.readRunManifest(RUN_DIR + "/snap1"));
+        assertNull(tree.getRunsToCompact(2));
+        
+        assertRunContents(tree);
+        tree.destroy();
+        
+        // reopen the tree from the updated manifest
+        tree = new LSMTree(RUN_DIR + "/snap1", comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+        assertRunContents(tree);
+        tree.destroy();
+    }
+    
+    public void testLazyRuns() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+        for (String k : new String[] { "a", "b", "c", "d", "e" })
+            tree.insert(k.getBytes(), k.getBytes());
+        
+        int snapId = tree.createSnapshot();
+        assertTrue(tree.materializeRun(RUN_DIR + "/r0", snapId));
+        LSMTree.writeRunManifest(RUN_DIR + "/snap0", Arrays.asList("r0"));
+        tree.linkToSnapshot(RUN_DIR + "/snap0");
+        
+        tree.insert("a".getBytes(), "x".getBytes());
+        tree.insert("f".getBytes(), "f".getBytes());
+        tree.delete("b".getBytes());
+        snapId = tree.createSnapshot();
+        assertTrue(tree.materializeRun(RUN_DIR + "/r1", snapId));
+        LSMTree.writeRunManifest(RUN_DIR + "/snap1", Arrays.asList("r1", "r0"));
+        tree.destroy();
+        
+        IndexOptions lazyOpen = new IndexOptions().setCompression(COMPRESSION).setMaxEntriesPerBlock(16)
+            .setDisableMMap(!MMAP).setLazyOpen(true);
+        
+        // lazily opened runs are loaded on their first access
+        tree = new LSMTree(RUN_DIR + "/snap1", comp, lazyOpen);
+        assertRunContents(tree);
+        tree.destroy();
+        
+        tree = new LSMTree(RUN_DIR + "/snap1", comp, lazyOpen);
+        tree.preOpen();
+        assertRunContents(tree);
+        tree.destroy();
+        
+        // a damaged run is only detected when it is accessed
+        assertTrue(new File(RUN_DIR + "/r0/blockindex.idx").delete());
+        try {
+            new LSMTree(RUN_DIR + "/snap1", comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+            fail();
+        } catch (IOException exc) {
+            // ok
+        }
+        
+        tree = new LSMTree(RUN_DIR + "/snap1", comp, lazyOpen);
+        try {
+            tree.preOpen();
+            fail();
+        } catch (IOException exc) {
+            // ok
+        }
+        tree.destroy();
+    }
+    
+    private void assertRunContents(LSMTree tree) {
+        
+        assertEquals("x".getBytes(), tree.lookup("a".getBytes()));
+        assertEquals(null, tree.lookup("b".getBytes()));
+        assertEquals("c".getBytes(), tree.lookup("c".getBytes()));
+        assertEquals("f".getBytes(), tree.lookup("f".getBytes()));
+        
+        String[] expected = { "a", "c", "d", "e", "f" };
+        Iterator<Entry<byte[], byte[]>> it = tree.prefixLookup(new byte[0]);
+        for (String k : expected)
+            assertEquals(k.getBytes(), it.next().getKey());
+        assertFalse(it.hasNext());
+        
+        it = tree.rangeLookup("b".getBytes(), "e".getBytes(), true);
+        assertEquals("c".getBytes(), it.next().getKey());
+        assertEquals("d".getBytes(), it.next().getKey());
+        assertFalse(it.hasNext());
+    }
+    
     private void assertEquals(byte[] expected, byte[] result) {
         
         if (expected == null && result == null)
@@ -8,7 +8,9 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Map.Entry;
@@ -20,6 +22,9 @@ import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayBufferTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayStringTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayTree;
+import org.xtreemfs.babudb.index.overlay.Overlay;
+import org.xtreemfs.babudb.index.overlay.SkipListOverlay;
+import org.xtreemfs.babudb.index.overlay.SortedArrayOverlay;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
 
@@ -377,6 +382,130 @@ public class MultiOverlayTreeTest extends TestCase {
         assertFalse(itExpected.hasNext());
     }
     
+    public void testOffHeapOverlayBufferTree() throws Exception {
+        
+        final byte[] nullValue = new byte[0];
+        final MultiOverlayBufferTree tree = new MultiOverlayBufferTree(nullValue, DefaultByteRangeComparator
+                .getInstance(), true);
+        MultiOverlayBufferTree expected = new MultiOverlayBufferTree(nullValue, DefaultByteRangeComparator
+                .getInstance(), false);
+        
+        // apply the same random insertions and deletions to an off-heap and
+        // an on-heap tree, including some values that exceed an arena chunk
+        Random rnd = new Random(1);
+        final int numKeys = 2000;
+        int[] snaps = new int[3];
+        for (int s = 0; s < snaps.length; s++) {
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = Integer.toHexString(rnd.nextInt(numKeys)).getBytes();
+                byte[] val = rnd.nextInt(10) == 0 ? null : new byte[rnd.nextInt(100) == 0 ? 2000000 : rnd
+                        .nextInt(20)];
+                if (val != null)
+                    rnd.nextBytes(val);
+                tree.insert(key, val);
+                expected.insert(key, val);
+            }
+            snaps[s] = tree.newOverlay();
+            expected.newOverlay();
+        }
+        
+        // compare lookups in the current tree and all snapshots
+        for (int s = -1; s < snaps.length; s++) {
+            for (int i = 0; i < numKeys; i++) {
+                byte[] key = Integer.toHexString(i).getBytes();
+                byte[] val = s == -1 ? tree.lookup(key) : tree.lookup(key, snaps[s]);
+                byte[] exp = s == -1 ? expected.lookup(key) : expected.lookup(key, snaps[s]);
+                assertTrue(Arrays.equals(exp, val));
+                assertEquals(exp == nullValue, val == nullValue);
+            }
+            
+            byte[][] prefixes = { null, "1".getBytes(), "7f".getBytes(), "x".getBytes() };
+            for (byte[] prefix : prefixes) {
+                for (boolean ascending : new boolean[] { true, false }) {
+                    Iterator<Entry<byte[], byte[]>> it = s == -1 ? tree.prefixLookup(prefix, false, ascending)
+                        : tree.prefixLookup(prefix, snaps[s], false, ascending);
+                    Iterator<Entry<byte[], byte[]>> itExpected = s == -1 ? expected.prefixLookup(prefix, false,
+                        ascending) : expected.prefixLookup(prefix, snaps[s], false, ascending);
+                    while (itExpected.hasNext()) {
+                        Entry<byte[], byte[]> exp = itExpected.next();
+                        Entry<byte[], byte[]> next = it.next();
+                        assertTrue(Arrays.equals(exp.getKey(), next.getKey()));
+                        assertTrue(Arrays.equals(exp.getValue(), next.getValue()));
+                    }
+                    assertFalse(it.hasNext());
+                }
+            }
+        }
+        
+        // look up keys concurrently with insertions
+        tree.cleanup();
+        final Throwable[] error = new Throwable[1];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < numKeys; i++) {
+                        byte[] key = Integer.toHexString(i).getBytes();
+                        while (tree.lookup(key) == null)
+                            Thread.yield();
+                    }
+                } catch (Throwable th) {
+                    error[0] = th;
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < numKeys; i++)
+            tree.insert(Integer.toHexString(i).getBytes(), Integer.toHexString(i).getBytes());
+        reader.join();
+        assertNull(error[0]);
+    }
+    
+    public void testFrozenOverlay() throws Exception {
+        
+        DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        SkipListOverlay<byte[], byte[]> overlay = new SkipListOverlay<byte[], byte[]>(comp);
+        
+        Random rnd = new Random(1);
+        final int numKeys = 2000;
+        for (int i = 0; i < 1000; i++)
+            overlay.put(Integer.toHexString(rnd.nextInt(numKeys)).getBytes(), Integer.toHexString(i).getBytes());
+        
+        Overlay<byte[], byte[]> frozen = overlay.freeze();
+        assertTrue(frozen instanceof SortedArrayOverlay);
+        
+        // compare lookups of existing and missing keys
+        for (int i = 0; i < numKeys; i++) {
+            byte[] key = Integer.toHexString(i).getBytes();
+            assertTrue(Arrays.equals(overlay.get(key), frozen.get(key)));
+        }
+        
+        // compare range lookups in both directions, with and without bounds
+        for (int i = 0; i < 500; i++) {
+            
+            byte[] k1 = rnd.nextInt(10) == 0 ? null : Integer.toHexString(rnd.nextInt(numKeys)).getBytes();
+            byte[] k2 = rnd.nextInt(10) == 0 ? null : Integer.toHexString(rnd.nextInt(numKeys)).getBytes();
+            if (k1 != null && k2 != null && comp.compare(k1, k2) > 0) {
+                byte[] tmp = k1;
+                k1 = k2;
+                k2 = tmp;
+            }
+            
+            for (boolean ascending : new boolean[] { true, false }) {
+                byte[] from = ascending ? k1 : k2;
+                byte[] to = ascending ? k2 : k1;
+                Iterator<Entry<byte[], byte[]>> it = frozen.iterator(from, to, ascending);
+                Iterator<Entry<byte[], byte[]>> itExpected = overlay.iterator(from, to, ascending);
+                while (itExpected.hasNext()) {
+                    Entry<byte[], byte[]> exp = itExpected.next();
+                    Entry<byte[], byte[]> next = it.next();
+                    assertTrue(Arrays.equals(exp.getKey(), next.getKey()));
+                    assertTrue(Arrays.equals(exp.getValue(), next.getValue()));
+                }
+                assertFalse(it.hasNext());
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(MultiOverlayTreeTest.class);
     }
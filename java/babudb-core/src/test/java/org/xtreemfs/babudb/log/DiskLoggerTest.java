@@ -11,7 +11,14 @@ package org.xtreemfs.babudb.log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
@@ -383,7 +390,11 @@ public class DiskLoggerTest extends TestCase {
             
         }
         
-        File[] logFiles = new File(testdir).listFiles();
+        File[] logFiles = new File(testdir).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".dbl");
+            }
+        });
         assertEquals(numLogFiles + 1, logFiles.length);
         
         // create and test an iterator that starts at LSN 0
@@ -479,6 +490,525 @@ public class DiskLoggerTest extends TestCase {
         }
     }
     
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        
+        final int numThreads = 8;
+        final int numEntries = 500;
+        
+        // use a logger with a short queue, so that appending threads block
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FSYNC, 0, 4);
+        l.start();
+        l.waitForStartup();
+        
+        final long[][] lsns = new long[numThreads][numEntries];
+        final AtomicInteger count = new AtomicInteger(0);
+        final Exception[] error = new Exception[1];
+        
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < numEntries; i++) {
+                            
+                            final int entry = i;
+                            SyncListener sl = new SyncListener() {
+                                
+                                public void synced(LSN lsn) {
+                                    lsns[thread][entry] = lsn.getSequenceNo();
+                                    synchronized (count) {
+                                        count.incrementAndGet();
+                                        count.notifyAll();
+                                    }
+                                }
+                                
+                                public void failed(Exception ex) {
+                                    synchronized (count) {
+                                        error[0] = ex;
+                                        count.incrementAndGet();
+                                        count.notifyAll();
+                                    }
+                                }
+                            };
+                            
+                            ReusableBuffer plb = ReusableBuffer.wrap(("Entry " + thread + "/" + i).getBytes());
+                            l.append(new LogEntry(plb, sl, LogEntry.PAYLOAD_TYPE_INSERT));
+                        }
+                    } catch (InterruptedException exc) {
+                        synchronized (count) {
+                            error[0] = exc;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        
+        for (Thread thread : threads)
+            thread.join();
+        
+        synchronized (count) {
+            while (error[0] == null && count.get() < numThreads * numEntries)
+                count.wait(5);
+            assertNull(error[0]);
+        }
+        
+        // each entry must have been assigned a unique LSN, in the order in
+        // which the entries were appended by each thread
+        boolean[] assigned = new boolean[numThreads * numEntries + 1];
+        for (int t = 0; t < numThreads; t++) {
+            for (int i = 0; i < numEntries; i++) {
+                long lsn = lsns[t][i];
+                assertTrue(lsn >= 1 && lsn <= numThreads * numEntries);
+                assertFalse(assigned[(int) lsn]);
+                assigned[(int) lsn] = true;
+                if (i > 0)
+                    assertTrue(lsn > lsns[t][i - 1]);
+            }
+        }
+    }
+    
+    @Test
+    public void testGroupCommit() throws Exception {
+        
+        final int numThreads = 8;
+        final int numEntries = 500;
+        
+        // use a logger with a group commit latency target
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FSYNC, 0, 0, 10);
+        l.start();
+        l.waitForStartup();
+        
+        final AtomicInteger count = new AtomicInteger(0);
+        final SyncListener sl = new SyncListener() {
+            
+            public void synced(LSN lsn) {
+                synchronized (count) {
+                    count.incrementAndGet();
+                    count.notifyAll();
+                }
+            }
+            
+            public void failed(Exception ex) {
+                fail("this should not happen");
+            }
+        };
+        
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < numEntries; i++) {
+                            ReusableBuffer plb = ReusableBuffer.wrap(("Entry " + i).getBytes());
+                            l.append(new LogEntry(plb, sl, LogEntry.PAYLOAD_TYPE_INSERT));
+                        }
+                    } catch (InterruptedException exc) {
+                        fail(exc.toString());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        
+        for (Thread thread : threads)
+            thread.join();
+        
+        synchronized (count) {
+            while (count.get() < numThreads * numEntries)
+                count.wait(5);
+        }
+        
+        // all entries must have been written
+        assertEquals(new LSN(1, numThreads * numEntries), l.getLatestLSN());
+        
+        double avgBatchSize = (Double) l.getRuntimeState("diskLogger.averageBatchSize");
+        assertTrue(avgBatchSize >= 1 && avgBatchSize < DiskLogger.MAX_ENTRIES_PER_BLOCK);
+        assertTrue((Long) l.getRuntimeState("diskLogger.groupCommitWindow") >= 0);
+    }
+    
+    @Test
+    public void testLogIndex() throws Exception {
+        
+        final int numEntries = 1000;
+        
+        final AtomicInteger count = new AtomicInteger(0);
+        SyncListener sl = new SyncListener() {
+            
+            public void synced(LSN lsn) {
+                synchronized (count) {
+                    count.incrementAndGet();
+                    count.notifyAll();
+                }
+            }
+            
+            public void failed(Exception ex) {
+                fail("this should not happen");
+            }
+        };
+        
+        for (int i = 0; i < numEntries; i++) {
+            ReusableBuffer plb = ReusableBuffer.wrap(("Entry " + (i + 1)).getBytes());
+            l.append(new LogEntry(plb, sl, LogEntry.PAYLOAD_TYPE_INSERT));
+        }
+        synchronized (count) {
+            while (count.get() < numEntries)
+                count.wait(5);
+        }
+        
+        // every n-th entry has to be indexed
+        File logFile = new File(testdir + "1.1.dbl");
+        File indexFile = new File(testdir + "1.1.dbl" + DiskLogger.LOG_INDEX_SUFFIX);
+        assertEquals(numEntries / DiskLogger.LOG_INDEX_INTERVAL * DiskLogger.LOG_INDEX_RECORD_SIZE, indexFile
+                .length());
+        
+        File[] logFiles = new File[] { logFile };
+        int[] starts = { 1, 255, 256, 257, 511, 512, 600, 768, 1000 };
+        assertIteration(logFiles, starts, numEntries);
+        
+        // an index that points to wrong offsets must neither affect the
+        // result nor lead to a truncation of the log file
+        long logSize = logFile.length();
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        for (int i = 0; i < numEntries / DiskLogger.LOG_INDEX_INTERVAL; i++) {
+            long pos = i * DiskLogger.LOG_INDEX_RECORD_SIZE + 12;
+            raf.seek(pos);
+            long offset = raf.readLong();
+            raf.seek(pos);
+            raf.writeLong(i % 2 == 0 ? offset + 3 : logSize + 100);
+        }
+        raf.close();
+        
+        assertIteration(logFiles, starts, numEntries);
+        assertEquals(logSize, logFile.length());
+        
+        // a missing index does not affect the result either
+        assertTrue(indexFile.delete());
+        assertIteration(logFiles, starts, numEntries);
+    }
+    
+    @Test
+    public void testSyncedAcknowledgement() throws Exception {
+        
+        final int numThreads = 4;
+        final int numEntries = 500;
+        
+        for (SyncMode mode : new SyncMode[] { SyncMode.FSYNC, SyncMode.FDATASYNC }) {
+            
+            restart(mode, 0);
+            
+            // block the syncer while it acknowledges the first entry
+            CountDownLatch release = new CountDownLatch(1);
+            RecordingListener first = new RecordingListener(release);
+            append("first", first);
+            first.awaitCompletion(1);
+            
+            // the next entry is written, but must not be acknowledged before
+            // it has been synced
+            RecordingListener second = new RecordingListener(null);
+            append("second", second);
+            awaitWritten(2);
+            Thread.sleep(100);
+            assertEquals(0, second.getCompleted());
+            
+            release.countDown();
+            second.awaitCompletion(1);
+            assertEquals(1, second.getSynced().size());
+            
+            // entries appended concurrently have to be acknowledged in the
+            // order of their LSNs
+            final RecordingListener sl = new RecordingListener(null);
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                final int thread = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < numEntries; i++)
+                                append("Entry " + thread + "/" + i, sl);
+                        } catch (InterruptedException exc) {
+                            sl.failed(exc);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            
+            for (Thread thread : threads)
+                thread.join();
+            
+            sl.awaitCompletion(numThreads * numEntries);
+            assertTrue(sl.getFailed().isEmpty());
+            
+            List<LSN> synced = sl.getSynced();
+            for (int i = 0; i < synced.size(); i++)
+                assertEquals(new LSN(1, i + 3), synced.get(i));
+        }
+    }
+    
+    @Test
+    public void testSyncError() throws Exception {
+        
+        final int numEntries = 10;
+        
+        // block the syncer while it acknowledges the first entry
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener first = new RecordingListener(release);
+        append("first", first);
+        first.awaitCompletion(1);
+        
+        // write a second entry, which remains pending in the syncer; further
+        // entries remain in the queue until the syncer accepts another block
+        RecordingListener sl = new RecordingListener(null);
+        append("Entry 0", sl);
+        awaitWritten(2);
+        for (int i = 1; i < numEntries; i++)
+            append("Entry " + i, sl);
+        
+        // close the log file, so that syncing the pending block fails
+        Field channelField = DiskLogger.class.getDeclaredField("channel");
+        channelField.setAccessible(true);
+        ((FileChannel) channelField.get(l)).close();
+        release.countDown();
+        
+        // all pending entries have to fail
+        sl.awaitCompletion(numEntries);
+        assertTrue(sl.getSynced().isEmpty());
+        assertEquals(numEntries, sl.getFailed().size());
+        
+        // the logger has to accept new entries after switching the log file
+        try {
+            l.lock();
+            l.switchLogFile(false);
+        } finally {
+            l.unlock();
+        }
+        
+        RecordingListener last = new RecordingListener(null);
+        append("last", last);
+        last.awaitCompletion(1);
+        assertEquals(1, last.getSynced().size());
+    }
+    
+    @Test
+    public void testSwitchLogFileWithPendingBlock() throws Exception {
+        
+        // block the syncer while it acknowledges the first entry
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener first = new RecordingListener(release);
+        append("Entry 1", first);
+        first.awaitCompletion(1);
+        
+        // write a second entry, which remains pending in the syncer
+        final RecordingListener second = new RecordingListener(null);
+        append("Entry 2", second);
+        awaitWritten(2);
+        
+        // switch the log file; this has to wait until the pending entry has
+        // been synced
+        final int[] completedBeforeSwitch = new int[] { -1 };
+        final Exception[] error = new Exception[1];
+        Thread switcher = new Thread() {
+            public void run() {
+                try {
+                    l.lock();
+                    try {
+                        l.switchLogFile(false);
+                        completedBeforeSwitch[0] = second.getCompleted();
+                    } finally {
+                        l.unlock();
+                    }
+                } catch (Exception exc) {
+                    error[0] = exc;
+                }
+            }
+        };
+        switcher.start();
+        
+        switcher.join(200);
+        assertTrue(switcher.isAlive());
+        
+        release.countDown();
+        switcher.join();
+        
+        assertNull(error[0]);
+        assertEquals(1, completedBeforeSwitch[0]);
+        assertEquals(1, second.getSynced().size());
+        
+        // both entries have to be contained in the old log file
+        File[] logFiles = new File[] { new File(testdir + "1.1.dbl") };
+        assertIteration(logFiles, new int[] { 1 }, 2);
+    }
+    
+    @Test
+    public void testBoundedQueue() throws Exception {
+        
+        // use a logger with the default queue capacity
+        restart(SyncMode.ASYNC, 0);
+        
+        final int numEntries = (1 << 16) + 1000;
+        final AtomicInteger appended = new AtomicInteger();
+        final RecordingListener sl = new RecordingListener(null);
+        
+        // keep the logger from writing entries while the queue is filled
+        l.lock();
+        Thread producer;
+        try {
+            
+            producer = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < numEntries; i++) {
+                            append("Entry " + (i + 1), sl);
+                            appended.incrementAndGet();
+                        }
+                    } catch (InterruptedException exc) {
+                        sl.failed(exc);
+                    }
+                }
+            };
+            producer.start();
+            
+            // wait until the queue is full
+            int count;
+            do {
+                count = appended.get();
+                Thread.sleep(100);
+            } while (appended.get() != count);
+            
+            // the producer has to be blocked, rather than entries being
+            // dropped
+            assertTrue(producer.isAlive());
+            assertTrue(count < numEntries);
+            assertTrue(count >= 1 << 16);
+            assertEquals(0, sl.getCompleted());
+        
+        } finally {
+            l.unlock();
+        }
+        
+        producer.join();
+        sl.awaitCompletion(numEntries);
+        
+        assertTrue(sl.getFailed().isEmpty());
+        assertEquals(numEntries, sl.getSynced().size());
+        assertEquals(new LSN(1, numEntries), l.getLatestLSN());
+    }
+    
+    /**
+     * Replaces the logger with a new one that writes to an empty directory.
+     */
+    private void restart(SyncMode mode, int maxQ) throws Exception {
+        
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        l = new DiskLogger(testdir, new LSN(1, 1L), mode, 0, maxQ);
+        l.start();
+        l.waitForStartup();
+    }
+    
+    private void append(String payload, SyncListener listener) throws InterruptedException {
+        ReusableBuffer plb = ReusableBuffer.wrap(payload.getBytes());
+        l.append(new LogEntry(plb, listener, LogEntry.PAYLOAD_TYPE_INSERT));
+    }
+    
+    /**
+     * Waits until the given number of entries has been written to the log.
+     */
+    private void awaitWritten(int numEntries) throws InterruptedException {
+        while ((Integer) l.getRuntimeState("diskLogger.processedLogEntryCount") < numEntries)
+            Thread.sleep(1);
+    }
+    
+    /**
+     * A listener that records the LSNs of synced entries and the errors of
+     * failed entries. If a latch is given, the listener blocks until the latch
+     * has been released after recording an entry.
+     */
+    private static class RecordingListener implements SyncListener {
+        
+        private final CountDownLatch  release;
+        
+        private final List<LSN>       synced = new ArrayList<LSN>();
+        
+        private final List<Exception> failed = new ArrayList<Exception>();
+        
+        RecordingListener(CountDownLatch release) {
+            this.release = release;
+        }
+        
+        public void synced(LSN lsn) {
+            synchronized (this) {
+                synced.add(lsn);
+                notifyAll();
+            }
+            block();
+        }
+        
+        public void failed(Exception ex) {
+            synchronized (this) {
+                failed.add(ex);
+                notifyAll();
+            }
+            block();
+        }
+        
+        synchronized int getCompleted() {
+            return synced.size() + failed.size();
+        }
+        
+        synchronized List<LSN> getSynced() {
+            return new ArrayList<LSN>(synced);
+        }
+        
+        synchronized List<Exception> getFailed() {
+            return new ArrayList<Exception>(failed);
+        }
+        
+        synchronized void awaitCompletion(int numEntries) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 30000;
+            while (getCompleted() < numEntries) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("entries were not acknowledged in time", remaining > 0);
+                wait(remaining);
+            }
+        }
+        
+        private void block() {
+            if (release == null)
+                return;
+            try {
+                assertTrue(release.await(30, TimeUnit.SECONDS));
+            } catch (InterruptedException exc) {
+                fail(exc.toString());
+            }
+        }
+    }
+    
+    private static void assertIteration(File[] logFiles, int[] starts, int numEntries) throws Exception {
+        
+        for (int k : starts) {
+            DiskLogIterator it = new DiskLogIterator(logFiles, new LSN(1, k));
+            for (int i = k; i <= numEntries; i++) {
+                LogEntry next = it.next();
+                assertEquals(new LSN(1, i), next.getLSN());
+                assertEquals("Entry " + i, new String(next.getPayload().array()));
+                next.free();
+            }
+            assertFalse(it.hasNext());
+            it.destroy();
+        }
+    }
+    
     private static void copyFile(File src, File dst) throws Exception {
         FileInputStream in = new FileInputStream(src);
         FileOutputStream out = new FileOutputStream(dst);
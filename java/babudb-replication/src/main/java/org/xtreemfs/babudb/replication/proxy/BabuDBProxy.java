@@ -210,6 +210,22 @@ public class BabuDBProxy implements BabuDBInternal {
         return localBabuDB.getWorker(dbId);
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.BabuDBInternal#getWorker(int, int)
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int shard) {
+        return localBabuDB.getWorker(dbId, shard);
+    }
+
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.BabuDBInternal#getShardCount()
+     */
+    @Override
+    public int getShardCount() {
+        return localBabuDB.getShardCount();
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.BabuDBInternal#getWorkerCount()
      */
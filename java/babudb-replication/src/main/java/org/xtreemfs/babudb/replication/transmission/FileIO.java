@@ -12,6 +12,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 
 import org.xtreemfs.babudb.config.ReplicationConfig;
+import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.log.DiskLogIterator;
 import org.xtreemfs.babudb.log.LogEntryException;
 import org.xtreemfs.babudb.lsmdb.LSMDatabase;
@@ -86,7 +87,14 @@ public class FileIO implements FileIOInterface {
         File result;
         String baseDir = configuration.getBabuDBConfig().getBaseDir();
         
-        if (LSMDatabase.isSnapshotFilename(pName)) {
+        if (LSMTree.DELETIONS_DIR.equals(pName)) {
+            // file of the index of deleted keys in an on-disk run
+            File runDir = chnk.getParentFile().getParentFile();
+            result = new File(baseDir + runDir.getParentFile().getName() + separatorChar + runDir.getName()
+                + separatorChar + pName + separator + fName);
+            result.getParentFile().mkdirs();
+            result.createNewFile();
+        } else if (LSMDatabase.isSnapshotFilename(pName) || LSMDatabase.isRunFilename(pName)) {
             // create the db-name directory, if necessary
             new File(baseDir + pName + separatorChar).mkdirs();
             // create the file if necessary
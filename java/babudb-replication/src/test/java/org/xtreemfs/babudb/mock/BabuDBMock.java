@@ -162,6 +162,29 @@ public class BabuDBMock implements BabuDBInternal {
         return null;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.BabuDBInternal#getWorker(int, int)
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int shard) {
+
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+                "Mock '%s' tried to access Worker for DB %d.", name, dbId);
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.BabuDBInternal#getShardCount()
+     */
+    @Override
+    public int getShardCount() {
+        return 1;
+    }
+
     /*
      * (non-Javadoc)
      * 